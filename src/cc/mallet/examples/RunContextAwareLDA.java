@@ -22,18 +22,13 @@ import java.util.zip.GZIPInputStream;
 public class RunContextAwareLDA {
 
     private static Pipe createPipe(Alphabet alphabet){
-        SerialPipes pipe = new SerialPipes();
-
         // the alphabet from a pre-trained model should not grow
         alphabet.stopGrowth();
 
-        // use the same pipes we used to train the model
-
-        pipe.pipes().add(new CharSequenceLowercase());
-        pipe.pipes().add(new CharSequence2TokenSequence("\\p{L}\\p{L}\\p{L}+"));
-        pipe.pipes().add(new TokenSequence2SnowballStemming());
-        pipe.pipes().add(new TokenSequence2FeatureSequence(alphabet));
-        return pipe;
+        // use the same preprocessing we used to train the model:
+        //  CharSequenceLowercase, CharSequence2TokenSequence("\\p{L}\\p{L}\\p{L}+"),
+        //  TokenSequence2SnowballStemming and TokenSequence2FeatureSequence, fused into one pipe
+        return new CharSequence2StemmedFeatureSequence(alphabet);
     }
     private static double[] normalize(double[] dist, int start, int end){
         double[] ret = new double[end-start];
@@ -62,19 +57,25 @@ public class RunContextAwareLDA {
         String documentPath = args[1];
         String context = args[2];
 
-        FileInputStream fileInputStream = new FileInputStream(modelPath);
-
         System.out.println("Loading model ...");
 
-        // check if model file is gzipped
-        ObjectInputStream objectInputStream;
-        if(modelPath.endsWith(".gz")){
-            objectInputStream = new ObjectInputStream(new GZIPInputStream(fileInputStream));
+        MultiBackgroundTopicModel model;
+        if(modelPath.endsWith(".calda") || modelPath.endsWith(".calda.gz")){
+            // inference-only model written by MultiBackgroundTopicModel.writeInferenceModel()
+            model = MultiBackgroundTopicModel.readInferenceModel(new File(modelPath));
         }else{
-            objectInputStream = new ObjectInputStream(fileInputStream);
+            FileInputStream fileInputStream = new FileInputStream(modelPath);
+
+            // check if model file is gzipped
+            ObjectInputStream objectInputStream;
+            if(modelPath.endsWith(".gz")){
+                objectInputStream = new ObjectInputStream(new GZIPInputStream(fileInputStream));
+            }else{
+                objectInputStream = new ObjectInputStream(fileInputStream);
+            }
+            // deserialize the model
+            model = (MultiBackgroundTopicModel) objectInputStream.readObject();
         }
-        // deserialize the model
-        MultiBackgroundTopicModel model = (MultiBackgroundTopicModel) objectInputStream.readObject();
 
         // get all sources (i.e. contexts) available in this model
         ArrayList<String> sources = new ArrayList<String>();
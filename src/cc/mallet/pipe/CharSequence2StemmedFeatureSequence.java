@@ -0,0 +1,222 @@
+package cc.mallet.pipe;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import org.tartarus.snowball.ext.EnglishStemmer;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+/**
+ * Turns a raw CharSequence into a FeatureSequence of stemmed words in one pass. The result is the same as
+ *
+ * <pre>
+ *   CharSequenceLowercase
+ *   CharSequence2TokenSequence("\\p{L}\\p{L}\\p{L}+")
+ *   TokenSequence2SnowballStemming
+ *   TokenSequence2FeatureSequence(alphabet)
+ * </pre>
+ *
+ * Unlike that chain, this pipe creates no lowercased copy of the text and no Token or String per word.
+ * Each word is lowercased into a reusable char buffer, copied into the stemmer's own buffer and stemmed
+ * there, and the stem is resolved against an index of the alphabet that is keyed by characters. Words
+ * that are not in the alphabet are dropped.
+ *
+ * The alphabet must have stopped growing. The pipe can be shared by several threads.
+ */
+public class CharSequence2StemmedFeatureSequence extends Pipe {
+    // the number of letters a word needs, as in "\\p{L}\\p{L}\\p{L}+"
+    static final int MIN_WORD_LENGTH = 3;
+
+    transient CharArrayIndex index;
+    transient ThreadLocal<Scratch> scratch;
+
+    public CharSequence2StemmedFeatureSequence(Alphabet alphabet) {
+        super(alphabet, null);
+        if (! alphabet.growthStopped()) {
+            throw new IllegalArgumentException("CharSequence2StemmedFeatureSequence needs an alphabet that has stopped growing");
+        }
+        initialize();
+    }
+
+    private void initialize() {
+        index = new CharArrayIndex(getDataAlphabet());
+        scratch = new ThreadLocal<Scratch>() {
+            protected Scratch initialValue() {
+                return new Scratch();
+            }
+        };
+    }
+
+    /** An English stemmer whose word is set and read through its buffer, rather than as Strings */
+    static class BufferStemmer extends EnglishStemmer {
+        /** Does what setCurrent(String) does, from a range of a char array */
+        void setWord(char[] word, int length) {
+            current.setLength(0);
+            current.append(word, 0, length);
+            cursor = 0;
+            limit = length;
+            limit_backward = 0;
+            bra = cursor;
+            ket = limit;
+        }
+
+        /** The stem, which is only valid until the next word is set */
+        CharSequence getStem() {
+            return current;
+        }
+    }
+
+    /** Per-thread stemmer and buffers */
+    static class Scratch {
+        BufferStemmer stemmer = new BufferStemmer();
+        char[] word = new char[32];
+        int[] features = new int[64];
+    }
+
+    public Instance pipe(Instance carrier) {
+        if (! (carrier.getData() instanceof CharSequence)) {
+            throw new IllegalArgumentException("CharSequence2StemmedFeatureSequence expects a CharSequence, found a " +
+                    carrier.getData().getClass());
+        }
+        CharSequence text = (CharSequence) carrier.getData();
+        Scratch scratch = this.scratch.get();
+
+        int numFeatures = 0;
+        int wordLength = 0;   // in chars
+        int wordLetters = 0;  // in code points
+
+        int offset = 0;
+        while (offset < text.length()) {
+            int codePoint = Character.codePointAt(text, offset);
+            offset += Character.charCount(codePoint);
+
+            codePoint = Character.toLowerCase(codePoint);
+            if (Character.isLetter(codePoint)) {
+                if (wordLength + 2 > scratch.word.length) {
+                    scratch.word = Arrays.copyOf(scratch.word, scratch.word.length * 2);
+                }
+                wordLength += Character.toChars(codePoint, scratch.word, wordLength);
+                wordLetters++;
+            }
+            else {
+                numFeatures = addWord(scratch, wordLength, wordLetters, numFeatures);
+                wordLength = 0;
+                wordLetters = 0;
+            }
+        }
+        numFeatures = addWord(scratch, wordLength, wordLetters, numFeatures);
+
+        carrier.setData(new FeatureSequence(getDataAlphabet(), Arrays.copyOf(scratch.features, numFeatures)));
+        return carrier;
+    }
+
+    /** Stem the word in the scratch buffer and add its feature, if it is long enough and in the alphabet */
+    private int addWord(Scratch scratch, int wordLength, int wordLetters, int numFeatures) {
+        if (wordLetters < MIN_WORD_LENGTH) {
+            return numFeatures;
+        }
+
+        BufferStemmer stemmer = scratch.stemmer;
+        stemmer.setWord(scratch.word, wordLength);
+        stemmer.stem();
+
+        int feature = index.lookup(stemmer.getStem());
+        if (feature < 0) {
+            return numFeatures;
+        }
+
+        if (numFeatures == scratch.features.length) {
+            scratch.features = Arrays.copyOf(scratch.features, numFeatures * 2);
+        }
+        scratch.features[numFeatures] = feature;
+        return numFeatures + 1;
+    }
+
+    /**
+     * A read-only, open-addressing hash index from the text of alphabet entries to their ids,
+     *  which can be probed with any CharSequence.
+     */
+    static class CharArrayIndex {
+        char[][] entries;
+        int[] slots;
+        int mask;
+
+        CharArrayIndex(Alphabet alphabet) {
+            int size = alphabet.size();
+            entries = new char[size][];
+
+            int capacity = 2;
+            while (capacity < size * 2) {
+                capacity <<= 1;
+            }
+            slots = new int[capacity];
+            Arrays.fill(slots, -1);
+            mask = capacity - 1;
+
+            for (int id = 0; id < size; id++) {
+                String entry = alphabet.lookupObject(id).toString();
+                entries[id] = entry.toCharArray();
+
+                int slot = hash(entry) & mask;
+                while (slots[slot] != -1) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = id;
+            }
+        }
+
+        /** Return the id of the entry with these characters, or -1 */
+        int lookup(CharSequence text) {
+            int slot = hash(text) & mask;
+            while (true) {
+                int id = slots[slot];
+                if (id == -1) {
+                    return -1;
+                }
+                if (matches(entries[id], text)) {
+                    return id;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        static boolean matches(char[] entry, CharSequence text) {
+            if (entry.length != text.length()) {
+                return false;
+            }
+            for (int i = 0; i < entry.length; i++) {
+                if (entry[i] != text.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static int hash(CharSequence text) {
+            int hash = 0;
+            for (int i = 0; i < text.length(); i++) {
+                hash = 31 * hash + text.charAt(i);
+            }
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    // Serialization
+
+    private static final long serialVersionUID = 1;
+    private static final int CURRENT_SERIAL_VERSION = 0;
+
+    private void writeObject (ObjectOutputStream out) throws IOException {
+        out.writeInt (CURRENT_SERIAL_VERSION);
+    }
+
+    private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+        int version = in.readInt ();
+        initialize();
+    }
+
+}
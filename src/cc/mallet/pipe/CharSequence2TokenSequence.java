@@ -61,14 +61,30 @@ public class CharSequence2TokenSequence extends Pipe implements Serializable
 	public Instance pipe (Instance carrier)
 	{
 		CharSequence string = (CharSequence) carrier.getData();
-		lexer.setCharSequence (string);
 		TokenSequence ts = new StringTokenization (string);
+		if (getClass() == CharSequence2TokenSequence.class &&
+			lexer.getClass() == CharSequenceLexer.class) {
+			// A stock lexer only matches its pattern, so lex with a matcher
+			//  of our own and the pipe can be shared by several threads
+			addTokens (new CharSequenceLexer (string, lexer.getRegex()), string, ts);
+		}
+		else {
+			// Subclasses may keep state in the lexer, so it does the lexing itself
+			synchronized (lexer) {
+				lexer.setCharSequence (string);
+				addTokens (lexer, string, ts);
+			}
+		}
+		carrier.setData(ts);
+		return carrier;
+	}
+
+	private void addTokens (CharSequenceLexer lexer, CharSequence string, TokenSequence ts)
+	{
 		while (lexer.hasNext()) {
 			lexer.next();
 			ts.add (new StringSpan (string, lexer.getStartOffset (), lexer.getEndOffset ()));
 		}
-		carrier.setData(ts);
-		return carrier;
 	}
 
 	public static void main (String[] args)
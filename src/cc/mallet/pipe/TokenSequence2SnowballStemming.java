@@ -8,37 +8,153 @@ import org.tartarus.snowball.ext.EnglishStemmer;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A token sequence pipe that stems the english tokens
+ *
+ * Stems of recently seen tokens are kept in a bounded LRU cache, so frequent words are only stemmed once.
+ * The cache is split into segments that are locked separately, and every thread has its own stemmer,
+ * so the pipe can be shared by several threads.
+ *
  * Created by changun on 2016/8/16.
  */
 public class TokenSequence2SnowballStemming extends Pipe{
 
-    EnglishStemmer stemmer = new EnglishStemmer();
+    public static final int DEFAULT_CACHE_SIZE = 16384;
+    static final int NUM_SEGMENTS = 16;
+
+    // the maximum number of cached stems, 0 to disable the cache
+    int cacheSize;
+
+    transient ThreadLocal<EnglishStemmer> stemmers;
+    transient StemCache[] segments;
+    transient AtomicLong hits;
+    transient AtomicLong misses;
+
+    public TokenSequence2SnowballStemming() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize the maximum number of surface forms whose stems are cached, 0 to disable the cache
+     */
+    public TokenSequence2SnowballStemming(int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("cache size must be non-negative: " + cacheSize);
+        }
+        this.cacheSize = cacheSize;
+        initialize();
+    }
+
+    private void initialize() {
+        stemmers = new ThreadLocal<EnglishStemmer>() {
+            protected EnglishStemmer initialValue() {
+                return new EnglishStemmer();
+            }
+        };
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        segments = null;
+        if (cacheSize > 0) {
+            int segmentSize = Math.max(1, (cacheSize + NUM_SEGMENTS - 1) / NUM_SEGMENTS);
+            segments = new StemCache[NUM_SEGMENTS];
+            for (int i = 0; i < NUM_SEGMENTS; i++) {
+                segments[i] = new StemCache(segmentSize);
+            }
+        }
+    }
+
+    /** One segment of the cache: a LinkedHashMap in access order that drops its least recently used entry */
+    static class StemCache extends LinkedHashMap<String, String> {
+        private static final long serialVersionUID = 1;
+
+        int maxSize;
+
+        StemCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > maxSize;
+        }
+    }
+
     public Instance pipe (Instance carrier)
     {
         TokenSequence ts = (TokenSequence) carrier.getData();
         for (int i = 0; i < ts.size(); i++) {
             Token t = ts.get(i);
-            stemmer.setCurrent(t.getText());
-            stemmer.stem();
-            t.setText(stemmer.getCurrent());
+            t.setText(stem(t.getText()));
         }
         return carrier;
     }
 
+    /** Return the stem of a word, from the cache if possible */
+    public String stem(String word) {
+        if (segments == null) {
+            misses.incrementAndGet();
+            return stemUncached(word);
+        }
+
+        int hash = word.hashCode();
+        StemCache segment = segments[(hash ^ (hash >>> 16)) & (NUM_SEGMENTS - 1)];
+
+        String stem;
+        synchronized (segment) {
+            stem = segment.get(word);
+        }
+        if (stem != null) {
+            hits.incrementAndGet();
+            return stem;
+        }
+
+        // Stem outside the lock; two threads may stem the same word, but they agree on the result
+        misses.incrementAndGet();
+        stem = stemUncached(word);
+        synchronized (segment) {
+            segment.put(word, stem);
+        }
+        return stem;
+    }
+
+    private String stemUncached(String word) {
+        EnglishStemmer stemmer = stemmers.get();
+        stemmer.setCurrent(word);
+        stemmer.stem();
+        return stemmer.getCurrent();
+    }
+
+    public int getCacheSize() { return cacheSize; }
+
+    /** The number of tokens whose stem was found in the cache */
+    public long getCacheHits() { return hits.get(); }
+
+    /** The number of tokens that had to be stemmed */
+    public long getCacheMisses() { return misses.get(); }
+
+    public void resetCacheStatistics() {
+        hits.set(0);
+        misses.set(0);
+    }
+
     // Serialization 
 
     private static final long serialVersionUID = 1;
-    private static final int CURRENT_SERIAL_VERSION = 0;
+    private static final int CURRENT_SERIAL_VERSION = 1;
 
     private void writeObject (ObjectOutputStream out) throws IOException {
         out.writeInt (CURRENT_SERIAL_VERSION);
+        out.writeInt (cacheSize);
     }
 
     private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
         int version = in.readInt ();
+        cacheSize = version >= 1 ? in.readInt () : DEFAULT_CACHE_SIZE;
+        initialize();
     }
 
 }
@@ -0,0 +1,132 @@
+package cc.mallet.pipe.tests;
+
+import junit.framework.*;
+
+import java.io.*;
+
+import cc.mallet.pipe.*;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+
+/**
+ * Checks that the fused CA-LDA preprocessing pipe gives the same features as the pipe chain it replaces.
+ */
+public class TestCharSequence2StemmedFeatureSequence extends TestCase {
+
+  public TestCharSequence2StemmedFeatureSequence (String name)
+  {
+    super (name);
+  }
+
+  private static String[] texts = {
+    "Meeting rescheduled to Tuesday; the running agenda is attached.",
+    "LOVED this video!!! Watching it again & again... #amazing",
+    "Über-cool naïve café owners are OPENING stores in Zürich",
+    "a an the of to   ok",
+    "",
+  };
+
+  private static SerialPipes chain (Alphabet alphabet)
+  {
+    SerialPipes pipe = new SerialPipes();
+    pipe.pipes().add(new CharSequenceLowercase());
+    pipe.pipes().add(new CharSequence2TokenSequence("\\p{L}\\p{L}\\p{L}+"));
+    pipe.pipes().add(new TokenSequence2SnowballStemming());
+    pipe.pipes().add(new TokenSequence2FeatureSequence(alphabet));
+    return pipe;
+  }
+
+  private static int[] features (Pipe pipe, String text)
+  {
+    Instance instance = pipe.instanceFrom(new Instance(text, null, null, null));
+    FeatureSequence fs = (FeatureSequence) instance.getData();
+    int[] features = new int[fs.getLength()];
+    for (int i = 0; i < features.length; i++) {
+      features[i] = fs.getIndexAtPosition(i);
+    }
+    return features;
+  }
+
+  private static Alphabet trainedAlphabet ()
+  {
+    // Build the alphabet from all but the last word of each text, so some words are unknown
+    Alphabet alphabet = new Alphabet();
+    SerialPipes training = chain(alphabet);
+    for (String text : texts) {
+      int end = text.lastIndexOf(' ');
+      training.instanceFrom(new Instance(end > 0 ? text.substring(0, end) : text, null, null, null));
+    }
+    alphabet.stopGrowth();
+    return alphabet;
+  }
+
+  public void testSameFeaturesAsChain ()
+  {
+    Alphabet alphabet = trainedAlphabet();
+    SerialPipes chain = chain(alphabet);
+    Pipe fused = new CharSequence2StemmedFeatureSequence(alphabet);
+
+    for (String text : texts) {
+      int[] expected = features(chain, text);
+      int[] actual = features(fused, text);
+      assertEquals(text, expected.length, actual.length);
+      for (int i = 0; i < expected.length; i++) {
+        assertEquals(text, expected[i], actual[i]);
+      }
+    }
+  }
+
+  public void testRequiresStoppedAlphabet ()
+  {
+    try {
+      new CharSequence2StemmedFeatureSequence(new Alphabet());
+      fail("expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testSerialization () throws IOException, ClassNotFoundException
+  {
+    Alphabet alphabet = trainedAlphabet();
+    Pipe fused = new CharSequence2StemmedFeatureSequence(alphabet);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(fused);
+    out.close();
+    Pipe copy = (Pipe) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+    for (String text : texts) {
+      int[] expected = features(fused, text);
+      int[] actual = features(copy, text);
+      assertEquals(expected.length, actual.length);
+      for (int i = 0; i < expected.length; i++) {
+        assertEquals(copy.getDataAlphabet().lookupObject(actual[i]),
+                     alphabet.lookupObject(expected[i]));
+      }
+    }
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestCharSequence2StemmedFeatureSequence.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestCharSequence2StemmedFeatureSequence (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
@@ -0,0 +1,149 @@
+package cc.mallet.pipe.tests;
+
+import junit.framework.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import cc.mallet.pipe.TokenSequence2SnowballStemming;
+import cc.mallet.types.Instance;
+import cc.mallet.types.TokenSequence;
+
+/**
+ * Checks the stem cache and the thread safety of TokenSequence2SnowballStemming.
+ */
+public class TestTokenSequence2SnowballStemming extends TestCase {
+
+  public TestTokenSequence2SnowballStemming (String name)
+  {
+    super (name);
+  }
+
+  private static String[] words = {
+    "running", "meetings", "agenda", "running", "attached", "meetings", "running", "stores", "opening",
+  };
+
+  private static String[] stems (TokenSequence2SnowballStemming pipe)
+  {
+    TokenSequence ts = new TokenSequence();
+    for (String word : words) {
+      ts.add(word);
+    }
+    pipe.instanceFrom(new Instance(ts, null, null, null));
+    String[] stems = new String[ts.size()];
+    for (int i = 0; i < stems.length; i++) {
+      stems[i] = ts.get(i).getText();
+    }
+    return stems;
+  }
+
+  public void testCacheGivesSameStems ()
+  {
+    TokenSequence2SnowballStemming cached = new TokenSequence2SnowballStemming();
+    TokenSequence2SnowballStemming uncached = new TokenSequence2SnowballStemming(0);
+
+    String[] expected = stems(uncached);
+    String[] actual = stems(cached);
+    for (int i = 0; i < words.length; i++) {
+      assertEquals(words[i], expected[i], actual[i]);
+    }
+
+    // 6 distinct words, so 6 misses and 3 hits
+    assertEquals(6, cached.getCacheMisses());
+    assertEquals(3, cached.getCacheHits());
+    assertEquals(0, uncached.getCacheHits());
+    assertEquals(words.length, uncached.getCacheMisses());
+
+    // everything is cached now
+    stems(cached);
+    assertEquals(6, cached.getCacheMisses());
+    assertEquals(3 + words.length, cached.getCacheHits());
+  }
+
+  public void testCacheIsBounded ()
+  {
+    TokenSequence2SnowballStemming pipe = new TokenSequence2SnowballStemming(16);
+    for (int i = 0; i < 1000; i++) {
+      pipe.stem("word" + i);
+    }
+    pipe.resetCacheStatistics();
+    for (int i = 0; i < 1000; i++) {
+      pipe.stem("word" + i);
+    }
+    assertTrue(pipe.getCacheHits() <= 16);
+    assertEquals(1000, pipe.getCacheHits() + pipe.getCacheMisses());
+  }
+
+  public void testSharedAcrossThreads () throws InterruptedException
+  {
+    final TokenSequence2SnowballStemming shared = new TokenSequence2SnowballStemming(4);
+    final String[] expected = stems(new TokenSequence2SnowballStemming(0));
+    final List<String> failures = new ArrayList<String>();
+
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+          public void run() {
+            for (int round = 0; round < 500; round++) {
+              String[] actual = stems(shared);
+              for (int i = 0; i < actual.length; i++) {
+                if (! expected[i].equals(actual[i])) {
+                  synchronized (failures) {
+                    failures.add(words[i] + " -> " + actual[i]);
+                  }
+                }
+              }
+            }
+          }
+        };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertTrue(failures.toString(), failures.isEmpty());
+    assertEquals(threads.length * 500 * words.length, shared.getCacheHits() + shared.getCacheMisses());
+  }
+
+  public void testSerialization () throws IOException, ClassNotFoundException
+  {
+    TokenSequence2SnowballStemming pipe = new TokenSequence2SnowballStemming(100);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(pipe);
+    out.close();
+    TokenSequence2SnowballStemming copy = (TokenSequence2SnowballStemming)
+      new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+    assertEquals(100, copy.getCacheSize());
+    String[] expected = stems(pipe);
+    String[] actual = stems(copy);
+    for (int i = 0; i < words.length; i++) {
+      assertEquals(expected[i], actual[i]);
+    }
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestTokenSequence2SnowballStemming.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestTokenSequence2SnowballStemming (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
@@ -0,0 +1,415 @@
+package cc.mallet.topics;
+
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.util.AliasTable;
+import cc.mallet.util.Randoms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A MultiBackgroundTopicModel worker that samples with Metropolis-Hastings instead of the
+ * SparseLDA buckets, in the style of LightLDA. The cost per token does not grow with the
+ * number of topics.
+ *
+ * The conditional of a token is p(z) = D(z) * W(z), over the topics and the background:
+ * <pre>
+ *   D(k) = alpha_k + n_dk                W(k) = (beta + n_wk) / (n_k + beta * V)
+ *   D(b) = (alphaSum + n_d) * (n_db + lambda) / (n_d + lambda)
+ *                                        W(b) = (betaBackground + n_bw) / (n_b + betaBackground * V)
+ * </pre>
+ * which is what BackgroundWorkerRunnable samples from exactly. Each token alternates
+ * between two proposals, each followed by an accept/reject step:
+ * <ul>
+ * <li>The document proposal, proportional to D(z). A topic is drawn by copying the topic of
+ *  another topical word of the document, or from alpha, so the acceptance ratio is W(t) / W(s).</li>
+ * <li>The word proposal, proportional to W(z), from an alias table over the type's non-zero
+ *  topics and one over the smoothing mass of all topics. The tables are built from the counts
+ *  at the start of the iteration, which the acceptance ratio corrects for.</li>
+ * </ul>
+ * The alias table of a type is built the first time the type is seen in an iteration, in time
+ * linear in its number of topics, which is amortized over its tokens. Lookups of n_wk go through
+ * a hash table per type, so they do not scan the packed type/topic counts. The packed counts are
+ * only read while sampling and are rebuilt from the documents at the end of each iteration, so
+ * this worker must not share the model's arrays.
+ */
+public class AliasBackgroundWorkerRunnable extends MultiBackgroundWorkerRunnable {
+
+    public static final int DEFAULT_MH_STEPS = 2;
+
+    // the number of (document proposal, word proposal) pairs per token
+    int numMHSteps = DEFAULT_MH_STEPS;
+
+    // topic totals at the start of the iteration, which the word proposals are built from
+    int[] staleTokensPerTopic;
+    // beta / (n_k + beta * V) over all topics, and alpha
+    AliasTable smoothingTable = new AliasTable();
+    AliasTable alphaTable = new AliasTable();
+
+    // per type, rebuilt the first time the type is seen in an iteration
+    TypeCounts[] typeCounts;
+    int[] typeIterations;
+    int iteration = 0;
+
+    // work space, all zero between documents
+    int[] docTopicCounts;
+    int[] localTopicCounts;
+    int[] localTopicIndex;
+    double[] weights;
+    int[] topics;
+
+    public AliasBackgroundWorkerRunnable(int numTopics, double[] alpha, double alphaSum, double beta,
+                                         double betaBackground, double lambda,
+                                         Randoms random, ArrayList<TopicAssignment> data,
+                                         int[][] typeTopicCounts, int[] tokensPerTopic,
+                                         Map<Object, Integer> sourceToSourceId,
+                                         int[][] globalTypeBackgroundCounts, int[][] backgroundAndTopicalCounts,
+                                         int startDoc, int numDocs) {
+        super(numTopics, alpha, alphaSum, beta, betaBackground, lambda, random, data,
+                typeTopicCounts, tokensPerTopic, sourceToSourceId,
+                globalTypeBackgroundCounts, backgroundAndTopicalCounts, startDoc, numDocs);
+
+        staleTokensPerTopic = new int[numTopics];
+        typeCounts = new TypeCounts[numTypes];
+        typeIterations = new int[numTypes];
+
+        docTopicCounts = new int[numTopics];
+        localTopicCounts = new int[numTopics];
+        localTopicIndex = new int[numTopics];
+        weights = new double[numTopics];
+        topics = new int[numTopics];
+    }
+
+    public void setNumMHSteps(int numMHSteps) {
+        if (numMHSteps < 1) {
+            throw new IllegalArgumentException("At least one Metropolis-Hastings step is needed, not " + numMHSteps);
+        }
+        this.numMHSteps = numMHSteps;
+    }
+
+    /** The packed type/topic counts are not updated while sampling, so they cannot be the model's own */
+    public void makeOnlyThread() {
+        throw new UnsupportedOperationException("AliasBackgroundWorkerRunnable must rebuild its local counts");
+    }
+
+    public void run() {
+        buildProposals();
+        super.run();
+    }
+
+    /** Build the proposal tables that do not depend on the type */
+    protected void buildProposals() {
+        iteration++;
+
+        System.arraycopy(tokensPerTopic, 0, staleTokensPerTopic, 0, numTopics);
+
+        for (int topic = 0; topic < numTopics; topic++) {
+            weights[topic] = beta / (staleTokensPerTopic[topic] + betaSum);
+        }
+        smoothingTable.build(weights, null, numTopics);
+
+        // alpha may have been optimized since the last iteration
+        alphaTable.build(alpha, null, numTopics);
+    }
+
+    /** The counts and word proposal of this type, built from the packed counts if this is its first token in the iteration */
+    protected TypeCounts getTypeCounts(int type) {
+        TypeCounts counts = typeCounts[type];
+        if (counts != null && typeIterations[type] == iteration) {
+            return counts;
+        }
+        if (counts == null) {
+            counts = new TypeCounts();
+            typeCounts[type] = counts;
+        }
+        typeIterations[type] = iteration;
+
+        int[] currentTypeTopicCounts = typeTopicCounts[type];
+        int size = 0;
+        while (size < currentTypeTopicCounts.length && currentTypeTopicCounts[size] > 0) {
+            size++;
+        }
+
+        counts.clear(size);
+        for (int index = 0; index < size; index++) {
+            int topic = currentTypeTopicCounts[index] & topicMask;
+            int count = currentTypeTopicCounts[index] >> topicBits;
+            counts.put(topic, count);
+            topics[index] = topic;
+            weights[index] = count / (staleTokensPerTopic[topic] + betaSum);
+        }
+        counts.proposal.build(weights, topics, size);
+
+        return counts;
+    }
+
+    protected void sampleTopicsForOneDoc (FeatureSequence tokenSequence,
+                                          FeatureSequence topicSequence,
+                                          boolean readjustTopicsAndStats /* currently ignored */) {
+
+        int[] oneDocTopics = topicSequence.getFeatures();
+        int docLength = tokenSequence.getLength();
+
+        int topicalCount = 0;
+        int backgroundCount = 0;
+        for (int position = 0; position < docLength; position++) {
+            int topic = oneDocTopics[position];
+            if (topic == backgroundTopic) {
+                backgroundCount++;
+            }
+            else {
+                docTopicCounts[topic]++;
+                topicalCount++;
+            }
+        }
+
+        double backgroundSmoothing = betaBackground * numTypes;
+
+        for (int position = 0; position < docLength; position++) {
+            int type = tokenSequence.getIndexAtPosition(position);
+            int oldTopic = oneDocTopics[position];
+            TypeCounts counts = getTypeCounts(type);
+
+            // Remove this token from all counts
+            if (oldTopic == backgroundTopic) {
+                backgroundCount--;
+                backgroundAndTopicalCounts[BACKGROUND_WORD_INDEX]--;
+                addTypeBackgroundCount(type, -1);
+            }
+            else {
+                topicalCount--;
+                backgroundAndTopicalCounts[TOPICAL_WORD_INDEX]--;
+                docTopicCounts[oldTopic]--;
+                tokensPerTopic[oldTopic]--;
+                counts.add(oldTopic, -1);
+            }
+
+            // These do not change while the token is resampled
+            double backgroundDocWeight = (alphaSum + topicalCount) *
+                    (backgroundCount + lambda) / (topicalCount + lambda);
+            double backgroundWordWeight = (getTypeBackgroundCount(type) + betaBackground) /
+                    (backgroundSmoothing + backgroundAndTopicalCounts[BACKGROUND_WORD_INDEX]);
+
+            int current = oldTopic;
+            double currentWordWeight = current == backgroundTopic ?
+                    backgroundWordWeight :
+                    (beta + counts.get(current)) / (tokensPerTopic[current] + betaSum);
+
+            for (int step = 0; step < numMHSteps; step++) {
+
+                // Document proposal: the D terms cancel
+
+                int proposal;
+                double sample = random.nextUniform() *
+                        (backgroundDocWeight + topicalCount + alphaTable.getTotalWeight());
+                if (sample < backgroundDocWeight) {
+                    proposal = backgroundTopic;
+                }
+                else if (sample < backgroundDocWeight + topicalCount) {
+                    // the topic of another topical word of this document
+                    int other;
+                    do {
+                        other = random.nextInt(docLength);
+                    } while (other == position || oneDocTopics[other] == backgroundTopic);
+                    proposal = oneDocTopics[other];
+                }
+                else {
+                    proposal = alphaTable.sample(random);
+                }
+
+                if (proposal != current) {
+                    double proposalWordWeight = proposal == backgroundTopic ?
+                            backgroundWordWeight :
+                            (beta + counts.get(proposal)) / (tokensPerTopic[proposal] + betaSum);
+                    if (proposalWordWeight >= currentWordWeight ||
+                            random.nextUniform() * currentWordWeight < proposalWordWeight) {
+                        current = proposal;
+                        currentWordWeight = proposalWordWeight;
+                    }
+                }
+
+                // Word proposal: from the tables built at the start of the iteration
+
+                double sparseMass = counts.proposal.getTotalWeight();
+                sample = random.nextUniform() *
+                        (backgroundWordWeight + sparseMass + smoothingTable.getTotalWeight());
+                if (sample < backgroundWordWeight) {
+                    proposal = backgroundTopic;
+                }
+                else if (sample < backgroundWordWeight + sparseMass) {
+                    proposal = counts.proposal.sample(random);
+                }
+                else {
+                    proposal = smoothingTable.sample(random);
+                }
+
+                if (proposal != current) {
+                    double proposalWordWeight;
+                    double proposalDocWeight;
+                    double proposalProposalWeight;
+                    if (proposal == backgroundTopic) {
+                        proposalWordWeight = backgroundWordWeight;
+                        proposalDocWeight = backgroundDocWeight;
+                        proposalProposalWeight = backgroundWordWeight;
+                    }
+                    else {
+                        proposalWordWeight = (beta + counts.get(proposal)) / (tokensPerTopic[proposal] + betaSum);
+                        proposalDocWeight = alpha[proposal] + docTopicCounts[proposal];
+                        proposalProposalWeight = (beta + counts.getStale(proposal)) /
+                                (staleTokensPerTopic[proposal] + betaSum);
+                    }
+
+                    double currentDocWeight;
+                    double currentProposalWeight;
+                    if (current == backgroundTopic) {
+                        currentDocWeight = backgroundDocWeight;
+                        currentProposalWeight = backgroundWordWeight;
+                    }
+                    else {
+                        currentDocWeight = alpha[current] + docTopicCounts[current];
+                        currentProposalWeight = (beta + counts.getStale(current)) /
+                                (staleTokensPerTopic[current] + betaSum);
+                    }
+
+                    double numerator = proposalDocWeight * proposalWordWeight * currentProposalWeight;
+                    double denominator = currentDocWeight * currentWordWeight * proposalProposalWeight;
+                    if (numerator >= denominator || random.nextUniform() * denominator < numerator) {
+                        current = proposal;
+                        currentWordWeight = proposalWordWeight;
+                    }
+                }
+            }
+
+            // Put the token back with its new topic
+            int newTopic = current;
+            oneDocTopics[position] = newTopic;
+            if (newTopic == backgroundTopic) {
+                backgroundCount++;
+                backgroundAndTopicalCounts[BACKGROUND_WORD_INDEX]++;
+                addTypeBackgroundCount(type, 1);
+            }
+            else {
+                topicalCount++;
+                backgroundAndTopicalCounts[TOPICAL_WORD_INDEX]++;
+                docTopicCounts[newTopic]++;
+                tokensPerTopic[newTopic]++;
+                counts.add(newTopic, 1);
+            }
+        }
+
+        // List the document's topics for the statistics, and clear the work space
+
+        int nonZeroTopics = 0;
+        for (int position = 0; position < docLength; position++) {
+            int topic = oneDocTopics[position];
+            if (topic != backgroundTopic && docTopicCounts[topic] > 0) {
+                localTopicCounts[topic] = docTopicCounts[topic];
+                localTopicIndex[nonZeroTopics++] = topic;
+                docTopicCounts[topic] = 0;
+            }
+        }
+
+        int[] localBackgroundTopicCount = new int[2];
+        localBackgroundTopicCount[TOPICAL_WORD_INDEX] = topicalCount;
+        localBackgroundTopicCount[BACKGROUND_WORD_INDEX] = backgroundCount;
+        recordDocumentStatistics(localTopicCounts, localTopicIndex, nonZeroTopics,
+                localBackgroundTopicCount, docLength);
+
+        for (int denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+            localTopicCounts[localTopicIndex[denseIndex]] = 0;
+        }
+    }
+
+    /**
+     * The counts of one type by topic, in an open-addressing hash table keyed by topic + 1.
+     *  Along with the current counts, it keeps the counts the word proposal was built from.
+     */
+    static class TypeCounts {
+        int[] keys = new int[4];
+        int[] counts = new int[4];
+        int[] staleCounts = new int[4];
+        int size = 0;
+        AliasTable proposal = new AliasTable();
+
+        /** Empty the table, making room for this many topics */
+        void clear(int expectedSize) {
+            int capacity = 4;
+            while (capacity < 2 * expectedSize) {
+                capacity <<= 1;
+            }
+            if (capacity > keys.length) {
+                keys = new int[capacity];
+                counts = new int[capacity];
+                staleCounts = new int[capacity];
+            }
+            else {
+                Arrays.fill(keys, 0);
+            }
+            size = 0;
+        }
+
+        int slot(int topic) {
+            int key = topic + 1;
+            int mask = keys.length - 1;
+            int hash = key * 0x9E3779B9;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        int get(int topic) {
+            int slot = slot(topic);
+            return keys[slot] == 0 ? 0 : counts[slot];
+        }
+
+        /** The count when the word proposal was built */
+        int getStale(int topic) {
+            int slot = slot(topic);
+            return keys[slot] == 0 ? 0 : staleCounts[slot];
+        }
+
+        /** Add a topic that is known to be absent, with its count when the proposal is built */
+        void put(int topic, int count) {
+            int slot = slot(topic);
+            keys[slot] = topic + 1;
+            counts[slot] = count;
+            staleCounts[slot] = count;
+            size++;
+        }
+
+        void add(int topic, int change) {
+            int slot = slot(topic);
+            if (keys[slot] == 0) {
+                if (2 * (size + 1) > keys.length) {
+                    grow();
+                    slot = slot(topic);
+                }
+                keys[slot] = topic + 1;
+                counts[slot] = 0;
+                staleCounts[slot] = 0;
+                size++;
+            }
+            counts[slot] += change;
+        }
+
+        void grow() {
+            int[] oldKeys = keys;
+            int[] oldCounts = counts;
+            int[] oldStaleCounts = staleCounts;
+            keys = new int[2 * oldKeys.length];
+            counts = new int[keys.length];
+            staleCounts = new int[keys.length];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = slot(oldKeys[i] - 1);
+                    keys[slot] = oldKeys[i];
+                    counts[slot] = oldCounts[i];
+                    staleCounts[slot] = oldStaleCounts[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package cc.mallet.topics;
+
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.util.Randoms;
+
+/**
+ * Left-to-right estimates of the marginal probability of held-out documents under CA-LDA, for
+ * the documents of one source.
+ *
+ * Each word is either a background word of the source or a topical word, with a
+ * Beta(lambda, lambda) prior on the proportion of background words in a document. Given the
+ * earlier words of the document, the probability of a word is
+ * <pre>
+ *   [ (n_db + lambda) * phi_b(w) + (n_dt + lambda) * sum_k theta_k phi_k(w) ] / (n_d + 2 lambda)
+ * </pre>
+ * where n_db and n_dt are the background and topical words so far, phi_b is the background
+ * distribution of the source, smoothed with betaBackground, and theta is smoothed with alpha
+ * over the topical words only. The sampler draws each word's topic, or the background, from the
+ * same terms, as BackgroundWorkerRunnable does in training.
+ */
+public class BackgroundMarginalProbEstimator extends MarginalProbEstimator {
+
+    private static final long serialVersionUID = 1;
+
+    int backgroundTopic = ParallelTopicModel.UNASSIGNED_TOPIC;
+
+    // the background counts of the source, indexed by type, and their total
+    int[] typeBackgroundCounts;
+    int backgroundTokens;
+    double betaBackground;
+    double lambda;
+
+    public BackgroundMarginalProbEstimator(int numTopics, double[] alpha, double alphaSum, double beta,
+                                           int[][] typeTopicCounts, int[] tokensPerTopic,
+                                           int[] typeBackgroundCounts, int backgroundTokens,
+                                           double betaBackground, double lambda) {
+        super(numTopics, alpha, alphaSum, beta, typeTopicCounts, tokensPerTopic);
+        this.typeBackgroundCounts = typeBackgroundCounts;
+        this.backgroundTokens = backgroundTokens;
+        this.betaBackground = betaBackground;
+        this.lambda = lambda;
+    }
+
+    /** Adds the running topic/beta mass and the split of the document into background and topical words */
+    protected static class BackgroundLeftToRightBuffers extends LeftToRightBuffers {
+        double topicBetaMass;
+        int nonZeroTopics;
+        int topicalCount;
+        int backgroundCount;
+
+        protected BackgroundLeftToRightBuffers(int numTopics, double[] cachedCoefficients, Randoms random) {
+            super(numTopics, cachedCoefficients, random);
+        }
+
+        protected void prepare(int docLength) {
+            super.prepare(docLength);
+            topicBetaMass = 0.0;
+            nonZeroTopics = 0;
+            topicalCount = 0;
+            backgroundCount = 0;
+        }
+    }
+
+    protected LeftToRightBuffers createLeftToRightBuffers(double[] cachedCoefficients, Randoms random) {
+        return new BackgroundLeftToRightBuffers(numTopics, cachedCoefficients, random);
+    }
+
+    protected boolean isInVocabulary(int type) {
+        return type < typeTopicCounts.length && typeTopicCounts[type] != null;
+    }
+
+    protected void leftToRight(FeatureSequence tokenSequence, boolean usingResampling,
+                               LeftToRightBuffers leftToRightBuffers, double[] wordProbabilities) {
+
+        BackgroundLeftToRightBuffers buffers = (BackgroundLeftToRightBuffers) leftToRightBuffers;
+        int docLength = tokenSequence.getLength();
+        buffers.prepare(docLength);
+        int[] oneDocTopics = buffers.oneDocTopics;
+
+        for (int limit = 0; limit < docLength; limit++) {
+
+            if (usingResampling) {
+                for (int position = 0; position < limit; position++) {
+                    int type = tokenSequence.getIndexAtPosition(position);
+                    if (! isInVocabulary(type)) { continue; }
+
+                    removeToken(oneDocTopics[position], buffers);
+
+                    double topicTermMass = scoreTopicTerms(type, buffers);
+                    double topicalWeight = topicalWeight(topicTermMass, buffers);
+                    double backgroundWeight = backgroundWeight(type, buffers);
+                    oneDocTopics[position] =
+                        sampleTopic(type, topicTermMass, topicalWeight, backgroundWeight, buffers);
+
+                    addToken(oneDocTopics[position], buffers);
+                }
+            }
+
+            // Now the token at the limit
+
+            int type = tokenSequence.getIndexAtPosition(limit);
+            if (! isInVocabulary(type)) { continue; }
+
+            double topicTermMass = scoreTopicTerms(type, buffers);
+            double topicalWeight = topicalWeight(topicTermMass, buffers);
+            double backgroundWeight = backgroundWeight(type, buffers);
+
+            wordProbabilities[limit] += (topicalWeight + backgroundWeight) /
+                (buffers.topicalCount + buffers.backgroundCount + 2 * lambda);
+
+            oneDocTopics[limit] = sampleTopic(type, topicTermMass, topicalWeight, backgroundWeight, buffers);
+            addToken(oneDocTopics[limit], buffers);
+        }
+
+        // Reset the coefficients to values with only smoothing
+        double[] cachedCoefficients = buffers.cachedCoefficients;
+        for (int denseIndex = 0; denseIndex < buffers.nonZeroTopics; denseIndex++) {
+            int topic = buffers.localTopicIndex[denseIndex];
+            cachedCoefficients[topic] = alpha[topic] / (tokensPerTopic[topic] + betaSum);
+        }
+    }
+
+    /** (n_dt + lambda) * sum_k theta_k phi_k(w), from the topic/term scores and the other buckets */
+    double topicalWeight(double topicTermMass, BackgroundLeftToRightBuffers buffers) {
+        return (smoothingOnlyMass + buffers.topicBetaMass + topicTermMass) *
+            (buffers.topicalCount + lambda) / (alphaSum + buffers.topicalCount);
+    }
+
+    /** (n_db + lambda) * phi_b(w) */
+    double backgroundWeight(int type, BackgroundLeftToRightBuffers buffers) {
+        int count = type < typeBackgroundCounts.length ? typeBackgroundCounts[type] : 0;
+        return (count + betaBackground) / (backgroundTokens + betaBackground * typeTopicCounts.length) *
+            (buffers.backgroundCount + lambda);
+    }
+
+    /** Fill the scores of the topics of this type's counts and return their sum */
+    double scoreTopicTerms(int type, BackgroundLeftToRightBuffers buffers) {
+        int[] currentTypeTopicCounts = typeTopicCounts[type];
+        double[] topicTermScores = buffers.topicTermScores;
+        double[] cachedCoefficients = buffers.cachedCoefficients;
+
+        double topicTermMass = 0.0;
+        int index = 0;
+        while (index < currentTypeTopicCounts.length &&
+               currentTypeTopicCounts[index] > 0) {
+            int currentTopic = currentTypeTopicCounts[index] & topicMask;
+            int currentValue = currentTypeTopicCounts[index] >> topicBits;
+
+            double score = cachedCoefficients[currentTopic] * currentValue;
+            topicTermMass += score;
+            topicTermScores[index] = score;
+
+            index++;
+        }
+        return topicTermMass;
+    }
+
+    /** Draw the background or a topic, in proportion to their weights */
+    int sampleTopic(int type, double topicTermMass, double topicalWeight, double backgroundWeight,
+                    BackgroundLeftToRightBuffers buffers) {
+        double sample = buffers.random.nextUniform() * (topicalWeight + backgroundWeight);
+        if (sample >= topicalWeight) {
+            return backgroundTopic;
+        }
+
+        // Rescale to the topic buckets, as in MarginalProbEstimator
+        sample *= (smoothingOnlyMass + buffers.topicBetaMass + topicTermMass) / topicalWeight;
+
+        int[] currentTypeTopicCounts = typeTopicCounts[type];
+        int[] localTopicCounts = buffers.localTopicCounts;
+        int[] localTopicIndex = buffers.localTopicIndex;
+
+        if (sample < topicTermMass) {
+            int i = -1;
+            while (sample > 0 && i < currentTypeTopicCounts.length - 1) {
+                i++;
+                sample -= buffers.topicTermScores[i];
+            }
+            return currentTypeTopicCounts[i] & topicMask;
+        }
+        sample -= topicTermMass;
+
+        if (sample < buffers.topicBetaMass) {
+            sample /= beta;
+            for (int denseIndex = 0; denseIndex < buffers.nonZeroTopics; denseIndex++) {
+                int topic = localTopicIndex[denseIndex];
+                sample -= localTopicCounts[topic] / (tokensPerTopic[topic] + betaSum);
+                if (sample <= 0.0) {
+                    return topic;
+                }
+            }
+            return localTopicIndex[buffers.nonZeroTopics - 1];
+        }
+        sample -= buffers.topicBetaMass;
+
+        sample /= beta;
+        int newTopic = 0;
+        sample -= alpha[newTopic] / (tokensPerTopic[newTopic] + betaSum);
+        while (sample > 0.0 && newTopic < numTopics - 1) {
+            newTopic++;
+            sample -= alpha[newTopic] / (tokensPerTopic[newTopic] + betaSum);
+        }
+        return newTopic;
+    }
+
+    void removeToken(int topic, BackgroundLeftToRightBuffers buffers) {
+        if (topic == backgroundTopic) {
+            buffers.backgroundCount--;
+            return;
+        }
+        buffers.topicalCount--;
+
+        int[] localTopicCounts = buffers.localTopicCounts;
+        int[] localTopicIndex = buffers.localTopicIndex;
+
+        buffers.topicBetaMass -= beta * localTopicCounts[topic] / (tokensPerTopic[topic] + betaSum);
+        localTopicCounts[topic]--;
+
+        // Maintain the dense index, if we are deleting the topic
+        if (localTopicCounts[topic] == 0) {
+            int denseIndex = 0;
+            while (localTopicIndex[denseIndex] != topic) {
+                denseIndex++;
+            }
+            while (denseIndex < buffers.nonZeroTopics - 1) {
+                localTopicIndex[denseIndex] = localTopicIndex[denseIndex + 1];
+                denseIndex++;
+            }
+            buffers.nonZeroTopics--;
+        }
+
+        buffers.topicBetaMass += beta * localTopicCounts[topic] / (tokensPerTopic[topic] + betaSum);
+        buffers.cachedCoefficients[topic] =
+            (alpha[topic] + localTopicCounts[topic]) / (tokensPerTopic[topic] + betaSum);
+    }
+
+    void addToken(int topic, BackgroundLeftToRightBuffers buffers) {
+        if (topic == backgroundTopic) {
+            buffers.backgroundCount++;
+            return;
+        }
+        buffers.topicalCount++;
+
+        int[] localTopicCounts = buffers.localTopicCounts;
+        int[] localTopicIndex = buffers.localTopicIndex;
+
+        buffers.topicBetaMass -= beta * localTopicCounts[topic] / (tokensPerTopic[topic] + betaSum);
+        localTopicCounts[topic]++;
+
+        // If this is a new topic for this document, add it to the dense index
+        if (localTopicCounts[topic] == 1) {
+            int denseIndex = buffers.nonZeroTopics;
+            while (denseIndex > 0 && localTopicIndex[denseIndex - 1] > topic) {
+                localTopicIndex[denseIndex] = localTopicIndex[denseIndex - 1];
+                denseIndex--;
+            }
+            localTopicIndex[denseIndex] = topic;
+            buffers.nonZeroTopics++;
+        }
+
+        buffers.topicBetaMass += beta * localTopicCounts[topic] / (tokensPerTopic[topic] + betaSum);
+        buffers.cachedCoefficients[topic] =
+            (alpha[topic] + localTopicCounts[topic]) / (tokensPerTopic[topic] + betaSum);
+    }
+}
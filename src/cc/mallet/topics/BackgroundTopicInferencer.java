@@ -3,10 +3,11 @@ package cc.mallet.topics;
 import cc.mallet.types.Alphabet;
 import cc.mallet.types.FeatureSequence;
 import cc.mallet.types.Instance;
+import cc.mallet.util.Randoms;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
 
 /**
  *
@@ -27,11 +28,37 @@ public class BackgroundTopicInferencer extends TopicInferencer {
     // the constant part in the background work coefficient which we cache for efficiency
     double backgroundCoeffConst;
 
+    // 1 / (tokensPerTopic[topic] + betaSum) and alpha[topic] / (tokensPerTopic[topic] + betaSum).
+    //  Type/topic counts are clamped during inference, so these never change.
+    protected transient double[] topicInverseDenominators;
+    protected transient double[] topicSmoothingWeights;
+    // (typeBackgroundCounts[type] + betaBackground) * backgroundCoeffConst, built by freeze()
+    protected transient double[] typeBackgroundWeights;
+
     public BackgroundTopicInferencer(int[][] typeTopicCounts, int[] tokensPerTopic,
                                      int[] typeBackgroundCounts, int[] backgroundAndTopicalCounts,
                                      Alphabet alphabet, double[] alpha, double beta, double betaBackground, double betaSum,     double lambda) {
-        super(typeTopicCounts, tokensPerTopic, alphabet, alpha, beta, betaSum);
+        this(typeTopicCounts.length, tokensPerTopic, backgroundAndTopicalCounts, alphabet, alpha, beta, betaBackground, betaSum, lambda);
+        this.typeTopicCounts = typeTopicCounts;
         this.typeBackgroundCounts = typeBackgroundCounts;
+    }
+    public BackgroundTopicInferencer copy(){
+        return new BackgroundTopicInferencer(typeTopicCounts, tokensPerTopic,typeBackgroundCounts, backgroundAndTopicalCounts, alphabet,
+                alpha, beta, betaBackground, betaSum, lambda);
+    }
+    public BackgroundTopicInferencer(int[][] typeTopicCounts, int[] tokensPerTopic,
+                                     int[] typeBackgroundCounts, int[] backgroundAndTopicalCounts,
+                                     Alphabet alphabet, double[] alpha, double beta, double betaSum, double lambda) {
+        this(typeTopicCounts, tokensPerTopic, typeBackgroundCounts, backgroundAndTopicalCounts, alphabet, alpha, beta, beta, betaSum, lambda);
+    }
+    /**
+     * Build an inferencer whose counts are not held in on-heap arrays. Subclasses
+     * must override the count accessors below.
+     */
+    protected BackgroundTopicInferencer(int numTypes, int[] tokensPerTopic, int[] backgroundAndTopicalCounts,
+                                        Alphabet alphabet, double[] alpha, double beta, double betaBackground,
+                                        double betaSum, double lambda) {
+        super(numTypes, tokensPerTopic, alphabet, alpha, beta, betaSum);
         this.backgroundAndTopicalCounts = backgroundAndTopicalCounts;
         this.lambda = lambda;
         this.alphaSum = 0.0;
@@ -40,20 +67,88 @@ public class BackgroundTopicInferencer extends TopicInferencer {
         for(double a: alpha){
             alphaSum += a;
         }
+        buildTopicTables();
     }
-    public BackgroundTopicInferencer copy(){
-        return new BackgroundTopicInferencer(typeTopicCounts, tokensPerTopic,typeBackgroundCounts, backgroundAndTopicalCounts, alphabet,
-                alpha, beta, betaBackground, betaSum, lambda);
+
+    private void buildTopicTables() {
+        topicInverseDenominators = new double[numTopics];
+        topicSmoothingWeights = new double[numTopics];
+        smoothingOnlyMass = 0.0;
+        for (int topic = 0; topic < numTopics; topic++) {
+            topicInverseDenominators[topic] = 1.0 / (tokensPerTopic[topic] + betaSum);
+            topicSmoothingWeights[topic] = alpha[topic] * topicInverseDenominators[topic];
+            smoothingOnlyMass += beta * topicSmoothingWeights[topic];
+        }
     }
-    public BackgroundTopicInferencer(int[][] typeTopicCounts, int[] tokensPerTopic,
-                                     int[] typeBackgroundCounts, int[] backgroundAndTopicalCounts,
-                                     Alphabet alphabet, double[] alpha, double beta, double betaSum, double lambda) {
-        this(typeTopicCounts, tokensPerTopic, typeBackgroundCounts, backgroundAndTopicalCounts, alphabet, alpha, beta, beta, betaSum, lambda);
+
+    /**
+     * Precompute the background weight of every type in this context, so that sampling
+     *  a token only needs one multiplication for its background mass. This costs one
+     *  double per vocabulary type, which is worth it for inferencers that serve many documents.
+     *  @return this inferencer
+     */
+    public BackgroundTopicInferencer freeze() {
+        double[] weights = new double[numTypes];
+        for (int type = 0; type < numTypes; type++) {
+            if (isInVocabulary(type)) {
+                weights[type] = (getTypeBackgroundCount(type) + betaBackground) * backgroundCoeffConst;
+            }
+        }
+        typeBackgroundWeights = weights;
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return typeBackgroundWeights != null;
+    }
+
+    /** Whether we have topic counts for this type; out-of-vocabulary types are not sampled */
+    protected boolean isInVocabulary(int type) {
+        return type < numTypes && typeTopicCounts[type].length != 0;
+    }
+
+    /**
+     * Return the packed count/topic cell at this index of the type's row, which is
+     * sorted by count, or zero past the end of the row.
+     */
+    protected int getTypeTopicCell(int type, int index) {
+        int[] currentTypeTopicCounts = typeTopicCounts[type];
+        return index < currentTypeTopicCounts.length ? currentTypeTopicCounts[index] : 0;
+    }
+
+    /**
+     * Store the score of every topic in the type's row at its index in the row,
+     * and return the sum of the scores.
+     */
+    protected double scoreTypeTopics(int type, double[] cachedCoefficients, double[] topicTermScores) {
+        int[] currentTypeTopicCounts = typeTopicCounts[type];
+        double topicTermMass = 0.0;
+
+        int index = 0;
+        while (index < currentTypeTopicCounts.length &&
+                currentTypeTopicCounts[index] > 0) {
+            int currentTopic = currentTypeTopicCounts[index] & topicMask;
+            int currentValue = currentTypeTopicCounts[index] >> topicBits;
+
+            double score =
+                    cachedCoefficients[currentTopic] * currentValue;
+            topicTermMass += score;
+            topicTermScores[index] = score;
+
+            index++;
+        }
+
+        return topicTermMass;
     }
+
+    protected int getTypeBackgroundCount(int type) {
+        return typeBackgroundCounts[type];
+    }
+
     protected double computeBackgroundCoeff(int token, int[] localBackgroundTopicCount){
 
         double coff = alphaSum + localBackgroundTopicCount[TOPICAL_WORD_INDEX];
-        coff *=  (typeBackgroundCounts[token] + beta);
+        coff *=  (getTypeBackgroundCount(token) + betaBackground);
         coff *=  (localBackgroundTopicCount[BACKGROUND_WORD_INDEX] + lambda );
         coff /=  (localBackgroundTopicCount[TOPICAL_WORD_INDEX] + lambda );
         coff *=  backgroundCoeffConst;
@@ -61,32 +156,90 @@ public class BackgroundTopicInferencer extends TopicInferencer {
         return coff;
     }
 
+    /**
+     * The factor of the background coefficient that depends on the document,
+     *  to be multiplied by a weight from <code>typeBackgroundWeights</code>.
+     */
+    protected double computeBackgroundDocumentFactor(int[] localBackgroundTopicCount) {
+        return (alphaSum + localBackgroundTopicCount[TOPICAL_WORD_INDEX]) *
+                (localBackgroundTopicCount[BACKGROUND_WORD_INDEX] + lambda) /
+                (localBackgroundTopicCount[TOPICAL_WORD_INDEX] + lambda);
+    }
+
+    /**
+     *  Adds the background/topical counts and the assignment tally to the
+     *   per-call sampling state.
+     */
+    static class BackgroundSamplingBuffers extends SamplingBuffers {
+        int[] localBackgroundTopicCount = new int[2];
+
+        // saved assignments, laid out as [saved sample * docLength + position]
+        int[] sampledTopics = new int[0];
+        // per-position tally, indexed by topic + 1 so that the background topic lands at 0
+        int[] assignmentTally;
+
+        BackgroundSamplingBuffers(int numTopics, double[] cachedCoefficients, Randoms random) {
+            super(numTopics, cachedCoefficients, random);
+            assignmentTally = new int[numTopics + 1];
+        }
+
+        protected void prepare(int docLength, int numSamples, boolean recordAssignments) {
+            super.prepare(docLength, numSamples, recordAssignments);
+            Arrays.fill(localBackgroundTopicCount, 0);
+
+            if (recordAssignments && sampledTopics.length < docLength * numSamples) {
+                sampledTopics = new int[docLength * numSamples];
+            }
+        }
+    }
+
+    protected SamplingBuffers createSamplingBuffers(double[] cachedCoefficients, Randoms random) {
+        return new BackgroundSamplingBuffers(numTopics, cachedCoefficients, random);
+    }
+
     /**
      *  Use Gibbs sampling to infer a topic distribution.
      *  Topics are initialized to the (or a) most probable topic
      *   for each token. Using zero iterations returns exactly this
      *   initial topic distribution.<p/>
-     *  This code does not adjust type-topic counts: P(w|t) is clamped.
+     *  This code does not adjust type-topic counts: P(w|t) is clamped.<p/>
+     *  The returned array holds the topic distribution followed by the
+     *   proportion of background words as its last element.
+     *
+     *  @param samplingBuffers Sampling state created by this inferencer, which is only touched by this call
+     *  @param assignments     If not null, filled with the most frequently sampled topic of each position:
+     *                         <code>backgroundTopic</code> for background words, -2 for unsampled positions
      */
-
-    private SampleResult sample(Instance instance, int numIterations,
-                                           int thinning, int burnIn) {
+    protected double[] sample(Instance instance, int numIterations,
+                              int thinning, int burnIn,
+                              SamplingBuffers samplingBuffers, int[] assignments) {
 
         FeatureSequence tokens = (FeatureSequence) instance.getData();
         int docLength = tokens.size();
-        int[] topics = new int[docLength];
-        HashMap<Integer, Integer>[] assignments = new HashMap[docLength];
-        for (int position = 0; position < docLength; position++){
-            assignments[position] = new HashMap<Integer, Integer>();
-        }
 
-        int[] localTopicCounts = new int[numTopics];
-        int[] localTopicIndex = new int[numTopics];
+        boolean recordAssignments = assignments != null;
+        int numSamples = numIterations > burnIn ? (numIterations - burnIn) / thinning : 0;
 
-        int[] localBackgroundTopicCount = new int[2];
+        BackgroundSamplingBuffers buffers = (BackgroundSamplingBuffers) samplingBuffers;
+        buffers.prepare(docLength, numSamples, recordAssignments);
+
+        int[] topics = buffers.topics;
+        int[] sampledTopics = buffers.sampledTopics;
+        int savedSamples = 0;
+
+        int[] localTopicCounts = buffers.localTopicCounts;
+        int[] localTopicIndex = buffers.localTopicIndex;
+
+        int[] localBackgroundTopicCount = buffers.localBackgroundTopicCount;
+
+        double[] cachedCoefficients = buffers.cachedCoefficients;
+        Randoms random = buffers.random;
+
+        double[] inverseDenominators = topicInverseDenominators;
+        double[] smoothingWeights = topicSmoothingWeights;
+        double[] backgroundWeights = typeBackgroundWeights;
 
         int type;
-        int[] currentTypeTopicCounts;
 
         // Initialize all positions to the most common topic
         //  for that type.
@@ -94,9 +247,7 @@ public class BackgroundTopicInferencer extends TopicInferencer {
         for (int position = 0; position < docLength; position++) {
             type = tokens.getIndexAtPosition(position);
             // Ignore out of vocabulary terms
-            if (type < numTypes && typeTopicCounts[type].length != 0) {
-
-                currentTypeTopicCounts = typeTopicCounts[type];
+            if (isInVocabulary(type)) {
 
                 // This value should be a topic such that
                 //  no other topic has more tokens of this type
@@ -105,7 +256,7 @@ public class BackgroundTopicInferencer extends TopicInferencer {
                 //  will default to topic 0, which is no worse than
                 //  random initialization.
                 topics[position] =
-                        currentTypeTopicCounts[0] & topicMask;
+                        getTypeTopicCell(type, 0) & topicMask;
 
                 localTopicCounts[topics[position]]++;
                 localBackgroundTopicCount[TOPICAL_WORD_INDEX] ++;
@@ -136,18 +287,17 @@ public class BackgroundTopicInferencer extends TopicInferencer {
             int n = localTopicCounts[topic];
 
             //  initialize the normalization constant for the (B * n_{t|d}) term
-            topicBetaMass += beta * n / (tokensPerTopic[topic] + betaSum);
+            topicBetaMass += beta * n * inverseDenominators[topic];
 
             //  update the coefficients for the non-zero topics
-            cachedCoefficients[topic] = (alpha[topic] + n) / (tokensPerTopic[topic] + betaSum);
+            cachedCoefficients[topic] = (alpha[topic] + n) * inverseDenominators[topic];
         }
 
         double topicTermMass = 0.0;
-        double[] topicTermScores = new double[numTopics];
+        double[] topicTermScores = buffers.topicTermScores;
         int[] topicTermIndices;
         int[] topicTermValues;
         int i;
-        double score;
 
         int oldTopic, newTopic;
 
@@ -161,10 +311,9 @@ public class BackgroundTopicInferencer extends TopicInferencer {
                 type = tokens.getIndexAtPosition(position);
 
                 // ignore out-of-vocabulary terms
-                if (type >= numTypes || typeTopicCounts[type].length == 0) { continue; }
+                if (! isInVocabulary(type)) { continue; }
 
                 oldTopic = topics[position];
-                currentTypeTopicCounts = typeTopicCounts[type];
                 if(oldTopic != backgroundTopic) {
                     // remove its contribution to localB/TCount
                     localBackgroundTopicCount[TOPICAL_WORD_INDEX]--;
@@ -173,8 +322,7 @@ public class BackgroundTopicInferencer extends TopicInferencer {
                     // Note that we do not need to change the smoothing-only
                     //  mass since the denominator is clamped.
 
-                    topicBetaMass -= beta * localTopicCounts[oldTopic] /
-                            (tokensPerTopic[oldTopic] + betaSum);
+                    topicBetaMass -= beta * localTopicCounts[oldTopic] * inverseDenominators[oldTopic];
 
                     // Decrement the local doc/topic counts
 
@@ -208,13 +356,11 @@ public class BackgroundTopicInferencer extends TopicInferencer {
                         nonZeroTopics--;
                     } // finished maintaining local topic index
 
-                    topicBetaMass += beta * localTopicCounts[oldTopic] /
-                            (tokensPerTopic[oldTopic] + betaSum);
+                    topicBetaMass += beta * localTopicCounts[oldTopic] * inverseDenominators[oldTopic];
 
                     // Reset the cached coefficient for this topic
                     cachedCoefficients[oldTopic] =
-                            (alpha[oldTopic] + localTopicCounts[oldTopic]) /
-                                    (tokensPerTopic[oldTopic] + betaSum);
+                            (alpha[oldTopic] + localTopicCounts[oldTopic]) * inverseDenominators[oldTopic];
                     if (cachedCoefficients[oldTopic] <= 0) {
                         System.out.println("zero or less coefficient: " + oldTopic + " = (" + alpha[oldTopic] + " + " + localTopicCounts[oldTopic] + ") / ( " + tokensPerTopic[oldTopic] + " + " + betaSum + " );");
                     }
@@ -230,22 +376,15 @@ public class BackgroundTopicInferencer extends TopicInferencer {
                 int index = 0;
                 int currentTopic, currentValue;
 
-                topicTermMass = 0.0;
-
-                while (index < currentTypeTopicCounts.length &&
-                        currentTypeTopicCounts[index] > 0) {
-                    currentTopic = currentTypeTopicCounts[index] & topicMask;
-                    currentValue = currentTypeTopicCounts[index] >> topicBits;
-
-                    score =
-                            cachedCoefficients[currentTopic] * currentValue;
-                    topicTermMass += score;
-                    topicTermScores[index] = score;
-
-                    index++;
-                }
+                topicTermMass = scoreTypeTopics(type, cachedCoefficients, topicTermScores);
                 // compute the mass for background topic
-                double backgroundMass = computeBackgroundCoeff(type, localBackgroundTopicCount);
+                double backgroundMass;
+                if (backgroundWeights != null) {
+                    backgroundMass = backgroundWeights[type] * computeBackgroundDocumentFactor(localBackgroundTopicCount);
+                }
+                else {
+                    backgroundMass = computeBackgroundCoeff(type, localBackgroundTopicCount);
+                }
                 double sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass + backgroundMass);
                 //  Make sure it actually gets set
                 newTopic = -1;
@@ -264,7 +403,7 @@ public class BackgroundTopicInferencer extends TopicInferencer {
                             sample -= topicTermScores[i];
                         }
 
-                        newTopic = currentTypeTopicCounts[i] & topicMask;
+                        newTopic = getTypeTopicCell(type, i) & topicMask;
                     }
                     else {
                         sample -= topicTermMass;
@@ -277,8 +416,7 @@ public class BackgroundTopicInferencer extends TopicInferencer {
                             for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
                                 int topic = localTopicIndex[denseIndex];
 
-                                sample -= localTopicCounts[topic] /
-                                        (tokensPerTopic[topic] + betaSum);
+                                sample -= localTopicCounts[topic] * inverseDenominators[topic];
 
                                 if (sample <= 0.0) {
                                     newTopic = topic;
@@ -293,8 +431,7 @@ public class BackgroundTopicInferencer extends TopicInferencer {
                             sample /= beta;
 
                             newTopic = 0;
-                            sample -= alpha[newTopic] /
-                                    (tokensPerTopic[newTopic] + betaSum);
+                            sample -= smoothingWeights[newTopic];
 
                             while (sample > 0.0) {
                                 newTopic++;
@@ -302,10 +439,9 @@ public class BackgroundTopicInferencer extends TopicInferencer {
                                 if (newTopic >= numTopics) {
                                     index = 0;
 
-                                    while (index < currentTypeTopicCounts.length &&
-                                            currentTypeTopicCounts[index] > 0) {
-                                        currentTopic = currentTypeTopicCounts[index] & topicMask;
-                                        currentValue = currentTypeTopicCounts[index] >> topicBits;
+                                    while (getTypeTopicCell(type, index) > 0) {
+                                        currentTopic = getTypeTopicCell(type, index) & topicMask;
+                                        currentValue = getTypeTopicCell(type, index) >> topicBits;
 
                                         System.out.println(currentTopic + "\t" + currentValue + "\t" + topicTermScores[index] +
                                                 "\t" + cachedCoefficients[currentTopic]);
@@ -313,8 +449,7 @@ public class BackgroundTopicInferencer extends TopicInferencer {
                                     }
                                 }
 
-                                sample -= alpha[newTopic] /
-                                        (tokensPerTopic[newTopic] + betaSum);
+                                sample -= smoothingWeights[newTopic];
                             }
 
                         }
@@ -331,8 +466,7 @@ public class BackgroundTopicInferencer extends TopicInferencer {
                 }else{
                     localBackgroundTopicCount[TOPICAL_WORD_INDEX] ++;
 
-                    topicBetaMass -= beta * localTopicCounts[newTopic] /
-                            (tokensPerTopic[newTopic] + betaSum);
+                    topicBetaMass -= beta * localTopicCounts[newTopic] * inverseDenominators[newTopic];
 
                     localTopicCounts[newTopic]++;
 
@@ -362,21 +496,14 @@ public class BackgroundTopicInferencer extends TopicInferencer {
 
                     //  update the coefficients for the non-zero topics
                     cachedCoefficients[newTopic] =
-                            (alpha[newTopic] + localTopicCounts[newTopic]) /
-                                    (tokensPerTopic[newTopic] + betaSum);
+                            (alpha[newTopic] + localTopicCounts[newTopic]) * inverseDenominators[newTopic];
 
-                    topicBetaMass += beta * localTopicCounts[newTopic] /
-                            (tokensPerTopic[newTopic] + betaSum);
+                    topicBetaMass += beta * localTopicCounts[newTopic] * inverseDenominators[newTopic];
                 }
                 // record the topic assignments
-                if (iteration > burnIn &&
+                if (recordAssignments && iteration > burnIn &&
                         (iteration - burnIn) % thinning == 0) {
-                    if(!assignments[position].containsKey(newTopic)){
-                        assignments[position].put(newTopic, 1);
-                    }
-                    else{
-                        assignments[position].put(newTopic, assignments[position].get(newTopic)+1);
-                    }
+                    sampledTopics[savedSamples * docLength + position] = newTopic;
                 }
 
             }
@@ -391,7 +518,9 @@ public class BackgroundTopicInferencer extends TopicInferencer {
                 }
                 result[numTopics] += localBackgroundTopicCount[BACKGROUND_WORD_INDEX];
                 sum += result[numTopics];
+                buffers.saveSample(nonZeroTopics);
 
+                savedSamples++;
             }
         }
 
@@ -400,8 +529,7 @@ public class BackgroundTopicInferencer extends TopicInferencer {
         for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
             int topic = localTopicIndex[denseIndex];
 
-            cachedCoefficients[topic] =
-                    alpha[topic] / (tokensPerTopic[topic] + betaSum);
+            cachedCoefficients[topic] = smoothingWeights[topic];
         }
 
         if (sum == 0.0) {
@@ -412,27 +540,43 @@ public class BackgroundTopicInferencer extends TopicInferencer {
             }
             result[numTopics] += localBackgroundTopicCount[BACKGROUND_WORD_INDEX];
             sum += result[numTopics];
+            buffers.saveSample(nonZeroTopics);
         }
         // Normalize
         for (int topic=0; topic < result.length; topic++) {
             result[topic] /= sum;
         }
-        for(i=0; i< docLength; i++){
-            int maxCount = 0;
-            int maxTopic = -2;
-            for(Map.Entry<Integer, Integer> entry: assignments[i].entrySet()){
-                if(entry.getValue() > maxCount){
-                    maxTopic = entry.getKey();
-                    maxCount = entry.getValue();
+        if (recordAssignments) {
+            // Take the most frequent saved topic of each position. The tally is
+            //  cleared as we go, so it is all zeros again for the next position.
+            int[] tally = buffers.assignmentTally;
+            for (int position = 0; position < docLength; position++) {
+                type = tokens.getIndexAtPosition(position);
+                int maxCount = 0;
+                int maxTopic = -2;
+
+                if (isInVocabulary(type)) {
+                    for (int s = 0; s < savedSamples; s++) {
+                        int topic = sampledTopics[s * docLength + position];
+                        int count = ++tally[topic + 1];
+                        if (count > maxCount) {
+                            maxTopic = topic;
+                            maxCount = count;
+                        }
+                    }
+                    for (int s = 0; s < savedSamples; s++) {
+                        tally[sampledTopics[s * docLength + position] + 1] = 0;
+                    }
                 }
+                assignments[position] = maxTopic;
             }
-            topics[i] = maxTopic;
         }
-        SampleResult ret = new SampleResult();
-        ret.distributions = result;
-        ret.topics = topics;
-        return ret;
-    }
 
+        return result;
+    }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        buildTopicTables();
+    }
 }
@@ -10,7 +10,6 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * Created by Cheng-Kang Hsieh on 9/6/15.
@@ -36,6 +35,8 @@ public class BackgroundTopicModel extends ParallelTopicModel {
     BackgroundWorkerRunnable runnables;
     double lambda;
     double betaBackground;
+    // learn lambda and betaBackground along with alpha and beta
+    boolean optimizeBackgroundPriors = false;
     public BackgroundTopicModel(LabelAlphabet topicAlphabet, double alphaSum, double beta, double betaBackground, double lambda) {
         super(topicAlphabet, alphaSum, beta);
         this.lambda = lambda;
@@ -196,14 +197,31 @@ public class BackgroundTopicModel extends ParallelTopicModel {
                     runnableTypeBackgroundCounts, runnableBackgroundAndTopicalCounts,
                     offset, docsPerThread);
 
-            runnables[thread].initializeAlphaStatistics(docLengthCounts.length);
+            runnables[thread].initializeAlphaStatistics();
+            if (optimizeBackgroundPriors) {
+                runnables[thread].initializeBackgroundStatistics(1);
+            }
 
             offset += docsPerThread;
 
         }
 
 
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        IterationEngine engine = new IterationEngine(runnables);
+
+        final BackgroundWorkerRunnable[] workers = runnables;
+        Runnable merge = new Runnable() {
+            public void run() {
+                sumTypeTopicCounts(workers);
+                sumBackgroundTopicalCounts(workers);
+                distributeTypeTopicCounts(workers);
+
+                for (BackgroundWorkerRunnable worker : workers) {
+                    System.arraycopy(typeBackgroundCounts, 0, worker.getTypeBackgroundCounts(), 0, typeBackgroundCounts.length);
+                    System.arraycopy(backgroundAndTopicalCounts, 0, worker.getBackgroundAndTopicalCounts(), 0, backgroundAndTopicalCounts.length);
+                }
+            }
+        };
 
         for (int iteration = 1; iteration <= numIterations; iteration++) {
 
@@ -222,81 +240,18 @@ public class BackgroundTopicModel extends ParallelTopicModel {
             }
 
 
-            // Submit runnables to thread pool
-
             for (int thread = 0; thread < numThreads; thread++) {
                 if (iteration > burninPeriod && optimizeInterval != 0 &&
                         iteration % saveSampleInterval == 0) {
                     runnables[thread].collectAlphaStatistics();
                 }
-
-                logger.fine("submitting thread " + thread);
-                executor.submit(runnables[thread]);
-                //runnables[thread].run();
-            }
-
-            try {
-                Thread.sleep(20);
-            } catch (InterruptedException e) {
-
-            }
-
-            boolean finished = false;
-            while (! finished) {
-
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-
-                }
-
-                finished = true;
-
-                // Are all the threads done?
-                for (int thread = 0; thread < numThreads; thread++) {
-                    //logger.info("thread " + thread + " done? " + runnables[thread].isFinished);
-                    finished = finished && runnables[thread].isFinished;
+                if (printLogLikelihood && iteration % 10 == 0) {
+                    runnables[thread].collectDocumentLikelihood();
                 }
-
             }
 
-            //System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
-
-            sumTypeTopicCounts(runnables);
-            sumBackgroundTopicalCounts(runnables);
-
-            //System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
-
-            for (int thread = 0; thread < numThreads; thread++) {
-                int[] runnableTotals = runnables[thread].getTokensPerTopic();
-                System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
-
-                int[][] runnableCounts = runnables[thread].getTypeTopicCounts();
-                for (int type = 0; type < numTypes; type++) {
-                    int[] targetCounts = runnableCounts[type];
-                    int[] sourceCounts = typeTopicCounts[type];
-
-                    int index = 0;
-                    while (index < sourceCounts.length) {
-
-                        if (sourceCounts[index] != 0) {
-                            targetCounts[index] = sourceCounts[index];
-                        }
-                        else if (targetCounts[index] != 0) {
-                            targetCounts[index] = 0;
-                        }
-                        else {
-                            break;
-                        }
-
-                        index++;
-                    }
-                }
-
-                System.arraycopy(typeBackgroundCounts, 0, runnables[thread].getTypeBackgroundCounts(), 0, typeBackgroundCounts.length);
-                System.arraycopy(backgroundAndTopicalCounts, 0, runnables[thread].getBackgroundAndTopicalCounts(), 0, backgroundAndTopicalCounts.length);
+            engine.runIteration(merge);
 
-            }
             long elapsedMillis = System.currentTimeMillis() - iterationStart;
             if (elapsedMillis < 1000) {
                 logger.fine(elapsedMillis + "ms ");
@@ -305,18 +260,27 @@ public class BackgroundTopicModel extends ParallelTopicModel {
                 logger.fine((elapsedMillis/1000) + "s ");
             }
 
+            boolean optimized = false;
             if (iteration > burninPeriod && optimizeInterval != 0 &&
                     iteration % optimizeInterval == 0) {
 
-                optimizeAlpha(runnables);
+                optimized = true;
+                optimizeAlpha(runnables, engine.getExecutor());
                 optimizeBeta(runnables);
+                if (optimizeBackgroundPriors) {
+                    optimizeBackgroundPriors(runnables, engine.getExecutor());
+                }
 
                 logger.fine("[O " + (System.currentTimeMillis() - iterationStart) + "] ");
             }
 
             if (iteration % 10 == 0) {
                 if (printLogLikelihood) {
-                    logger.info ("<" + iteration + "> LL/token: " + formatter.format(modelLogLikelihood() / totalTokens));
+                    // The document terms the workers summed are out of date if the priors have just changed
+                    double logLikelihood = optimized ?
+                            modelLogLikelihood(engine.getExecutor()) :
+                            modelLogLikelihood(runnables, engine.getExecutor());
+                    logger.info ("<" + iteration + "> LL/token: " + formatter.format(logLikelihood / totalTokens));
                 }
                 else {
                     logger.info ("<" + iteration + ">");
@@ -324,7 +288,8 @@ public class BackgroundTopicModel extends ParallelTopicModel {
             }
         }
 
-        executor.shutdownNow();
+        engine.shutdown();
+        logger.info(engine.getSummaryReport());
 
         long seconds = Math.round((System.currentTimeMillis() - startTime)/1000.0);
         long minutes = seconds / 60;	seconds %= 60;
@@ -340,6 +305,83 @@ public class BackgroundTopicModel extends ParallelTopicModel {
 
         logger.info(timeReport.toString());
     }
+    /**
+     * Also learn lambda and betaBackground every <code>optimizeInterval</code> iterations,
+     *  with the same fixed point iteration as alpha and beta.
+     */
+    public void setOptimizeBackgroundPriors(boolean optimizeBackgroundPriors) {
+        this.optimizeBackgroundPriors = optimizeBackgroundPriors;
+    }
+
+    public double getLambda() { return lambda; }
+    public double getBetaBackground() { return betaBackground; }
+
+    /**
+     * Learn lambda and betaBackground from the statistics collected by the workers, and
+     *  pass the new values on to them.
+     */
+    public void optimizeBackgroundPriors(BackgroundWorkerRunnable[] runnables, ExecutorService executor) {
+        SparseHistogram countHistogram = new SparseHistogram();
+        SparseHistogram lengthHistogram = new SparseHistogram();
+        for (BackgroundWorkerRunnable runnable : runnables) {
+            countHistogram.add(runnable.getBackgroundCountHistograms()[0]);
+            lengthHistogram.add(runnable.getBackgroundLengthHistograms()[0]);
+            runnable.getBackgroundCountHistograms()[0].clear();
+            runnable.getBackgroundLengthHistograms()[0].clear();
+        }
+
+        lambda = learnLambda(countHistogram, lengthHistogram, lambda);
+        betaBackground = learnBetaBackground(typeBackgroundCounts,
+                backgroundAndTopicalCounts[BACKGROUND_WORD_INDEX], betaBackground);
+
+        for (BackgroundWorkerRunnable runnable : runnables) {
+            runnable.resetBackgroundPriors(lambda, betaBackground);
+        }
+    }
+
+    /**
+     * The sampler weighs background against topical words with (n_bg + lambda) / (n_top + lambda),
+     *  so the split of each document is a symmetric two-dimensional Dirichlet with concentration
+     *  2 * lambda. If there is nothing to learn from, the current value is kept.
+     */
+    static double learnLambda(SparseHistogram countHistogram, SparseHistogram lengthHistogram, double lambda) {
+        if (lengthHistogram.getMaxValue() <= 0) {
+            return lambda;
+        }
+        double learned = Dirichlet.learnSymmetricConcentration(countHistogram, lengthHistogram, 2, 2 * lambda) / 2;
+        if (Double.isNaN(learned) || Double.isInfinite(learned) || learned <= 0) {
+            logger.warning("lambda optimization has become unstable, keeping lambda = " + lambda);
+            return lambda;
+        }
+        return learned;
+    }
+
+    /**
+     * The background topic is a single draw from a symmetric Dirichlet over the vocabulary,
+     *  observed through its token counts.
+     */
+    double learnBetaBackground(int[] typeBackgroundCounts, int backgroundTotal, double betaBackground) {
+        if (backgroundTotal == 0) {
+            return betaBackground;
+        }
+        SparseHistogram countHistogram = new SparseHistogram();
+        for (int type = 0; type < numTypes; type++) {
+            if (typeBackgroundCounts[type] > 0) {
+                countHistogram.increment(typeBackgroundCounts[type]);
+            }
+        }
+        SparseHistogram lengthHistogram = new SparseHistogram();
+        lengthHistogram.increment(backgroundTotal);
+
+        double learned = Dirichlet.learnSymmetricConcentration(countHistogram, lengthHistogram,
+                numTypes, betaBackground * numTypes) / numTypes;
+        if (Double.isNaN(learned) || Double.isInfinite(learned) || learned <= 0) {
+            logger.warning("betaBackground optimization has become unstable, keeping betaBackground = " + betaBackground);
+            return betaBackground;
+        }
+        return learned;
+    }
+
     public double modelLogLikelihood() {
         return super.modelLogLikelihood();
         //throw new UnsupportedOperationException();
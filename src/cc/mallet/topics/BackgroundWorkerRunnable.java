@@ -1,6 +1,7 @@
 package cc.mallet.topics;
 
 import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.SparseHistogram;
 import cc.mallet.util.Randoms;
 
 import java.util.ArrayList;
@@ -24,6 +25,15 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
     protected int[] typeBackgroundCounts; // indexed by <feature index>
     protected int[] backgroundAndTopicalCounts;
 
+    // If set, the type/topic counts and topic totals are only read, and only
+    //  the background counts are sampled. See <code>freezeTopics()</code>.
+    protected boolean topicsFrozen = false;
+
+    // for the estimation of lambda, indexed by <context>: histograms of the background and topical
+    //  token counts of the documents, and of the document lengths
+    protected SparseHistogram[] backgroundCountHistograms;
+    protected SparseHistogram[] backgroundLengthHistograms;
+
     public BackgroundWorkerRunnable(int numTopics, double[] alpha, double alphaSum, double beta, double betaBackground, double lambda,
                                     Randoms random, ArrayList<TopicAssignment> data,
                                     int[][] typeTopicCounts, int[] tokensPerTopic,
@@ -37,8 +47,54 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
 
     }
 
+    /**
+     * Sample against fixed topics: the type/topic counts and topic totals are never written,
+     *  so any number of workers can share the model's arrays. Tokens whose type is outside
+     *  the counts are ignored.
+     */
+    public void freezeTopics() {
+        topicsFrozen = true;
+        makeOnlyThread();
+    }
+
+    public SparseHistogram[] getBackgroundCountHistograms() { return backgroundCountHistograms; }
+    public SparseHistogram[] getBackgroundLengthHistograms() { return backgroundLengthHistograms; }
+
+    /** Collect the statistics for lambda, along with those for alpha, for this many contexts */
+    public void initializeBackgroundStatistics(int numContexts) {
+        backgroundCountHistograms = new SparseHistogram[numContexts];
+        backgroundLengthHistograms = new SparseHistogram[numContexts];
+        for (int context = 0; context < numContexts; context++) {
+            backgroundCountHistograms[context] = new SparseHistogram();
+            backgroundLengthHistograms[context] = new SparseHistogram();
+        }
+    }
+
+    /** The context whose lambda the current document's statistics belong to */
+    protected int getStatisticsContext() {
+        return 0;
+    }
+
+    /**
+     * The log likelihood terms of the split of one document into background and topical words.
+     *  BackgroundTopicModel's likelihood does not include the split, so there are none here.
+     */
+    protected double backgroundLogLikelihood(int[] backgroundTopicalCounts) {
+        return 0.0;
+    }
+
+    public void resetBackgroundPriors(double lambda, double betaBackground) {
+        this.lambda = lambda;
+        this.betaBackground = betaBackground;
+    }
+
     public void buildLocalTypeTopicCounts () {
         super.buildLocalTypeTopicCounts();
+        buildLocalBackgroundCounts();
+    }
+
+    /** Recount the background/topical tokens of this worker's documents */
+    protected void buildLocalBackgroundCounts () {
         Arrays.fill(typeBackgroundCounts, 0);
         Arrays.fill(backgroundAndTopicalCounts, 0);
 
@@ -72,7 +128,7 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
     protected double computeBackgroundCoeff(int token, int[] localBackgroundTopicCount){
 
         double coff = alphaSum + localBackgroundTopicCount[TOPICAL_WORD_INDEX];
-        coff *=  (typeBackgroundCounts[token] + betaBackground);
+        coff *=  (getTypeBackgroundCount(token) + betaBackground);
         coff *=  (localBackgroundTopicCount[BACKGROUND_WORD_INDEX] + lambda );
         coff /=  (localBackgroundTopicCount[TOPICAL_WORD_INDEX] + lambda );
         coff /= ((betaBackground * numTypes) + backgroundAndTopicalCounts[BACKGROUND_WORD_INDEX] );
@@ -81,6 +137,50 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
 
         return coff;
     }
+    protected int getTypeBackgroundCount(int type) {
+        return typeBackgroundCounts[type];
+    }
+
+    protected void addTypeBackgroundCount(int type, int change) {
+        typeBackgroundCounts[type] += change;
+    }
+
+    /**
+     * Add a sampled document to the statistics for hyperparameter optimization and to the
+     *  document log likelihood, if they are being collected in this iteration.
+     */
+    protected void recordDocumentStatistics(int[] localTopicCounts, int[] localTopicIndex, int nonZeroTopics,
+                                            int[] localBackgroundTopicCount, int docLength) {
+        if (shouldSaveState) {
+            // Update the document-topic count histogram,
+            //  for dirichlet estimation. Only the topical words are drawn from
+            //  the document's topic distribution, so they make up its length.
+            docLengthCounts.increment(localBackgroundTopicCount[TOPICAL_WORD_INDEX]);
+
+            for (int denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+                int topic = localTopicIndex[denseIndex];
+
+                topicDocCounts[topic].increment(localTopicCounts[topic]);
+            }
+
+            if (backgroundCountHistograms != null) {
+                int context = getStatisticsContext();
+                for (int index = 0; index < 2; index++) {
+                    if (localBackgroundTopicCount[index] > 0) {
+                        backgroundCountHistograms[context].increment(localBackgroundTopicCount[index]);
+                    }
+                }
+                backgroundLengthHistograms[context].increment(docLength);
+            }
+        }
+
+        if (shouldSumLikelihood) {
+            documentLogLikelihood += documentLogLikelihood(localTopicCounts, localTopicIndex, nonZeroTopics,
+                    localBackgroundTopicCount[TOPICAL_WORD_INDEX]) +
+                    backgroundLogLikelihood(localBackgroundTopicCount);
+        }
+    }
+
     protected void sampleTopicsForOneDoc (FeatureSequence tokenSequence,
                                           FeatureSequence topicSequence,
                                           boolean readjustTopicsAndStats /* currently ignored */) {
@@ -98,6 +198,8 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
 
         //		populate topic counts
         for (int position = 0; position < docLength; position++) {
+            // out-of-vocabulary terms only occur in documents sampled against frozen topics
+            if (tokenSequence.getIndexAtPosition(position) >= numTypes) { continue; }
             if (oneDocTopics[position] == backgroundTopic) { continue; }
             localTopicCounts[oneDocTopics[position]]++;
         }
@@ -114,6 +216,7 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
 
         // populate local B/T counts
         for (int position = 0; position < docLength; position++) {
+            if (tokenSequence.getIndexAtPosition(position) >= numTypes) { continue; }
             if (oneDocTopics[position] == backgroundTopic) {
                 localBackgroundTopicCount[BACKGROUND_WORD_INDEX]++;
             }else{
@@ -154,6 +257,10 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
         //	Iterate over the positions (words) in the document
         for (int position = 0; position < docLength; position++) {
             type = tokenSequence.getIndexAtPosition(position);
+
+            // ignore out-of-vocabulary terms
+            if (type >= numTypes) { continue; }
+
             oldTopic = oneDocTopics[position];
 
             currentTypeTopicCounts = typeTopicCounts[type];
@@ -166,9 +273,12 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
                 backgroundAndTopicalCounts[TOPICAL_WORD_INDEX]--;
 
                 // Remove this topic's contribution to the
-                //  normalizing constants
-                smoothingOnlyMass -= alpha[oldTopic] * beta /
-                        (tokensPerTopic[oldTopic] + betaSum);
+                //  normalizing constants. If the topics are frozen,
+                //  only the document's part changes.
+                if (! topicsFrozen) {
+                    smoothingOnlyMass -= alpha[oldTopic] * beta /
+                            (tokensPerTopic[oldTopic] + betaSum);
+                }
                 topicBetaMass -= beta * localTopicCounts[oldTopic] /
                         (tokensPerTopic[oldTopic] + betaSum);
 
@@ -203,15 +313,17 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
                     nonZeroTopics --;
                 }
 
-                // Decrement the global topic count totals
-                tokensPerTopic[oldTopic]--;
-                assert(tokensPerTopic[oldTopic] >= 0) : "old Topic " + oldTopic + " below 0";
+                if (! topicsFrozen) {
+                    // Decrement the global topic count totals
+                    tokensPerTopic[oldTopic]--;
+                    assert(tokensPerTopic[oldTopic] >= 0) : "old Topic " + oldTopic + " below 0";
 
 
-                // Add the old topic's contribution back into the
-                //  normalizing constants.
-                smoothingOnlyMass += alpha[oldTopic] * beta /
-                        (tokensPerTopic[oldTopic] + betaSum);
+                    // Add the old topic's contribution back into the
+                    //  normalizing constants.
+                    smoothingOnlyMass += alpha[oldTopic] * beta /
+                            (tokensPerTopic[oldTopic] + betaSum);
+                }
                 topicBetaMass += beta * localTopicCounts[oldTopic] /
                         (tokensPerTopic[oldTopic] + betaSum);
 
@@ -224,7 +336,7 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
                 // remove its contribution to localB/TCount
                 localBackgroundTopicCount[BACKGROUND_WORD_INDEX]--;
                 backgroundAndTopicalCounts[BACKGROUND_WORD_INDEX]--;
-                typeBackgroundCounts[type]--;
+                addTypeBackgroundCount(type, -1);
 
             }
             // compute the mass for background word
@@ -237,7 +349,7 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
             int index = 0;
             int currentTopic, currentValue;
 
-            boolean alreadyDecremented = (oldTopic == backgroundTopic);
+            boolean alreadyDecremented = (oldTopic == backgroundTopic) || topicsFrozen;
 
             topicTermMass = 0.0;
 
@@ -307,19 +419,22 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
                     }
 
                     newTopic = currentTypeTopicCounts[i] & topicMask;
-                    currentValue = currentTypeTopicCounts[i] >> topicBits;
 
-                    currentTypeTopicCounts[i] = ((currentValue + 1) << topicBits) + newTopic;
+                    if (! topicsFrozen) {
+                        currentValue = currentTypeTopicCounts[i] >> topicBits;
+
+                        currentTypeTopicCounts[i] = ((currentValue + 1) << topicBits) + newTopic;
 
-                    // Bubble the new value up, if necessary
+                        // Bubble the new value up, if necessary
 
-                    while (i > 0 &&
-                            currentTypeTopicCounts[i] > currentTypeTopicCounts[i - 1]) {
-                        int temp = currentTypeTopicCounts[i];
-                        currentTypeTopicCounts[i] = currentTypeTopicCounts[i - 1];
-                        currentTypeTopicCounts[i - 1] = temp;
+                        while (i > 0 &&
+                                currentTypeTopicCounts[i] > currentTypeTopicCounts[i - 1]) {
+                            int temp = currentTypeTopicCounts[i];
+                            currentTypeTopicCounts[i] = currentTypeTopicCounts[i - 1];
+                            currentTypeTopicCounts[i - 1] = temp;
 
-                        i--;
+                            i--;
+                        }
                     }
 
                 }
@@ -355,7 +470,7 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
                         sample -= alpha[newTopic] /
                                 (tokensPerTopic[newTopic] + betaSum);
 
-                        while (sample > 0.0) {
+                        while (sample > 0.0 && newTopic < numTopics - 1) {
                             newTopic++;
                             sample -= alpha[newTopic] /
                                     (tokensPerTopic[newTopic] + betaSum);
@@ -363,46 +478,50 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
 
                     }
 
-                    // Move to the position for the new topic,
-                    //  which may be the first empty position if this
-                    //  is a new topic for this word.
-
-                    index = 0;
-                    while (currentTypeTopicCounts[index] > 0 &&
-                            (currentTypeTopicCounts[index] & topicMask) != newTopic) {
-                        index++;
-                        if (index == currentTypeTopicCounts.length) {
-                            System.err.println("type: " + type + " new topic: " + newTopic);
-                            for (int k=0; k<currentTypeTopicCounts.length; k++) {
-                                System.err.print((currentTypeTopicCounts[k] & topicMask) + ":" +
-                                        (currentTypeTopicCounts[k] >> topicBits) + " ");
-                            }
-                            System.err.println();
+                    // Frozen type/topic counts are only read
+                    if (! topicsFrozen) {
+
+                        // Move to the position for the new topic,
+                        //  which may be the first empty position if this
+                        //  is a new topic for this word.
+
+                        index = 0;
+                        while (currentTypeTopicCounts[index] > 0 &&
+                                (currentTypeTopicCounts[index] & topicMask) != newTopic) {
+                            index++;
+                            if (index == currentTypeTopicCounts.length) {
+                                System.err.println("type: " + type + " new topic: " + newTopic);
+                                for (int k=0; k<currentTypeTopicCounts.length; k++) {
+                                    System.err.print((currentTypeTopicCounts[k] & topicMask) + ":" +
+                                            (currentTypeTopicCounts[k] >> topicBits) + " ");
+                                }
+                                System.err.println();
 
+                            }
                         }
-                    }
 
 
-                    // index should now be set to the position of the new topic,
-                    //  which may be an empty cell at the end of the list.
+                        // index should now be set to the position of the new topic,
+                        //  which may be an empty cell at the end of the list.
 
-                    if (currentTypeTopicCounts[index] == 0) {
-                        // inserting a new topic, guaranteed to be in
-                        //  order w.r.t. count, if not topic.
-                        currentTypeTopicCounts[index] = (1 << topicBits) + newTopic;
-                    }
-                    else {
-                        currentValue = currentTypeTopicCounts[index] >> topicBits;
-                        currentTypeTopicCounts[index] = ((currentValue + 1) << topicBits) + newTopic;
-
-                        // Bubble the increased value left, if necessary
-                        while (index > 0 &&
-                                currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
-                            int temp = currentTypeTopicCounts[index];
-                            currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
-                            currentTypeTopicCounts[index - 1] = temp;
-
-                            index--;
+                        if (currentTypeTopicCounts[index] == 0) {
+                            // inserting a new topic, guaranteed to be in
+                            //  order w.r.t. count, if not topic.
+                            currentTypeTopicCounts[index] = (1 << topicBits) + newTopic;
+                        }
+                        else {
+                            currentValue = currentTypeTopicCounts[index] >> topicBits;
+                            currentTypeTopicCounts[index] = ((currentValue + 1) << topicBits) + newTopic;
+
+                            // Bubble the increased value left, if necessary
+                            while (index > 0 &&
+                                    currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
+                                int temp = currentTypeTopicCounts[index];
+                                currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
+                                currentTypeTopicCounts[index - 1] = temp;
+
+                                index--;
+                            }
                         }
                     }
 
@@ -416,7 +535,7 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
 
                 backgroundAndTopicalCounts[BACKGROUND_WORD_INDEX] ++;
                 localBackgroundTopicCount[BACKGROUND_WORD_INDEX] ++;
-                typeBackgroundCounts[type] ++;
+                addTypeBackgroundCount(type, 1);
             }else {
                 backgroundAndTopicalCounts[TOPICAL_WORD_INDEX] ++;
                 localBackgroundTopicCount[TOPICAL_WORD_INDEX] ++;
@@ -425,8 +544,10 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
                 //	Put that new topic into the counts
 
 
-                smoothingOnlyMass -= alpha[newTopic] * beta /
-                        (tokensPerTopic[newTopic] + betaSum);
+                if (! topicsFrozen) {
+                    smoothingOnlyMass -= alpha[newTopic] * beta /
+                            (tokensPerTopic[newTopic] + betaSum);
+                }
                 topicBetaMass -= beta * localTopicCounts[newTopic] /
                         (tokensPerTopic[newTopic] + betaSum);
 
@@ -456,32 +577,27 @@ public class BackgroundWorkerRunnable extends WorkerRunnable {
                     nonZeroTopics++;
                 }
 
-                tokensPerTopic[newTopic]++;
+                if (! topicsFrozen) {
+                    tokensPerTopic[newTopic]++;
+                }
 
                 //	update the coefficients for the non-zero topics
                 cachedCoefficients[newTopic] =
                         (alpha[newTopic] + localTopicCounts[newTopic]) /
                                 (tokensPerTopic[newTopic] + betaSum);
 
-                smoothingOnlyMass += alpha[newTopic] * beta /
-                        (tokensPerTopic[newTopic] + betaSum);
+                if (! topicsFrozen) {
+                    smoothingOnlyMass += alpha[newTopic] * beta /
+                            (tokensPerTopic[newTopic] + betaSum);
+                }
                 topicBetaMass += beta * localTopicCounts[newTopic] /
                         (tokensPerTopic[newTopic] + betaSum);
             }
 
         }
 
-        if (shouldSaveState) {
-            // Update the document-topic count histogram,
-            //  for dirichlet estimation
-            docLengthCounts[ docLength ]++;
-
-            for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
-                int topic = localTopicIndex[denseIndex];
-
-                topicDocCounts[topic][ localTopicCounts[topic] ]++;
-            }
-        }
+        recordDocumentStatistics(localTopicCounts, localTopicIndex, nonZeroTopics,
+                localBackgroundTopicCount, docLength);
 
         //	Clean up our mess: reset the coefficients to values with only
         //	smoothing. The next doc will update its own non-zero topics...
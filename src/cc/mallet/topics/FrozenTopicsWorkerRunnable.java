@@ -0,0 +1,32 @@
+package cc.mallet.topics;
+
+import cc.mallet.util.Randoms;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * A worker that samples documents of new sources against fixed topics: the type/topic
+ * counts and topic totals are only read, and only the background counts of the documents'
+ * sources are learned. Since nothing but the background deltas changes, every worker can
+ * share the model's own type/topic arrays instead of a private copy.
+ *
+ * Tokens whose type is outside the model's vocabulary are ignored.
+ */
+public class FrozenTopicsWorkerRunnable extends MultiBackgroundWorkerRunnable {
+
+    public FrozenTopicsWorkerRunnable(int numTopics, double[] alpha, double alphaSum, double beta,
+                                      double betaBackground, double lambda,
+                                      Randoms random, ArrayList<TopicAssignment> data,
+                                      int[][] typeTopicCounts, int[] tokensPerTopic,
+                                      Map<Object, Integer> sourceToSourceId,
+                                      int[][] globalTypeBackgroundCounts, int[][] backgroundAndTopicalCounts,
+                                      int startDoc, int numDocs) {
+        super(numTopics, alpha, alphaSum, beta, betaBackground, lambda, random, data,
+                typeTopicCounts, tokensPerTopic, sourceToSourceId,
+                globalTypeBackgroundCounts, backgroundAndTopicalCounts, startDoc, numDocs);
+
+        // The shared type/topic counts must never be written or rebuilt from this worker's documents
+        freezeTopics();
+    }
+}
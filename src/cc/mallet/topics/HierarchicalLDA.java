@@ -1,20 +1,27 @@
 package cc.mallet.topics;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.io.*;
 
 import cc.mallet.types.*;
 import cc.mallet.util.Randoms;
 
-import gnu.trove.*;
+import gnu.trove.TIntDoubleHashMap;
 
+/**
+ * Hierarchical LDA with a fixed tree depth, using a nested Chinese restaurant process.
+ * <p>
+ * With more than one thread, the documents are divided among workers that sample
+ *  against the tree as of the start of the iteration and keep their own changes.
+ *  The changes, including any new paths, are reconciled into the shared tree after
+ *  every iteration. This is an approximation, as in the other parallel samplers.
+ */
 public class HierarchicalLDA {
 
     InstanceList instances;
     InstanceList testing;
 
-    NCRPNode rootNode, node;
+    NCRPTree tree;
 
     int numLevels;
     int numDocuments;
@@ -26,19 +33,22 @@ public class HierarchicalLDA {
     double etaSum;
 
     int[][] levels; // indexed < doc, token >
-    NCRPNode[] documentLeaves; // currently selected path (ie leaf node) through the NCRP tree
-
-	int totalNodes = 0;
+    int[] documentLeaves; // currently selected path (ie leaf node) through the NCRP tree
 
 	String stateFile = "hlda.state";
 
     Randoms random;
 
 	boolean showProgress = true;
+
+	int numThreads = 1;
 	
 	int displayTopicsInterval = 50;
 	int numWordsToDisplay = 10;
 
+	// Samples single documents for samplePath and sampleTopics
+	HierarchicalLDAWorkerRunnable documentSampler;
+
     public HierarchicalLDA () {
 		alpha = 10.0;
 		gamma = 1.0;
@@ -47,20 +57,31 @@ public class HierarchicalLDA {
 
 	public void setAlpha(double alpha) {
 		this.alpha = alpha;
+		documentSampler = null;
 	}
 
 	public void setGamma(double gamma) {
 		this.gamma = gamma;
+		documentSampler = null;
 	}
 
 	public void setEta(double eta) {
 		this.eta = eta;
+		documentSampler = null;
 	}
 
 	public void setStateFile(String stateFile) {
 		this.stateFile = stateFile;
 	}
 
+	public void setNumThreads(int threads) {
+		this.numThreads = threads;
+	}
+
+	public NCRPTree getTree() {
+		return tree;
+	}
+
 	public void setTopicDisplay(int interval, int words) {
 		displayTopicsInterval = interval;
 		numWordsToDisplay = words;
@@ -80,6 +101,7 @@ public class HierarchicalLDA {
 		this.testing = testing;
 		this.numLevels = numLevels;
 		this.random = random;
+		documentSampler = null;
 
 		if (! (instances.get(0).getData() instanceof FeatureSequence)) {
 			throw new IllegalArgumentException("Input must be a FeatureSequence, using the --feature-sequence option when impoting data, for example");
@@ -92,12 +114,13 @@ public class HierarchicalLDA {
 
 		// Initialize a single path
 
-		NCRPNode[] path = new NCRPNode[numLevels];
+		int[] path = new int[numLevels];
 
-		rootNode = new NCRPNode(numTypes);
+		tree = new NCRPTree(numLevels, numTypes);
+		int rootNode = tree.getRoot();
 
 		levels = new int[numDocuments][];
-		documentLeaves = new NCRPNode[numDocuments];
+		documentLeaves = new int[numDocuments];
 
 		// Initialize and fill the topic pointer arrays for 
 		//  every document. Set everything to the single path that 
@@ -107,316 +130,136 @@ public class HierarchicalLDA {
             int seqLen = fs.getLength();
 
 			path[0] = rootNode;
-			rootNode.customers++;
+			tree.customers[rootNode]++;
 			for (int level = 1; level < numLevels; level++) {
-				path[level] = path[level-1].select();
-				path[level].customers++;
+				path[level] = tree.select(path[level-1], gamma, random);
+				tree.customers[ path[level] ]++;
 			}
-			node = path[numLevels - 1];
 	    
 			levels[doc] = new int[seqLen];
-			documentLeaves[doc] = node;
+			documentLeaves[doc] = path[numLevels - 1];
 
 			for (int token=0; token < seqLen; token++) {
 				int type = fs.getIndexAtPosition(token);
 				levels[doc][token] = random.nextInt(numLevels);
-				node = path[ levels[doc][token] ];
-				node.totalTokens++;
-				node.typeCounts[type]++;
+				int node = path[ levels[doc][token] ];
+				tree.totalTokens[node]++;
+				tree.typeCounts[node][type]++;
 			}
 		}
 	}
 
 	public void estimate(int numIterations) {
-		for (int iteration = 1; iteration <= numIterations; iteration++) {
-			for (int doc=0; doc < numDocuments; doc++) {
-				samplePath(doc, iteration);
-			}
-			for (int doc=0; doc < numDocuments; doc++) {
-				sampleTopics(doc);
-			}
-			
-			if (showProgress) {
-				System.out.print(".");
-				if (iteration % 50 == 0) {
-					System.out.println(" " + iteration);
-				}
-			}
 
-			if (iteration % displayTopicsInterval == 0) {
-				printNodes();
-			}
-		}
-    }
+		final HierarchicalLDAWorkerRunnable[] runnables = new HierarchicalLDAWorkerRunnable[numThreads];
 
-    public void samplePath(int doc, int iteration) {
-		NCRPNode[] path = new NCRPNode[numLevels];
-		NCRPNode node;
-		int level, token, type, topicCount;
-		double weight;
+		int docsPerThread = numDocuments / numThreads;
+		int offset = 0;
 
-		node = documentLeaves[doc];
-		for (level = numLevels - 1; level >= 0; level--) {
-			path[level] = node;
-			node = node.parent;
-		}
+		for (int thread = 0; thread < numThreads; thread++) {
 
-		documentLeaves[doc].dropPath();
-
-		TObjectDoubleHashMap<NCRPNode> nodeWeights = 
-			new TObjectDoubleHashMap<NCRPNode>();
-	
-		// Calculate p(c_m | c_{-m})
-		calculateNCRP(nodeWeights, rootNode, 0.0);
-
-		// Add weights for p(w_m | c, w_{-m}, z)
-	
-		// The path may have no further customers and therefore
-		//  be unavailable, but it should still exist since we haven't
-		//  reset documentLeaves[doc] yet...
-	
-		TIntIntHashMap[] typeCounts = new TIntIntHashMap[numLevels];
-
-		int[] docLevels;
-
-		for (level = 0; level < numLevels; level++) {
-			typeCounts[level] = new TIntIntHashMap();
-		}
-
-		docLevels = levels[doc];
-		FeatureSequence fs = (FeatureSequence) instances.get(doc).getData();
-	    
-		// Save the counts of every word at each level, and remove
-		//  counts from the current path
-
-		for (token = 0; token < docLevels.length; token++) {
-			level = docLevels[token];
-			type = fs.getIndexAtPosition(token);
-	    
-			if (! typeCounts[level].containsKey(type)) {
-				typeCounts[level].put(type, 1);
-			}
-			else {
-				typeCounts[level].increment(type);
+			// some docs may be missing at the end due to integer division
+			if (thread == numThreads - 1) {
+				docsPerThread = numDocuments - offset;
 			}
 
-			path[level].typeCounts[type]--;
-			assert(path[level].typeCounts[type] >= 0);
-	    
-			path[level].totalTokens--;	    
-			assert(path[level].totalTokens >= 0);
-		}
+			// With one thread, keep sampling from our own generator
+			Randoms threadRandom = numThreads > 1 ? new Randoms(random.nextInt()) : random;
 
-		// Calculate the weight for a new path at a given level.
-		double[] newTopicWeights = new double[numLevels];
-		for (level = 1; level < numLevels; level++) {  // Skip the root...
-			int[] types = typeCounts[level].keys();
-			int totalTokens = 0;
-
-			for (int t: types) {
-				for (int i=0; i<typeCounts[level].get(t); i++) {
-					newTopicWeights[level] += 
-						Math.log((eta + i) / (etaSum + totalTokens));
-					totalTokens++;
-				}
-			}
+			runnables[thread] = new HierarchicalLDAWorkerRunnable(tree, instances, levels, documentLeaves,
+																  numLevels, numTypes,
+																  alpha, gamma, eta, etaSum,
+																  threadRandom, offset, docsPerThread);
 
-			//if (iteration > 1) { System.out.println(newTopicWeights[level]); }
+			offset += docsPerThread;
 		}
-	
-		calculateWordLikelihood(nodeWeights, rootNode, 0.0, typeCounts, newTopicWeights, 0, iteration);
-
-		NCRPNode[] nodes = nodeWeights.keys(new NCRPNode[] {});
-		double[] weights = new double[nodes.length];
-		double sum = 0.0;
-		double max = Double.NEGATIVE_INFINITY;
-
-		// To avoid underflow, we're using log weights and normalizing the node weights so that 
-		//  the largest weight is always 1.
-		for (int i=0; i<nodes.length; i++) {
-			if (nodeWeights.get(nodes[i]) > max) {
-				max = nodeWeights.get(nodes[i]);
-			}
-		}
-
-		for (int i=0; i<nodes.length; i++) {
-			weights[i] = Math.exp(nodeWeights.get(nodes[i]) - max);
 
-			/*
-			  if (iteration > 1) {
-			  if (nodes[i] == documentLeaves[doc]) {
-			  System.out.print("* ");
-			  }
-			  System.out.println(((NCRPNode) nodes[i]).level + "\t" + weights[i] + 
-			  "\t" + nodeWeights.get(nodes[i]));
-			  }
-			*/
-
-			sum += weights[i];
+		Runnable reconcile = null;
+		if (numThreads == 1) {
+			runnables[0].makeOnlyThread();
 		}
+		else {
+			reconcile = new Runnable() {
+					public void run() {
+						for (HierarchicalLDAWorkerRunnable runnable : runnables) {
+							runnable.reconcile();
+						}
 
-		//if (iteration > 1) {System.out.println();}
-
-		node = nodes[ random.nextDiscrete(weights, sum) ];
+						// Only now that every worker's changes are in can we
+						//  tell which nodes have no documents left
+						tree.removeEmptyNodes();
 
-		// If we have picked an internal node, we need to 
-		//  add a new path.
-		if (! node.isLeaf()) {
-			node = node.getNewLeaf();
-		}
-	
-		node.addPath();
-		documentLeaves[doc] = node;
-
-		for (level = numLevels - 1; level >= 0; level--) {
-			int[] types = typeCounts[level].keys();
-
-			for (int t: types) {
-				node.typeCounts[t] += typeCounts[level].get(t);
-				node.totalTokens += typeCounts[level].get(t);
-			}
-
-			node = node.parent;
-		}
-    }
-
-    public void calculateNCRP(TObjectDoubleHashMap<NCRPNode> nodeWeights, 
-							  NCRPNode node, double weight) {
-		for (NCRPNode child: node.children) {
-			calculateNCRP(nodeWeights, child,
-						  weight + Math.log((double) child.customers / (node.customers + gamma)));
+						for (HierarchicalLDAWorkerRunnable runnable : runnables) {
+							runnable.prepare();
+						}
+					}
+				};
 		}
 
-		nodeWeights.put(node, weight + Math.log(gamma / (node.customers + gamma)));
-    }
+		IterationEngine engine = new IterationEngine(runnables);
 
-    public void calculateWordLikelihood(TObjectDoubleHashMap<NCRPNode> nodeWeights,
-										NCRPNode node, double weight, 
-										TIntIntHashMap[] typeCounts, double[] newTopicWeights,
-										int level, int iteration) {
-	
-		// First calculate the likelihood of the words at this level, given
-		//  this topic.
-		double nodeWeight = 0.0;
-		int[] types = typeCounts[level].keys();
-		int totalTokens = 0;
-	
-		//if (iteration > 1) { System.out.println(level + " " + nodeWeight); }
-
-		for (int type: types) {
-			for (int i=0; i<typeCounts[level].get(type); i++) {
-				nodeWeight +=
-					Math.log((eta + node.typeCounts[type] + i) /
-							 (etaSum + node.totalTokens + totalTokens));
-				totalTokens++;
-
-				/*
-				  if (iteration > 1) {
-				  System.out.println("(" +eta + " + " + node.typeCounts[type] + " + " + i + ") /" + 
-				  "(" + etaSum + " + " + node.totalTokens + " + " + totalTokens + ")" + 
-				  " : " + nodeWeight);
-				  }
-				*/
+		try {
+			for (int iteration = 1; iteration <= numIterations; iteration++) {
+				engine.runIteration(reconcile);
+
+				if (showProgress) {
+					System.out.print(".");
+					if (iteration % 50 == 0) {
+						System.out.println(" " + iteration);
+					}
+				}
 
+				if (iteration % displayTopicsInterval == 0) {
+					printNodes();
+				}
 			}
+		} finally {
+			engine.shutdown();
 		}
-
-		//if (iteration > 1) { System.out.println(level + " " + nodeWeight); }
-
-		// Propagate that weight to the child nodes
-
-		for (NCRPNode child: node.children) {
-            calculateWordLikelihood(nodeWeights, child, weight + nodeWeight,
-									typeCounts, newTopicWeights, level + 1, iteration);
-        }
-
-		// Finally, if this is an internal node, add the weight of
-		//  a new path
-
-		level++;
-		while (level < numLevels) {
-			nodeWeight += newTopicWeights[level];
-			level++;
-		}
-
-		nodeWeights.adjustValue(node, nodeWeight);
-
     }
 
-    /** Propagate a topic weight to a node and all its children.
-		weight is assumed to be a log.
-	*/
-    public void propagateTopicWeight(TObjectDoubleHashMap<NCRPNode> nodeWeights,
-									 NCRPNode node, double weight) {
-		if (! nodeWeights.containsKey(node)) {
-			// calculating the NCRP prior proceeds from the
-			//  root down (ie following child links),
-			//  but adding the word-topic weights comes from
-			//  the bottom up, following parent links and then 
-			//  child links. It's possible that the leaf node may have
-			//  been removed just prior to this round, so the current
-			//  node may not have an NCRP weight. If so, it's not 
-			//  going to be sampled anyway, so ditch it.
-			return;
-		}
-	
-		for (NCRPNode child: node.children) {
-			propagateTopicWeight(nodeWeights, child, weight);
-		}
+	/** A worker over every document that updates the tree directly */
+	HierarchicalLDAWorkerRunnable getDocumentSampler() {
+		if (documentSampler == null || documentSampler.tree != tree || documentSampler.random != random) {
+			documentSampler = new HierarchicalLDAWorkerRunnable(tree, instances, levels, documentLeaves,
+																numLevels, numTypes,
+																alpha, gamma, eta, etaSum,
+																random, 0, numDocuments);
+			documentSampler.makeOnlyThread();
+		}
+		documentSampler.prepare();
+		return documentSampler;
+	}
 
-		nodeWeights.adjustValue(node, weight);
-    }
+	/** Sample a new path through the tree for the document, given the levels of its words */
+    public void samplePath(int doc, int iteration) {
+		FeatureSequence fs = (FeatureSequence) instances.get(doc).getData();
+		HierarchicalLDAWorkerRunnable sampler = getDocumentSampler();
+		sampler.samplePath(doc, fs);
+		sampler.finishDocument(doc, fs);
+	}
 
+	/** Sample the level of every word of the document, given its current path */
     public void sampleTopics(int doc) {
 		FeatureSequence fs = (FeatureSequence) instances.get(doc).getData();
-		int seqLen = fs.getLength();
-		int[] docLevels = levels[doc];
-		NCRPNode[] path = new NCRPNode[numLevels];
-		NCRPNode node;
-		int[] levelCounts = new int[numLevels];
-		int type, token, level;
-		double sum;
-
-		// Get the leaf
-		node = documentLeaves[doc];
-		for (level = numLevels - 1; level >= 0; level--) {
-			path[level] = node;
-			node = node.parent;
-		}
-
-		double[] levelWeights = new double[numLevels];
+		HierarchicalLDAWorkerRunnable sampler = getDocumentSampler();
+		sampler.loadPath(doc, fs);
+		sampler.sampleLevels(doc, fs);
+		sampler.finishDocument(doc, fs);
+	}
 
-		// Initialize level counts
-		for (token = 0; token < seqLen; token++) {
-			levelCounts[ docLevels[token] ]++;
+	/**
+	 *  Put the log probability under the nested CRP of the path to every node
+	 *   below this one, followed by a new branch, into <code>nodeWeights</code>.
+	 */
+    public void calculateNCRP(TIntDoubleHashMap nodeWeights, int node, double weight) {
+		for (int child = tree.getFirstChild(node); child != NCRPTree.NO_NODE; child = tree.getNextSibling(child)) {
+			calculateNCRP(nodeWeights, child,
+						  weight + Math.log((double) tree.getCustomers(child) / (tree.getCustomers(node) + gamma)));
 		}
 
-		for (token = 0; token < seqLen; token++) {
-			type = fs.getIndexAtPosition(token);
-	    
-			levelCounts[ docLevels[token] ]--;
-			node = path[ docLevels[token] ];
-			node.typeCounts[type]--;
-			node.totalTokens--;
-	    
-
-			sum = 0.0;
-			for (level=0; level < numLevels; level++) {
-				levelWeights[level] = 
-					(alpha + levelCounts[level]) * 
-					(eta + path[level].typeCounts[type]) /
-					(etaSum + path[level].totalTokens);
-				sum += levelWeights[level];
-			}
-			level = random.nextDiscrete(levelWeights, sum);
-
-			docLevels[token] = level;
-			levelCounts[ docLevels[token] ]++;
-			node = path[ level ];
-			node.typeCounts[type]++;
-			node.totalTokens++;
-		}
-    }
+		nodeWeights.put(node, weight + Math.log(gamma / (tree.getCustomers(node) + gamma)));
+	}
 
 	/**
 	 *  Writes the current sampling state to the file specified in <code>stateFile</code>.
@@ -437,7 +280,7 @@ public class HierarchicalLDA {
 			FeatureSequence fs = (FeatureSequence) instance.getData();
 			int seqLen = fs.getLength();
 			int[] docLevels = levels[doc];
-			NCRPNode node;
+			int node;
 			int type, token, level;
 
 			StringBuffer path = new StringBuffer();
@@ -445,8 +288,8 @@ public class HierarchicalLDA {
 			// Start with the leaf, and build a string describing the path for this doc
 			node = documentLeaves[doc];
 			for (level = numLevels - 1; level >= 0; level--) {
-				path.append(node.nodeID + " ");
-				node = node.parent;
+				path.append(node + " ");
+				node = tree.getParent(node);
 			}
 
 			for (token = 0; token < seqLen; token++) {
@@ -462,24 +305,24 @@ public class HierarchicalLDA {
 	}	    
 
     public void printNodes() {
-		printNode(rootNode, 0, false);
+		printNode(tree.getRoot(), 0, false);
     }
     
     public void printNodes(boolean withWeight) {
-		printNode(rootNode, 0, withWeight);
+		printNode(tree.getRoot(), 0, withWeight);
     }
 
-    public void printNode(NCRPNode node, int indent, boolean withWeight) {
+    public void printNode(int node, int indent, boolean withWeight) {
 		StringBuffer out = new StringBuffer();
 		for (int i=0; i<indent; i++) {
 			out.append("  ");
 		}
 
-		out.append(node.totalTokens + "/" + node.customers + " ");
-		out.append(node.getTopWords(numWordsToDisplay, withWeight));
+		out.append(tree.getTotalTokens(node) + "/" + tree.getCustomers(node) + " ");
+		out.append(tree.getTopWords(node, numWordsToDisplay, withWeight, instances.getDataAlphabet()));
 		System.out.println(out);
 	
-		for (NCRPNode child: node.children) {
+		for (int child = tree.getFirstChild(node); child != NCRPTree.NO_NODE; child = tree.getNextSibling(child)) {
 			printNode(child, indent + 1, withWeight);
 		}
     }
@@ -489,10 +332,10 @@ public class HierarchicalLDA {
      *   topics in that path, then return a weighted sum of words.
      */
     public double empiricalLikelihood(int numSamples, InstanceList testing)  {
-		NCRPNode[] path = new NCRPNode[numLevels];
-		NCRPNode node;
+		int[] path = new int[numLevels];
+		int node;
 		double weight;
-		path[0] = rootNode;
+		path[0] = tree.getRoot();
 
 		FeatureSequence fs;
 		int sample, level, type, token, doc, seqLen;
@@ -507,7 +350,7 @@ public class HierarchicalLDA {
 			Arrays.fill(multinomial, 0.0);
 
 			for (level = 1; level < numLevels; level++) {
-				path[level] = path[level-1].selectExisting();
+				path[level] = tree.selectExisting(path[level-1], gamma, random);
 			}
 	    
 			levelWeights = dirichlet.nextDistribution();
@@ -517,8 +360,8 @@ public class HierarchicalLDA {
 					node = path[level];
 					multinomial[type] +=
 						levelWeights[level] * 
-						(eta + node.typeCounts[type]) /
-						(etaSum + node.totalTokens);
+						(eta + tree.getTypeCount(node, type)) /
+						(etaSum + tree.getTotalTokens(node));
 				}
 
 			}
@@ -575,134 +418,4 @@ public class HierarchicalLDA {
 			e.printStackTrace();
 		}
     }
-
-    class NCRPNode {
-		int customers;
-		ArrayList<NCRPNode> children;
-		NCRPNode parent;
-		int level;
-
-		int totalTokens;
-		int[] typeCounts;
-
-		public int nodeID;
-
-		public NCRPNode(NCRPNode parent, int dimensions, int level) {
-			customers = 0;
-			this.parent = parent;
-			children = new ArrayList<NCRPNode>();
-			this.level = level;
-
-			//System.out.println("new node at level " + level);
-	    
-			totalTokens = 0;
-			typeCounts = new int[dimensions];
-
-			nodeID = totalNodes;
-			totalNodes++;
-		}
-
-		public NCRPNode(int dimensions) {
-			this(null, dimensions, 0);
-		}
-
-		public NCRPNode addChild() {
-			NCRPNode node = new NCRPNode(this, typeCounts.length, level + 1);
-			children.add(node);
-			return node;
-		}
-
-		public boolean isLeaf() {
-			return level == numLevels - 1;
-		}
-
-		public NCRPNode getNewLeaf() {
-			NCRPNode node = this;
-			for (int l=level; l<numLevels - 1; l++) {
-				node = node.addChild();
-			}
-			return node;
-		}
-
-		public void dropPath() {
-			NCRPNode node = this;
-			node.customers--;
-			if (node.customers == 0) {
-				node.parent.remove(node);
-			}
-			for (int l = 1; l < numLevels; l++) {
-				node = node.parent;
-				node.customers--;
-				if (node.customers == 0) {
-					node.parent.remove(node);
-				}
-			}
-		}
-
-		public void remove(NCRPNode node) {
-			children.remove(node);
-		}
-
-		public void addPath() {
-			NCRPNode node = this;
-			node.customers++;
-			for (int l = 1; l < numLevels; l++) {
-				node = node.parent;
-				node.customers++;
-			}
-		}
-
-		public NCRPNode selectExisting() {
-			double[] weights = new double[children.size()];
-	    
-			int i = 0;
-			for (NCRPNode child: children) {
-				weights[i] = (double) child.customers / (gamma + customers);
-				i++;
-			}
-
-			int choice = random.nextDiscrete(weights);
-			return children.get(choice);
-		}
-
-		public NCRPNode select() {
-			double[] weights = new double[children.size() + 1];
-	    
-			weights[0] = gamma / (gamma + customers);
-
-			int i = 1;
-			for (NCRPNode child: children) {
-				weights[i] = (double) child.customers / (gamma + customers);
-				i++;
-			}
-
-			int choice = random.nextDiscrete(weights);
-			if (choice == 0) {
-				return(addChild());
-			}
-			else {
-				return children.get(choice - 1);
-			}
-		}
-	
-		public String getTopWords(int numWords, boolean withWeight) {
-			IDSorter[] sortedTypes = new IDSorter[numTypes];
-	    
-			for (int type=0; type < numTypes; type++) {
-				sortedTypes[type] = new IDSorter(type, typeCounts[type]);
-			}
-			Arrays.sort(sortedTypes);
-	    
-			Alphabet alphabet = instances.getDataAlphabet();
-			StringBuffer out = new StringBuffer();
-			for (int i = 0; i < numWords; i++) {
-				if (withWeight){
-					out.append(alphabet.lookupObject(sortedTypes[i].getID()) + ":" + sortedTypes[i].getWeight() + " ");
-				}else
-					out.append(alphabet.lookupObject(sortedTypes[i].getID()) + " ");
-			}
-			return out.toString();
-		}
-
-    }
 }
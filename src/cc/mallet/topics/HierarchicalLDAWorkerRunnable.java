@@ -0,0 +1,660 @@
+package cc.mallet.topics;
+
+import java.util.Arrays;
+
+import cc.mallet.types.*;
+import cc.mallet.util.Randoms;
+
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TLongIntProcedure;
+
+/**
+ * A runnable task for HierarchicalLDA. For each document in a contiguous range,
+ *  the worker samples a path through the tree and then the level of every word.
+ * <p>
+ * If there are several workers, the shared tree does not change while they run.
+ *  Each worker samples against the tree as of the last reconciliation, leaving out
+ *  only the document being sampled, and keeps its changes to the existing nodes as
+ *  deltas. New paths are built in a private tree of new nodes, which the worker's
+ *  later documents can join. <code>reconcile</code> then adds the deltas to the
+ *  shared tree and grafts the new nodes onto it.
+ */
+
+public class HierarchicalLDAWorkerRunnable implements Runnable {
+
+	// Nodes of this worker's tree of new nodes are numbered from here
+	static final int NEW_NODE = 1 << 30;
+
+	boolean isFinished = true;
+
+	InstanceList instances;
+	int[][] levels; // indexed < doc, token >
+	int[] documentLeaves;
+	int startDoc, numDocs;
+
+	int numLevels;
+	int numTypes;
+
+	double alpha;
+	double gamma;
+	double eta;
+	double etaSum;
+
+	NCRPTree tree;
+	Randoms random;
+
+	// If this is the only worker, update the shared tree directly
+	boolean isOnlyThread = false;
+
+	// Changes to the nodes of the shared tree since the last reconciliation
+	int[] customerDeltas;
+	int[] tokenDeltas;
+	TLongIntHashMap typeCountDeltas = new TLongIntHashMap(); // keyed by node * numTypes + type
+
+	// The roots of this tree hang from nodes of the shared tree
+	NCRPTree newNodes;
+	int[] attachedTo = new int[16]; // indexed by root of newNodes
+	int[] nextAttached = new int[16]; // indexed by root of newNodes
+	int[] firstAttached; // indexed by node of the shared tree
+
+	// The document being sampled: its path, and its words at each level,
+	//  as of the last reconciliation and as they are now
+	int[] oldPath;
+	int[] path;
+	int sharedLevels;
+
+	int[][] oldLevelTypeCounts; // indexed by < level, type >
+	int[][] levelTypeCounts;
+	int[] oldLevelTokens;
+	int[] levelTokens;
+
+	// the distinct types at each level, as of the last reconciliation
+	int[][] levelTypes;
+	int[] numLevelTypes;
+
+	double[] levelWeights;
+	double[] newTopicWeights;
+
+	// the nodes the document may be assigned to, and their log weights
+	int[] candidates = new int[16];
+	double[] candidateWeights = new double[16];
+	int numCandidates;
+
+	public HierarchicalLDAWorkerRunnable (NCRPTree tree, InstanceList instances,
+										  int[][] levels, int[] documentLeaves,
+										  int numLevels, int numTypes,
+										  double alpha, double gamma, double eta, double etaSum,
+										  Randoms random,
+										  int startDoc, int numDocs) {
+
+		this.tree = tree;
+		this.instances = instances;
+		this.levels = levels;
+		this.documentLeaves = documentLeaves;
+
+		this.numLevels = numLevels;
+		this.numTypes = numTypes;
+
+		this.alpha = alpha;
+		this.gamma = gamma;
+		this.eta = eta;
+		this.etaSum = etaSum;
+
+		this.random = random;
+
+		this.startDoc = startDoc;
+		this.numDocs = numDocs;
+
+		newNodes = new NCRPTree(numLevels, numTypes, false);
+
+		oldPath = new int[numLevels];
+		path = new int[numLevels];
+
+		oldLevelTypeCounts = new int[numLevels][numTypes];
+		levelTypeCounts = new int[numLevels][numTypes];
+		oldLevelTokens = new int[numLevels];
+		levelTokens = new int[numLevels];
+
+		levelTypes = new int[numLevels][16];
+		numLevelTypes = new int[numLevels];
+
+		levelWeights = new double[numLevels];
+		newTopicWeights = new double[numLevels];
+
+		prepare();
+	}
+
+	/**
+	 *  If there is only one thread, there is nothing to reconcile. This method
+	 *   asks the worker to update the shared tree as it samples.
+	 */
+	public void makeOnlyThread() {
+		isOnlyThread = true;
+	}
+
+	/** Make room for every node of the shared tree, which may have grown */
+	public void prepare () {
+		int capacity = tree.parents.length;
+		if (customerDeltas == null || customerDeltas.length < capacity) {
+			customerDeltas = new int[capacity];
+			tokenDeltas = new int[capacity];
+			firstAttached = new int[capacity];
+			Arrays.fill(firstAttached, NCRPTree.NO_NODE);
+		}
+	}
+
+	public void run () {
+
+		try {
+
+			if (! isFinished) { System.out.println("already running!"); return; }
+
+			isFinished = false;
+
+			for (int doc = startDoc;
+				 doc < instances.size() && doc < startDoc + numDocs;
+				 doc++) {
+
+				FeatureSequence tokens = (FeatureSequence) instances.get(doc).getData();
+				samplePath(doc, tokens);
+				sampleLevels(doc, tokens);
+				finishDocument(doc, tokens);
+			}
+
+			isFinished = true;
+
+		} catch (Exception e) {
+			isFinished = true;
+			e.printStackTrace();
+		}
+	}
+
+	//
+	// Views of a node that may belong to either tree
+	//
+
+	int customers (int node) {
+		if (node >= NEW_NODE) {
+			return newNodes.customers[node - NEW_NODE];
+		}
+		return tree.customers[node] + customerDeltas[node];
+	}
+
+	int parent (int node) {
+		if (node >= NEW_NODE) {
+			int parent = newNodes.parents[node - NEW_NODE];
+			return parent == NCRPTree.NO_NODE ? attachedTo[node - NEW_NODE] : parent + NEW_NODE;
+		}
+		return tree.parents[node];
+	}
+
+	int[] typeCounts (int node) {
+		return node >= NEW_NODE ? newNodes.typeCounts[node - NEW_NODE] : tree.typeCounts[node];
+	}
+
+	int totalTokens (int node) {
+		return node >= NEW_NODE ? newNodes.totalTokens[node - NEW_NODE] : tree.totalTokens[node];
+	}
+
+	/** Whether the counts of the node are updated as we sample, rather than kept as deltas */
+	boolean isLive (int node) {
+		return isOnlyThread || node >= NEW_NODE;
+	}
+
+	/** Sample a path for the document, given the levels of its words */
+	protected void samplePath (int doc, FeatureSequence tokens) {
+
+		int[] docLevels = levels[doc];
+		int docLength = docLevels.length;
+		int level, token, type;
+
+		int node = documentLeaves[doc];
+		for (level = numLevels - 1; level >= 0; level--) {
+			oldPath[level] = node;
+			node = tree.parents[node];
+		}
+
+		// Save the counts of every word at each level
+
+		Arrays.fill(numLevelTypes, 0);
+		Arrays.fill(oldLevelTokens, 0);
+
+		for (token = 0; token < docLength; token++) {
+			level = docLevels[token];
+			type = tokens.getIndexAtPosition(token);
+
+			if (oldLevelTypeCounts[level][type] == 0) {
+				if (numLevelTypes[level] == levelTypes[level].length) {
+					levelTypes[level] = Arrays.copyOf(levelTypes[level], 2 * levelTypes[level].length);
+				}
+				levelTypes[level][ numLevelTypes[level] ] = type;
+				numLevelTypes[level]++;
+			}
+			oldLevelTypeCounts[level][type]++;
+			oldLevelTokens[level]++;
+		}
+
+		// Remove the document from its path. Other workers leave the shared
+		//  counts alone and discount the document when they read them.
+
+		if (isOnlyThread) {
+			for (token = 0; token < docLength; token++) {
+				node = oldPath[ docLevels[token] ];
+				tree.typeCounts[node][ tokens.getIndexAtPosition(token) ]--;
+				tree.totalTokens[node]--;
+			}
+			tree.dropPath(oldPath[numLevels - 1]);
+		}
+		else {
+			for (level = 0; level < numLevels; level++) {
+				customerDeltas[ oldPath[level] ]--;
+			}
+		}
+
+		// Calculate the weight for a new path at a given level.
+		for (level = 1; level < numLevels; level++) {  // Skip the root...
+			int[] counts = oldLevelTypeCounts[level];
+			int totalTokens = 0;
+			newTopicWeights[level] = 0.0;
+
+			for (int i = 0; i < numLevelTypes[level]; i++) {
+				int count = counts[ levelTypes[level][i] ];
+				for (int j = 0; j < count; j++) {
+					newTopicWeights[level] +=
+						Math.log((eta + j) / (etaSum + totalTokens));
+					totalTokens++;
+				}
+			}
+		}
+
+		// Add up p(c_m | c_{-m}) and p(w_m | c, w_{-m}, z) for every node
+
+		numCandidates = 0;
+		addCandidates(tree.root, 0, 0.0, 0.0);
+
+		// To avoid underflow, we're using log weights and normalizing the node weights so that
+		//  the largest weight is always 1.
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < numCandidates; i++) {
+			if (candidateWeights[i] > max) {
+				max = candidateWeights[i];
+			}
+		}
+
+		double sum = 0.0;
+		for (int i = 0; i < numCandidates; i++) {
+			candidateWeights[i] = Math.exp(candidateWeights[i] - max);
+			sum += candidateWeights[i];
+		}
+
+		double sample = random.nextUniform() * sum;
+		int choice = 0;
+		sample -= candidateWeights[0];
+		while (sample > 0.0 && choice < numCandidates - 1) {
+			choice++;
+			sample -= candidateWeights[choice];
+		}
+		node = candidates[choice];
+
+		// If we have picked an internal node, we need to
+		//  add a new path.
+		node = getNewLeaf(node);
+
+		documentLeaves[doc] = node;
+		for (level = numLevels - 1; level >= 0; level--) {
+			path[level] = node;
+			node = parent(node);
+		}
+
+		sharedLevels = 0;
+		while (sharedLevels < numLevels && path[sharedLevels] == oldPath[sharedLevels]) {
+			sharedLevels++;
+		}
+
+		// Add the document to its new path
+
+		if (isOnlyThread) {
+			tree.addPath(path[numLevels - 1]);
+		}
+
+		for (level = 0; level < numLevels; level++) {
+			node = path[level];
+			int[] oldCounts = oldLevelTypeCounts[level];
+			int[] counts = levelTypeCounts[level];
+
+			if (isLive(node)) {
+				int[] nodeCounts = typeCounts(node);
+				for (int i = 0; i < numLevelTypes[level]; i++) {
+					type = levelTypes[level][i];
+					nodeCounts[type] += oldCounts[type];
+				}
+				if (node >= NEW_NODE) {
+					newNodes.customers[node - NEW_NODE]++;
+					newNodes.totalTokens[node - NEW_NODE] += oldLevelTokens[level];
+				}
+				else {
+					tree.totalTokens[node] += oldLevelTokens[level];
+				}
+			}
+			else {
+				customerDeltas[node]++;
+			}
+
+			for (int i = 0; i < numLevelTypes[level]; i++) {
+				type = levelTypes[level][i];
+				counts[type] = oldCounts[type];
+			}
+			levelTokens[level] = oldLevelTokens[level];
+		}
+	}
+
+	/**
+	 *  Set up the document's current path and the counts of its words at each level,
+	 *   so that its levels can be sampled without first sampling a new path. This is
+	 *   only valid for the only worker, which has no old counts to keep.
+	 */
+	protected void loadPath (int doc, FeatureSequence tokens) {
+
+		int[] docLevels = levels[doc];
+
+		int node = documentLeaves[doc];
+		for (int level = numLevels - 1; level >= 0; level--) {
+			oldPath[level] = node;
+			path[level] = node;
+			node = tree.parents[node];
+		}
+		sharedLevels = numLevels;
+
+		Arrays.fill(numLevelTypes, 0);
+		Arrays.fill(oldLevelTokens, 0);
+		Arrays.fill(levelTokens, 0);
+
+		for (int token = 0; token < docLevels.length; token++) {
+			levelTypeCounts[ docLevels[token] ][ tokens.getIndexAtPosition(token) ]++;
+			levelTokens[ docLevels[token] ]++;
+		}
+	}
+
+	/**
+	 *  Add the node and everything below it to the candidates. The weight of a node
+	 *   is the log probability of the path to it and a new branch below it, plus
+	 *   the log likelihood of the document's words on that path.
+	 */
+	void addCandidates (int node, int level, double ncrpWeight, double wordWeight) {
+
+		int nodeCustomers = customers(node);
+		double nodeWeight = wordWeight + wordLikelihood(node, level);
+
+		if (level < numLevels - 1) {
+			if (node >= NEW_NODE) {
+				for (int child = newNodes.firstChild[node - NEW_NODE]; child != NCRPTree.NO_NODE;
+					 child = newNodes.nextSibling[child]) {
+					addCandidates(child + NEW_NODE, level + 1,
+								  ncrpWeight + Math.log((double) newNodes.customers[child] / (nodeCustomers + gamma)),
+								  nodeWeight);
+				}
+			}
+			else {
+				for (int child = tree.firstChild[node]; child != NCRPTree.NO_NODE;
+					 child = tree.nextSibling[child]) {
+					int childCustomers = customers(child);
+					// left by every document, including the current one
+					if (childCustomers <= 0) { continue; }
+					addCandidates(child, level + 1,
+								  ncrpWeight + Math.log((double) childCustomers / (nodeCustomers + gamma)),
+								  nodeWeight);
+				}
+				for (int child = firstAttached[node]; child != NCRPTree.NO_NODE;
+					 child = nextAttached[child]) {
+					addCandidates(child + NEW_NODE, level + 1,
+								  ncrpWeight + Math.log((double) newNodes.customers[child] / (nodeCustomers + gamma)),
+								  nodeWeight);
+				}
+			}
+		}
+
+		double weight = ncrpWeight + Math.log(gamma / (nodeCustomers + gamma)) + nodeWeight;
+
+		// If this is an internal node, add the weight of a new path
+		for (int newLevel = level + 1; newLevel < numLevels; newLevel++) {
+			weight += newTopicWeights[newLevel];
+		}
+
+		if (numCandidates == candidates.length) {
+			candidates = Arrays.copyOf(candidates, 2 * numCandidates);
+			candidateWeights = Arrays.copyOf(candidateWeights, 2 * numCandidates);
+		}
+		candidates[numCandidates] = node;
+		candidateWeights[numCandidates] = weight;
+		numCandidates++;
+	}
+
+	/** The log likelihood of the document's words at this level, if they were assigned to this node */
+	double wordLikelihood (int node, int level) {
+		int[] nodeCounts = typeCounts(node);
+		int nodeTokens = totalTokens(node);
+		int[] counts = oldLevelTypeCounts[level];
+
+		// The shared counts still include the document on its old path
+		boolean discount = ! isLive(node) && node == oldPath[level];
+		if (discount) {
+			nodeTokens -= oldLevelTokens[level];
+		}
+
+		double weight = 0.0;
+		int totalTokens = 0;
+
+		for (int i = 0; i < numLevelTypes[level]; i++) {
+			int type = levelTypes[level][i];
+			int count = counts[type];
+			int nodeCount = discount ? nodeCounts[type] - count : nodeCounts[type];
+
+			for (int j = 0; j < count; j++) {
+				weight +=
+					Math.log((eta + nodeCount + j) /
+							 (etaSum + nodeTokens + totalTokens));
+				totalTokens++;
+			}
+		}
+
+		return weight;
+	}
+
+	/** Return a new leaf below the node, or the node if it is a leaf */
+	int getNewLeaf (int node) {
+		if (isOnlyThread) {
+			node = tree.getNewLeaf(node);
+			// the shared tree may have grown past our arrays
+			prepare();
+			return node;
+		}
+
+		if (node < NEW_NODE) {
+			if (tree.isLeaf(node)) { return node; }
+
+			int root = newNodes.addNode(NCRPTree.NO_NODE, tree.levels[node] + 1);
+			if (root >= attachedTo.length) {
+				attachedTo = Arrays.copyOf(attachedTo, 2 * attachedTo.length);
+				nextAttached = Arrays.copyOf(nextAttached, 2 * nextAttached.length);
+			}
+			attachedTo[root] = node;
+			nextAttached[root] = firstAttached[node];
+			firstAttached[node] = root;
+
+			return newNodes.getNewLeaf(root) + NEW_NODE;
+		}
+
+		return newNodes.getNewLeaf(node - NEW_NODE) + NEW_NODE;
+	}
+
+	/** Sample the level of every word, given the document's path */
+	protected void sampleLevels (int doc, FeatureSequence tokens) {
+
+		int[] docLevels = levels[doc];
+		int docLength = docLevels.length;
+
+		for (int token = 0; token < docLength; token++) {
+			int type = tokens.getIndexAtPosition(token);
+			int level = docLevels[token];
+			int node = path[level];
+
+			levelTokens[level]--;
+			levelTypeCounts[level][type]--;
+			if (isLive(node)) {
+				typeCounts(node)[type]--;
+				addTokens(node, -1);
+			}
+
+			double sum = 0.0;
+			for (level = 0; level < numLevels; level++) {
+				node = path[level];
+				int nodeCount = typeCounts(node)[type];
+				int nodeTokens = totalTokens(node);
+
+				if (! isLive(node)) {
+					// Replace the document's words as of the last
+					//  reconciliation with its current words
+					nodeCount += levelTypeCounts[level][type];
+					nodeTokens += levelTokens[level];
+					if (level < sharedLevels) {
+						nodeCount -= oldLevelTypeCounts[level][type];
+						nodeTokens -= oldLevelTokens[level];
+					}
+				}
+
+				levelWeights[level] =
+					(alpha + levelTokens[level]) *
+					(eta + nodeCount) /
+					(etaSum + nodeTokens);
+				sum += levelWeights[level];
+			}
+			level = random.nextDiscrete(levelWeights, sum);
+
+			docLevels[token] = level;
+			node = path[level];
+
+			levelTokens[level]++;
+			levelTypeCounts[level][type]++;
+			if (isLive(node)) {
+				typeCounts(node)[type]++;
+				addTokens(node, 1);
+			}
+		}
+	}
+
+	void addTokens (int node, int count) {
+		if (node >= NEW_NODE) {
+			newNodes.totalTokens[node - NEW_NODE] += count;
+		}
+		else {
+			tree.totalTokens[node] += count;
+		}
+	}
+
+	/** Record the document's changes to the shared tree, and clear its counts */
+	protected void finishDocument (int doc, FeatureSequence tokens) {
+
+		int[] docLevels = levels[doc];
+		int docLength = docLevels.length;
+		boolean recordDeltas = ! isOnlyThread;
+
+		// The current counts, which were only added to live nodes
+		for (int token = 0; token < docLength; token++) {
+			int level = docLevels[token];
+			int type = tokens.getIndexAtPosition(token);
+			int count = levelTypeCounts[level][type];
+			if (count == 0) { continue; }
+
+			int node = path[level];
+			if (recordDeltas && ! isLive(node)) {
+				if (level < sharedLevels) {
+					// the old counts of a node on both paths are accounted for here
+					count -= oldLevelTypeCounts[level][type];
+					oldLevelTypeCounts[level][type] = 0;
+				}
+				if (count != 0) {
+					typeCountDeltas.adjustOrPutValue((long) node * numTypes + type, count, count);
+				}
+			}
+			levelTypeCounts[level][type] = 0;
+		}
+
+		// The old counts, which are still in the shared tree
+		for (int level = 0; level < numLevels; level++) {
+			int node = oldPath[level];
+			int[] oldCounts = oldLevelTypeCounts[level];
+			for (int i = 0; i < numLevelTypes[level]; i++) {
+				int type = levelTypes[level][i];
+				if (recordDeltas && oldCounts[type] != 0) {
+					typeCountDeltas.adjustOrPutValue((long) node * numTypes + type,
+													 -oldCounts[type], -oldCounts[type]);
+				}
+				oldCounts[type] = 0;
+			}
+
+			if (recordDeltas) {
+				tokenDeltas[node] -= oldLevelTokens[level];
+				if (! isLive(path[level])) {
+					tokenDeltas[ path[level] ] += levelTokens[level];
+				}
+			}
+		}
+	}
+
+	/**
+	 *  Add this worker's changes to the shared tree, graft its new nodes onto
+	 *   it and clear them. Call this only while no worker is sampling. Nodes
+	 *   left without customers are not removed here, since other workers'
+	 *   deltas may still refer to them.
+	 */
+	public void reconcile () {
+
+		// Other workers may have grafted nodes onto the tree already, but
+		//  this worker's deltas only refer to nodes from before.
+		int numNodes = Math.min(tree.size, customerDeltas.length);
+		for (int node = 0; node < numNodes; node++) {
+			tree.customers[node] += customerDeltas[node];
+			tree.totalTokens[node] += tokenDeltas[node];
+		}
+		Arrays.fill(customerDeltas, 0);
+		Arrays.fill(tokenDeltas, 0);
+
+		typeCountDeltas.forEachEntry(new TLongIntProcedure() {
+				public boolean execute(long key, int delta) {
+					tree.typeCounts[ (int) (key / numTypes) ][ (int) (key % numTypes) ] += delta;
+					return true;
+				}
+			});
+		typeCountDeltas.clear();
+
+		// Nodes are added top-down and never removed from newNodes,
+		//  so every parent comes before its children.
+		int[] sharedNodes = new int[newNodes.size];
+		for (int newNode = 0; newNode < newNodes.size; newNode++) {
+			int parent = newNodes.parents[newNode];
+			if (parent == NCRPTree.NO_NODE) {
+				parent = attachedTo[newNode];
+				firstAttached[parent] = NCRPTree.NO_NODE;
+			}
+			else {
+				parent = sharedNodes[parent];
+			}
+
+			int node = tree.addNode(parent);
+			tree.typeCounts[node] = newNodes.typeCounts[newNode];
+			tree.customers[node] = newNodes.customers[newNode];
+			tree.totalTokens[node] = newNodes.totalTokens[newNode];
+			sharedNodes[newNode] = node;
+		}
+
+		for (int doc = startDoc;
+			 doc < instances.size() && doc < startDoc + numDocs;
+			 doc++) {
+			if (documentLeaves[doc] >= NEW_NODE) {
+				documentLeaves[doc] = sharedNodes[ documentLeaves[doc] - NEW_NODE ];
+			}
+		}
+
+		newNodes.clear();
+	}
+}
@@ -0,0 +1,162 @@
+package cc.mallet.topics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import cc.mallet.util.MalletLogger;
+
+/**
+ * Runs the sampling iterations of a parallel topic model. All workers sample
+ *  their documents, the calling thread waits until every one of them is done,
+ *  and then merges their counts.
+ *
+ * For every iteration the engine records the wall-clock sampling time, the merge
+ *  time, and the time each worker sat idle waiting for the slowest one.
+ */
+public class IterationEngine {
+
+	private static Logger logger = MalletLogger.getLogger(IterationEngine.class.getName());
+
+	Runnable[] runnables;
+	ExecutorService executor;
+	List<Callable<Long>> tasks;
+
+	// the last iteration, in nanoseconds
+	long samplingTime;
+	long mergeTime;
+	long[] workerTimes;
+
+	// totals over all iterations, in nanoseconds
+	int iterations = 0;
+	long totalSamplingTime = 0;
+	long totalMergeTime = 0;
+	long[] totalIdleTimes;
+
+	public IterationEngine (Runnable[] runnables) {
+		this.runnables = runnables;
+
+		workerTimes = new long[runnables.length];
+		totalIdleTimes = new long[runnables.length];
+
+		// With only one worker, sample on the calling thread
+		if (runnables.length > 1) {
+			executor = Executors.newFixedThreadPool(runnables.length);
+
+			tasks = new ArrayList<Callable<Long>>(runnables.length);
+			for (final Runnable runnable : runnables) {
+				tasks.add(new Callable<Long>() {
+						public Long call() {
+							long start = System.nanoTime();
+							runnable.run();
+							return System.nanoTime() - start;
+						}
+					});
+			}
+		}
+	}
+
+	/**
+	 *  Run every worker once, wait for all of them, then run <code>merge</code>
+	 *   (if not null) on the calling thread.
+	 */
+	public void runIteration (Runnable merge) {
+		long start = System.nanoTime();
+
+		if (executor == null) {
+			runnables[0].run();
+			workerTimes[0] = System.nanoTime() - start;
+		}
+		else {
+			try {
+				List<Future<Long>> futures = executor.invokeAll(tasks);
+				for (int thread = 0; thread < futures.size(); thread++) {
+					workerTimes[thread] = futures.get(thread).get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for sampling threads", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Sampling thread failed", e.getCause());
+			}
+		}
+
+		samplingTime = System.nanoTime() - start;
+
+		long mergeStart = System.nanoTime();
+		if (merge != null) {
+			merge.run();
+		}
+		mergeTime = System.nanoTime() - mergeStart;
+
+		iterations++;
+		totalSamplingTime += samplingTime;
+		totalMergeTime += mergeTime;
+		for (int thread = 0; thread < workerTimes.length; thread++) {
+			totalIdleTimes[thread] += getIdleTime(thread);
+		}
+
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine(getIterationReport());
+		}
+	}
+
+	/** Wall-clock time of the last sampling phase, in nanoseconds */
+	public long getSamplingTime () { return samplingTime; }
+
+	/** Time spent merging worker counts after the last sampling phase, in nanoseconds */
+	public long getMergeTime () { return mergeTime; }
+
+	/** Time this worker spent sampling in the last iteration, in nanoseconds */
+	public long getWorkerTime (int thread) { return workerTimes[thread]; }
+
+	/** Time this worker waited for the other workers in the last iteration, in nanoseconds */
+	public long getIdleTime (int thread) { return Math.max(0, samplingTime - workerTimes[thread]); }
+
+	/**
+	 *  The threads the workers run on, or null if there is only one worker.
+	 *   Other work may be run on them between iterations.
+	 */
+	public ExecutorService getExecutor () { return executor; }
+
+	public int getIterations () { return iterations; }
+	public long getTotalSamplingTime () { return totalSamplingTime; }
+	public long getTotalMergeTime () { return totalMergeTime; }
+	public long getTotalIdleTime (int thread) { return totalIdleTimes[thread]; }
+
+	public String getIterationReport () {
+		StringBuilder out = new StringBuilder();
+		out.append("sampling ").append(samplingTime / 1000000).append("ms");
+		out.append(", merge ").append(mergeTime / 1000000).append("ms");
+		out.append(", idle");
+		for (int thread = 0; thread < workerTimes.length; thread++) {
+			out.append(' ').append(getIdleTime(thread) / 1000000);
+		}
+		out.append("ms");
+		return out.toString();
+	}
+
+	public String getSummaryReport () {
+		StringBuilder out = new StringBuilder();
+		out.append(iterations).append(" iterations: sampling ").append(totalSamplingTime / 1000000).append("ms");
+		out.append(", merge ").append(totalMergeTime / 1000000).append("ms");
+		out.append(", idle per worker");
+		for (int thread = 0; thread < totalIdleTimes.length; thread++) {
+			out.append(' ').append(totalIdleTimes[thread] / 1000000);
+		}
+		out.append("ms");
+		return out.toString();
+	}
+
+	public void shutdown () {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+}
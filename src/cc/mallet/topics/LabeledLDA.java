@@ -66,6 +66,11 @@ public class LabeledLDA implements Serializable {
          "A topic inferencer applies a previously trained topic model to new documents.  " +
          "By default this is null, indicating that no file will be written.", null);
 
+	static CommandOption.String labeledInferencerFilename =
+		new CommandOption.String(LabeledLDA.class, "labeled-inferencer-filename", "FILENAME", true, null,
+         "An inferencer that applies the trained model to new labeled documents, sampling each document's words among its labels.  " +
+         "By default this is null, indicating that no file will be written.", null);
+
     static CommandOption.String evaluatorFilename = 
 		new CommandOption.String(LabeledLDA.class, "evaluator-filename", "FILENAME", true, null,
          "A held-out likelihood evaluator for new documents.  " +
@@ -133,6 +138,10 @@ public class LabeledLDA implements Serializable {
 		new CommandOption.Boolean(LabeledLDA.class, "no-inference", "true|false", false, false,
 		 "Do not perform inference, just load a saved model and create a report. Equivalent to --num-iterations 0.", null);
 
+	static CommandOption.Integer numThreadsOption =
+		new CommandOption.Integer(LabeledLDA.class, "num-threads", "INTEGER", true, 1,
+		 "The number of threads for parallel training.", null);
+
 	static CommandOption.Integer randomSeed =
 		new CommandOption.Integer(LabeledLDA.class, "random-seed", "INTEGER", true, 0,
 		 "The random seed for the Gibbs sampler.  Default is 0, which will use the clock.", null);
@@ -188,6 +197,11 @@ public class LabeledLDA implements Serializable {
 	
 	protected Randoms random;
 	protected boolean printLogLikelihood = false;
+
+	protected int numThreads = 1;
+
+	// samples for sampleTopicsForOneDoc, against the model's own counts
+	protected transient LabeledLDAWorkerRunnable singleThreadWorker = null;
 	
 	public LabeledLDA (double alpha, double beta) {
 		this.data = new ArrayList<TopicAssignment>();
@@ -216,6 +230,10 @@ public class LabeledLDA implements Serializable {
 		this.numIterations = numIterations;
 	}
 
+	public void setNumThreads(int threads) {
+		this.numThreads = threads;
+	}
+
 	public int[][] getTypeTopicCounts() { return typeTopicCounts; }
 	public int[] getTopicTotals() { return tokensPerTopic; }
 
@@ -308,111 +326,112 @@ public class LabeledLDA implements Serializable {
 
 	public void estimate() throws IOException {
 
-		for (int iteration = 1; iteration <= numIterations; iteration++) {
-
-			long iterationStart = System.currentTimeMillis();
-
-			// Loop over every document in the corpus
-			for (int doc = 0; doc < data.size(); doc++) {
-				FeatureSequence tokenSequence =
-					(FeatureSequence) data.get(doc).instance.getData();
-				FeatureVector labels = (FeatureVector) data.get(doc).instance.getTarget();
-				LabelSequence topicSequence =
-					(LabelSequence) data.get(doc).topicSequence;
-
-				sampleTopicsForOneDoc (tokenSequence, labels, topicSequence);
+		if (numThreads == 1) {
+			// Sample every document in turn, with the model's own counts and
+			//  generator, through sampleTopicsForOneDoc so that subclasses can
+			//  override it.
+			Runnable sweep = new Runnable() {
+					public void run() {
+						for (int doc = 0; doc < data.size(); doc++) {
+							TopicAssignment document = data.get(doc);
+							sampleTopicsForOneDoc ((FeatureSequence) document.instance.getData(),
+												   (FeatureVector) document.instance.getTarget(),
+												   document.topicSequence);
+						}
+					}
+				};
+			runIterations(new IterationEngine(new Runnable[] { sweep }), null);
+			return;
+		}
+
+		final LabeledLDAWorkerRunnable[] runnables = new LabeledLDAWorkerRunnable[numThreads];
+
+		int docsPerThread = data.size() / numThreads;
+		int offset = 0;
+
+		for (int thread = 0; thread < numThreads; thread++) {
+
+			// some docs may be missing at the end due to integer division
+			if (thread == numThreads - 1) {
+				docsPerThread = data.size() - offset;
 			}
-		
-            long elapsedMillis = System.currentTimeMillis() - iterationStart;
-			logger.info(iteration + "\t" + elapsedMillis + "ms\t");
 
-			// Occasionally print more information
-			if (showTopicsInterval != 0 && iteration % showTopicsInterval == 0) {
-				logger.info("<" + iteration + "> Log Likelihood: " + modelLogLikelihood() + "\n" +
-							topWords (wordsPerTopic));
-			}
+			runnables[thread] = new LabeledLDAWorkerRunnable(numTopics,
+															 alpha, beta, betaSum,
+															 new Randoms(random.nextInt()), data,
+															 typeTopicCounts, tokensPerTopic,
+															 offset, docsPerThread);
 
+			offset += docsPerThread;
 		}
-	}
-	
-	protected void sampleTopicsForOneDoc (FeatureSequence tokenSequence,
-										  FeatureVector labels,
-										  FeatureSequence topicSequence) {
-
-		int[] possibleTopics = labels.getIndices();
-		int numLabels = labels.numLocations();
 
-		int[] oneDocTopics = topicSequence.getFeatures();
-
-		int[] currentTypeTopicCounts;
-		int type, oldTopic, newTopic;
-		double topicWeightsSum;
-		int docLength = tokenSequence.getLength();
+		// Workers sample against the counts of the last merge and keep their
+		//  own changes, which are added to the shared counts once all of them
+		//  are done.
+		Runnable merge = new Runnable() {
+				public void run() {
+					for (LabeledLDAWorkerRunnable runnable : runnables) {
+						runnable.mergeDeltas();
+					}
+				}
+			};
 
-		int[] localTopicCounts = new int[numTopics];
+		runIterations(new IterationEngine(runnables), merge);
+	}
 
-		//		populate topic counts
-		for (int position = 0; position < docLength; position++) {
-			localTopicCounts[oneDocTopics[position]]++;
-		}
+	private void runIterations(IterationEngine engine, Runnable merge) {
+		try {
+			for (int iteration = 1; iteration <= numIterations; iteration++) {
 
-		double score, sum;
-		double[] topicTermScores = new double[numLabels];
+				long iterationStart = System.currentTimeMillis();
 
-		//	Iterate over the positions (words) in the document 
-		for (int position = 0; position < docLength; position++) {
-			type = tokenSequence.getIndexAtPosition(position);
-			oldTopic = oneDocTopics[position];
+				engine.runIteration(merge);
 
-			// Grab the relevant row from our two-dimensional array
-			currentTypeTopicCounts = typeTopicCounts[type];
+				long elapsedMillis = System.currentTimeMillis() - iterationStart;
+				logger.info(iteration + "\t" + elapsedMillis + "ms\t");
 
-			//	Remove this token from all counts. 
-			localTopicCounts[oldTopic]--;
-			tokensPerTopic[oldTopic]--;
-			assert(tokensPerTopic[oldTopic] >= 0) : "old Topic " + oldTopic + " below 0";
-			currentTypeTopicCounts[oldTopic]--;
+				// Occasionally print more information
+				if (showTopicsInterval != 0 && iteration % showTopicsInterval == 0) {
+					logger.info("<" + iteration + "> Log Likelihood: " + modelLogLikelihood() + "\n" +
+								topWords (wordsPerTopic));
+				}
 
-			// Now calculate and add up the scores for each topic for this word
-			sum = 0.0;
-			
-			// Here's where the math happens! Note that overall performance is 
-			//  dominated by what you do in this loop.
-			for (int labelPosition = 0; labelPosition < numLabels; labelPosition++) {
-				int topic = possibleTopics[labelPosition];
-				score =
-					(alpha + localTopicCounts[topic]) *
-					((beta + currentTypeTopicCounts[topic]) /
-					 (betaSum + tokensPerTopic[topic]));
-				sum += score;
-				topicTermScores[labelPosition] = score;
-			}
-			
-			// Choose a random point between 0 and the sum of all topic scores
-			double sample = random.nextUniform() * sum;
-
-			// Figure out which topic contains that point
-			int labelPosition = -1;
-			while (sample > 0.0) {
-				labelPosition++;
-				sample -= topicTermScores[labelPosition];
 			}
+		} finally {
+			engine.shutdown();
+		}
 
-			// Make sure we actually sampled a topic
-			if (labelPosition == -1) {
-				throw new IllegalStateException ("LabeledLDA: New topic not sampled.");
-			}
+		if (numThreads > 1) {
+			logger.fine(engine.getSummaryReport());
+		}
+	}
 
-			newTopic = possibleTopics[labelPosition];
+	/**
+	 *  Resample the topics of one document, updating the model's counts
+	 *   directly. This is what <code>estimate()</code> does for each document
+	 *   when there is only one thread.
+	 */
+	protected void sampleTopicsForOneDoc (FeatureSequence tokenSequence,
+										  FeatureVector labels,
+										  FeatureSequence topicSequence) {
 
-			// Put that new topic into the counts
-			oneDocTopics[position] = newTopic;
-			localTopicCounts[newTopic]++;
-			tokensPerTopic[newTopic]++;
-			currentTypeTopicCounts[newTopic]++;
-		}
+		// The worker keeps its scratch arrays between documents, but it must
+		//  be rebuilt if the counts or the generator have been replaced.
+		if (singleThreadWorker == null ||
+			singleThreadWorker.typeTopicCounts != typeTopicCounts ||
+			singleThreadWorker.tokensPerTopic != tokensPerTopic ||
+			singleThreadWorker.random != random) {
+			singleThreadWorker = new LabeledLDAWorkerRunnable(numTopics,
+															  alpha, beta, betaSum,
+															  random, data,
+															  typeTopicCounts, tokensPerTopic,
+															  0, data.size());
+			singleThreadWorker.makeOnlyThread();
+		}
+
+		singleThreadWorker.sampleTopicsForOneDoc(tokenSequence, labels, topicSequence);
 	}
-	
+
 	public double modelLogLikelihood() {
 		double logLikelihood = 0.0;
 		int nonZeroTopics;
@@ -513,6 +532,20 @@ public class LabeledLDA implements Serializable {
 		return logLikelihood;
 	}
 
+	/**
+	 *  Return an object that can infer topic distributions for new documents
+	 *   with labels from the same label alphabet. The inferencer keeps its own
+	 *   copy of the type/topic counts, so training may continue.
+	 */
+	public LabeledLDAInferencer getInferencer() {
+		int[][] counts = new int[numTypes][];
+		for (int type = 0; type < numTypes; type++) {
+			counts[type] = typeTopicCounts[type].clone();
+		}
+		return new LabeledLDAInferencer(counts, tokensPerTopic.clone(), alphabet, labelAlphabet,
+										alpha, beta, betaSum);
+	}
+
 	// 
 	// Methods for displaying and saving results
 	//
@@ -616,6 +649,8 @@ public class LabeledLDA implements Serializable {
 
 		random = (Randoms) in.readObject();
 		printLogLikelihood = in.readBoolean();
+
+		numThreads = 1;
 		
 		int numDocs = data.size();
 		this.numTypes = alphabet.size();
@@ -684,6 +719,7 @@ public class LabeledLDA implements Serializable {
 		labeledLDA.setTopicDisplay(showTopicsIntervalOption.value, numTopWords.value);
 
 		labeledLDA.setNumIterations(numIterationsOption.value);
+		labeledLDA.setNumThreads(numThreadsOption.value);
 		
 		if (! noInference.value()) {
 			labeledLDA.estimate();
@@ -780,6 +816,17 @@ public class LabeledLDA implements Serializable {
 					
 		}
 
+		if (labeledInferencerFilename.value != null) {
+			try {
+				ObjectOutputStream oos = 
+					new ObjectOutputStream(new FileOutputStream(labeledInferencerFilename.value));
+				oos.writeObject(labeledLDA.getInferencer());
+				oos.close();
+			} catch (Exception e) {
+				logger.warning("Couldn't create labeled inferencer: " + e.getMessage());
+			}
+		}
+
 		if (evaluatorFilename.value != null) {
 			try {
 				ObjectOutputStream oos = 
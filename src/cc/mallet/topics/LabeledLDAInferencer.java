@@ -0,0 +1,407 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import cc.mallet.types.*;
+import cc.mallet.util.Randoms;
+
+/**
+ * Estimates topic distributions for new documents under a LabeledLDA model.
+ *  As in training, the words of a document can only be assigned to the topics
+ *  of its labels, which are read from the target of the instance as a
+ *  <code>FeatureVector</code> over the model's label alphabet. A document with
+ *  no target may use every topic.
+ * <p>
+ * The type/topic counts are clamped, so any number of threads can sample
+ *  against one inferencer as long as each uses its own <code>SamplingBuffers</code>.
+ */
+public class LabeledLDAInferencer implements Serializable {
+
+	protected int numTopics;
+	protected int numTypes;
+
+	protected double alpha;
+	protected double beta;
+	protected double betaSum;
+
+	protected int[][] typeTopicCounts; // indexed by <feature index, topic index>
+	protected int[] tokensPerTopic; // indexed by <topic index>
+
+	public Alphabet alphabet;
+	public Alphabet labelAlphabet;
+
+	protected Randoms random = null;
+
+	// 1 / (betaSum + tokensPerTopic[topic]), which does not change since the counts are clamped
+	transient double[] topicNormalizers;
+
+	// the topics of a document with no labels
+	transient int[] allTopics;
+
+	public LabeledLDAInferencer (int[][] typeTopicCounts, int[] tokensPerTopic,
+								 Alphabet alphabet, Alphabet labelAlphabet,
+								 double alpha, double beta, double betaSum) {
+
+		this.typeTopicCounts = typeTopicCounts;
+		this.tokensPerTopic = tokensPerTopic;
+		this.alphabet = alphabet;
+		this.labelAlphabet = labelAlphabet;
+
+		this.numTypes = typeTopicCounts.length;
+		this.numTopics = tokensPerTopic.length;
+
+		this.alpha = alpha;
+		this.beta = beta;
+		this.betaSum = betaSum;
+
+		initializeCaches();
+
+		random = new Randoms();
+	}
+
+	private void initializeCaches() {
+		topicNormalizers = new double[numTopics];
+		allTopics = new int[numTopics];
+		for (int topic = 0; topic < numTopics; topic++) {
+			topicNormalizers[topic] = 1.0 / (betaSum + tokensPerTopic[topic]);
+			allTopics[topic] = topic;
+		}
+	}
+
+	public void setRandomSeed(int seed) {
+		random = new Randoms(seed);
+	}
+
+	/**
+	 *  Per-call sampling state: the topics of the document, its topic counts,
+	 *   the scores of its labels and the random number generator.
+	 *   Keep one instance per thread.
+	 */
+	public static class SamplingBuffers {
+		int[] topics = new int[0];
+		int[] localTopicCounts;
+		double[] topicTermScores = new double[0];
+		Randoms random;
+
+		protected SamplingBuffers(int numTopics, Randoms random) {
+			localTopicCounts = new int[numTopics];
+			this.random = random;
+		}
+	}
+
+	public SamplingBuffers newSamplingBuffers(Randoms random) {
+		return new SamplingBuffers(numTopics, random);
+	}
+
+	public SamplingBuffers newSamplingBuffers() {
+		return newSamplingBuffers(new Randoms());
+	}
+
+	public SamplingBuffers newSamplingBuffers(int seed) {
+		return newSamplingBuffers(new Randoms(seed));
+	}
+
+	/** The topics a document may use: its labels, or every topic if it has none */
+	protected int[] getPossibleTopics(Instance instance) {
+		Object target = instance.getTarget();
+		if (target instanceof FeatureVector &&
+			((FeatureVector) target).numLocations() > 0) {
+			FeatureVector labels = (FeatureVector) target;
+			if (labels.getIndices() == null) {
+				// a dense vector
+				return allTopics;
+			}
+			return labels.getIndices();
+		}
+		return allTopics;
+	}
+
+	/**
+	 *  Use Gibbs sampling to infer a topic distribution for one document.
+	 *   Topics are initialized to the most probable of the document's
+	 *   labels for each token. Topics that are not labels of the document
+	 *   get zero weight.
+	 *
+	 *  @param instance      A document with a <code>FeatureSequence</code> as data and its labels as target
+	 *  @param numIterations The total number of iterations of sampling per document
+	 *  @param thinning      The number of iterations between saved samples
+	 *  @param burnIn        The number of iterations before the first saved sample
+	 */
+	public double[] getSampledDistribution(Instance instance, int numIterations,
+										   int thinning, int burnIn) {
+		return getSampledDistribution(instance, numIterations, thinning, burnIn,
+									  newSamplingBuffers(random));
+	}
+
+	public double[] getSampledDistribution(Instance instance, int numIterations,
+										   int thinning, int burnIn, SamplingBuffers buffers) {
+
+		FeatureSequence tokens = (FeatureSequence) instance.getData();
+		int docLength = tokens.size();
+
+		int[] possibleTopics = getPossibleTopics(instance);
+		int numLabels = possibleTopics.length;
+
+		if (buffers.topics.length < docLength) {
+			buffers.topics = new int[docLength];
+		}
+		if (buffers.topicTermScores.length < numLabels) {
+			buffers.topicTermScores = new double[numLabels];
+		}
+		int[] topics = buffers.topics;
+		int[] localTopicCounts = buffers.localTopicCounts;
+		double[] topicTermScores = buffers.topicTermScores;
+		Randoms random = buffers.random;
+
+		// Initialize all positions to the label with the most tokens
+		//  of that type, and mark out of vocabulary terms with -1.
+
+		for (int position = 0; position < docLength; position++) {
+			int type = tokens.getIndexAtPosition(position);
+			if (type >= numTypes) {
+				topics[position] = -1;
+				continue;
+			}
+
+			int[] currentTypeTopicCounts = typeTopicCounts[type];
+			int bestTopic = possibleTopics[0];
+			for (int labelPosition = 1; labelPosition < numLabels; labelPosition++) {
+				int topic = possibleTopics[labelPosition];
+				if (currentTypeTopicCounts[topic] > currentTypeTopicCounts[bestTopic]) {
+					bestTopic = topic;
+				}
+			}
+
+			topics[position] = bestTopic;
+			localTopicCounts[bestTopic]++;
+		}
+
+		double[] result = new double[numTopics];
+		double sum = 0.0;
+
+		for (int iteration = 1; iteration <= numIterations; iteration++) {
+			for (int position = 0; position < docLength; position++) {
+				int oldTopic = topics[position];
+				if (oldTopic == -1) { continue; }
+
+				int[] currentTypeTopicCounts = typeTopicCounts[ tokens.getIndexAtPosition(position) ];
+
+				localTopicCounts[oldTopic]--;
+
+				double scoreSum = 0.0;
+				for (int labelPosition = 0; labelPosition < numLabels; labelPosition++) {
+					int topic = possibleTopics[labelPosition];
+					double score =
+						(alpha + localTopicCounts[topic]) *
+						(beta + currentTypeTopicCounts[topic]) * topicNormalizers[topic];
+					scoreSum += score;
+					topicTermScores[labelPosition] = score;
+				}
+
+				double sample = random.nextUniform() * scoreSum;
+
+				int labelPosition = -1;
+				while (sample > 0.0 && labelPosition < numLabels - 1) {
+					labelPosition++;
+					sample -= topicTermScores[labelPosition];
+				}
+				if (labelPosition == -1) { labelPosition = 0; }
+
+				int newTopic = possibleTopics[labelPosition];
+				topics[position] = newTopic;
+				localTopicCounts[newTopic]++;
+			}
+
+			if (iteration > burnIn &&
+				(iteration - burnIn) % thinning == 0) {
+
+				// Save a sample
+				for (int labelPosition = 0; labelPosition < numLabels; labelPosition++) {
+					int topic = possibleTopics[labelPosition];
+					result[topic] += alpha + localTopicCounts[topic];
+					sum += alpha + localTopicCounts[topic];
+				}
+			}
+		}
+
+		if (sum == 0.0) {
+			// Save at least one sample
+			for (int labelPosition = 0; labelPosition < numLabels; labelPosition++) {
+				int topic = possibleTopics[labelPosition];
+				result[topic] = alpha + localTopicCounts[topic];
+				sum += result[topic];
+			}
+		}
+
+		// Normalize, and clear the local counts for the next document
+		for (int labelPosition = 0; labelPosition < numLabels; labelPosition++) {
+			int topic = possibleTopics[labelPosition];
+			result[topic] /= sum;
+			localTopicCounts[topic] = 0;
+		}
+
+		return result;
+	}
+
+	/**
+	 *  Infer topic distributions for every instance in the list,
+	 *   spreading the documents over a work-stealing thread pool.
+	 *
+	 *  @param numThreads    The number of worker threads
+	 *  @return One distribution per instance, as returned by <code>getSampledDistribution</code>
+	 */
+	public double[][] getSampledDistributions(InstanceList instances,
+											  int numIterations, int thinning, int burnIn,
+											  int numThreads) {
+
+		int numDocs = instances.size();
+		double[][] distributions = new double[numDocs][];
+		if (numDocs == 0) { return distributions; }
+
+		// Cumulative costs, in tokens times labels. Every document costs at
+		//  least one unit so that runs of empty documents still get split up.
+		long[] costOffsets = new long[numDocs + 1];
+		for (int doc = 0; doc < numDocs; doc++) {
+			Instance instance = instances.get(doc);
+			long length = ((FeatureSequence) instance.getData()).size();
+			costOffsets[doc + 1] = costOffsets[doc] + length * getPossibleTopics(instance).length + 1;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			// Aim for several tasks per worker to give work stealing some slack
+			long grainSize = Math.max(1, costOffsets[numDocs] / (pool.getParallelism() * 8));
+
+			ThreadLocal<SamplingBuffers> workerBuffers = new ThreadLocal<SamplingBuffers>() {
+				protected SamplingBuffers initialValue() {
+					return newSamplingBuffers();
+				}
+			};
+
+			pool.invoke(new BatchTask(instances, distributions, costOffsets, grainSize, workerBuffers,
+									  numIterations, thinning, burnIn, 0, numDocs));
+		} finally {
+			pool.shutdown();
+		}
+
+		return distributions;
+	}
+
+	class BatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1;
+
+		InstanceList documents;
+		double[][] distributions;
+		long[] costOffsets;
+		long grainSize;
+		ThreadLocal<SamplingBuffers> workerBuffers;
+		int numIterations, thinning, burnIn;
+		int startDoc, endDoc;
+
+		BatchTask(InstanceList documents, double[][] distributions, long[] costOffsets, long grainSize,
+				  ThreadLocal<SamplingBuffers> workerBuffers,
+				  int numIterations, int thinning, int burnIn, int startDoc, int endDoc) {
+			this.documents = documents;
+			this.distributions = distributions;
+			this.costOffsets = costOffsets;
+			this.grainSize = grainSize;
+			this.workerBuffers = workerBuffers;
+			this.numIterations = numIterations;
+			this.thinning = thinning;
+			this.burnIn = burnIn;
+			this.startDoc = startDoc;
+			this.endDoc = endDoc;
+		}
+
+		protected void compute() {
+			if (endDoc - startDoc == 1 ||
+				costOffsets[endDoc] - costOffsets[startDoc] <= grainSize) {
+
+				SamplingBuffers buffers = workerBuffers.get();
+				for (int doc = startDoc; doc < endDoc; doc++) {
+					distributions[doc] = getSampledDistribution(documents.get(doc), numIterations, thinning, burnIn,
+																buffers);
+				}
+				return;
+			}
+
+			// Split at the document closest to the cost midpoint
+			long middleCost = (costOffsets[startDoc] + costOffsets[endDoc]) / 2;
+			int middleDoc = Arrays.binarySearch(costOffsets, startDoc, endDoc + 1, middleCost);
+			if (middleDoc < 0) { middleDoc = -middleDoc - 1; }
+			middleDoc = Math.max(startDoc + 1, Math.min(endDoc - 1, middleDoc));
+
+			invokeAll(new BatchTask(documents, distributions, costOffsets, grainSize, workerBuffers,
+									numIterations, thinning, burnIn, startDoc, middleDoc),
+					  new BatchTask(documents, distributions, costOffsets, grainSize, workerBuffers,
+									numIterations, thinning, burnIn, middleDoc, endDoc));
+		}
+	}
+
+	// Serialization
+
+	private static final long serialVersionUID = 1;
+	private static final int CURRENT_SERIAL_VERSION = 0;
+
+	private void writeObject (ObjectOutputStream out) throws IOException {
+		out.writeInt (CURRENT_SERIAL_VERSION);
+
+		out.writeObject(alphabet);
+		out.writeObject(labelAlphabet);
+
+		out.writeInt(numTopics);
+		out.writeInt(numTypes);
+
+		out.writeDouble(alpha);
+		out.writeDouble(beta);
+		out.writeDouble(betaSum);
+
+		out.writeObject(typeTopicCounts);
+		out.writeObject(tokensPerTopic);
+
+		out.writeObject(random);
+	}
+
+	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+
+		int version = in.readInt ();
+
+		alphabet = (Alphabet) in.readObject();
+		labelAlphabet = (Alphabet) in.readObject();
+
+		numTopics = in.readInt();
+		numTypes = in.readInt();
+
+		alpha = in.readDouble();
+		beta = in.readDouble();
+		betaSum = in.readDouble();
+
+		typeTopicCounts = (int[][]) in.readObject();
+		tokensPerTopic = (int[]) in.readObject();
+
+		random = (Randoms) in.readObject();
+
+		initializeCaches();
+	}
+
+	public static LabeledLDAInferencer read (File f) throws Exception {
+
+		LabeledLDAInferencer inferencer = null;
+
+		ObjectInputStream ois = new ObjectInputStream (new FileInputStream(f));
+		inferencer = (LabeledLDAInferencer) ois.readObject();
+		ois.close();
+
+		return inferencer;
+	}
+}
@@ -0,0 +1,232 @@
+package cc.mallet.topics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import cc.mallet.types.*;
+import cc.mallet.util.Randoms;
+
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TLongIntProcedure;
+
+/**
+ * A runnable task for LabeledLDA. Each worker samples a contiguous range of
+ *  documents. The shared type/topic counts are not written while the workers
+ *  run: each worker samples against the counts as of the last merge, leaving out
+ *  only the token being sampled, and records the tokens it moves in sparse deltas.
+ *  The model merges the deltas of all workers into the shared counts after every
+ *  iteration. Since a document only uses the topics of its labels, the deltas
+ *  stay small even when there are many labels, where a full copy of the counts
+ *  per worker would not.
+ */
+
+public class LabeledLDAWorkerRunnable implements Runnable {
+
+	boolean isFinished = true;
+
+	ArrayList<TopicAssignment> data;
+	int startDoc, numDocs;
+
+	protected int numTopics;
+
+	protected double alpha;
+	protected double beta;
+	protected double betaSum;
+
+	// the shared counts, as of the last merge
+	protected int[][] typeTopicCounts; // indexed by <feature index, topic index>
+	protected int[] tokensPerTopic; // indexed by <topic index>
+
+	// the tokens this worker has moved since the last merge, keyed by type * numTopics + topic
+	protected TLongIntHashMap typeTopicDeltas = new TLongIntHashMap();
+	protected int[] tokensPerTopicDeltas;
+
+	// If this is the only worker, update the shared counts directly
+	boolean isOnlyThread = false;
+
+	protected int[] localTopicCounts;
+	protected double[] topicTermScores = new double[0];
+
+	protected Randoms random;
+
+	public LabeledLDAWorkerRunnable (int numTopics,
+									 double alpha, double beta, double betaSum,
+									 Randoms random,
+									 ArrayList<TopicAssignment> data,
+									 int[][] typeTopicCounts,
+									 int[] tokensPerTopic,
+									 int startDoc, int numDocs) {
+
+		this.data = data;
+
+		this.numTopics = numTopics;
+		this.alpha = alpha;
+		this.beta = beta;
+		this.betaSum = betaSum;
+		this.random = random;
+
+		this.typeTopicCounts = typeTopicCounts;
+		this.tokensPerTopic = tokensPerTopic;
+
+		this.startDoc = startDoc;
+		this.numDocs = numDocs;
+
+		tokensPerTopicDeltas = new int[numTopics];
+		localTopicCounts = new int[numTopics];
+	}
+
+	/**
+	 *  If there is only one thread, there is nothing to merge. This method asks
+	 *   the worker to update the shared counts as it samples.
+	 */
+	public void makeOnlyThread() {
+		isOnlyThread = true;
+	}
+
+	/**
+	 *  Add this worker's changes to the shared counts and clear them.
+	 *   Call this only while no worker is sampling.
+	 */
+	public void mergeDeltas () {
+		typeTopicDeltas.forEachEntry(new TLongIntProcedure() {
+				public boolean execute(long key, int delta) {
+					typeTopicCounts[ (int) (key / numTopics) ][ (int) (key % numTopics) ] += delta;
+					return true;
+				}
+			});
+		typeTopicDeltas.clear();
+
+		for (int topic = 0; topic < numTopics; topic++) {
+			tokensPerTopic[topic] += tokensPerTopicDeltas[topic];
+		}
+		Arrays.fill(tokensPerTopicDeltas, 0);
+	}
+
+	public void run () {
+
+		try {
+
+			if (! isFinished) { System.out.println("already running!"); return; }
+
+			isFinished = false;
+
+			for (int doc = startDoc;
+				 doc < data.size() && doc < startDoc + numDocs;
+				 doc++) {
+
+				TopicAssignment document = data.get(doc);
+				sampleTopicsForOneDoc ((FeatureSequence) document.instance.getData(),
+									   (FeatureVector) document.instance.getTarget(),
+									   document.topicSequence);
+			}
+
+			isFinished = true;
+
+		} catch (Exception e) {
+			isFinished = true;
+			e.printStackTrace();
+		}
+	}
+
+	protected void sampleTopicsForOneDoc (FeatureSequence tokenSequence,
+										  FeatureVector labels,
+										  FeatureSequence topicSequence) {
+
+		int[] possibleTopics = labels.getIndices();
+		int numLabels = labels.numLocations();
+
+		int[] oneDocTopics = topicSequence.getFeatures();
+
+		int[] currentTypeTopicCounts;
+		int type, oldTopic, newTopic;
+		int docLength = tokenSequence.getLength();
+
+		int[] localTopicCounts = this.localTopicCounts;
+
+		//		populate topic counts
+		for (int position = 0; position < docLength; position++) {
+			localTopicCounts[oneDocTopics[position]]++;
+		}
+
+		double score, sum;
+		if (topicTermScores.length < numLabels) {
+			topicTermScores = new double[numLabels];
+		}
+		double[] topicTermScores = this.topicTermScores;
+
+		//	Iterate over the positions (words) in the document
+		for (int position = 0; position < docLength; position++) {
+			type = tokenSequence.getIndexAtPosition(position);
+			oldTopic = oneDocTopics[position];
+
+			// Grab the relevant row from our two-dimensional array
+			currentTypeTopicCounts = typeTopicCounts[type];
+
+			//	Remove this token from all counts. The shared counts
+			//  are only changed directly if there is no other worker.
+			localTopicCounts[oldTopic]--;
+			if (isOnlyThread) {
+				tokensPerTopic[oldTopic]--;
+				currentTypeTopicCounts[oldTopic]--;
+			}
+
+			// Now calculate and add up the scores for each topic for this word
+			sum = 0.0;
+
+			for (int labelPosition = 0; labelPosition < numLabels; labelPosition++) {
+				int topic = possibleTopics[labelPosition];
+
+				int typeTopicCount = currentTypeTopicCounts[topic];
+				int topicTotal = tokensPerTopic[topic];
+				if (! isOnlyThread && topic == oldTopic) {
+					// the merged counts still include this token
+					typeTopicCount--;
+					topicTotal--;
+				}
+
+				score =
+					(alpha + localTopicCounts[topic]) *
+					((beta + typeTopicCount) /
+					 (betaSum + topicTotal));
+				sum += score;
+				topicTermScores[labelPosition] = score;
+			}
+
+			// Choose a random point between 0 and the sum of all topic scores
+			double sample = random.nextUniform() * sum;
+
+			// Figure out which topic contains that point
+			int labelPosition = -1;
+			while (sample > 0.0) {
+				labelPosition++;
+				sample -= topicTermScores[labelPosition];
+			}
+
+			// Make sure we actually sampled a topic
+			if (labelPosition == -1) {
+				throw new IllegalStateException ("LabeledLDA: New topic not sampled.");
+			}
+
+			newTopic = possibleTopics[labelPosition];
+
+			// Put that new topic into the counts
+			oneDocTopics[position] = newTopic;
+			localTopicCounts[newTopic]++;
+			if (isOnlyThread) {
+				tokensPerTopic[newTopic]++;
+				currentTypeTopicCounts[newTopic]++;
+			}
+			else if (newTopic != oldTopic) {
+				tokensPerTopicDeltas[oldTopic]--;
+				typeTopicDeltas.adjustOrPutValue((long) type * numTopics + oldTopic, -1, -1);
+				tokensPerTopicDeltas[newTopic]++;
+				typeTopicDeltas.adjustOrPutValue((long) type * numTopics + newTopic, 1, 1);
+			}
+		}
+
+		// Clear the local counts for the next document
+		for (int labelPosition = 0; labelPosition < numLabels; labelPosition++) {
+			localTopicCounts[ possibleTopics[labelPosition] ] = 0;
+		}
+	}
+}
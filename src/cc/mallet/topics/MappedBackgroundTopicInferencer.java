@@ -0,0 +1,110 @@
+package cc.mallet.topics;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A BackgroundTopicInferencer that reads type/topic and background counts directly from a
+ * MappedTopicModelStore instead of on-heap arrays. The sampler walks each type's packed row
+ * in the mapped buffer, without copying it. The mapped file is not part of the serialized
+ * state, so inferencers of this class cannot be serialized.
+ */
+public class MappedBackgroundTopicInferencer extends BackgroundTopicInferencer {
+    private static final long serialVersionUID = 1;
+
+    transient MappedTopicModelStore store;
+    int sourceId;
+
+    public MappedBackgroundTopicInferencer(MappedTopicModelStore store, int sourceId) {
+        super(store.numTypes, store.tokensPerTopic, store.backgroundAndTopicalCounts[sourceId],
+                store.alphabet, store.alpha, store.beta, store.getInferenceBetaBackground(sourceId), store.betaSum,
+                store.getLambda(sourceId));
+        this.store = store;
+        this.sourceId = sourceId;
+    }
+
+    public MappedBackgroundTopicInferencer copy() {
+        return new MappedBackgroundTopicInferencer(store, sourceId);
+    }
+
+    protected boolean isInVocabulary(int type) {
+        return type < numTypes && store.getRowLength(type) != 0;
+    }
+
+    protected int getTypeTopicCell(int type, int index) {
+        return index < store.getRowLength(type) ? store.ints.get(store.getRowStart(type) + index) : 0;
+    }
+
+    protected double scoreTypeTopics(int type, double[] cachedCoefficients, double[] topicTermScores) {
+        IntBuffer ints = store.ints;
+        int start = store.getRowStart(type);
+        int length = store.getRowLength(type);
+        double topicTermMass = 0.0;
+
+        int index = 0;
+        int cell;
+        while (index < length &&
+                (cell = ints.get(start + index)) > 0) {
+            double score =
+                    cachedCoefficients[cell & topicMask] * (cell >> topicBits);
+            topicTermMass += score;
+            topicTermScores[index] = score;
+
+            index++;
+        }
+
+        return topicTermMass;
+    }
+
+    protected int getTypeBackgroundCount(int type) {
+        return store.getTypeBackgroundCount(sourceId, type);
+    }
+
+    /**
+     * Print an unnormalized weight for every word in every topic, in the same format as
+     *  TopicInferencer. Each row is read from the store once, and the weights are kept
+     *  by topic until they are printed.
+     */
+    public void printTopicWordWeights(PrintWriter out) throws IOException {
+        IntBuffer ints = store.ints;
+
+        // pairs of type and weight, in the order of the types
+        int[][] topicWeights = new int[numTopics][16];
+        int[] topicLengths = new int[numTopics];
+
+        for (int type = 0; type < numTypes; type++) {
+            int start = store.getRowStart(type);
+            int length = store.getRowLength(type);
+
+            int index = 0;
+            int cell;
+            while (index < length &&
+                    (cell = ints.get(start + index)) > 0) {
+                int topic = cell & topicMask;
+
+                if (topicLengths[topic] == topicWeights[topic].length) {
+                    topicWeights[topic] = Arrays.copyOf(topicWeights[topic], 2 * topicLengths[topic]);
+                }
+                topicWeights[topic][ topicLengths[topic]++ ] = type;
+                topicWeights[topic][ topicLengths[topic]++ ] = cell >> topicBits;
+
+                index++;
+            }
+        }
+
+        for (int topic = 0; topic < numTopics; topic++) {
+            for (int i = 0; i < topicLengths[topic]; i += 2) {
+                out.println(topic + "\t" + String.valueOf(topicWeights[topic][i]) + "\t" + topicWeights[topic][i + 1]);
+            }
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        throw new NotSerializableException("MappedBackgroundTopicInferencer reads its counts from a MappedTopicModelStore, " +
+                "which cannot be serialized. Open the store again and call getInferencer() instead.");
+    }
+}
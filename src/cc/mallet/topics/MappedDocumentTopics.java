@@ -0,0 +1,485 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.LabelAlphabet;
+
+/**
+ * The topic proportions of every training document of a topic model, in a binary
+ *  file that can be memory-mapped. <code>getDocumentTopics()</code> and
+ *  <code>printDocumentTopics()</code> build the whole matrix on the heap or as text;
+ *  <code>write</code> and <code>writeSparse</code> stream it straight into the file,
+ *  in blocks of documents that can be filled in parallel.
+ * <p>
+ * The matrix is either dense, with <code>numTopics</code> floats per document, or
+ *  compressed sparse rows (CSR) holding only the topics at or above a threshold.
+ *  The file starts with a header that describes the model, so that a reader does not
+ *  need the model itself:
+ * <pre>
+ *   int magic ("CADT"), int version, int format (0 dense, 1 sparse), int header length
+ *   header: numDocs, numTopics, numTypes, normalized, smoothed, threshold,
+ *           the label, alpha and token count of each topic,
+ *           the entries of the data alphabet, and the name of each document
+ *   padding to a multiple of 8 bytes, then the matrix:
+ *     dense:  float[numDocs][numTopics]
+ *     sparse: long[numDocs + 1]  index of the first entry of each document
+ *             int[numEntries]    topics, in increasing order within a document
+ *             float[numEntries]  weights
+ * </pre>
+ * Labels and alphabet entries are written with <code>toString()</code>, so <code>open</code>
+ *  fails if two of them have the same string, rather than shifting the indices of the rest.
+ * All values are big-endian, as written by <code>DataOutputStream</code>. Unlike
+ *  MappedTopicModelStore, the matrix may be larger than 2GB; it is mapped in segments.
+ */
+
+public class MappedDocumentTopics {
+
+	// "CADT", followed by the format version
+	static final int MAGIC = 0x43414454;
+	static final int VERSION = 1;
+
+	public static final int DENSE = 0;
+	public static final int SPARSE = 1;
+
+	// the most bytes of the matrix that one block of documents writes, and that one mapped segment holds
+	static final long BLOCK_BYTES = 1 << 26;
+	static final long SEGMENT_BYTES = 1 << 30;
+
+	int format;
+	int numDocs;
+	int numTopics;
+	boolean normalized;
+	boolean smoothed;
+	double threshold;
+
+	LabelAlphabet topicAlphabet;
+	double[] alpha;
+	int[] tokensPerTopic;
+	Alphabet alphabet;
+	String[] documentNames;
+
+	// dense: whole rows per segment
+	int docsPerSegment;
+	// sparse: the row starts, and the entries in segments
+	long[] rowStarts;
+	int entriesPerSegment;
+	MappedByteBuffer[] segments;
+	MappedByteBuffer[] topicSegments;
+	MappedByteBuffer[] weightSegments;
+
+	private MappedDocumentTopics() { }
+
+	/**
+	 *  Write the dense matrix of topic weights.
+	 *
+	 *  @param normalized Divide each row by its sum
+	 *  @param smoothed   Add alpha to the topic counts
+	 *  @param executor   Fill blocks of documents on these threads, or on this one if null
+	 */
+	public static void write(ParallelTopicModel model, File file, boolean normalized, boolean smoothed,
+							 ExecutorService executor) throws IOException {
+		write(model, file, DENSE, normalized, smoothed, 0.0, executor);
+	}
+
+	/**
+	 *  Write the topics of each document whose weight is greater than zero and at
+	 *   least <code>threshold</code>, as compressed sparse rows. The parameters are
+	 *   as in <code>write()</code>.
+	 */
+	public static void writeSparse(ParallelTopicModel model, File file, double threshold,
+								   boolean normalized, boolean smoothed,
+								   ExecutorService executor) throws IOException {
+		write(model, file, SPARSE, normalized, smoothed, threshold, executor);
+	}
+
+	static void write(final ParallelTopicModel model, File file, final int format,
+					  final boolean normalized, final boolean smoothed, final double threshold,
+					  ExecutorService executor) throws IOException {
+		final int numDocs = model.data.size();
+		final int numTopics = model.numTopics;
+
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+
+		header.writeInt(numDocs);
+		header.writeInt(numTopics);
+		header.writeInt(model.numTypes);
+		header.writeBoolean(normalized);
+		header.writeBoolean(smoothed);
+		header.writeDouble(threshold);
+		for (int topic = 0; topic < numTopics; topic++) {
+			header.writeUTF(model.topicAlphabet.lookupObject(topic).toString());
+			header.writeDouble(model.alpha[topic]);
+			header.writeInt(model.tokensPerTopic[topic]);
+		}
+		for (int type = 0; type < model.numTypes; type++) {
+			header.writeUTF(model.alphabet.lookupObject(type).toString());
+		}
+		for (int doc = 0; doc < numDocs; doc++) {
+			Object name = model.data.get(doc).instance.getName();
+			header.writeUTF(name == null ? "" : name.toString());
+		}
+		header.close();
+
+		long matrixStart = 16 + headerBytes.size();
+		matrixStart += (8 - matrixStart % 8) % 8;
+
+		// Each block of documents fills its own part of the file
+		final int docsPerBlock = (int) Math.max(1, Math.min(numDocs, BLOCK_BYTES / (4L * numTopics)));
+		final long[] rowStarts;
+		if (format == SPARSE) {
+			rowStarts = countEntries(model, docsPerBlock, normalized, smoothed, threshold, executor);
+		}
+		else {
+			rowStarts = null;
+		}
+
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.setLength(0);
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(randomAccessFile.getFD()), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(format);
+			out.writeInt(headerBytes.size());
+			headerBytes.writeTo(out);
+			while (out.size() % 8 != 0) {
+				out.writeByte(0);
+			}
+			if (format == SPARSE) {
+				for (int doc = 0; doc <= numDocs; doc++) {
+					out.writeLong(rowStarts[doc]);
+				}
+			}
+			out.flush();
+
+			final FileChannel channel = randomAccessFile.getChannel();
+			final long denseStart = matrixStart;
+			final long topicsStart = matrixStart + 8L * (numDocs + 1);
+			final long weightsStart = format == SPARSE ? topicsStart + 4L * rowStarts[numDocs] : 0;
+
+			// Size the file before the blocks map their parts of it
+			if (format == DENSE) {
+				randomAccessFile.setLength(denseStart + 4L * numTopics * numDocs);
+			}
+			else {
+				randomAccessFile.setLength(weightsStart + 4L * rowStarts[numDocs]);
+			}
+
+			List<Callable<Object>> blocks = new ArrayList<Callable<Object>>();
+			for (int start = 0; start < numDocs; start += docsPerBlock) {
+				final int blockStart = start;
+				final int blockEnd = Math.min(numDocs, start + docsPerBlock);
+				blocks.add(new Callable<Object>() {
+						public Object call() throws IOException {
+							double[] weights = new double[numTopics];
+
+							if (format == DENSE) {
+								MappedByteBuffer buffer =
+									channel.map(FileChannel.MapMode.READ_WRITE,
+												denseStart + 4L * numTopics * blockStart,
+												4L * numTopics * (blockEnd - blockStart));
+								for (int doc = blockStart; doc < blockEnd; doc++) {
+									model.getDocumentTopics(doc, weights, normalized, smoothed);
+									for (int topic = 0; topic < numTopics; topic++) {
+										buffer.putFloat((float) weights[topic]);
+									}
+								}
+								buffer.force();
+							}
+							else {
+								long numEntries = rowStarts[blockEnd] - rowStarts[blockStart];
+								MappedByteBuffer topicBuffer =
+									channel.map(FileChannel.MapMode.READ_WRITE,
+												topicsStart + 4L * rowStarts[blockStart], 4L * numEntries);
+								MappedByteBuffer weightBuffer =
+									channel.map(FileChannel.MapMode.READ_WRITE,
+												weightsStart + 4L * rowStarts[blockStart], 4L * numEntries);
+								for (int doc = blockStart; doc < blockEnd; doc++) {
+									model.getDocumentTopics(doc, weights, normalized, smoothed);
+									for (int topic = 0; topic < numTopics; topic++) {
+										if (keep(weights[topic], threshold)) {
+											topicBuffer.putInt(topic);
+											weightBuffer.putFloat((float) weights[topic]);
+										}
+									}
+								}
+								topicBuffer.force();
+								weightBuffer.force();
+							}
+
+							return null;
+						}
+					});
+			}
+			runBlocks(blocks, executor);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	static boolean keep(double weight, double threshold) {
+		return weight > 0 && weight >= threshold;
+	}
+
+	/** The index of the first sparse entry of each document, and the total at the end */
+	static long[] countEntries(final ParallelTopicModel model, int docsPerBlock,
+							   final boolean normalized, final boolean smoothed, final double threshold,
+							   ExecutorService executor) throws IOException {
+		final int numDocs = model.data.size();
+		final long[] rowStarts = new long[numDocs + 1];
+
+		List<Callable<Object>> blocks = new ArrayList<Callable<Object>>();
+		for (int start = 0; start < numDocs; start += docsPerBlock) {
+			final int blockStart = start;
+			final int blockEnd = Math.min(numDocs, start + docsPerBlock);
+			blocks.add(new Callable<Object>() {
+					public Object call() {
+						double[] weights = new double[model.numTopics];
+						for (int doc = blockStart; doc < blockEnd; doc++) {
+							model.getDocumentTopics(doc, weights, normalized, smoothed);
+							int numEntries = 0;
+							for (int topic = 0; topic < model.numTopics; topic++) {
+								if (keep(weights[topic], threshold)) { numEntries++; }
+							}
+							// the count of each document, summed below
+							rowStarts[doc + 1] = numEntries;
+						}
+						return null;
+					}
+				});
+		}
+		runBlocks(blocks, executor);
+
+		for (int doc = 0; doc < numDocs; doc++) {
+			rowStarts[doc + 1] += rowStarts[doc];
+		}
+		return rowStarts;
+	}
+
+	static void runBlocks(List<Callable<Object>> blocks, ExecutorService executor) throws IOException {
+		try {
+			if (executor == null) {
+				for (Callable<Object> block : blocks) {
+					block.call();
+				}
+			}
+			else {
+				for (Future<Object> future : executor.invokeAll(blocks)) {
+					future.get();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing document topics");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException("Writing document topics failed", e.getCause());
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException("Writing document topics failed", e);
+		}
+	}
+
+	/** Map a file written by <code>write()</code> or <code>writeSparse()</code>. */
+	public static MappedDocumentTopics open(File file) throws IOException {
+		MappedDocumentTopics matrix = new MappedDocumentTopics();
+
+		int headerLength;
+		DataInputStream in =
+			new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a document topics file: " + file);
+			}
+			int version = in.readInt();
+			if (version > VERSION) {
+				throw new IOException("Unsupported document topics version " + version);
+			}
+			matrix.format = in.readInt();
+			headerLength = in.readInt();
+			matrix.readHeader(in);
+
+			if (matrix.format == SPARSE) {
+				// the row starts follow the padding
+				long padding = (8 - (16 + headerLength) % 8) % 8;
+				in.skipBytes((int) padding);
+				matrix.rowStarts = new long[matrix.numDocs + 1];
+				for (int doc = 0; doc <= matrix.numDocs; doc++) {
+					matrix.rowStarts[doc] = in.readLong();
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		long matrixStart = 16 + headerLength;
+		matrixStart += (8 - matrixStart % 8) % 8;
+
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			// The mappings stay valid after the channel is closed
+			FileChannel channel = randomAccessFile.getChannel();
+			if (matrix.format == DENSE) {
+				long rowBytes = 4L * matrix.numTopics;
+				matrix.docsPerSegment = (int) Math.max(1, SEGMENT_BYTES / rowBytes);
+				matrix.segments = mapSegments(channel, matrixStart, matrix.numDocs,
+											  matrix.docsPerSegment, rowBytes);
+			}
+			else {
+				long numEntries = matrix.rowStarts[matrix.numDocs];
+				long topicsStart = matrixStart + 8L * (matrix.numDocs + 1);
+				matrix.entriesPerSegment = (int) (SEGMENT_BYTES / 4);
+				matrix.topicSegments = mapSegments(channel, topicsStart, numEntries,
+												   matrix.entriesPerSegment, 4);
+				matrix.weightSegments = mapSegments(channel, topicsStart + 4L * numEntries, numEntries,
+													matrix.entriesPerSegment, 4);
+			}
+		} finally {
+			randomAccessFile.close();
+		}
+
+		return matrix;
+	}
+
+	static MappedByteBuffer[] mapSegments(FileChannel channel, long start, long numItems,
+										  int itemsPerSegment, long itemBytes) throws IOException {
+		int numSegments = (int) ((numItems + itemsPerSegment - 1) / itemsPerSegment);
+		MappedByteBuffer[] segments = new MappedByteBuffer[numSegments];
+		for (int segment = 0; segment < numSegments; segment++) {
+			long first = (long) segment * itemsPerSegment;
+			long length = Math.min(itemsPerSegment, numItems - first);
+			segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY,
+											start + first * itemBytes, length * itemBytes);
+		}
+		return segments;
+	}
+
+	private void readHeader(DataInputStream in) throws IOException {
+		numDocs = in.readInt();
+		numTopics = in.readInt();
+		int numTypes = in.readInt();
+		normalized = in.readBoolean();
+		smoothed = in.readBoolean();
+		threshold = in.readDouble();
+
+		topicAlphabet = new LabelAlphabet();
+		alpha = new double[numTopics];
+		tokensPerTopic = new int[numTopics];
+		for (int topic = 0; topic < numTopics; topic++) {
+			String label = in.readUTF();
+			if (topicAlphabet.lookupIndex(label) != topic) {
+				throw new IOException("Topic label \"" + label + "\" appears more than once");
+			}
+			alpha[topic] = in.readDouble();
+			tokensPerTopic[topic] = in.readInt();
+		}
+
+		alphabet = new Alphabet(numTypes, String.class);
+		for (int type = 0; type < numTypes; type++) {
+			// Entries are written as strings, and distinct entries may have the same one
+			String entry = in.readUTF();
+			if (alphabet.lookupIndex(entry) != type) {
+				throw new IOException("Alphabet entry \"" + entry + "\" appears more than once");
+			}
+		}
+		alphabet.stopGrowth();
+
+		documentNames = new String[numDocs];
+		for (int doc = 0; doc < numDocs; doc++) {
+			documentNames[doc] = in.readUTF();
+		}
+	}
+
+	public boolean isSparse() { return format == SPARSE; }
+	public int getNumDocuments() { return numDocs; }
+	public int getNumTopics() { return numTopics; }
+	public boolean isNormalized() { return normalized; }
+	public boolean isSmoothed() { return smoothed; }
+	public double getThreshold() { return threshold; }
+
+	public LabelAlphabet getTopicAlphabet() { return topicAlphabet; }
+	public double[] getAlpha() { return alpha; }
+	public int[] getTokensPerTopic() { return tokensPerTopic; }
+	public Alphabet getAlphabet() { return alphabet; }
+	public String getDocumentName(int doc) { return documentNames[doc]; }
+
+	/**
+	 *  Fill <code>result</code> with the topic weights of a document, with zeros for
+	 *   the topics a sparse file leaves out. Any number of threads may read at once.
+	 */
+	public void getDocumentTopics(int doc, double[] result) {
+		Arrays.fill(result, 0, numTopics, 0.0);
+
+		if (format == DENSE) {
+			// Absolute gets only, so that the buffers can be shared
+			MappedByteBuffer segment = segments[doc / docsPerSegment];
+			int offset = 4 * numTopics * (doc % docsPerSegment);
+			for (int topic = 0; topic < numTopics; topic++) {
+				result[topic] = segment.getFloat(offset + 4 * topic);
+			}
+		}
+		else {
+			for (long entry = rowStarts[doc]; entry < rowStarts[doc + 1]; entry++) {
+				result[ getEntryTopic(entry) ] = getEntryWeight(entry);
+			}
+		}
+	}
+
+	/**
+	 *  Copy the non-zero topics of a document and their weights, in increasing order
+	 *   of topic, and return how many there are. The arrays need room for every topic.
+	 */
+	public int getSparseDocumentTopics(int doc, int[] topics, double[] weights) {
+		int length = 0;
+
+		if (format == DENSE) {
+			MappedByteBuffer segment = segments[doc / docsPerSegment];
+			int offset = 4 * numTopics * (doc % docsPerSegment);
+			for (int topic = 0; topic < numTopics; topic++) {
+				float weight = segment.getFloat(offset + 4 * topic);
+				if (weight != 0) {
+					topics[length] = topic;
+					weights[length] = weight;
+					length++;
+				}
+			}
+		}
+		else {
+			for (long entry = rowStarts[doc]; entry < rowStarts[doc + 1]; entry++) {
+				topics[length] = getEntryTopic(entry);
+				weights[length] = getEntryWeight(entry);
+				length++;
+			}
+		}
+
+		return length;
+	}
+
+	int getEntryTopic(long entry) {
+		return topicSegments[(int) (entry / entriesPerSegment)].getInt(4 * (int) (entry % entriesPerSegment));
+	}
+
+	float getEntryWeight(long entry) {
+		return weightSegments[(int) (entry / entriesPerSegment)].getFloat(4 * (int) (entry % entriesPerSegment));
+	}
+}
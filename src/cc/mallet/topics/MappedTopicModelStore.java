@@ -0,0 +1,274 @@
+package cc.mallet.topics;
+
+import cc.mallet.types.Alphabet;
+
+import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A read-only copy of a trained MultiBackgroundTopicModel held in a single memory-mapped file.
+ *
+ * Loading an <code>int[][]</code> through <code>ObjectInputStream</code> creates one array per
+ * vocabulary type. This store keeps all type/topic counts and per-source background counts in one
+ * flat, offset-indexed block of ints that is mapped with <code>FileChannel.map</code>, so opening a
+ * model only reads the (small) header and the alphabet. The counts are paged in on demand, and every
+ * JVM on a host that maps the same file shares the page cache.
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   int magic ("CALM"), int version, int header length
+ *   header: topic/type/source counts, hyperparameters, alpha, tokensPerTopic,
+ *           the alphabet, and per-source names and background/topical totals
+ *   padding to a multiple of 8 bytes, then the int block:
+ *     int[numTypes + 1]          offset of each type's row in the packed counts
+ *     int[total]                 packed count/topic rows, as in ParallelTopicModel
+ *     int[numSources][numTypes]  background counts of each source
+ * </pre>
+ *
+ * The int block must be smaller than 2GB.
+ */
+public class MappedTopicModelStore {
+
+    // "CALM", followed by the format version
+    static final int MAGIC = 0x43414C4D;
+    // Version 2 adds the per-source lambda and betaBackground
+    static final int VERSION = 2;
+
+    int numTopics;
+    int numTypes;
+    int numSources;
+
+    double alphaSum;
+    double beta;
+    double betaSum;
+    double betaBackground;
+    double lambda;
+    // per-source priors, or null if they were not learned
+    double[] sourceLambdas;
+    double[] sourceBetaBackgrounds;
+    double[] alpha;
+    int[] tokensPerTopic;
+
+    Alphabet alphabet;
+    Map<Object, Integer> sourceToSourceId = new LinkedHashMap<Object, Integer>();
+    int[][] backgroundAndTopicalCounts;
+
+    // the mapped int block and the start of each section in it
+    IntBuffer ints;
+    int typeOffsetsBase;
+    int typeTopicCountsBase;
+    int typeBackgroundCountsBase;
+
+    private MappedTopicModelStore() { }
+
+    /** Write a trained model to a file that can be opened with <code>open(File)</code>. */
+    public static void write(MultiBackgroundTopicModel model, File file) throws IOException {
+        int numTypes = model.numTypes;
+        int numTopics = model.numTopics;
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+
+        header.writeInt(numTopics);
+        header.writeInt(numTypes);
+        header.writeInt(model.numSources);
+
+        header.writeDouble(model.alphaSum);
+        header.writeDouble(model.beta);
+        header.writeDouble(model.betaSum);
+        header.writeDouble(model.betaBackground);
+        header.writeDouble(model.lambda);
+        for (int topic = 0; topic < numTopics; topic++) {
+            header.writeDouble(model.alpha[topic]);
+        }
+        MultiBackgroundTopicModel.writeIntArray(header, model.tokensPerTopic, numTopics);
+
+        header.writeBoolean(model.alphabet.growthStopped());
+        for (int type = 0; type < numTypes; type++) {
+            header.writeUTF(model.alphabet.lookupObject(type).toString());
+        }
+
+        Object[] sourceNames = new Object[model.numSources];
+        for (Map.Entry<Object, Integer> entry : model.sourceToSourceId.entrySet()) {
+            sourceNames[entry.getValue()] = entry.getKey();
+        }
+        for (int sourceId = 0; sourceId < model.numSources; sourceId++) {
+            header.writeUTF(sourceNames[sourceId].toString());
+            header.writeInt(model.backgroundAndTopicalCounts[sourceId][BackgroundTopicModel.TOPICAL_WORD_INDEX]);
+            header.writeInt(model.backgroundAndTopicalCounts[sourceId][BackgroundTopicModel.BACKGROUND_WORD_INDEX]);
+        }
+        header.writeBoolean(model.sourceLambdas != null);
+        if (model.sourceLambdas != null) {
+            for (int sourceId = 0; sourceId < model.numSources; sourceId++) {
+                header.writeDouble(model.sourceLambdas[sourceId]);
+                header.writeDouble(model.sourceBetaBackgrounds[sourceId]);
+            }
+        }
+        header.close();
+
+        // Row offsets. As in the inference-only format, types that currently have
+        //  no topical tokens keep one zero cell, since empty rows mean out-of-vocabulary.
+        int[] typeOffsets = new int[numTypes + 1];
+        for (int type = 0; type < numTypes; type++) {
+            int[] topicCounts = model.typeTopicCounts[type];
+            int length = 0;
+            while (length < topicCounts.length && topicCounts[length] > 0) {
+                length++;
+            }
+            if (length == 0 && topicCounts.length > 0) {
+                length = 1;
+            }
+            typeOffsets[type + 1] = typeOffsets[type] + length;
+        }
+
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(headerBytes.size());
+            headerBytes.writeTo(out);
+            while (out.size() % 8 != 0) {
+                out.writeByte(0);
+            }
+
+            MultiBackgroundTopicModel.writeIntArray(out, typeOffsets, typeOffsets.length);
+            for (int type = 0; type < numTypes; type++) {
+                MultiBackgroundTopicModel.writeIntArray(out, model.typeTopicCounts[type],
+                                                        typeOffsets[type + 1] - typeOffsets[type]);
+            }
+            for (int sourceId = 0; sourceId < model.numSources; sourceId++) {
+                MultiBackgroundTopicModel.writeIntArray(out, model.typeBackgroundCounts[sourceId], numTypes);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Map a file written by <code>write()</code>. */
+    public static MappedTopicModelStore open(File file) throws IOException {
+        MappedTopicModelStore store = new MappedTopicModelStore();
+
+        int headerLength;
+        DataInputStream in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a mapped CA-LDA model: " + file);
+            }
+            int version = in.readInt();
+            if (version > VERSION) {
+                throw new IOException("Unsupported mapped model version " + version);
+            }
+            headerLength = in.readInt();
+            store.readHeader(in, version);
+        } finally {
+            in.close();
+        }
+
+        long blockStart = 12 + headerLength;
+        blockStart += (8 - blockStart % 8) % 8;
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long blockSize = channel.size() - blockStart;
+            if (blockSize > Integer.MAX_VALUE) {
+                throw new IOException("Mapped model counts are larger than 2GB: " + file);
+            }
+
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, blockStart, blockSize);
+            store.ints = mapped.asIntBuffer();
+        } finally {
+            randomAccessFile.close();
+        }
+
+        store.typeOffsetsBase = 0;
+        store.typeTopicCountsBase = store.numTypes + 1;
+        store.typeBackgroundCountsBase = store.typeTopicCountsBase + store.ints.get(store.numTypes);
+
+        return store;
+    }
+
+    private void readHeader(DataInputStream in, int version) throws IOException {
+        numTopics = in.readInt();
+        numTypes = in.readInt();
+        numSources = in.readInt();
+
+        alphaSum = in.readDouble();
+        beta = in.readDouble();
+        betaSum = in.readDouble();
+        betaBackground = in.readDouble();
+        lambda = in.readDouble();
+        alpha = new double[numTopics];
+        for (int topic = 0; topic < numTopics; topic++) {
+            alpha[topic] = in.readDouble();
+        }
+        tokensPerTopic = MultiBackgroundTopicModel.readIntArray(in, numTopics);
+
+        boolean growthStopped = in.readBoolean();
+        alphabet = new Alphabet(numTypes, String.class);
+        for (int type = 0; type < numTypes; type++) {
+            alphabet.lookupIndex(in.readUTF());
+        }
+        if (growthStopped) { alphabet.stopGrowth(); }
+
+        backgroundAndTopicalCounts = new int[numSources][2];
+        for (int sourceId = 0; sourceId < numSources; sourceId++) {
+            sourceToSourceId.put(in.readUTF(), sourceId);
+            backgroundAndTopicalCounts[sourceId][BackgroundTopicModel.TOPICAL_WORD_INDEX] = in.readInt();
+            backgroundAndTopicalCounts[sourceId][BackgroundTopicModel.BACKGROUND_WORD_INDEX] = in.readInt();
+        }
+
+        if (version >= 2 && in.readBoolean()) {
+            sourceLambdas = new double[numSources];
+            sourceBetaBackgrounds = new double[numSources];
+            for (int sourceId = 0; sourceId < numSources; sourceId++) {
+                sourceLambdas[sourceId] = in.readDouble();
+                sourceBetaBackgrounds[sourceId] = in.readDouble();
+            }
+        }
+    }
+
+    double getLambda(int sourceId) {
+        return sourceLambdas == null ? lambda : sourceLambdas[sourceId];
+    }
+
+    /** As in MultiBackgroundTopicModel.getInferencer(), the background counts are smoothed with beta unless betaBackground was learned */
+    double getInferenceBetaBackground(int sourceId) {
+        return sourceBetaBackgrounds == null ? beta : sourceBetaBackgrounds[sourceId];
+    }
+
+    public Alphabet getAlphabet() { return alphabet; }
+    public int getNumTopics() { return numTopics; }
+    public Set<Object> getSources() { return sourceToSourceId.keySet(); }
+
+    /** Return a tool for estimating topic distributions for new documents of a specific source */
+    public BackgroundTopicInferencer getInferencer(Object source) {
+        if (! sourceToSourceId.containsKey(source)) {
+            throw new IllegalArgumentException("Source " + source.toString() + " not found");
+        }
+        return new MappedBackgroundTopicInferencer(this, sourceToSourceId.get(source));
+    }
+
+    /** The number of used cells in the packed count/topic row of this type */
+    int getRowLength(int type) {
+        return ints.get(typeOffsetsBase + type + 1) - ints.get(typeOffsetsBase + type);
+    }
+
+    /**
+     * The position in <code>ints</code> of the first cell of this type's packed count/topic row.
+     * Read the row with absolute gets only, so that any number of threads can read the buffer.
+     */
+    int getRowStart(int type) {
+        return typeTopicCountsBase + ints.get(typeOffsetsBase + type);
+    }
+
+    int getTypeBackgroundCount(int sourceId, int type) {
+        return ints.get(typeBackgroundCountsBase + sourceId * numTypes + type);
+    }
+}
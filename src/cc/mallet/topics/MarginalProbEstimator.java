@@ -9,6 +9,8 @@ package cc.mallet.topics;
 
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
 
 import java.util.zip.*;
 
@@ -119,36 +121,20 @@ public class MarginalProbEstimator implements Serializable {
 	public double evaluateLeftToRight (InstanceList testing, int numParticles, boolean usingResampling,
 									   PrintStream docProbabilityStream) {
 
-		double logNumParticles = Math.log(numParticles);
+		LeftToRightBuffers buffers = createLeftToRightBuffers(cachedCoefficients, random);
+
 		double totalLogLikelihood = 0;
 		for (Instance instance : testing) {
 			
 			FeatureSequence tokenSequence = (FeatureSequence) instance.getData();
 
-			double docLogLikelihood = 0;
-
-			double[][] particleProbabilities = new double[ numParticles ][];
+			// The probability of each position, summed over the particles
+			double[] wordProbabilities = new double[ tokenSequence.getLength() ];
 			for (int particle = 0; particle < numParticles; particle++) {
-				particleProbabilities[particle] =
-					leftToRight(tokenSequence, usingResampling);
+				leftToRight(tokenSequence, usingResampling, buffers, wordProbabilities);
 			}
 
-			for (int position = 0; position < particleProbabilities[0].length; position++) {
-				double sum = 0;
-				for (int particle = 0; particle < numParticles; particle++) {
-					sum += particleProbabilities[particle][position];
-				}
-
-				if (sum > 0.0) {
-					double logProb = Math.log(sum) - logNumParticles;
-					docLogLikelihood += logProb;
-					
-	                if (printWordProbabilities) {
-						Object word = instance.getDataAlphabet().lookupObject(tokenSequence.getIndexAtPosition(position));
-                    	System.out.printf("%s\t%f\n", word, logProb);
-	                }
-				}
-			}
+			double docLogLikelihood = documentLogLikelihood(instance, wordProbabilities, numParticles);
 
 			if (docProbabilityStream != null) {
 				docProbabilityStream.println(docLogLikelihood);
@@ -158,11 +144,195 @@ public class MarginalProbEstimator implements Serializable {
 
 		return totalLogLikelihood;
 	}
-	
-	protected double[] leftToRight (FeatureSequence tokenSequence, boolean usingResampling) {
 
-		int[] oneDocTopics = new int[tokenSequence.getLength()];
+	// the number of documents evaluated at once, and the number of token
+	//  samples in one unit of parallel work
+	static final int EVALUATION_CHUNK_SIZE = 1024;
+	static final long UNIT_TOKEN_SAMPLES = 1 << 14;
+
+	/**
+	 *  Evaluate in parallel. Documents are split into units of one or more
+	 *   particles, so a few long documents still spread over the threads, and
+	 *   each thread has its own scratch state. Every particle draws from its
+	 *   own random stream, seeded from <code>seed</code>, the document and the
+	 *   particle, so the result does not depend on the number of threads.
+	 *   Results are printed in document order.
+	 */
+	public double evaluateLeftToRight (InstanceList testing, final int numParticles, final boolean usingResampling,
+									   PrintStream docProbabilityStream, int numThreads, final int seed) {
+
+		final ThreadLocal<LeftToRightBuffers> threadBuffers = new ThreadLocal<LeftToRightBuffers>() {
+			protected LeftToRightBuffers initialValue() {
+				return newLeftToRightBuffers(new Randoms());
+			}
+		};
+
+		double totalLogLikelihood = 0;
+
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			for (int chunkStart = 0; chunkStart < testing.size(); chunkStart += EVALUATION_CHUNK_SIZE) {
+				int chunkEnd = Math.min(testing.size(), chunkStart + EVALUATION_CHUNK_SIZE);
+
+				List<Callable<double[]>> units = new ArrayList<Callable<double[]>>();
+				int[] firstUnits = new int[chunkEnd - chunkStart + 1];
+
+				for (int doc = chunkStart; doc < chunkEnd; doc++) {
+					firstUnits[doc - chunkStart] = units.size();
+
+					final int document = doc;
+					final FeatureSequence tokenSequence = (FeatureSequence) testing.get(doc).getData();
+					final int docLength = tokenSequence.getLength();
+
+					// Resampling revisits every earlier position at each step
+					long particleCost = usingResampling ?
+						(long) docLength * (docLength + 1) / 2 + 1 : docLength + 1;
+					int particlesPerUnit = (int) Math.max(1, Math.min(numParticles, UNIT_TOKEN_SAMPLES / particleCost));
+
+					for (int start = 0; start < numParticles; start += particlesPerUnit) {
+						final int firstParticle = start;
+						final int endParticle = Math.min(numParticles, start + particlesPerUnit);
+						units.add(new Callable<double[]>() {
+								public double[] call() {
+									LeftToRightBuffers buffers = threadBuffers.get();
+									double[] wordProbabilities = new double[docLength];
+									for (int particle = firstParticle; particle < endParticle; particle++) {
+										buffers.random.setSeed(particleSeed(seed, document, particle));
+										leftToRight(tokenSequence, usingResampling, buffers, wordProbabilities);
+									}
+									return wordProbabilities;
+								}
+							});
+					}
+				}
+				firstUnits[chunkEnd - chunkStart] = units.size();
+
+				List<Future<double[]>> results = pool.invokeAll(units);
+
+				for (int doc = chunkStart; doc < chunkEnd; doc++) {
+					// Add up the units in order, which fixes the rounding
+					double[] wordProbabilities = results.get(firstUnits[doc - chunkStart]).get();
+					for (int unit = firstUnits[doc - chunkStart] + 1; unit < firstUnits[doc - chunkStart + 1]; unit++) {
+						double[] unitProbabilities = results.get(unit).get();
+						for (int position = 0; position < wordProbabilities.length; position++) {
+							wordProbabilities[position] += unitProbabilities[position];
+						}
+					}
+
+					double docLogLikelihood = documentLogLikelihood(testing.get(doc), wordProbabilities, numParticles);
+
+					if (docProbabilityStream != null) {
+						docProbabilityStream.println(docLogLikelihood);
+					}
+					totalLogLikelihood += docLogLikelihood;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted during left-to-right evaluation", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Left-to-right evaluation failed", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+
+		return totalLogLikelihood;
+	}
+
+	/** A well-mixed seed for one particle of one document */
+	static long particleSeed(long seed, long doc, long particle) {
+		long z = seed * 0x9E3779B97F4A7C15L + doc;
+		z = z * 0x9E3779B97F4A7C15L + particle;
+		// the splitmix64 finalizer
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/** The log probability of a document from the probabilities of its words, summed over the particles */
+	protected double documentLogLikelihood(Instance instance, double[] wordProbabilities, int numParticles) {
+		FeatureSequence tokenSequence = (FeatureSequence) instance.getData();
+		double logNumParticles = Math.log(numParticles);
+		double docLogLikelihood = 0;
+
+		for (int position = 0; position < wordProbabilities.length; position++) {
+			double sum = wordProbabilities[position];
+
+			if (sum > 0.0) {
+				double logProb = Math.log(sum) - logNumParticles;
+				docLogLikelihood += logProb;
+				
+				if (printWordProbabilities) {
+					Object word = instance.getDataAlphabet().lookupObject(tokenSequence.getIndexAtPosition(position));
+					System.out.printf("%s\t%f\n", word, logProb);
+				}
+			}
+		}
+
+		return docLogLikelihood;
+	}
+
+	/**
+	 *  Scratch state for one particle at a time. Each thread needs its own,
+	 *   with its own cached coefficients, since a document changes them while
+	 *   it is sampled (and resets them afterwards).
+	 */
+	protected static class LeftToRightBuffers {
+		int[] oneDocTopics = new int[0];
+		int[] localTopicCounts;
+		int[] localTopicIndex;
+		double[] topicTermScores;
+		double[] cachedCoefficients;
+		Randoms random;
+
+		protected LeftToRightBuffers(int numTopics, double[] cachedCoefficients, Randoms random) {
+			localTopicCounts = new int[numTopics];
+			localTopicIndex = new int[numTopics];
+			topicTermScores = new double[numTopics];
+			this.cachedCoefficients = cachedCoefficients;
+			this.random = random;
+		}
+
+		/** Clear the local counts and make room for a document of this length */
+		protected void prepare(int docLength) {
+			if (oneDocTopics.length < docLength) {
+				oneDocTopics = new int[docLength];
+			}
+			Arrays.fill(localTopicCounts, 0);
+		}
+	}
+
+	protected LeftToRightBuffers createLeftToRightBuffers(double[] cachedCoefficients, Randoms random) {
+		return new LeftToRightBuffers(numTopics, cachedCoefficients, random);
+	}
+
+	/** Scratch state with its own coefficients and random number generator, for one thread */
+	protected LeftToRightBuffers newLeftToRightBuffers(Randoms random) {
+		double[] coefficients = new double[numTopics];
+		for (int topic=0; topic < numTopics; topic++) {
+			coefficients[topic] = alpha[topic] / (tokensPerTopic[topic] + betaSum);
+		}
+		return createLeftToRightBuffers(coefficients, random);
+	}
+
+	protected double[] leftToRight (FeatureSequence tokenSequence, boolean usingResampling) {
 		double[] wordProbabilities = new double[tokenSequence.getLength()];
+		leftToRight(tokenSequence, usingResampling,
+					createLeftToRightBuffers(cachedCoefficients, random), wordProbabilities);
+		return wordProbabilities;
+	}
+
+	/**
+	 *  Sample one particle and add the probability of each position, given
+	 *   the positions before it, to <code>wordProbabilities</code>.
+	 */
+	protected void leftToRight (FeatureSequence tokenSequence, boolean usingResampling,
+								LeftToRightBuffers buffers, double[] wordProbabilities) {
+
+		buffers.prepare(tokenSequence.getLength());
+		int[] oneDocTopics = buffers.oneDocTopics;
+		double[] cachedCoefficients = buffers.cachedCoefficients;
+		Randoms random = buffers.random;
 
 		int[] currentTypeTopicCounts;
 		int type, oldTopic, newTopic;
@@ -173,8 +343,8 @@ public class MarginalProbEstimator implements Serializable {
 		//  including out-of-vocabulary words
 		int tokensSoFar = 0;
 
-		int[] localTopicCounts = new int[numTopics];
-		int[] localTopicIndex = new int[numTopics];
+		int[] localTopicCounts = buffers.localTopicCounts;
+		int[] localTopicIndex = buffers.localTopicIndex;
 
 		// Build an array that densely lists the topics that
 		//  have non-zero counts.
@@ -187,7 +357,7 @@ public class MarginalProbEstimator implements Serializable {
 		double topicBetaMass = 0.0;
 		double topicTermMass = 0.0;
 
-		double[] topicTermScores = new double[numTopics];
+		double[] topicTermScores = buffers.topicTermScores;
 		int[] topicTermIndices;
 		int[] topicTermValues;
 		int i;
@@ -594,8 +764,6 @@ public class MarginalProbEstimator implements Serializable {
 				alpha[topic] / (tokensPerTopic[topic] + betaSum);
 		}
 
-		return wordProbabilities;
-
 	}
 
 	private static final long serialVersionUID = 1;
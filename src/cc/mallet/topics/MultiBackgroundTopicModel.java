@@ -3,13 +3,15 @@ package cc.mallet.topics;
 import cc.mallet.types.*;
 import cc.mallet.util.Randoms;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * MultiBackgroundTopicModel (a.k.a Context-Aware LDA or CA-LDA)
@@ -47,6 +49,15 @@ public class MultiBackgroundTopicModel extends BackgroundTopicModel {
     int[][] backgroundAndTopicalCounts;
     int numSources;
 
+    // lambda and betaBackground of each source, learned when optimizing the background priors.
+    //  Null until then, and every source uses lambda and betaBackground.
+    double[] sourceLambdas;
+    double[] sourceBetaBackgrounds;
+
+    // sample with AliasBackgroundWorkerRunnable in estimate(), rather than the SparseLDA buckets
+    boolean useAliasSampler = false;
+    int numMHSteps = AliasBackgroundWorkerRunnable.DEFAULT_MH_STEPS;
+
     public MultiBackgroundTopicModel(LabelAlphabet topicAlphabet, double alphaSum, double beta, double betaBackground, double lambda) {
         super(topicAlphabet, alphaSum, beta, betaBackground, lambda);
     }
@@ -60,6 +71,23 @@ public class MultiBackgroundTopicModel extends BackgroundTopicModel {
         this (newLabelAlphabet (numberOfTopics), alphaSum, beta, betaBackground, lambda);
     }
 
+    /**
+     * Sample with Metropolis-Hastings from alias tables, whose cost per token does not grow with
+     *  the number of topics. This is worth it with many topics; see AliasBackgroundWorkerRunnable.
+     *  Only estimate() uses it.
+     */
+    public void setUseAliasSampler(boolean useAliasSampler) {
+        this.useAliasSampler = useAliasSampler;
+    }
+
+    /** The number of Metropolis-Hastings steps per token for the alias sampler */
+    public void setNumMHSteps(int numMHSteps) {
+        if (numMHSteps < 1) {
+            throw new IllegalArgumentException("At least one Metropolis-Hastings step is needed, not " + numMHSteps);
+        }
+        this.numMHSteps = numMHSteps;
+    }
+
     public void addInstances (InstanceList training) {
         int id = 0;
         for(Instance instance: training){
@@ -147,98 +175,160 @@ public class MultiBackgroundTopicModel extends BackgroundTopicModel {
         initializeHistograms();
 
     }
-    int runnableToSourceId (BackgroundWorkerRunnable runnable){
-        Object source = runnable.data.get(0).instance.getSource();
-        return sourceToSourceId.get(source);
-    }
-    public void sumBackgroundTopicalCounts (BackgroundWorkerRunnable[] runnables) {
-
-        // Clear the background counts
-        for(int i=0; i<sourceToSourceId.size(); i++) {
-            Arrays.fill(typeBackgroundCounts[i], 0);
-            Arrays.fill(backgroundAndTopicalCounts[i], 0);
+    /**
+     * Merge the background count changes of each worker into the shared counts, and
+     *  hand the merged background/topical token counts back to the workers.
+     *  Only the types that a worker has touched since the last merge are visited.
+     */
+    public void sumBackgroundTopicalCounts (MultiBackgroundWorkerRunnable[] runnables) {
+
+        int[][] mergedTotals = new int[numSources][2];
+        for (int sourceId = 0; sourceId < numSources; sourceId++) {
+            System.arraycopy(backgroundAndTopicalCounts[sourceId], 0, mergedTotals[sourceId], 0, 2);
         }
 
-        for (int thread = 0; thread < numThreads; thread++) {
-            int sourceId = runnableToSourceId(runnables[thread]);
-            // Handle the background topic distribution
-            int[] sourceCounts = runnables[thread].getTypeBackgroundCounts();
-            for (int type = 0; type < numTypes; type++) {
-                typeBackgroundCounts[sourceId][type] += sourceCounts[type];
-            }
+        for (MultiBackgroundWorkerRunnable runnable : runnables) {
+            int[][] deltas = runnable.getTypeBackgroundDeltas();
+            BitSet[] changedTypes = runnable.getChangedTypes();
+
+            for (int sourceId = 0; sourceId < numSources; sourceId++) {
+                if (deltas[sourceId] == null) { continue; }
 
-            // Now handle the background/topical token counts
-            int[] sourceTokenCounts = runnables[thread].getBackgroundAndTopicalCounts();
-            for (int i = 0; i < sourceTokenCounts.length; i++){
-                backgroundAndTopicalCounts[sourceId][i] += sourceTokenCounts[i];
+                int[] sourceDeltas = deltas[sourceId];
+                int[] targetCounts = typeBackgroundCounts[sourceId];
+                BitSet changed = changedTypes[sourceId];
+                for (int type = changed.nextSetBit(0); type >= 0; type = changed.nextSetBit(type + 1)) {
+                    targetCounts[type] += sourceDeltas[type];
+                    sourceDeltas[type] = 0;
+                }
+                changed.clear();
             }
 
+            // The workers' token counts started from the shared totals, so add up their differences
+            int[][] localTotals = runnable.getLocalBackgroundAndTopicalCounts();
+            for (int sourceId = 0; sourceId < numSources; sourceId++) {
+                for (int i = 0; i < 2; i++) {
+                    mergedTotals[sourceId][i] += localTotals[sourceId][i] - backgroundAndTopicalCounts[sourceId][i];
+                }
+            }
         }
 
+        for (int sourceId = 0; sourceId < numSources; sourceId++) {
+            System.arraycopy(mergedTotals[sourceId], 0, backgroundAndTopicalCounts[sourceId], 0, 2);
+        }
+        for (MultiBackgroundWorkerRunnable runnable : runnables) {
+            runnable.resetBackgroundAndTopicalCounts(backgroundAndTopicalCounts);
+        }
     }
     public void estimate () throws IOException {
 
         long startTime = System.currentTimeMillis();
-        assert (numThreads > 1);
-        int numConcurrentThread = numThreads;
 
-        numThreads = numThreads * sourceToSourceId.size();
+        // Lay the documents out source by source, so that the range of each
+        //  worker covers as few sources as possible, and give every worker
+        //  about the same number of tokens.
+        ArrayList<TopicAssignment> scheduledData = new ArrayList<TopicAssignment>(data.size());
+        for (ArrayList<TopicAssignment> sourceData : dataBySourceId) {
+            scheduledData.addAll(sourceData);
+        }
+        long scheduledTokens = 0;
+        for (TopicAssignment document : scheduledData) {
+            scheduledTokens += document.topicSequence.getLength();
+        }
 
+        MultiBackgroundWorkerRunnable[] runnables = new MultiBackgroundWorkerRunnable[numThreads];
 
-        BackgroundWorkerRunnable[] runnables = new BackgroundWorkerRunnable[numThreads];
-        for(int sourceId = 0 ; sourceId < sourceToSourceId.size(); sourceId ++){
-            ArrayList<TopicAssignment> sourceData = dataBySourceId.get(sourceId);
-            int docsPerThread = sourceData.size() / numConcurrentThread;
-            int offset = 0;
+        // If there is only one thread, it can sample against the model's own
+        //  type/topic counts, as in ParallelTopicModel. The alias sampler
+        //  needs its own copy, since it rebuilds its counts after each sweep.
+        final boolean sharedCounts = numThreads == 1 && ! useAliasSampler;
 
-            for (int sourceThread = 0; sourceThread < numConcurrentThread; sourceThread++) {
-                int threadId = (sourceId * numConcurrentThread) + sourceThread;
-                int[] runnableTotals = new int[numTopics];
+        int offset = 0;
+        long tokensSoFar = 0;
+        for (int thread = 0; thread < numThreads; thread++) {
+            int docsPerThread = 0;
+            long tokenLimit = scheduledTokens * (thread + 1) / numThreads;
+
+            if (thread == numThreads - 1) {
+                docsPerThread = scheduledData.size() - offset;
+            }
+            else {
+                while (offset + docsPerThread < scheduledData.size() && tokensSoFar < tokenLimit) {
+                    tokensSoFar += scheduledData.get(offset + docsPerThread).topicSequence.getLength();
+                    docsPerThread++;
+                }
+            }
+
+            int[] runnableTotals = tokensPerTopic;
+            int[][] runnableCounts = typeTopicCounts;
+            if (! sharedCounts) {
+                runnableTotals = new int[numTopics];
                 System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
 
-                int[][] runnableCounts = new int[numTypes][];
+                runnableCounts = new int[numTypes][];
                 for (int type = 0; type < numTypes; type++) {
                     int[] counts = new int[typeTopicCounts[type].length];
                     System.arraycopy(typeTopicCounts[type], 0, counts, 0, counts.length);
                     runnableCounts[type] = counts;
                 }
-                int[] runnableTypeBackgroundCounts = new int[numTypes];
-                System.arraycopy(typeBackgroundCounts[sourceId], 0, runnableTypeBackgroundCounts, 0, runnableTypeBackgroundCounts.length);
-
-                int[] runnableBackgroundAndTopicalCounts = new int[2];
-                System.arraycopy(backgroundAndTopicalCounts[sourceId], 0, runnableBackgroundAndTopicalCounts, 0, runnableBackgroundAndTopicalCounts.length);
-
-
-                // some docs may be missing at the end due to integer division
-                if (sourceThread == numConcurrentThread - 1) {
-                    docsPerThread = dataBySourceId.size() - offset;
-                }
+            }
 
-                Randoms random = null;
-                if (randomSeed == -1) {
-                    random = new Randoms();
-                }
-                else {
-                    random = new Randoms(randomSeed);
-                }
+            Randoms random = null;
+            if (randomSeed == -1) {
+                random = new Randoms();
+            }
+            else {
+                random = new Randoms(randomSeed);
+            }
 
-                runnables[threadId] = new BackgroundWorkerRunnable(numTopics,
+            if (useAliasSampler) {
+                AliasBackgroundWorkerRunnable runnable = new AliasBackgroundWorkerRunnable(numTopics,
                         alpha, alphaSum, beta, betaBackground, lambda,
-                        random, sourceData,
+                        random, scheduledData,
                         runnableCounts, runnableTotals,
-                        runnableTypeBackgroundCounts, runnableBackgroundAndTopicalCounts,
+                        sourceToSourceId, typeBackgroundCounts, backgroundAndTopicalCounts,
                         offset, docsPerThread);
+                runnable.setNumMHSteps(numMHSteps);
+                runnables[thread] = runnable;
+            }
+            else {
+                runnables[thread] = new MultiBackgroundWorkerRunnable(numTopics,
+                        alpha, alphaSum, beta, betaBackground, lambda,
+                        random, scheduledData,
+                        runnableCounts, runnableTotals,
+                        sourceToSourceId, typeBackgroundCounts, backgroundAndTopicalCounts,
+                        offset, docsPerThread);
+                if (sharedCounts) {
+                    runnables[thread].makeOnlyThread();
+                }
+            }
 
-                runnables[threadId].initializeAlphaStatistics(docLengthCounts.length);
-
-                offset += docsPerThread;
-
+            runnables[thread].initializeAlphaStatistics();
+            if (optimizeBackgroundPriors) {
+                runnables[thread].initializeBackgroundStatistics(numSources);
+            }
+            if (sourceLambdas != null) {
+                runnables[thread].setBackgroundPriors(sourceLambdas, sourceBetaBackgrounds);
             }
 
+            offset += docsPerThread;
         }
 
 
-        ExecutorService executor = Executors.newFixedThreadPool(numConcurrentThread);
+        IterationEngine engine = new IterationEngine(runnables);
+
+        final MultiBackgroundWorkerRunnable[] workers = runnables;
+        Runnable merge = new Runnable() {
+            public void run() {
+                if (! sharedCounts) {
+                    sumTypeTopicCounts(workers);
+                }
+                sumBackgroundTopicalCounts(workers);
+                if (! sharedCounts) {
+                    distributeTypeTopicCounts(workers);
+                }
+            }
+        };
 
         for (int iteration = 1; iteration <= numIterations; iteration++) {
 
@@ -257,86 +347,18 @@ public class MultiBackgroundTopicModel extends BackgroundTopicModel {
             }
 
 
-            // Submit runnables to thread pool
-
-            for (BackgroundWorkerRunnable thread: runnables) {
+            for (int thread = 0; thread < numThreads; thread++) {
                 if (iteration > burninPeriod && optimizeInterval != 0 &&
                         iteration % saveSampleInterval == 0) {
-                    thread.collectAlphaStatistics();
+                    runnables[thread].collectAlphaStatistics();
                 }
-
-                logger.fine("submitting thread " + thread);
-                executor.submit(thread);
-                //runnables[thread].run();
-            }
-
-            // I'm getting some problems that look like
-            //  a thread hasn't started yet when it is first
-            //  polled, so it appears to be finished.
-            // This only occurs in very short corpora.
-            try {
-                Thread.sleep(20);
-            } catch (InterruptedException e) {
-
-            }
-
-            boolean finished = false;
-            while (! finished) {
-
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-
-                }
-
-                finished = true;
-
-                // Are all the threads done?
-                for (int thread = 0; thread < numThreads; thread++) {
-                    //logger.info("thread " + thread + " done? " + runnables[thread].isFinished);
-                    finished = finished && runnables[thread].isFinished;
+                if (printLogLikelihood && iteration % 10 == 0) {
+                    runnables[thread].collectDocumentLikelihood();
                 }
-
             }
 
-            //System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
-
-            sumTypeTopicCounts(runnables);
-            sumBackgroundTopicalCounts(runnables);
-
-            //System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
-
-            for (int thread = 0; thread < numThreads; thread++) {
-                int sourceId = runnableToSourceId(runnables[thread]);
-                int[] runnableTotals = runnables[thread].getTokensPerTopic();
-                System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
-
-                int[][] runnableCounts = runnables[thread].getTypeTopicCounts();
-                for (int type = 0; type < numTypes; type++) {
-                    int[] targetCounts = runnableCounts[type];
-                    int[] sourceCounts = typeTopicCounts[type];
-
-                    int index = 0;
-                    while (index < sourceCounts.length) {
-
-                        if (sourceCounts[index] != 0) {
-                            targetCounts[index] = sourceCounts[index];
-                        }
-                        else if (targetCounts[index] != 0) {
-                            targetCounts[index] = 0;
-                        }
-                        else {
-                            break;
-                        }
-
-                        index++;
-                    }
-                }
-
-                System.arraycopy(typeBackgroundCounts[sourceId], 0, runnables[thread].getTypeBackgroundCounts(), 0, typeBackgroundCounts[sourceId].length);
-                System.arraycopy(backgroundAndTopicalCounts[sourceId], 0, runnables[thread].getBackgroundAndTopicalCounts(), 0, backgroundAndTopicalCounts[sourceId].length);
+            engine.runIteration(merge);
 
-            }
             long elapsedMillis = System.currentTimeMillis() - iterationStart;
             if (elapsedMillis < 1000) {
                 logger.fine(elapsedMillis + "ms ");
@@ -345,18 +367,27 @@ public class MultiBackgroundTopicModel extends BackgroundTopicModel {
                 logger.fine((elapsedMillis/1000) + "s ");
             }
 
+            boolean optimized = false;
             if (iteration > burninPeriod && optimizeInterval != 0 &&
                     iteration % optimizeInterval == 0) {
 
-                optimizeAlpha(runnables);
+                optimized = true;
+                optimizeAlpha(runnables, engine.getExecutor());
                 optimizeBeta(runnables);
+                if (optimizeBackgroundPriors) {
+                    optimizeBackgroundPriors(runnables, engine.getExecutor());
+                }
 
                 logger.fine("[O " + (System.currentTimeMillis() - iterationStart) + "] ");
             }
 
             if (iteration % 10 == 0) {
                 if (printLogLikelihood) {
-                    logger.info ("<" + iteration + "> LL/token: " + formatter.format(modelLogLikelihood() / totalTokens));
+                    // The document terms the workers summed are out of date if the priors have just changed
+                    double logLikelihood = optimized ?
+                            modelLogLikelihood(engine.getExecutor()) :
+                            modelLogLikelihood(runnables, engine.getExecutor());
+                    logger.info ("<" + iteration + "> LL/token: " + formatter.format(logLikelihood / totalTokens));
                 }
                 else {
                     logger.info ("<" + iteration + ">");
@@ -364,7 +395,8 @@ public class MultiBackgroundTopicModel extends BackgroundTopicModel {
             }
         }
 
-        executor.shutdownNow();
+        engine.shutdown();
+        logger.info(engine.getSummaryReport());
 
         long seconds = Math.round((System.currentTimeMillis() - startTime)/1000.0);
         long minutes = seconds / 60;	seconds %= 60;
@@ -379,10 +411,385 @@ public class MultiBackgroundTopicModel extends BackgroundTopicModel {
         timeReport.append(seconds); timeReport.append(" seconds");
 
         logger.info(timeReport.toString());
+    }
+    // Streaming training
+
+    /**
+     * Train on a stream of documents without keeping them in memory (streaming Gibbs sampling).
+     *
+     * Documents are read in chunks of <code>chunkSize</code>. The topics of each chunk are
+     *  initialized at random and added to the global type/topic and background counts, and the
+     *  chunk is then resampled <code>sweepsPerChunk</code> times against the counts of everything
+     *  seen so far. After that, its topic assignments stay in the counts but the documents are
+     *  dropped, so memory is bounded by the chunk size and the vocabulary, not by the corpus.
+     *
+     * The model may be empty or already trained. New sources and new words of a growing alphabet
+     *  are added as they appear. Alpha, beta and lambda are kept fixed. Streamed documents are not
+     *  added to <code>data</code>, so a later <code>estimate()</code> only resamples the documents
+     *  added with <code>addInstances</code> and recounts from them alone.
+     */
+    public void estimateStreaming(Iterator<Instance> instances, int chunkSize, int sweepsPerChunk) {
+        long startTime = System.currentTimeMillis();
 
-        // restore the numThreads
-        numThreads = numConcurrentThread;
+        // As in addInstances() and estimate(), the initial topics and the
+        //  sampler draw from separate generators, so that streaming a corpus
+        //  in one chunk on one thread gives the same counts as training on it.
+        Randoms random = null;
+        Randoms sampleRandom = null;
+        if (randomSeed == -1) {
+            random = new Randoms();
+            sampleRandom = new Randoms();
+        }
+        else {
+            random = new Randoms(randomSeed);
+            sampleRandom = new Randoms(randomSeed);
+        }
+
+        int numChunks = 0;
+        long streamedTokens = 0;
+        ArrayList<TopicAssignment> chunk = new ArrayList<TopicAssignment>(chunkSize);
+
+        while (instances.hasNext()) {
+            chunk.clear();
+            while (chunk.size() < chunkSize && instances.hasNext()) {
+                Instance instance = instances.next();
+                if (alphabet == null) {
+                    alphabet = instance.getDataAlphabet();
+                }
+                int sourceId = getOrAddSourceId(instance.getSource());
+                growVocabulary(alphabet.size());
+                chunk.add(initializeStreamedDocument(instance, sourceId, random));
+            }
+
+            MultiBackgroundWorkerRunnable runnable = new MultiBackgroundWorkerRunnable(numTopics,
+                    alpha, alphaSum, beta, betaBackground, lambda,
+                    sampleRandom, chunk,
+                    typeTopicCounts, tokensPerTopic,
+                    sourceToSourceId, typeBackgroundCounts, backgroundAndTopicalCounts,
+                    0, chunk.size());
+            // Sample directly against the global type/topic counts
+            runnable.makeOnlyThread();
+            if (sourceLambdas != null) {
+                runnable.setBackgroundPriors(sourceLambdas, sourceBetaBackgrounds);
+            }
+
+            MultiBackgroundWorkerRunnable[] runnables = new MultiBackgroundWorkerRunnable[] { runnable };
+            for (int sweep = 0; sweep < sweepsPerChunk; sweep++) {
+                runnable.run();
+                sumBackgroundTopicalCounts(runnables);
+            }
+
+            for (TopicAssignment document : chunk) {
+                streamedTokens += document.topicSequence.getLength();
+            }
+            numChunks++;
+
+            if (showTopicsInterval != 0 && numChunks % showTopicsInterval == 0) {
+                logger.info("\n" + displayTopWords (wordsPerTopic, false));
+            }
+            logger.fine("chunk " + numChunks + ", " + streamedTokens + " tokens");
+        }
+
+        totalTokens += streamedTokens;
+
+        logger.info("Streamed " + numChunks + " chunks, " + streamedTokens + " tokens in " +
+                (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    // Adding sources to a trained model
+
+    /**
+     * Learn the background topics of new sources from their documents alone, keeping the
+     *  shared topics fixed. The source of each document is its <code>getSource()</code>, and
+     *  none of them may be a source the model already has.
+     *
+     * The type/topic counts are not changed, so this only needs to sample the new documents,
+     *  and the workers share the model's counts instead of copying them. Words that are not in
+     *  the model's vocabulary are ignored. The documents are not kept in the model.
+     */
+    public void addSources(InstanceList instances, int numIterations) {
+        long startTime = System.currentTimeMillis();
+
+        for (Instance instance : instances) {
+            if (sourceToSourceId.containsKey(instance.getSource())) {
+                throw new IllegalArgumentException("Source " + instance.getSource() + " is already in the model");
+            }
+        }
+
+        Randoms random = null;
+        if (randomSeed == -1) {
+            random = new Randoms();
+        }
+        else {
+            random = new Randoms(randomSeed);
+        }
+
+        // Initialize the new documents at random. Only their background
+        //  counts go into the model; their topics are not counted.
+        ArrayList<TopicAssignment> newData = new ArrayList<TopicAssignment>(instances.size());
+        for (Instance instance : instances) {
+            int sourceId = getOrAddSourceId(instance.getSource());
+            FeatureSequence tokens = (FeatureSequence) instance.getData();
+            LabelSequence topicSequence =
+                    new LabelSequence(topicAlphabet, new int[tokens.size()]);
+
+            int[] topics = topicSequence.getFeatures();
+            for (int position = 0; position < topics.length; position++) {
+                int type = tokens.getIndexAtPosition(position);
+                if (type >= numTypes) { continue; }
+
+                if (random.nextUniform() > lambda) {
+                    topics[position] = random.nextInt(numTopics);
+                    backgroundAndTopicalCounts[sourceId][TOPICAL_WORD_INDEX]++;
+                }
+                else {
+                    topics[position] = backgroundTopic;
+                    typeBackgroundCounts[sourceId][type]++;
+                    backgroundAndTopicalCounts[sourceId][BACKGROUND_WORD_INDEX]++;
+                }
+            }
+            newData.add(new TopicAssignment(instance, topicSequence));
+        }
+
+        int numWorkers = Math.max(1, Math.min(numThreads, newData.size()));
+        MultiBackgroundWorkerRunnable[] runnables = new MultiBackgroundWorkerRunnable[numWorkers];
+        int docsPerThread = newData.size() / numWorkers;
+        int offset = 0;
+        for (int thread = 0; thread < numWorkers; thread++) {
+            // some docs may be missing at the end due to integer division
+            if (thread == numWorkers - 1) {
+                docsPerThread = newData.size() - offset;
+            }
+
+            Randoms threadRandom = null;
+            if (randomSeed == -1) {
+                threadRandom = new Randoms();
+            }
+            else {
+                threadRandom = new Randoms(randomSeed);
+            }
+
+            runnables[thread] = new FrozenTopicsWorkerRunnable(numTopics,
+                    alpha, alphaSum, beta, betaBackground, lambda,
+                    threadRandom, newData,
+                    typeTopicCounts, tokensPerTopic,
+                    sourceToSourceId, typeBackgroundCounts, backgroundAndTopicalCounts,
+                    offset, docsPerThread);
+            if (sourceLambdas != null) {
+                runnables[thread].setBackgroundPriors(sourceLambdas, sourceBetaBackgrounds);
+            }
+
+            offset += docsPerThread;
+        }
+
+        IterationEngine engine = new IterationEngine(runnables);
+        final MultiBackgroundWorkerRunnable[] workers = runnables;
+        Runnable merge = new Runnable() {
+            public void run() {
+                sumBackgroundTopicalCounts(workers);
+            }
+        };
+
+        for (int iteration = 1; iteration <= numIterations; iteration++) {
+            engine.runIteration(merge);
+        }
+        engine.shutdown();
+
+        logger.info("Added " + instances.size() + " documents of new sources in " +
+                (System.currentTimeMillis() - startTime) + "ms; " + engine.getSummaryReport());
+    }
+
+    /** Return the id of this source, adding empty background counts for it if it is new */
+    protected int getOrAddSourceId(Object source) {
+        Integer sourceId = sourceToSourceId.get(source);
+        if (sourceId != null) {
+            return sourceId;
+        }
+
+        sourceId = numSources;
+        sourceToSourceId.put(source, sourceId);
+        dataBySourceId.add(new ArrayList<TopicAssignment>());
+        numSources++;
+
+        if (typeBackgroundCounts == null) {
+            typeBackgroundCounts = new int[0][];
+            backgroundAndTopicalCounts = new int[0][];
+        }
+        typeBackgroundCounts = Arrays.copyOf(typeBackgroundCounts, numSources);
+        typeBackgroundCounts[sourceId] = new int[numTypes];
+        backgroundAndTopicalCounts = Arrays.copyOf(backgroundAndTopicalCounts, numSources);
+        backgroundAndTopicalCounts[sourceId] = new int[2];
+
+        if (sourceLambdas != null) {
+            sourceLambdas = Arrays.copyOf(sourceLambdas, numSources);
+            sourceLambdas[sourceId] = lambda;
+            sourceBetaBackgrounds = Arrays.copyOf(sourceBetaBackgrounds, numSources);
+            sourceBetaBackgrounds[sourceId] = betaBackground;
+        }
+
+        return sourceId;
     }
+
+    /** The lambda of this source, which is learned per source when optimizing the background priors */
+    public double getLambda(int sourceId) {
+        return sourceLambdas == null ? lambda : sourceLambdas[sourceId];
+    }
+
+    /** The betaBackground of this source, which is learned per source when optimizing the background priors */
+    public double getBetaBackground(int sourceId) {
+        return sourceBetaBackgrounds == null ? betaBackground : sourceBetaBackgrounds[sourceId];
+    }
+
+    /**
+     * Learn a lambda and a betaBackground for every source. The sources do not depend on
+     *  each other, so if <code>executor</code> is not null they are learned on its threads.
+     */
+    public void optimizeBackgroundPriors(BackgroundWorkerRunnable[] runnables, ExecutorService executor) {
+        if (sourceLambdas == null) {
+            sourceLambdas = new double[numSources];
+            Arrays.fill(sourceLambdas, lambda);
+            sourceBetaBackgrounds = new double[numSources];
+            Arrays.fill(sourceBetaBackgrounds, betaBackground);
+        }
+
+        final SparseHistogram[] countHistograms = new SparseHistogram[numSources];
+        final SparseHistogram[] lengthHistograms = new SparseHistogram[numSources];
+        for (int sourceId = 0; sourceId < numSources; sourceId++) {
+            countHistograms[sourceId] = new SparseHistogram();
+            lengthHistograms[sourceId] = new SparseHistogram();
+            for (BackgroundWorkerRunnable runnable : runnables) {
+                countHistograms[sourceId].add(runnable.getBackgroundCountHistograms()[sourceId]);
+                lengthHistograms[sourceId].add(runnable.getBackgroundLengthHistograms()[sourceId]);
+                runnable.getBackgroundCountHistograms()[sourceId].clear();
+                runnable.getBackgroundLengthHistograms()[sourceId].clear();
+            }
+        }
+
+        if (executor == null) {
+            for (int sourceId = 0; sourceId < numSources; sourceId++) {
+                optimizeBackgroundPriors(sourceId, countHistograms[sourceId], lengthHistograms[sourceId]);
+            }
+        }
+        else {
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (int sourceId = 0; sourceId < numSources; sourceId++) {
+                final int source = sourceId;
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        optimizeBackgroundPriors(source, countHistograms[source], lengthHistograms[source]);
+                        return null;
+                    }
+                });
+            }
+
+            try {
+                for (Future<Object> future : executor.invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while optimizing the background priors", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Background prior optimization failed", e.getCause());
+            }
+        }
+
+        for (BackgroundWorkerRunnable runnable : runnables) {
+            ((MultiBackgroundWorkerRunnable) runnable).setBackgroundPriors(sourceLambdas, sourceBetaBackgrounds);
+        }
+    }
+
+    void optimizeBackgroundPriors(int sourceId, SparseHistogram countHistogram, SparseHistogram lengthHistogram) {
+        sourceLambdas[sourceId] = learnLambda(countHistogram, lengthHistogram, sourceLambdas[sourceId]);
+        sourceBetaBackgrounds[sourceId] = learnBetaBackground(typeBackgroundCounts[sourceId],
+                backgroundAndTopicalCounts[sourceId][BACKGROUND_WORD_INDEX], sourceBetaBackgrounds[sourceId]);
+    }
+
+    /** Make room for the counts of types that were added to the alphabet since the counts were built */
+    protected void growVocabulary(int newNumTypes) {
+        if (typeTopicCounts == null) {
+            typeTopicCounts = new int[0][];
+            typeTotals = new int[0];
+            numTypes = 0;
+        }
+        if (newNumTypes <= numTypes) { return; }
+
+        typeTopicCounts = Arrays.copyOf(typeTopicCounts, newNumTypes);
+        for (int type = numTypes; type < newNumTypes; type++) {
+            typeTopicCounts[type] = new int[0];
+        }
+        typeTotals = Arrays.copyOf(typeTotals, newNumTypes);
+        for (int sourceId = 0; sourceId < numSources; sourceId++) {
+            typeBackgroundCounts[sourceId] = Arrays.copyOf(typeBackgroundCounts[sourceId], newNumTypes);
+        }
+
+        numTypes = newNumTypes;
+        betaSum = beta * numTypes;
+    }
+
+    /** Assign random initial topics to a streamed document and add them to the global counts */
+    TopicAssignment initializeStreamedDocument(Instance instance, int sourceId, Randoms random) {
+        FeatureSequence tokens = (FeatureSequence) instance.getData();
+        LabelSequence topicSequence =
+                new LabelSequence(topicAlphabet, new int[tokens.size()]);
+
+        int[] topics = topicSequence.getFeatures();
+        for (int position = 0; position < topics.length; position++) {
+            int type = tokens.getIndexAtPosition(position);
+
+            // Keep enough room in the row for every topic this type may take
+            typeTotals[type]++;
+            if (typeTotals[type] > maxTypeCount) { maxTypeCount = typeTotals[type]; }
+            int capacity = Math.min(numTopics, typeTotals[type]);
+            if (typeTopicCounts[type].length < capacity) {
+                typeTopicCounts[type] = Arrays.copyOf(typeTopicCounts[type], capacity);
+            }
+
+            if (random.nextUniform() > lambda) {
+                int topic = random.nextInt(numTopics);
+                topics[position] = topic;
+                tokensPerTopic[topic]++;
+                incrementTypeTopicCount(type, topic);
+                backgroundAndTopicalCounts[sourceId][TOPICAL_WORD_INDEX]++;
+            }
+            else {
+                topics[position] = backgroundTopic;
+                typeBackgroundCounts[sourceId][type]++;
+                backgroundAndTopicalCounts[sourceId][BACKGROUND_WORD_INDEX]++;
+            }
+        }
+
+        return new TopicAssignment(instance, topicSequence);
+    }
+
+    /** Add one token of this topic to the sorted count/topic row of the type */
+    void incrementTypeTopicCount(int type, int topic) {
+        int[] currentTypeTopicCounts = typeTopicCounts[type];
+
+        int index = 0;
+        while (currentTypeTopicCounts[index] > 0 &&
+                (currentTypeTopicCounts[index] & topicMask) != topic) {
+            index++;
+        }
+        int currentValue = currentTypeTopicCounts[index] >> topicBits;
+        currentTypeTopicCounts[index] = ((currentValue + 1) << topicBits) + topic;
+
+        // A new value is 1, so it only needs sorting by topic suffix, which
+        //  doesn't matter. Leaving it in place keeps the row in the order
+        //  buildInitialTypeTopicCounts() would give it.
+        if (currentValue == 0) { return; }
+
+        // Bubble the increased value left, if necessary
+        while (index > 0 &&
+                currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
+            int temp = currentTypeTopicCounts[index];
+            currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
+            currentTypeTopicCounts[index - 1] = temp;
+
+            index--;
+        }
+    }
+
     public TreeSet<IDSorter> getSortedBackgroundWordsForSource(Object source){
         return getSortedBackgroundWords(typeBackgroundCounts[sourceToSourceId.get(source)]);
     }
@@ -449,158 +856,70 @@ public class MultiBackgroundTopicModel extends BackgroundTopicModel {
         return out.toString();
     }
 
-    public double modelLogLikelihood() {
-        double logLikelihood = 0.0;
-        int nonZeroTopics;
-
-        // The likelihood of the model is a combination of a
-        // Dirichlet-multinomial for the words in each topic
-        // and a Dirichlet-multinomial for the topics in each
-        // document.
+    /**
+     * The document terms: the topic counts of each document, as in LDA, and the split of
+     *  its words into background and topical words, which the sampler treats as a
+     *  symmetric Beta(lambda, lambda) with the lambda of the document's source.
+     */
+    protected double documentLogLikelihood(int startDoc, int endDoc) {
+        double logLikelihood = super.documentLogLikelihood(startDoc, endDoc);
 
-        // The likelihood function of a dirichlet multinomial is
-        //	 Gamma( sum_i alpha_i )	 prod_i Gamma( alpha_i + N_i )
-        //	prod_i Gamma( alpha_i )	  Gamma( sum_i (alpha_i + N_i) )
-
-        // So the log likelihood is
-        //	logGamma ( sum_i alpha_i ) - logGamma ( sum_i (alpha_i + N_i) ) +
-        //	 sum_i [ logGamma( alpha_i + N_i) - logGamma( alpha_i ) ]
-
-        // Do the documents first
-
-        int[] topicCounts = new int[numTopics];
         int[] backgroundTopicalCounts = new int[2];
-        double[] topicLogGammas = new double[numTopics];
-        double[] backgroundTopicalGammas = new double[2];
-        int[] docTopics;
-
-        for (int topic=0; topic < numTopics; topic++) {
-            topicLogGammas[ topic ] = Dirichlet.logGammaStirling( alpha[topic] );
-        }
-        backgroundTopicalGammas[TOPICAL_WORD_INDEX] = Dirichlet.logGammaStirling(1-lambda);
-        backgroundTopicalGammas[BACKGROUND_WORD_INDEX] = Dirichlet.logGammaStirling(lambda);
-        for (int doc=0; doc < data.size(); doc++) {
-            LabelSequence topicSequence =	(LabelSequence) data.get(doc).topicSequence;
-
-            docTopics = topicSequence.getFeatures();
-
-            for (int token=0; token < docTopics.length; token++) {
-                if(docTopics[token] == -1){
-                    // background word
-                    backgroundTopicalCounts[BACKGROUND_WORD_INDEX] ++;
-                }else{
-                    // topical word
-                    topicCounts[ docTopics[token] ]++;
-                    backgroundTopicalCounts[TOPICAL_WORD_INDEX] ++;
+        for (int doc = startDoc; doc < endDoc; doc++) {
+            TopicAssignment document = data.get(doc);
+            double docLambda = getLambda(sourceToSourceId.get(document.instance.getSource()));
+            int[] docTopics = ((LabelSequence) document.topicSequence).getFeatures();
+
+            for (int token = 0; token < docTopics.length; token++) {
+                if (docTopics[token] == backgroundTopic) {
+                    backgroundTopicalCounts[BACKGROUND_WORD_INDEX]++;
                 }
-
-            }
-
-            for (int topic=0; topic < numTopics; topic++) {
-                if (topicCounts[topic] > 0) {
-                    logLikelihood += (Dirichlet.logGammaStirling(alpha[topic] + topicCounts[topic]) -
-                            topicLogGammas[ topic ]);
+                else {
+                    backgroundTopicalCounts[TOPICAL_WORD_INDEX]++;
                 }
             }
 
-            // add log-likelihood for topic-background distribution
-            logLikelihood += (Dirichlet.logGammaStirling(1 - lambda + backgroundTopicalCounts[TOPICAL_WORD_INDEX]) -
-                    backgroundTopicalGammas[TOPICAL_WORD_INDEX]);
-
-            logLikelihood += (Dirichlet.logGammaStirling(lambda + backgroundTopicalCounts[BACKGROUND_WORD_INDEX]) -
-                    backgroundTopicalGammas[BACKGROUND_WORD_INDEX]);
-
-            // subtract the (count + parameter) sum term
-            logLikelihood -= Dirichlet.logGammaStirling(alphaSum + docTopics.length);
-
-            // do the same for topic-background
-            logLikelihood -= Dirichlet.logGammaStirling(1 + docTopics.length);
+            logLikelihood += Dirichlet.logGammaStirling(docLambda + backgroundTopicalCounts[TOPICAL_WORD_INDEX]) +
+                    Dirichlet.logGammaStirling(docLambda + backgroundTopicalCounts[BACKGROUND_WORD_INDEX]) -
+                    2 * Dirichlet.logGammaStirling(docLambda);
 
+            logLikelihood += Dirichlet.logGammaStirling(2 * docLambda) -
+                    Dirichlet.logGammaStirling(2 * docLambda + docTopics.length);
 
-            Arrays.fill(topicCounts, 0);
             Arrays.fill(backgroundTopicalCounts, 0);
         }
 
-        // add the parameter sum term
-        logLikelihood += data.size() * Dirichlet.logGammaStirling(alphaSum);
-        logLikelihood += data.size() * Dirichlet.logGammaStirling(1);
-
-
-
-        // And the topics
-
-        // Count the number of type-topic pairs that are not just (logGamma(beta) - logGamma(beta))
-        int nonZeroTypeTopics = 0;
-
-        for (int type=0; type < numTypes; type++) {
-            // reuse this array as a pointer
-
-            topicCounts = typeTopicCounts[type];
-
-            int index = 0;
-            while (index < topicCounts.length &&
-                    topicCounts[index] > 0) {
-                int topic = topicCounts[index] & topicMask;
-                int count = topicCounts[index] >> topicBits;
-
-                nonZeroTypeTopics++;
-                logLikelihood += Dirichlet.logGammaStirling(beta + count);
+        return logLikelihood;
+    }
 
-                if (Double.isNaN(logLikelihood)) {
-                    logger.warning("NaN in log likelihood calculation");
-                    return 0;
-                }
-                else if (Double.isInfinite(logLikelihood)) {
-                    logger.warning("infinite log likelihood");
-                    return 0;
+    /** The type/topic terms, and the background topic terms of the same types for every source */
+    protected double typeTopicLogLikelihood(int startType, int endType) {
+        double logLikelihood = super.typeTopicLogLikelihood(startType, endType);
+
+        for (int source = 0; source < numSources; source++) {
+            double sourceBetaBackground = getBetaBackground(source);
+            double betaBackgroundLogGamma = Dirichlet.logGammaStirling(sourceBetaBackground);
+            int[] counts = typeBackgroundCounts[source];
+            for (int type = startType; type < endType; type++) {
+                if (counts[type] > 0) {
+                    logLikelihood += Dirichlet.logGammaStirling(sourceBetaBackground + counts[type]) -
+                            betaBackgroundLogGamma;
                 }
-
-                index++;
             }
         }
 
+        return logLikelihood;
+    }
 
-        for (int topic=0; topic < numTopics; topic++) {
-            logLikelihood -=
-                    Dirichlet.logGammaStirling( (beta * numTypes) +
-                            tokensPerTopic[ topic ] );
-
-            if (Double.isNaN(logLikelihood)) {
-                logger.info("NaN after topic " + topic + " " + tokensPerTopic[ topic ]);
-                return 0;
-            }
-            else if (Double.isInfinite(logLikelihood)) {
-                logger.info("Infinite value after topic " + topic + " " + tokensPerTopic[ topic ]);
-                return 0;
-            }
-
-        }
+    /** The terms of the topic totals, and of the background topic total of every source */
+    protected double topicLogLikelihood() {
+        double logLikelihood = super.topicLogLikelihood();
 
-        // background topic for each source
-        for (int source=0; source < numSources; source++) {
-            for (int type=0; type < numTypes; type++) {
-                logLikelihood += Dirichlet.logGammaStirling(betaBackground + typeBackgroundCounts[source][type]);
-            }
-            logLikelihood -=
-                    Dirichlet.logGammaStirling( (betaBackground * numTypes) +
+        for (int source = 0; source < numSources; source++) {
+            double sourceBetaBackground = getBetaBackground(source);
+            logLikelihood += Dirichlet.logGammaStirling(sourceBetaBackground * numTypes) -
+                    Dirichlet.logGammaStirling( (sourceBetaBackground * numTypes) +
                             backgroundAndTopicalCounts[ source ][BACKGROUND_WORD_INDEX] );
-
-        }
-
-        // logGamma(|V|*beta) for every topic
-        logLikelihood +=
-                Dirichlet.logGammaStirling(beta * numTypes) * numTopics;
-
-        // logGamma(beta) for all type/topic pairs with non-zero count
-        logLikelihood -=
-                Dirichlet.logGammaStirling(beta) * nonZeroTypeTopics;
-
-        if (Double.isNaN(logLikelihood)) {
-            logger.info("at the end");
-        }
-        else if (Double.isInfinite(logLikelihood)) {
-            logger.info("Infinite value beta " + beta + " * " + numTypes);
-            return 0;
         }
 
         return logLikelihood;
@@ -616,11 +935,13 @@ public class MultiBackgroundTopicModel extends BackgroundTopicModel {
     public TopicInferencer getInferencer(Object source, double[] alpha) {
         if(sourceToSourceId.containsKey(source)) {
             int sourceId = sourceToSourceId.get(source);
+            // Unless it was learned, the background counts are smoothed with beta
+            double inferenceBetaBackground = sourceBetaBackgrounds == null ? beta : sourceBetaBackgrounds[sourceId];
             return new BackgroundTopicInferencer(
                     typeTopicCounts, tokensPerTopic,
                     typeBackgroundCounts[sourceId], backgroundAndTopicalCounts[sourceId],
-                    super.data.get(0).instance.getDataAlphabet(),
-                    alpha, beta, betaSum, lambda);
+                    alphabet,
+                    alpha, beta, inferenceBetaBackground, betaSum, getLambda(sourceId));
         }else{
             throw new IllegalArgumentException("Source " + source.toString() + " not found");
         }
@@ -629,9 +950,291 @@ public class MultiBackgroundTopicModel extends BackgroundTopicModel {
         return getInferencer(source, alpha);
     }
 
+    public MarginalProbEstimator getProbEstimator() {
+        throw new UnsupportedOperationException(
+                "please use getProbEstimator(source) to evaluate documents of a particular document source."
+        );
+    }
+
+    /** Return a tool for estimating the marginal probability of held-out documents of a specific source */
+    public MarginalProbEstimator getProbEstimator(Object source) {
+        if (! sourceToSourceId.containsKey(source)) {
+            throw new IllegalArgumentException("Source " + source.toString() + " not found");
+        }
+        int sourceId = sourceToSourceId.get(source);
+        return new BackgroundMarginalProbEstimator(numTopics, alpha, alphaSum, beta,
+                typeTopicCounts, tokensPerTopic,
+                typeBackgroundCounts[sourceId], backgroundAndTopicalCounts[sourceId][BACKGROUND_WORD_INDEX],
+                getBetaBackground(sourceId), getLambda(sourceId));
+    }
+    /**
+     * Return an inferencer for a specific source that a pool of request threads can share.
+     * Each thread samples with its own state, so there is no need to copy() the inferencer per thread.
+     */
+    public TopicInferencer getThreadSafeInferencer(Object source) {
+        BackgroundTopicInferencer inferencer = (BackgroundTopicInferencer) getInferencer(source, alpha);
+        inferencer.freeze();
+        inferencer.setThreadSafe(true);
+        return inferencer;
+    }
+
+    /**
+     * Infer the topic distributions of many documents from one source in parallel.
+     * Each returned array has the background proportion as its last element.
+     */
+    public double[][] getSampledDistributions(Object source, InstanceList instances,
+                                              int numIterations, int thinning, int burnIn, int numThreads) {
+        BackgroundTopicInferencer inferencer = (BackgroundTopicInferencer) getInferencer(source);
+        return inferencer.freeze().getSampledDistributions(instances, numIterations, thinning, burnIn, numThreads);
+    }
+
+    /**
+     * Infer the topic distributions of a stream of documents from one source in parallel,
+     * handing the results to the sink in input order.
+     */
+    public void inferDistributions(Object source, Iterator<Instance> instances,
+                                   int numIterations, int thinning, int burnIn, int numThreads, int chunkSize,
+                                   TopicInferencer.DistributionSink sink) throws IOException {
+        BackgroundTopicInferencer inferencer = (BackgroundTopicInferencer) getInferencer(source);
+        inferencer.freeze().inferDistributions(instances, numIterations, thinning, burnIn, numThreads, chunkSize, sink);
+    }
+
     public Set<Object> getSources(){
         return sourceToSourceId.keySet();
     }
+    // Inference-only model format
+
+    // "CALD", followed by the format version
+    static final int INFERENCE_MODEL_MAGIC = 0x43414C44;
+    // Version 2 adds the per-source lambda and betaBackground
+    static final int INFERENCE_MODEL_VERSION = 2;
+
+    /**
+     * Write only what inference needs: the alphabet, the type/topic counts, the
+     * per-source background counts and the hyperparameters. Unlike
+     * <code>write(File)</code>, the training documents and their topic assignments
+     * are left out, so the file is a small fraction of the serialized model.
+     * The file is gzipped if its name ends in ".gz".
+     *
+     * Alphabet entries and source names are stored as strings.
+     */
+    public void writeInferenceModel(File file) throws IOException {
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        if (file.getName().endsWith(".gz")) {
+            stream = new GZIPOutputStream(stream, 1 << 16);
+        }
+        DataOutputStream out = new DataOutputStream(stream);
+        try {
+            writeInferenceModel(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void writeInferenceModel(DataOutputStream out) throws IOException {
+        out.writeInt(INFERENCE_MODEL_MAGIC);
+        out.writeInt(INFERENCE_MODEL_VERSION);
+
+        out.writeInt(numTopics);
+        out.writeInt(numTypes);
+        out.writeInt(numSources);
+
+        out.writeDouble(alphaSum);
+        out.writeDouble(beta);
+        out.writeDouble(betaSum);
+        out.writeDouble(betaBackground);
+        out.writeDouble(lambda);
+        writeIntArray(out, tokensPerTopic, numTopics);
+        for (int topic = 0; topic < numTopics; topic++) {
+            out.writeDouble(alpha[topic]);
+        }
+
+        // the alphabet
+        out.writeBoolean(alphabet.growthStopped());
+        for (int type = 0; type < numTypes; type++) {
+            out.writeUTF(alphabet.lookupObject(type).toString());
+        }
+
+        // type/topic counts: the used length of every row, then all rows back to back
+        int[] rowLengths = new int[numTypes];
+        int totalLength = 0;
+        for (int type = 0; type < numTypes; type++) {
+            int[] topicCounts = typeTopicCounts[type];
+            int length = 0;
+            while (length < topicCounts.length && topicCounts[length] > 0) {
+                length++;
+            }
+            // The inferencers treat empty rows as out-of-vocabulary, so keep one
+            //  (zero) cell for types whose tokens are all currently background words.
+            if (length == 0 && topicCounts.length > 0) {
+                length = 1;
+            }
+            rowLengths[type] = length;
+            totalLength += length;
+        }
+        writeIntArray(out, rowLengths, numTypes);
+
+        int[] packedCounts = new int[totalLength];
+        int offset = 0;
+        for (int type = 0; type < numTypes; type++) {
+            System.arraycopy(typeTopicCounts[type], 0, packedCounts, offset, rowLengths[type]);
+            offset += rowLengths[type];
+        }
+        out.writeInt(totalLength);
+        writeIntArray(out, packedCounts, totalLength);
+
+        // per-source background counts, stored sparsely as (type, count) pairs
+        Object[] sourceNames = new Object[numSources];
+        for (Map.Entry<Object, Integer> entry : sourceToSourceId.entrySet()) {
+            sourceNames[entry.getValue()] = entry.getKey();
+        }
+        for (int sourceId = 0; sourceId < numSources; sourceId++) {
+            out.writeUTF(sourceNames[sourceId].toString());
+            out.writeInt(backgroundAndTopicalCounts[sourceId][TOPICAL_WORD_INDEX]);
+            out.writeInt(backgroundAndTopicalCounts[sourceId][BACKGROUND_WORD_INDEX]);
+
+            int[] counts = typeBackgroundCounts[sourceId];
+            int nonZeroTypes = 0;
+            for (int type = 0; type < numTypes; type++) {
+                if (counts[type] > 0) { nonZeroTypes++; }
+            }
+            int[] pairs = new int[2 * nonZeroTypes];
+            int index = 0;
+            for (int type = 0; type < numTypes; type++) {
+                if (counts[type] > 0) {
+                    pairs[index++] = type;
+                    pairs[index++] = counts[type];
+                }
+            }
+            out.writeInt(nonZeroTypes);
+            writeIntArray(out, pairs, pairs.length);
+        }
+
+        out.writeBoolean(sourceLambdas != null);
+        if (sourceLambdas != null) {
+            for (int sourceId = 0; sourceId < numSources; sourceId++) {
+                out.writeDouble(sourceLambdas[sourceId]);
+                out.writeDouble(sourceBetaBackgrounds[sourceId]);
+            }
+        }
+    }
+
+    /**
+     * Load a model written by <code>writeInferenceModel</code>. The result has no
+     * training data, so it supports <code>getInferencer(source)</code> and the topic
+     * reports, but not further training.
+     */
+    public static MultiBackgroundTopicModel readInferenceModel(File file) throws IOException {
+        InputStream stream = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        if (file.getName().endsWith(".gz")) {
+            stream = new GZIPInputStream(stream, 1 << 16);
+        }
+        DataInputStream in = new DataInputStream(stream);
+        try {
+            return readInferenceModel(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static MultiBackgroundTopicModel readInferenceModel(DataInputStream in) throws IOException {
+        if (in.readInt() != INFERENCE_MODEL_MAGIC) {
+            throw new IOException("Not a CA-LDA inference model");
+        }
+        int version = in.readInt();
+        if (version > INFERENCE_MODEL_VERSION) {
+            throw new IOException("Unsupported inference model version " + version);
+        }
+
+        int numTopics = in.readInt();
+        int numTypes = in.readInt();
+        int numSources = in.readInt();
+
+        double alphaSum = in.readDouble();
+        double beta = in.readDouble();
+        double betaSum = in.readDouble();
+        double betaBackground = in.readDouble();
+        double lambda = in.readDouble();
+
+        MultiBackgroundTopicModel model =
+            new MultiBackgroundTopicModel(numTopics, alphaSum, beta, betaBackground, lambda);
+        model.betaSum = betaSum;
+        model.tokensPerTopic = readIntArray(in, numTopics);
+        for (int topic = 0; topic < numTopics; topic++) {
+            model.alpha[topic] = in.readDouble();
+        }
+
+        boolean growthStopped = in.readBoolean();
+        Alphabet alphabet = new Alphabet(numTypes, String.class);
+        for (int type = 0; type < numTypes; type++) {
+            alphabet.lookupIndex(in.readUTF());
+        }
+        if (growthStopped) { alphabet.stopGrowth(); }
+        model.alphabet = alphabet;
+        model.numTypes = numTypes;
+
+        int[] rowLengths = readIntArray(in, numTypes);
+        int[] packedCounts = readIntArray(in, in.readInt());
+        model.typeTopicCounts = new int[numTypes][];
+        int offset = 0;
+        for (int type = 0; type < numTypes; type++) {
+            int[] topicCounts = new int[rowLengths[type]];
+            System.arraycopy(packedCounts, offset, topicCounts, 0, topicCounts.length);
+            model.typeTopicCounts[type] = topicCounts;
+            offset += topicCounts.length;
+        }
+
+        model.numSources = numSources;
+        model.typeBackgroundCounts = new int[numSources][numTypes];
+        model.backgroundAndTopicalCounts = new int[numSources][2];
+        for (int sourceId = 0; sourceId < numSources; sourceId++) {
+            model.sourceToSourceId.put(in.readUTF(), sourceId);
+            model.dataBySourceId.add(new ArrayList<TopicAssignment>());
+            model.backgroundAndTopicalCounts[sourceId][TOPICAL_WORD_INDEX] = in.readInt();
+            model.backgroundAndTopicalCounts[sourceId][BACKGROUND_WORD_INDEX] = in.readInt();
+
+            int nonZeroTypes = in.readInt();
+            int[] pairs = readIntArray(in, 2 * nonZeroTypes);
+            for (int index = 0; index < pairs.length; index += 2) {
+                model.typeBackgroundCounts[sourceId][pairs[index]] = pairs[index + 1];
+            }
+        }
+
+        if (version >= 2 && in.readBoolean()) {
+            model.sourceLambdas = new double[numSources];
+            model.sourceBetaBackgrounds = new double[numSources];
+            for (int sourceId = 0; sourceId < numSources; sourceId++) {
+                model.sourceLambdas[sourceId] = in.readDouble();
+                model.sourceBetaBackgrounds[sourceId] = in.readDouble();
+            }
+        }
+
+        return model;
+    }
+
+    static void writeIntArray(DataOutputStream out, int[] values, int length) throws IOException {
+        // go through a byte buffer in blocks rather than one writeInt() per value
+        ByteBuffer buffer = ByteBuffer.allocate(4 * Math.min(length, 1 << 16));
+        for (int start = 0; start < length; start += 1 << 16) {
+            int blockLength = Math.min(length - start, 1 << 16);
+            buffer.clear();
+            buffer.asIntBuffer().put(values, start, blockLength);
+            out.write(buffer.array(), 0, 4 * blockLength);
+        }
+    }
+
+    static int[] readIntArray(DataInputStream in, int length) throws IOException {
+        int[] values = new int[length];
+        ByteBuffer buffer = ByteBuffer.allocate(4 * Math.min(length, 1 << 16));
+        for (int start = 0; start < length; start += 1 << 16) {
+            int blockLength = Math.min(length - start, 1 << 16);
+            in.readFully(buffer.array(), 0, 4 * blockLength);
+            buffer.clear();
+            buffer.asIntBuffer().get(values, start, blockLength);
+        }
+        return values;
+    }
+
     public static void main(String[] args){
 
         try {
@@ -0,0 +1,118 @@
+package cc.mallet.topics;
+
+import cc.mallet.types.Dirichlet;
+import cc.mallet.util.Randoms;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * A worker of MultiBackgroundTopicModel that samples a contiguous range of documents,
+ * which may come from several sources.
+ *
+ * Instead of a private copy of every source's background counts, the worker reads the
+ * shared counts from the end of the last iteration and records its own changes as
+ * deltas. Deltas are only allocated for the sources this worker has documents of, and
+ * the types whose delta changed are tracked so the model can merge them without
+ * sweeping the whole vocabulary.
+ */
+public class MultiBackgroundWorkerRunnable extends BackgroundWorkerRunnable {
+    Map<Object, Integer> sourceToSourceId;
+
+    // shared counts, indexed by <source id, feature index>; only written between iterations
+    int[][] globalTypeBackgroundCounts;
+    // this worker's changes since the last merge, null for sources it has no documents of
+    int[][] typeBackgroundDeltas;
+    BitSet[] changedTypes;
+
+    // local copies of the background/topical token counts of each source
+    int[][] localBackgroundAndTopicalCounts;
+
+    int currentSourceId;
+
+    // the model's per-source lambda and betaBackground, or null while every source uses the same ones
+    double[] sourceLambdas;
+    double[] sourceBetaBackgrounds;
+
+    public MultiBackgroundWorkerRunnable(int numTopics, double[] alpha, double alphaSum, double beta,
+                                         double betaBackground, double lambda,
+                                         Randoms random, ArrayList<TopicAssignment> data,
+                                         int[][] typeTopicCounts, int[] tokensPerTopic,
+                                         Map<Object, Integer> sourceToSourceId,
+                                         int[][] globalTypeBackgroundCounts, int[][] backgroundAndTopicalCounts,
+                                         int startDoc, int numDocs) {
+        super(numTopics, alpha, alphaSum, beta, betaBackground, lambda, random, data,
+                typeTopicCounts, tokensPerTopic, null, null, startDoc, numDocs);
+        this.sourceToSourceId = sourceToSourceId;
+        this.globalTypeBackgroundCounts = globalTypeBackgroundCounts;
+
+        int numSources = globalTypeBackgroundCounts.length;
+        typeBackgroundDeltas = new int[numSources][];
+        changedTypes = new BitSet[numSources];
+        localBackgroundAndTopicalCounts = new int[numSources][2];
+
+        for (int doc = startDoc; doc < data.size() && doc < startDoc + numDocs; doc++) {
+            int sourceId = sourceToSourceId.get(data.get(doc).instance.getSource());
+            if (typeBackgroundDeltas[sourceId] == null) {
+                typeBackgroundDeltas[sourceId] = new int[numTypes];
+                changedTypes[sourceId] = new BitSet(numTypes);
+            }
+        }
+        resetBackgroundAndTopicalCounts(backgroundAndTopicalCounts);
+    }
+
+    public int[][] getTypeBackgroundDeltas() { return typeBackgroundDeltas; }
+    public BitSet[] getChangedTypes() { return changedTypes; }
+    public int[][] getLocalBackgroundAndTopicalCounts() { return localBackgroundAndTopicalCounts; }
+
+    /** Start the next iteration from these merged background/topical token counts */
+    public void resetBackgroundAndTopicalCounts(int[][] backgroundAndTopicalCounts) {
+        for (int sourceId = 0; sourceId < backgroundAndTopicalCounts.length; sourceId++) {
+            System.arraycopy(backgroundAndTopicalCounts[sourceId], 0,
+                    localBackgroundAndTopicalCounts[sourceId], 0, 2);
+        }
+    }
+
+    /** Sample each source with its own priors. The arrays are shared with the model and only change between iterations. */
+    public void setBackgroundPriors(double[] sourceLambdas, double[] sourceBetaBackgrounds) {
+        this.sourceLambdas = sourceLambdas;
+        this.sourceBetaBackgrounds = sourceBetaBackgrounds;
+    }
+
+    protected void sampleTopicsForOneDoc (TopicAssignment document) {
+        currentSourceId = sourceToSourceId.get(document.instance.getSource());
+        backgroundAndTopicalCounts = localBackgroundAndTopicalCounts[currentSourceId];
+        if (sourceLambdas != null) {
+            lambda = sourceLambdas[currentSourceId];
+            betaBackground = sourceBetaBackgrounds[currentSourceId];
+        }
+        super.sampleTopicsForOneDoc(document);
+    }
+
+    protected int getStatisticsContext() {
+        return currentSourceId;
+    }
+
+    /** The Beta(lambda, lambda) terms, as in <code>MultiBackgroundTopicModel.documentLogLikelihood()</code> */
+    protected double backgroundLogLikelihood(int[] backgroundTopicalCounts) {
+        int docLength = backgroundTopicalCounts[TOPICAL_WORD_INDEX] + backgroundTopicalCounts[BACKGROUND_WORD_INDEX];
+        return Dirichlet.logGammaStirling(lambda + backgroundTopicalCounts[TOPICAL_WORD_INDEX]) +
+                Dirichlet.logGammaStirling(lambda + backgroundTopicalCounts[BACKGROUND_WORD_INDEX]) -
+                2 * Dirichlet.logGammaStirling(lambda) +
+                Dirichlet.logGammaStirling(2 * lambda) -
+                Dirichlet.logGammaStirling(2 * lambda + docLength);
+    }
+
+    protected int getTypeBackgroundCount(int type) {
+        return globalTypeBackgroundCounts[currentSourceId][type] + typeBackgroundDeltas[currentSourceId][type];
+    }
+
+    protected void addTypeBackgroundCount(int type, int change) {
+        typeBackgroundDeltas[currentSourceId][type] += change;
+        changedTypes[currentSourceId].set(type);
+    }
+
+    /** The deltas already describe this worker's background counts, so there is nothing to rebuild */
+    protected void buildLocalBackgroundCounts () { }
+}
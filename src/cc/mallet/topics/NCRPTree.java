@@ -0,0 +1,295 @@
+package cc.mallet.topics;
+
+import java.util.Arrays;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.IDSorter;
+import cc.mallet.util.Randoms;
+
+/**
+ * The tree of a nested Chinese restaurant process, as used by HierarchicalLDA.
+ *  Nodes are integers that index parallel arrays, rather than objects, and the
+ *  slots of removed nodes are reused. The children of a node are kept in a
+ *  linked list, in the order they were added.
+ * <p>
+ * Every node has a dense row of word counts. A node must have no tokens when it
+ *  is removed, so the row of a free slot is all zero and is reused as it is.
+ */
+public class NCRPTree {
+
+	public static final int NO_NODE = -1;
+
+	int numLevels;
+	int numTypes;
+
+	int root = NO_NODE;
+
+	// indexed by node
+	int[] parents;
+	int[] levels; // -1 for a free slot
+	int[] customers;
+	int[] totalTokens;
+	int[][] typeCounts; // indexed by <node, feature index>
+
+	int[] firstChild;
+	int[] lastChild;
+	int[] nextSibling;
+	int[] previousSibling;
+
+	// the number of slots that have been used, including free ones
+	int size = 0;
+	int numNodes = 0;
+
+	int[] freeNodes;
+	int numFreeNodes = 0;
+
+	/** A tree with only a root node */
+	public NCRPTree (int numLevels, int numTypes) {
+		this(numLevels, numTypes, true);
+	}
+
+	/** Without a root, nodes are added with <code>addNode(NO_NODE, level)</code> */
+	NCRPTree (int numLevels, int numTypes, boolean addRoot) {
+		this.numLevels = numLevels;
+		this.numTypes = numTypes;
+
+		allocate(16);
+
+		if (addRoot) {
+			root = addNode(NO_NODE, 0);
+		}
+	}
+
+	private void allocate (int capacity) {
+		int oldCapacity = parents == null ? 0 : parents.length;
+
+		parents = grow(parents, capacity);
+		levels = grow(levels, capacity);
+		customers = grow(customers, capacity);
+		totalTokens = grow(totalTokens, capacity);
+		firstChild = grow(firstChild, capacity);
+		lastChild = grow(lastChild, capacity);
+		nextSibling = grow(nextSibling, capacity);
+		previousSibling = grow(previousSibling, capacity);
+		freeNodes = grow(freeNodes, capacity);
+
+		typeCounts = typeCounts == null ? new int[capacity][] : Arrays.copyOf(typeCounts, capacity);
+
+		Arrays.fill(levels, oldCapacity, capacity, -1);
+	}
+
+	private static int[] grow (int[] array, int capacity) {
+		return array == null ? new int[capacity] : Arrays.copyOf(array, capacity);
+	}
+
+	/** Add a child at the end of the children of <code>parent</code> and return it */
+	public int addNode (int parent) {
+		return addNode(parent, levels[parent] + 1);
+	}
+
+	int addNode (int parent, int level) {
+		int node;
+		if (numFreeNodes > 0) {
+			numFreeNodes--;
+			node = freeNodes[numFreeNodes];
+		}
+		else {
+			if (size == parents.length) {
+				allocate(size * 2);
+			}
+			node = size;
+			size++;
+		}
+		numNodes++;
+
+		parents[node] = parent;
+		levels[node] = level;
+		customers[node] = 0;
+		totalTokens[node] = 0;
+		if (typeCounts[node] == null) {
+			typeCounts[node] = new int[numTypes];
+		}
+
+		firstChild[node] = NO_NODE;
+		lastChild[node] = NO_NODE;
+		nextSibling[node] = NO_NODE;
+		previousSibling[node] = NO_NODE;
+
+		if (parent != NO_NODE) {
+			if (lastChild[parent] == NO_NODE) {
+				firstChild[parent] = node;
+			}
+			else {
+				nextSibling[lastChild[parent]] = node;
+				previousSibling[node] = lastChild[parent];
+			}
+			lastChild[parent] = node;
+		}
+
+		return node;
+	}
+
+	/** Unlink a node, which must have no tokens and no children, and free its slot */
+	public void removeNode (int node) {
+		assert(totalTokens[node] == 0) : "removing node " + node + " with " + totalTokens[node] + " tokens";
+		assert(firstChild[node] == NO_NODE);
+
+		int parent = parents[node];
+		if (parent != NO_NODE) {
+			if (previousSibling[node] == NO_NODE) {
+				firstChild[parent] = nextSibling[node];
+			}
+			else {
+				nextSibling[previousSibling[node]] = nextSibling[node];
+			}
+			if (nextSibling[node] == NO_NODE) {
+				lastChild[parent] = previousSibling[node];
+			}
+			else {
+				previousSibling[nextSibling[node]] = previousSibling[node];
+			}
+		}
+
+		levels[node] = -1;
+		numNodes--;
+		freeNodes[numFreeNodes] = node;
+		numFreeNodes++;
+	}
+
+	/** Add a chain of new nodes below <code>node</code> down to the last level and return the leaf */
+	public int getNewLeaf (int node) {
+		while (levels[node] < numLevels - 1) {
+			node = addNode(node);
+		}
+		return node;
+	}
+
+	/** Add one customer to every node from this leaf up to the root */
+	public void addPath (int leaf) {
+		for (int node = leaf; node != NO_NODE; node = parents[node]) {
+			customers[node]++;
+		}
+	}
+
+	/** Remove one customer from every node from this leaf up to the root, removing nodes that are left empty */
+	public void dropPath (int leaf) {
+		int node = leaf;
+		while (node != NO_NODE) {
+			int parent = parents[node];
+			customers[node]--;
+			if (customers[node] == 0 && node != root) {
+				removeNode(node);
+			}
+			node = parent;
+		}
+	}
+
+	/** Remove every node without customers, deepest first */
+	public void removeEmptyNodes () {
+		for (int level = numLevels - 1; level > 0; level--) {
+			for (int node = 0; node < size; node++) {
+				if (levels[node] == level && customers[node] == 0) {
+					removeNode(node);
+				}
+			}
+		}
+	}
+
+	/** Choose a child of the node, or a new child, from the CRP prior */
+	public int select (int node, double gamma, Randoms random) {
+		double[] weights = new double[numChildren(node) + 1];
+
+		weights[0] = gamma / (gamma + customers[node]);
+
+		int i = 1;
+		for (int child = firstChild[node]; child != NO_NODE; child = nextSibling[child]) {
+			weights[i] = (double) customers[child] / (gamma + customers[node]);
+			i++;
+		}
+
+		int choice = random.nextDiscrete(weights);
+		if (choice == 0) {
+			return addNode(node);
+		}
+
+		int child = firstChild[node];
+		for (i = 1; i < choice; i++) {
+			child = nextSibling[child];
+		}
+		return child;
+	}
+
+	/** Choose an existing child of the node in proportion to its customers */
+	public int selectExisting (int node, double gamma, Randoms random) {
+		double[] weights = new double[numChildren(node)];
+
+		int i = 0;
+		for (int child = firstChild[node]; child != NO_NODE; child = nextSibling[child]) {
+			weights[i] = (double) customers[child] / (gamma + customers[node]);
+			i++;
+		}
+
+		int choice = random.nextDiscrete(weights);
+
+		int child = firstChild[node];
+		for (i = 0; i < choice; i++) {
+			child = nextSibling[child];
+		}
+		return child;
+	}
+
+	public int numChildren (int node) {
+		int count = 0;
+		for (int child = firstChild[node]; child != NO_NODE; child = nextSibling[child]) {
+			count++;
+		}
+		return count;
+	}
+
+	/** Drop every node, without keeping their count rows */
+	void clear () {
+		Arrays.fill(levels, 0, size, -1);
+		Arrays.fill(typeCounts, 0, size, null);
+		size = 0;
+		numNodes = 0;
+		numFreeNodes = 0;
+		root = NO_NODE;
+	}
+
+	public int getRoot () { return root; }
+	public int getParent (int node) { return parents[node]; }
+	public int getLevel (int node) { return levels[node]; }
+	public int getCustomers (int node) { return customers[node]; }
+	public int getTotalTokens (int node) { return totalTokens[node]; }
+	public int getTypeCount (int node, int type) { return typeCounts[node][type]; }
+	public int getFirstChild (int node) { return firstChild[node]; }
+	public int getNextSibling (int node) { return nextSibling[node]; }
+	public boolean isLeaf (int node) { return levels[node] == numLevels - 1; }
+
+	/** The number of nodes in the tree */
+	public int getNumNodes () { return numNodes; }
+
+	/** Nodes are less than this value, though not every slot below it is in use */
+	public int getCapacity () { return size; }
+
+	public String getTopWords (int node, int numWords, boolean withWeight, Alphabet alphabet) {
+		int[] counts = typeCounts[node];
+		IDSorter[] sortedTypes = new IDSorter[numTypes];
+
+		for (int type=0; type < numTypes; type++) {
+			sortedTypes[type] = new IDSorter(type, counts[type]);
+		}
+		Arrays.sort(sortedTypes);
+
+		StringBuffer out = new StringBuffer();
+		for (int i = 0; i < numWords && i < numTypes; i++) {
+			if (withWeight) {
+				out.append(alphabet.lookupObject(sortedTypes[i].getID()) + ":" + sortedTypes[i].getWeight() + " ");
+			}
+			else {
+				out.append(alphabet.lookupObject(sortedTypes[i].getID()) + " ");
+			}
+		}
+		return out.toString();
+	}
+}
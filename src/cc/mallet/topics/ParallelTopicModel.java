@@ -69,8 +69,8 @@ public class ParallelTopicModel implements Serializable {
 	public int[] tokensPerTopic; // indexed by <topic index>
 
 	// for dirichlet estimation
-	public int[] docLengthCounts; // histogram of document sizes
-	public int[][] topicDocCounts; // histogram of document/topic counts, indexed by <topic index, sequence position index>
+	public SparseHistogram docLengthCounts; // histogram of document sizes
+	public SparseHistogram[] topicDocCounts; // histograms of document/topic counts, indexed by <topic index>
 
 	public int numIterations = 1000;
 	public int burninPeriod = 200; 
@@ -420,21 +420,7 @@ public class ParallelTopicModel implements Serializable {
 		// Clear the topic totals
 		Arrays.fill(tokensPerTopic, 0);
 		
-		// Clear the type/topic counts, only 
-		//  looking at the entries before the first 0 entry.
-
-		for (int type = 0; type < numTypes; type++) {
-			
-			int[] targetCounts = typeTopicCounts[type];
-			
-			int position = 0;
-			while (position < targetCounts.length && 
-				   targetCounts[position] > 0) {
-				targetCounts[position] = 0;
-				position++;
-			}
-
-		}
+		clearTypeTopicCounts(typeTopicCounts);
 
 		for (int thread = 0; thread < numThreads; thread++) {
 
@@ -447,55 +433,8 @@ public class ParallelTopicModel implements Serializable {
 			
 			// Now handle the individual type topic counts
 			
-			int[][] sourceTypeTopicCounts = 
-				runnables[thread].getTypeTopicCounts();
-			
-			for (int type = 0; type < numTypes; type++) {
-
-				// Here the source is the individual thread counts,
-				//  and the target is the global counts.
-
-				int[] sourceCounts = sourceTypeTopicCounts[type];
-				int[] targetCounts = typeTopicCounts[type];
-
-				int sourceIndex = 0;
-				while (sourceIndex < sourceCounts.length &&
-					   sourceCounts[sourceIndex] > 0) {
-					
-					int topic = sourceCounts[sourceIndex] & topicMask;
-					int count = sourceCounts[sourceIndex] >> topicBits;
-
-					int targetIndex = 0;
-					int currentTopic = targetCounts[targetIndex] & topicMask;
-					int currentCount;
-					
-					while (targetCounts[targetIndex] > 0 && currentTopic != topic) {
-						targetIndex++;
-						if (targetIndex == targetCounts.length) {
-							logger.info("overflow in merging on type " + type);
-						}
-						currentTopic = targetCounts[targetIndex] & topicMask;
-					}
-					currentCount = targetCounts[targetIndex] >> topicBits;
-					
-					targetCounts[targetIndex] =
-						((currentCount + count) << topicBits) + topic;
-					
-					// Now ensure that the array is still sorted by 
-					//  bubbling this value up.
-					while (targetIndex > 0 &&
-						   targetCounts[targetIndex] > targetCounts[targetIndex - 1]) {
-						int temp = targetCounts[targetIndex];
-						targetCounts[targetIndex] = targetCounts[targetIndex - 1];
-						targetCounts[targetIndex - 1] = temp;
-						
-						targetIndex--;
-					}
-					
-					sourceIndex++;
-				}
-				
-			}
+			addTypeTopicCounts(typeTopicCounts, runnables[thread].getTypeTopicCounts(),
+							   topicMask, topicBits);
 		}
 
 		/* // Debuggging code to ensure counts are being 
@@ -520,8 +459,121 @@ public class ParallelTopicModel implements Serializable {
 		}
 		*/
 	}
+
+	/**
+	 *  Clear packed type/topic counts, only looking at
+	 *   the entries before the first 0 entry of each type.
+	 */
+	public static void clearTypeTopicCounts (int[][] typeTopicCounts) {
+		for (int type = 0; type < typeTopicCounts.length; type++) {
+			
+			int[] targetCounts = typeTopicCounts[type];
+			
+			int position = 0;
+			while (position < targetCounts.length && 
+				   targetCounts[position] > 0) {
+				targetCounts[position] = 0;
+				position++;
+			}
+
+		}
+	}
+
+	/**
+	 *  Add one worker's packed type/topic counts to the global counts,
+	 *   keeping the entries of each type sorted by count.
+	 */
+	public static void addTypeTopicCounts (int[][] typeTopicCounts, int[][] sourceTypeTopicCounts,
+										   int topicMask, int topicBits) {
+		for (int type = 0; type < typeTopicCounts.length; type++) {
+
+			// Here the source is the individual thread counts,
+			//  and the target is the global counts.
+
+			int[] sourceCounts = sourceTypeTopicCounts[type];
+			int[] targetCounts = typeTopicCounts[type];
+
+			int sourceIndex = 0;
+			while (sourceIndex < sourceCounts.length &&
+				   sourceCounts[sourceIndex] > 0) {
+				
+				int topic = sourceCounts[sourceIndex] & topicMask;
+				int count = sourceCounts[sourceIndex] >> topicBits;
+
+				int targetIndex = 0;
+				int currentTopic = targetCounts[targetIndex] & topicMask;
+				int currentCount;
+				
+				while (targetCounts[targetIndex] > 0 && currentTopic != topic) {
+					targetIndex++;
+					if (targetIndex == targetCounts.length) {
+						logger.info("overflow in merging on type " + type);
+					}
+					currentTopic = targetCounts[targetIndex] & topicMask;
+				}
+				currentCount = targetCounts[targetIndex] >> topicBits;
+				
+				targetCounts[targetIndex] =
+					((currentCount + count) << topicBits) + topic;
+				
+				// Now ensure that the array is still sorted by 
+				//  bubbling this value up.
+				while (targetIndex > 0 &&
+					   targetCounts[targetIndex] > targetCounts[targetIndex - 1]) {
+					int temp = targetCounts[targetIndex];
+					targetCounts[targetIndex] = targetCounts[targetIndex - 1];
+					targetCounts[targetIndex - 1] = temp;
+					
+					targetIndex--;
+				}
+				
+				sourceIndex++;
+			}
+			
+		}
+	}
 	
 
+	/**
+	 *  Copy the merged topic totals and type/topic counts back to
+	 *   each worker for the next iteration.
+	 */
+	public void distributeTypeTopicCounts (WorkerRunnable[] runnables) {
+		for (int thread = 0; thread < runnables.length; thread++) {
+			int[] runnableTotals = runnables[thread].getTokensPerTopic();
+			System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
+			
+			copyTypeTopicCounts(typeTopicCounts, runnables[thread].getTypeTopicCounts());
+		}
+	}
+
+	/**
+	 *  Overwrite a worker's packed type/topic counts with the global ones,
+	 *   stopping at the first entry that is 0 in both.
+	 */
+	public static void copyTypeTopicCounts (int[][] typeTopicCounts, int[][] targetTypeTopicCounts) {
+		for (int type = 0; type < typeTopicCounts.length; type++) {
+			int[] targetCounts = targetTypeTopicCounts[type];
+			int[] sourceCounts = typeTopicCounts[type];
+			
+			int index = 0;
+			while (index < sourceCounts.length) {
+				
+				if (sourceCounts[index] != 0) {
+					targetCounts[index] = sourceCounts[index];
+				}
+				else if (targetCounts[index] != 0) {
+					targetCounts[index] = 0;
+				}
+				else {
+					break;
+				}
+				
+				index++;
+			}
+		}
+	}
+
 	/** 
 	 *  Gather statistics on the size of documents 
 	 *  and create histograms for use in Dirichlet hyperparameter
@@ -544,57 +596,45 @@ public class ParallelTopicModel implements Serializable {
 		logger.info("max tokens: " + maxTokens);
 		logger.info("total tokens: " + totalTokens);
 
-		docLengthCounts = new int[maxTokens + 1];
-		topicDocCounts = new int[numTopics][maxTokens + 1];
+		docLengthCounts = new SparseHistogram();
+		topicDocCounts = new SparseHistogram[numTopics];
+		for (int topic = 0; topic < numTopics; topic++) {
+			topicDocCounts[topic] = new SparseHistogram();
+		}
 	}
 	
+	/** Optimize alpha on the calling thread */
 	public void optimizeAlpha(WorkerRunnable[] runnables) {
+		optimizeAlpha(runnables, null);
+	}
+
+	/**
+	 *  Optimize alpha from the document/topic histograms the workers collected.
+	 *   If <code>executor</code> is not null, the topics are updated on its threads.
+	 */
+	public void optimizeAlpha(WorkerRunnable[] runnables, ExecutorService executor) {
 
 		// First clear the sufficient statistic histograms
 
-		Arrays.fill(docLengthCounts, 0);
+		docLengthCounts.clear();
 		for (int topic = 0; topic < topicDocCounts.length; topic++) {
-			Arrays.fill(topicDocCounts[topic], 0);
+			topicDocCounts[topic].clear();
 		}
 
 		for (int thread = 0; thread < numThreads; thread++) {
-			int[] sourceLengthCounts = runnables[thread].getDocLengthCounts();
-			int[][] sourceTopicCounts = runnables[thread].getTopicDocCounts();
+			SparseHistogram sourceLengthCounts = runnables[thread].getDocLengthCounts();
+			SparseHistogram[] sourceTopicCounts = runnables[thread].getTopicDocCounts();
 
-			for (int count=0; count < sourceLengthCounts.length; count++) {
-				if (sourceLengthCounts[count] > 0) {
-					docLengthCounts[count] += sourceLengthCounts[count];
-					sourceLengthCounts[count] = 0;
-				}
-			}
+			docLengthCounts.add(sourceLengthCounts);
+			sourceLengthCounts.clear();
 
 			for (int topic=0; topic < numTopics; topic++) {
-
-				if (! usingSymmetricAlpha) {
-					for (int count=0; count < sourceTopicCounts[topic].length; count++) {
-						if (sourceTopicCounts[topic][count] > 0) {
-							topicDocCounts[topic][count] += sourceTopicCounts[topic][count];
-							sourceTopicCounts[topic][count] = 0;
-						}
-					}
-				}
-				else {
-					// For the symmetric version, we only need one 
-					//  count array, which I'm putting in the same 
-					//  data structure, but for topic 0. All other
-					//  topic histograms will be empty.
-					// I'm duplicating this for loop, which 
-					//  isn't the best thing, but it means only checking
-					//  whether we are symmetric or not numTopics times, 
-					//  instead of numTopics * longest document length.
-					for (int count=0; count < sourceTopicCounts[topic].length; count++) {
-						if (sourceTopicCounts[topic][count] > 0) {
-							topicDocCounts[0][count] += sourceTopicCounts[topic][count];
-							//			 ^ the only change
-							sourceTopicCounts[topic][count] = 0;
-						}
-					}
-				}
+				// For the symmetric version, we only need one 
+				//  histogram, which I'm putting in the same 
+				//  data structure, but for topic 0. All other
+				//  topic histograms will be empty.
+				topicDocCounts[usingSymmetricAlpha ? 0 : topic].add(sourceTopicCounts[topic]);
+				sourceTopicCounts[topic].clear();
 			}
 		}
 
@@ -609,7 +649,7 @@ public class ParallelTopicModel implements Serializable {
 		}
 		else {
 			try {
-				alphaSum = Dirichlet.learnParameters(alpha, topicDocCounts, docLengthCounts, 1.001, 1.0, 1);
+				alphaSum = Dirichlet.learnParameters(alpha, topicDocCounts, docLengthCounts, 1.001, 1.0, 1, executor);
 			} catch (RuntimeException e) {
 				// Dirichlet optimization has become unstable. This is known to happen for very small corpora (~5 docs).
 				logger.warning("Dirichlet optimization has become unstable. Resetting to alpha_t = 1.0.");
@@ -625,28 +665,15 @@ public class ParallelTopicModel implements Serializable {
 		
 		// First clear the sufficient statistic histograms
 
-		Arrays.fill(docLengthCounts, 0);
+		docLengthCounts.clear();
 		for (int topic = 0; topic < topicDocCounts.length; topic++) {
-			Arrays.fill(topicDocCounts[topic], 0);
+			topicDocCounts[topic].clear();
 		}
 
 		for (int thread = 0; thread < numThreads; thread++) {
-			int[] sourceLengthCounts = runnables[thread].getDocLengthCounts();
-			int[][] sourceTopicCounts = runnables[thread].getTopicDocCounts();
-
-			for (int count=0; count < sourceLengthCounts.length; count++) {
-				if (sourceLengthCounts[count] > 0) {
-					sourceLengthCounts[count] = 0;
-				}
-			}
-
-			for (int topic=0; topic < numTopics; topic++) {
-
-				for (int count=0; count < sourceTopicCounts[topic].length; count++) {
-					if (sourceTopicCounts[topic][count] > 0) {
-						sourceTopicCounts[topic][count] = 0;
-					}
-				}
+			runnables[thread].getDocLengthCounts().clear();
+			for (SparseHistogram histogram : runnables[thread].getTopicDocCounts()) {
+				histogram.clear();
 			}
 		}
 
@@ -748,7 +775,7 @@ public class ParallelTopicModel implements Serializable {
 													   runnableCounts, runnableTotals,
 													   offset, docsPerThread);
 				
-				runnables[thread].initializeAlphaStatistics(docLengthCounts.length);
+				runnables[thread].initializeAlphaStatistics();
 				
 				offset += docsPerThread;
 			
@@ -773,7 +800,7 @@ public class ParallelTopicModel implements Serializable {
 											  typeTopicCounts, tokensPerTopic,
 											  offset, docsPerThread);
 
-			runnables[0].initializeAlphaStatistics(docLengthCounts.length);
+			runnables[0].initializeAlphaStatistics();
 
 			// If there is only one thread, we 
 			//  can avoid communications overhead.
@@ -782,7 +809,18 @@ public class ParallelTopicModel implements Serializable {
 			runnables[0].makeOnlyThread();
 		}
 
-		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		IterationEngine engine = new IterationEngine(runnables);
+
+		final WorkerRunnable[] workers = runnables;
+		Runnable merge = null;
+		if (numThreads > 1) {
+			merge = new Runnable() {
+					public void run() {
+						sumTypeTopicCounts(workers);
+						distributeTypeTopicCounts(workers);
+					}
+				};
+		}
 	
 		for (int iteration = 1; iteration <= numIterations; iteration++) {
 
@@ -800,92 +838,18 @@ public class ParallelTopicModel implements Serializable {
 				this.write(new File(modelFilename + '.' + iteration));
 			}
 
-			if (numThreads > 1) {
-			
-				// Submit runnables to thread pool
-				
-				for (int thread = 0; thread < numThreads; thread++) {
-					if (iteration > burninPeriod && optimizeInterval != 0 &&
-						iteration % saveSampleInterval == 0) {
-						runnables[thread].collectAlphaStatistics();
-					}
-					
-					logger.fine("submitting thread " + thread);
-					executor.submit(runnables[thread]);
-					//runnables[thread].run();
-				}
-				
-				// I'm getting some problems that look like 
-				//  a thread hasn't started yet when it is first
-				//  polled, so it appears to be finished. 
-				// This only occurs in very short corpora.
-				try {
-					Thread.sleep(20);
-				} catch (InterruptedException e) {
-					
-				}
-				
-				boolean finished = false;
-				while (! finished) {
-					
-					try {
-						Thread.sleep(10);
-					} catch (InterruptedException e) {
-						
-					}
-					
-					finished = true;
-					
-					// Are all the threads done?
-					for (int thread = 0; thread < numThreads; thread++) {
-						//logger.info("thread " + thread + " done? " + runnables[thread].isFinished);
-						finished = finished && runnables[thread].isFinished;
-					}
-					
-				}
-				
-				//System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
-				
-				sumTypeTopicCounts(runnables);
-				
-				//System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
-				
-				for (int thread = 0; thread < numThreads; thread++) {
-					int[] runnableTotals = runnables[thread].getTokensPerTopic();
-					System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
-					
-					int[][] runnableCounts = runnables[thread].getTypeTopicCounts();
-					for (int type = 0; type < numTypes; type++) {
-						int[] targetCounts = runnableCounts[type];
-						int[] sourceCounts = typeTopicCounts[type];
-						
-						int index = 0;
-						while (index < sourceCounts.length) {
-							
-							if (sourceCounts[index] != 0) {
-								targetCounts[index] = sourceCounts[index];
-							}
-							else if (targetCounts[index] != 0) {
-								targetCounts[index] = 0;
-							}
-							else {
-								break;
-							}
-							
-							index++;
-						}
-						//System.arraycopy(typeTopicCounts[type], 0, counts, 0, counts.length);
-					}
-				}
-			}
-			else {
+			for (int thread = 0; thread < numThreads; thread++) {
 				if (iteration > burninPeriod && optimizeInterval != 0 &&
 					iteration % saveSampleInterval == 0) {
-					runnables[0].collectAlphaStatistics();
+					runnables[thread].collectAlphaStatistics();
+				}
+				if (printLogLikelihood && iteration % 10 == 0) {
+					runnables[thread].collectDocumentLikelihood();
 				}
-				runnables[0].run();
 			}
 
+			engine.runIteration(merge);
+
 			long elapsedMillis = System.currentTimeMillis() - iterationStart;
 			if (elapsedMillis < 1000) {
 				logger.fine(elapsedMillis + "ms ");
@@ -894,18 +858,24 @@ public class ParallelTopicModel implements Serializable {
 				logger.fine((elapsedMillis/1000) + "s ");
 			}   
 
+			boolean optimized = false;
 			if (iteration > burninPeriod && optimizeInterval != 0 &&
 				iteration % optimizeInterval == 0) {
 
-				optimizeAlpha(runnables);
+				optimizeAlpha(runnables, engine.getExecutor());
 				optimizeBeta(runnables);
+				optimized = true;
 				
 				logger.fine("[O " + (System.currentTimeMillis() - iterationStart) + "] ");
 			}
 			
 			if (iteration % 10 == 0) {
 				if (printLogLikelihood) {
-					logger.info ("<" + iteration + "> LL/token: " + formatter.format(modelLogLikelihood() / totalTokens));
+					// The document terms the workers summed are out of date if alpha has just changed
+					double logLikelihood = optimized ?
+						modelLogLikelihood(engine.getExecutor()) :
+						modelLogLikelihood(runnables, engine.getExecutor());
+					logger.info ("<" + iteration + "> LL/token: " + formatter.format(logLikelihood / totalTokens));
 				}
 				else {
 					logger.info ("<" + iteration + ">");
@@ -913,7 +883,8 @@ public class ParallelTopicModel implements Serializable {
 			}
 		}
 
-		executor.shutdownNow();
+		engine.shutdown();
+		logger.info(engine.getSummaryReport());
 	
 		long seconds = Math.round((System.currentTimeMillis() - startTime)/1000.0);
 		long minutes = seconds / 60;	seconds %= 60;
@@ -1699,30 +1670,45 @@ public class ParallelTopicModel implements Serializable {
 		double[][] result = new double[data.size()][numTopics];
 
 		for (int doc = 0; doc < data.size(); doc++) {
-			int[] topics = data.get(doc).topicSequence.getFeatures();
-			for (int position = 0; position < topics.length; position++) {
-				result[doc][ topics[position] ]++;
+			getDocumentTopics(doc, result[doc], normalized, smoothed);
+		}
+
+		return result;
+	}
+
+	/**
+	 *  Fill <code>result</code> with the topic weights of one document. Tokens
+	 *   without a topic (the background words of CA-LDA) are not counted.
+	 *   Any number of threads may call this at once, with their own arrays.
+	 */
+	public void getDocumentTopics(int doc, double[] result, boolean normalized, boolean smoothed) {
+		Arrays.fill(result, 0, numTopics, 0.0);
+
+		int[] topics = data.get(doc).topicSequence.getFeatures();
+		for (int position = 0; position < topics.length; position++) {
+			if (topics[position] >= 0) {
+				result[ topics[position] ]++;
 			}
+		}
 
-			if (smoothed) {
-				for (int topic = 0; topic < numTopics; topic++) {
-					result[doc][topic] += alpha[topic];
-				}
+		if (smoothed) {
+			for (int topic = 0; topic < numTopics; topic++) {
+				result[topic] += alpha[topic];
 			}
+		}
 
-			if (normalized) {
-				double sum = 0.0;
-				for (int topic = 0; topic < numTopics; topic++) {
-					sum += result[doc][topic];
-				}
+		if (normalized) {
+			double sum = 0.0;
+			for (int topic = 0; topic < numTopics; topic++) {
+				sum += result[topic];
+			}
+			if (sum > 0) {
 				double normalizer = 1.0 / sum;
 				for (int topic = 0; topic < numTopics; topic++) {
-					result[doc][topic] *= normalizer;
-				}				
+					result[topic] *= normalizer;
+				}
 			}
 		}
-
-		return result;
 	}
 	
 	public ArrayList<TreeSet<IDSorter>> getTopicDocuments(double smoothing) {
@@ -1831,11 +1817,106 @@ public class ParallelTopicModel implements Serializable {
 		}
 	}
 	
+	// the number of documents or types in each block of the parallel log likelihood
+	static final int LIKELIHOOD_BLOCK_SIZE = 1024;
+
 	public double modelLogLikelihood() {
-		double logLikelihood = 0.0;
-		int nonZeroTopics;
+		return modelLogLikelihood((ExecutorService) null);
+	}
+
+	/**
+	 *  Compute the model log likelihood. If <code>executor</code> is not null, the
+	 *   document and type/topic terms are summed on its threads, in blocks whose sums
+	 *   are added in order, so the result does not depend on the number of threads.
+	 */
+	public double modelLogLikelihood(ExecutorService executor) {
+		List<Callable<Double>> blocks = new ArrayList<Callable<Double>>();
+		for (int start = 0; start < data.size(); start += LIKELIHOOD_BLOCK_SIZE) {
+			final int blockStart = start;
+			final int blockEnd = Math.min(data.size(), start + LIKELIHOOD_BLOCK_SIZE);
+			blocks.add(new Callable<Double>() {
+					public Double call() {
+						return documentLogLikelihood(blockStart, blockEnd);
+					}
+				});
+		}
+
+		return modelLogLikelihood(sumBlocks(blocks, executor), executor);
+	}
+
+	/**
+	 *  Compute the model log likelihood from the document terms the workers summed
+	 *   while sampling. This is only valid directly after an iteration in which every
+	 *   worker was asked to <code>collectDocumentLikelihood()</code>, and before alpha
+	 *   changes. Only the type/topic terms are computed here.
+	 */
+	public double modelLogLikelihood(WorkerRunnable[] runnables, ExecutorService executor) {
+		double documentLogLikelihood = 0.0;
+		for (WorkerRunnable runnable : runnables) {
+			documentLogLikelihood += runnable.getDocumentLogLikelihood();
+		}
+		return modelLogLikelihood(documentLogLikelihood, executor);
+	}
 
-		// The likelihood of the model is a combination of a 
+	protected double modelLogLikelihood(double documentLogLikelihood, ExecutorService executor) {
+		List<Callable<Double>> blocks = new ArrayList<Callable<Double>>();
+		for (int start = 0; start < numTypes; start += LIKELIHOOD_BLOCK_SIZE) {
+			final int blockStart = start;
+			final int blockEnd = Math.min(numTypes, start + LIKELIHOOD_BLOCK_SIZE);
+			blocks.add(new Callable<Double>() {
+					public Double call() {
+						return typeTopicLogLikelihood(blockStart, blockEnd);
+					}
+				});
+		}
+
+		double logLikelihood = documentLogLikelihood + sumBlocks(blocks, executor) + topicLogLikelihood();
+
+		if (Double.isNaN(logLikelihood)) {
+			logger.warning("NaN in log likelihood calculation");
+			return 0;
+		}
+		else if (Double.isInfinite(logLikelihood)) {
+			logger.warning("infinite log likelihood, beta " + beta + " * " + numTypes);
+			return 0;
+		}
+
+		return logLikelihood;
+	}
+
+	/** Sum the values of these blocks, on the executor's threads if it is not null */
+	static double sumBlocks(List<Callable<Double>> blocks, ExecutorService executor) {
+		double sum = 0.0;
+		try {
+			if (executor == null) {
+				for (Callable<Double> block : blocks) {
+					sum += block.call();
+				}
+			}
+			else {
+				for (Future<Double> future : executor.invokeAll(blocks)) {
+					sum += future.get();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while computing the log likelihood", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Log likelihood calculation failed", e.getCause());
+		} catch (Exception e) {
+			throw new RuntimeException("Log likelihood calculation failed", e);
+		}
+		return sum;
+	}
+
+	/**
+	 *  The terms of the documents in [startDoc, endDoc): for each, the
+	 *   Dirichlet-multinomial likelihood of its topic counts. Tokens without
+	 *   a topic (the background words of CA-LDA) are not counted.
+	 */
+	protected double documentLogLikelihood(int startDoc, int endDoc) {
+
+		// The likelihood of the model is a combination of a
 		// Dirichlet-multinomial for the words in each topic
 		// and a Dirichlet-multinomial for the topics in each
 		// document.
@@ -1844,11 +1925,11 @@ public class ParallelTopicModel implements Serializable {
 		//	 Gamma( sum_i alpha_i )	 prod_i Gamma( alpha_i + N_i )
 		//	prod_i Gamma( alpha_i )	  Gamma( sum_i (alpha_i + N_i) )
 
-		// So the log likelihood is 
-		//	logGamma ( sum_i alpha_i ) - logGamma ( sum_i (alpha_i + N_i) ) + 
+		// So the log likelihood is
+		//	logGamma ( sum_i alpha_i ) - logGamma ( sum_i (alpha_i + N_i) ) +
 		//	 sum_i [ logGamma( alpha_i + N_i) - logGamma( alpha_i ) ]
 
-		// Do the documents first
+		double logLikelihood = 0.0;
 
 		int[] topicCounts = new int[numTopics];
 		double[] topicLogGammas = new double[numTopics];
@@ -1857,15 +1938,18 @@ public class ParallelTopicModel implements Serializable {
 		for (int topic=0; topic < numTopics; topic++) {
 			topicLogGammas[ topic ] = Dirichlet.logGammaStirling( alpha[topic] );
 		}
-	
-		for (int doc=0; doc < data.size(); doc++) {
+		double alphaSumLogGamma = Dirichlet.logGammaStirling(alphaSum);
+
+		for (int doc = startDoc; doc < endDoc; doc++) {
 			LabelSequence topicSequence =	(LabelSequence) data.get(doc).topicSequence;
 
 			docTopics = topicSequence.getFeatures();
 
+			int docLength = 0;
 			for (int token=0; token < docTopics.length; token++) {
-				if(docTopics[token] > 0) {
+				if (docTopics[token] >= 0) {
 					topicCounts[docTopics[token]]++;
+					docLength++;
 				}
 			}
 
@@ -1876,79 +1960,52 @@ public class ParallelTopicModel implements Serializable {
 				}
 			}
 
-			// subtract the (count + parameter) sum term
-			logLikelihood -= Dirichlet.logGammaStirling(alphaSum + docTopics.length);
+			// add the parameter sum term and subtract the (count + parameter) sum term
+			logLikelihood += alphaSumLogGamma - Dirichlet.logGammaStirling(alphaSum + docLength);
 
 			Arrays.fill(topicCounts, 0);
 		}
 
-		// add the parameter sum term
-		logLikelihood += data.size() * Dirichlet.logGammaStirling(alphaSum);
-
-		// And the topics
-
-		// Count the number of type-topic pairs that are not just (logGamma(beta) - logGamma(beta))
-		int nonZeroTypeTopics = 0;
+		return logLikelihood;
+	}
 
-		for (int type=0; type < numTypes; type++) {
-			// reuse this array as a pointer
+	/**
+	 *  The type/topic terms of the types in [startType, endType). Type/topic pairs
+	 *   with a zero count contribute logGamma(beta) - logGamma(beta) and are skipped.
+	 */
+	protected double typeTopicLogLikelihood(int startType, int endType) {
+		double logLikelihood = 0.0;
+		double betaLogGamma = Dirichlet.logGammaStirling(beta);
 
-			topicCounts = typeTopicCounts[type];
+		for (int type = startType; type < endType; type++) {
+			int[] topicCounts = typeTopicCounts[type];
 
 			int index = 0;
 			while (index < topicCounts.length &&
 				   topicCounts[index] > 0) {
-				int topic = topicCounts[index] & topicMask;
 				int count = topicCounts[index] >> topicBits;
-				
-				nonZeroTypeTopics++;
-				logLikelihood += Dirichlet.logGammaStirling(beta + count);
-
-				if (Double.isNaN(logLikelihood)) {
-					logger.warning("NaN in log likelihood calculation");
-					return 0;
-				}
-				else if (Double.isInfinite(logLikelihood)) {
-					logger.warning("infinite log likelihood");
-					return 0;
-				}
-
+				logLikelihood += Dirichlet.logGammaStirling(beta + count) - betaLogGamma;
 				index++;
 			}
 		}
-	
+
+		return logLikelihood;
+	}
+
+	/** The terms of the topic totals */
+	protected double topicLogLikelihood() {
+		double logLikelihood = 0.0;
+
 		for (int topic=0; topic < numTopics; topic++) {
-			logLikelihood -= 
+			logLikelihood -=
 				Dirichlet.logGammaStirling( (beta * numTypes) +
 											tokensPerTopic[ topic ] );
-
-			if (Double.isNaN(logLikelihood)) {
-				logger.info("NaN after topic " + topic + " " + tokensPerTopic[ topic ]);
-				return 0;
-			}
-			else if (Double.isInfinite(logLikelihood)) {
-				logger.info("Infinite value after topic " + topic + " " + tokensPerTopic[ topic ]);
-				return 0;
-			}
-
 		}
-	
+
 		// logGamma(|V|*beta) for every topic
-		logLikelihood += 
+		logLikelihood +=
 			Dirichlet.logGammaStirling(beta * numTypes) * numTopics;
 
-		// logGamma(beta) for all type/topic pairs with non-zero count
-		logLikelihood -=
-			Dirichlet.logGammaStirling(beta) * nonZeroTypeTopics;
-
-		if (Double.isNaN(logLikelihood)) {
-			logger.info("at the end");
-		}
-		else if (Double.isInfinite(logLikelihood)) {
-			logger.info("Infinite value beta " + beta + " * " + numTypes);
-			return 0;
-		}
-
 		return logLikelihood;
 	}
 
@@ -1995,8 +2052,9 @@ public class ParallelTopicModel implements Serializable {
 		out.writeObject(typeTopicCounts);
 		out.writeObject(tokensPerTopic);
 
-		out.writeObject(docLengthCounts);
-		out.writeObject(topicDocCounts);
+		// formerly the dense alpha histograms, which are rebuilt during estimation
+		out.writeObject(null);
+		out.writeObject(null);
 
 		out.writeInt(numIterations);
 		out.writeInt(burninPeriod);
@@ -2041,8 +2099,9 @@ public class ParallelTopicModel implements Serializable {
 		typeTopicCounts = (int[][]) in.readObject();
 		tokensPerTopic = (int[]) in.readObject();
 		
-		docLengthCounts = (int[]) in.readObject();
-		topicDocCounts = (int[][]) in.readObject();
+		// dense alpha histograms of older versions
+		in.readObject();
+		in.readObject();
 	
 		numIterations = in.readInt();
 		burninPeriod = in.readInt();
@@ -0,0 +1,559 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import cc.mallet.types.*;
+import cc.mallet.util.Randoms;
+
+/**
+ * Estimates topic distributions for new documents under a polylingual topic model.
+ *  A document is an array of instances, one per language, as in training, and
+ *  all of its languages share one topic distribution. Pass <code>null</code>
+ *  or an empty instance for a language the document does not have.
+ * <p>
+ * As with <code>TopicInferencer</code>, the type/topic counts are clamped, so
+ *  any number of threads can sample against one inferencer as long as each
+ *  uses its own <code>SamplingBuffers</code>.
+ */
+public class PolylingualTopicInferencer implements Serializable {
+
+	protected int numTopics;
+	protected int numLanguages;
+
+	// These values are used to encode type/topic counts as
+	//  count/topic pairs in a single int.
+	protected int topicMask;
+	protected int topicBits;
+
+	protected double[] alpha;
+	protected double[] betas;
+	protected double[] betaSums;
+
+	protected int[][][] languageTypeTopicCounts;
+	protected int[][] languageTokensPerTopic;
+
+	public Alphabet[] alphabets;
+
+	protected Randoms random = null;
+	// the seed of the last setRandomSeed call, or -1
+	protected int randomSeed = -1;
+
+	double[] languageSmoothingOnlyMasses;
+
+	public PolylingualTopicInferencer (int[][][] languageTypeTopicCounts, int[][] languageTokensPerTopic,
+									   Alphabet[] alphabets,
+									   double[] alpha, double[] betas, double[] betaSums) {
+
+		this.languageTypeTopicCounts = languageTypeTopicCounts;
+		this.languageTokensPerTopic = languageTokensPerTopic;
+		this.alphabets = alphabets;
+
+		this.numLanguages = languageTypeTopicCounts.length;
+		this.numTopics = languageTokensPerTopic[0].length;
+
+		if (Integer.bitCount(numTopics) == 1) {
+			// exact power of 2
+			topicMask = numTopics - 1;
+			topicBits = Integer.bitCount(topicMask);
+		}
+		else {
+			// otherwise add an extra bit
+			topicMask = Integer.highestOneBit(numTopics) * 2 - 1;
+			topicBits = Integer.bitCount(topicMask);
+		}
+
+		this.alpha = alpha;
+		this.betas = betas;
+		this.betaSums = betaSums;
+
+		languageSmoothingOnlyMasses = new double[numLanguages];
+		for (int language = 0; language < numLanguages; language++) {
+			for (int topic = 0; topic < numTopics; topic++) {
+				languageSmoothingOnlyMasses[language] += alpha[topic] * betas[language] /
+					(languageTokensPerTopic[language][topic] + betaSums[language]);
+			}
+		}
+
+		random = new Randoms();
+	}
+
+	public void setRandomSeed(int seed) {
+		random = new Randoms(seed);
+		randomSeed = seed;
+	}
+
+	/**
+	 *  Per-call sampling state: the topics of each language, the document's
+	 *   topic counts, the topic coefficients of each language and the random
+	 *   number generator. Keep one instance per thread.
+	 */
+	public static class SamplingBuffers {
+		int[][] languageTopics;
+		int[] localTopicCounts;
+		int[] localTopicIndex;
+		double[] topicTermScores;
+		double[][] languageCachedCoefficients;
+		Randoms random;
+
+		protected SamplingBuffers(int numLanguages, int numTopics, double[][] languageCachedCoefficients, Randoms random) {
+			languageTopics = new int[numLanguages][0];
+			localTopicCounts = new int[numTopics];
+			localTopicIndex = new int[numTopics];
+			topicTermScores = new double[numTopics];
+			this.languageCachedCoefficients = languageCachedCoefficients;
+			this.random = random;
+		}
+	}
+
+	public SamplingBuffers newSamplingBuffers(Randoms random) {
+		double[][] coefficients = new double[numLanguages][numTopics];
+		for (int language = 0; language < numLanguages; language++) {
+			for (int topic = 0; topic < numTopics; topic++) {
+				coefficients[language][topic] = alpha[topic] /
+					(languageTokensPerTopic[language][topic] + betaSums[language]);
+			}
+		}
+		return new SamplingBuffers(numLanguages, numTopics, coefficients, random);
+	}
+
+	public SamplingBuffers newSamplingBuffers() {
+		return newSamplingBuffers(new Randoms());
+	}
+
+	public SamplingBuffers newSamplingBuffers(int seed) {
+		return newSamplingBuffers(new Randoms(seed));
+	}
+
+	/**
+	 *  Use Gibbs sampling to infer a topic distribution for one document.
+	 *   Topics are initialized to the (or a) most probable topic
+	 *   for each token.
+	 *
+	 *  @param instances     One instance per language, any of which may be null
+	 *  @param numIterations The total number of iterations of sampling per document
+	 *  @param thinning      The number of iterations between saved samples
+	 *  @param burnIn        The number of iterations before the first saved sample
+	 */
+	public double[] getSampledDistribution(Instance[] instances, int numIterations,
+										   int thinning, int burnIn) {
+		return getSampledDistribution(instances, numIterations, thinning, burnIn,
+									  newSamplingBuffers(random));
+	}
+
+	public double[] getSampledDistribution(Instance[] instances, int numIterations,
+										   int thinning, int burnIn, SamplingBuffers buffers) {
+
+		int[] localTopicCounts = buffers.localTopicCounts;
+		int[] localTopicIndex = buffers.localTopicIndex;
+		double[] topicTermScores = buffers.topicTermScores;
+		Randoms random = buffers.random;
+
+		Arrays.fill(localTopicCounts, 0);
+
+		FeatureSequence[] languageTokens = new FeatureSequence[numLanguages];
+
+		// Initialize all positions to the most common topic for that type,
+		//  and mark out of vocabulary terms with -1.
+
+		for (int language = 0; language < numLanguages; language++) {
+			if (language >= instances.length || instances[language] == null) { continue; }
+
+			FeatureSequence tokens = (FeatureSequence) instances[language].getData();
+			languageTokens[language] = tokens;
+
+			int docLength = tokens.size();
+			if (buffers.languageTopics[language].length < docLength) {
+				buffers.languageTopics[language] = new int[docLength];
+			}
+			int[] topics = buffers.languageTopics[language];
+			int[][] typeTopicCounts = languageTypeTopicCounts[language];
+
+			for (int position = 0; position < docLength; position++) {
+				int type = tokens.getIndexAtPosition(position);
+
+				if (type < typeTopicCounts.length && typeTopicCounts[type].length != 0 &&
+					typeTopicCounts[type][0] > 0) {
+					topics[position] = typeTopicCounts[type][0] & topicMask;
+					localTopicCounts[topics[position]]++;
+				}
+				else {
+					topics[position] = -1;
+				}
+			}
+		}
+
+		// Build an array that densely lists the topics that
+		//  have non-zero counts.
+		int nonZeroTopics = 0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			if (localTopicCounts[topic] != 0) {
+				localTopicIndex[nonZeroTopics] = topic;
+				nonZeroTopics++;
+			}
+		}
+
+		double[] result = new double[numTopics];
+		double sum = 0.0;
+
+		for (int iteration = 1; iteration <= numIterations; iteration++) {
+			for (int language = 0; language < numLanguages; language++) {
+				if (languageTokens[language] == null) { continue; }
+
+				FeatureSequence tokens = languageTokens[language];
+				int[] topics = buffers.languageTopics[language];
+				int[][] typeTopicCounts = languageTypeTopicCounts[language];
+				int[] tokensPerTopic = languageTokensPerTopic[language];
+				double[] cachedCoefficients = buffers.languageCachedCoefficients[language];
+				double beta = betas[language];
+				double betaSum = betaSums[language];
+				double smoothingOnlyMass = languageSmoothingOnlyMasses[language];
+
+				// Initialize cached coefficients and the topic/beta
+				//  normalizing constant for this language.
+				double topicBetaMass = 0.0;
+				for (int denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+					int topic = localTopicIndex[denseIndex];
+					int n = localTopicCounts[topic];
+					topicBetaMass += beta * n / (tokensPerTopic[topic] + betaSum);
+					cachedCoefficients[topic] = (alpha[topic] + n) / (tokensPerTopic[topic] + betaSum);
+				}
+
+				for (int position = 0; position < tokens.size(); position++) {
+					int oldTopic = topics[position];
+					if (oldTopic == -1) { continue; }
+
+					int[] currentTypeTopicCounts = typeTopicCounts[ tokens.getIndexAtPosition(position) ];
+
+					// Remove this token from the document's counts.
+					//  The smoothing-only mass does not change since the
+					//  type/topic counts are clamped.
+
+					topicBetaMass -= beta * localTopicCounts[oldTopic] /
+						(tokensPerTopic[oldTopic] + betaSum);
+					localTopicCounts[oldTopic]--;
+
+					if (localTopicCounts[oldTopic] == 0) {
+						int denseIndex = 0;
+						while (localTopicIndex[denseIndex] != oldTopic) {
+							denseIndex++;
+						}
+						while (denseIndex < nonZeroTopics - 1) {
+							localTopicIndex[denseIndex] = localTopicIndex[denseIndex + 1];
+							denseIndex++;
+						}
+						nonZeroTopics--;
+					}
+
+					topicBetaMass += beta * localTopicCounts[oldTopic] /
+						(tokensPerTopic[oldTopic] + betaSum);
+					cachedCoefficients[oldTopic] =
+						(alpha[oldTopic] + localTopicCounts[oldTopic]) /
+						(tokensPerTopic[oldTopic] + betaSum);
+
+					double topicTermMass = 0.0;
+					int index = 0;
+					while (index < currentTypeTopicCounts.length &&
+						   currentTypeTopicCounts[index] > 0) {
+						int currentTopic = currentTypeTopicCounts[index] & topicMask;
+						int currentValue = currentTypeTopicCounts[index] >> topicBits;
+
+						double score = cachedCoefficients[currentTopic] * currentValue;
+						topicTermMass += score;
+						topicTermScores[index] = score;
+
+						index++;
+					}
+
+					double sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
+					int newTopic = -1;
+
+					if (sample < topicTermMass) {
+						int i = -1;
+						while (sample > 0 && i < index - 1) {
+							i++;
+							sample -= topicTermScores[i];
+						}
+						newTopic = currentTypeTopicCounts[i] & topicMask;
+					}
+					else {
+						sample -= topicTermMass;
+
+						if (sample < topicBetaMass) {
+							sample /= beta;
+
+							for (int denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+								int topic = localTopicIndex[denseIndex];
+								sample -= localTopicCounts[topic] /
+									(tokensPerTopic[topic] + betaSum);
+								if (sample <= 0.0) {
+									newTopic = topic;
+									break;
+								}
+							}
+							if (newTopic == -1) {
+								newTopic = localTopicIndex[nonZeroTopics - 1];
+							}
+						}
+						else {
+							sample -= topicBetaMass;
+							sample /= beta;
+
+							newTopic = 0;
+							sample -= alpha[newTopic] /
+								(tokensPerTopic[newTopic] + betaSum);
+							while (sample > 0.0 && newTopic < numTopics - 1) {
+								newTopic++;
+								sample -= alpha[newTopic] /
+									(tokensPerTopic[newTopic] + betaSum);
+							}
+						}
+					}
+
+					topics[position] = newTopic;
+
+					topicBetaMass -= beta * localTopicCounts[newTopic] /
+						(tokensPerTopic[newTopic] + betaSum);
+					localTopicCounts[newTopic]++;
+
+					// If this is a new topic for this document,
+					//  add the topic to the dense index.
+					if (localTopicCounts[newTopic] == 1) {
+						int denseIndex = nonZeroTopics;
+						while (denseIndex > 0 &&
+							   localTopicIndex[denseIndex - 1] > newTopic) {
+							localTopicIndex[denseIndex] = localTopicIndex[denseIndex - 1];
+							denseIndex--;
+						}
+						localTopicIndex[denseIndex] = newTopic;
+						nonZeroTopics++;
+					}
+
+					cachedCoefficients[newTopic] =
+						(alpha[newTopic] + localTopicCounts[newTopic]) /
+						(tokensPerTopic[newTopic] + betaSum);
+					topicBetaMass += beta * localTopicCounts[newTopic] /
+						(tokensPerTopic[newTopic] + betaSum);
+				}
+
+				//  Reset the coefficients to values with only smoothing
+				for (int denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+					int topic = localTopicIndex[denseIndex];
+					cachedCoefficients[topic] = alpha[topic] / (tokensPerTopic[topic] + betaSum);
+				}
+			}
+
+			if (iteration > burnIn &&
+				(iteration - burnIn) % thinning == 0) {
+
+				// Save a sample
+				for (int topic=0; topic < numTopics; topic++) {
+					result[topic] += alpha[topic] + localTopicCounts[topic];
+					sum += alpha[topic] + localTopicCounts[topic];
+				}
+			}
+		}
+
+		if (sum == 0.0) {
+			// Save at least one sample
+			for (int topic=0; topic < numTopics; topic++) {
+				result[topic] = alpha[topic] + localTopicCounts[topic];
+				sum += result[topic];
+			}
+		}
+
+		// Normalize
+		for (int topic=0; topic < numTopics; topic++) {
+			result[topic] /= sum;
+		}
+
+		return result;
+	}
+
+	/**
+	 *  Infer topic distributions for aligned documents, spreading them over a
+	 *   work-stealing thread pool. Document <code>doc</code> is made up of
+	 *   <code>instances[language].get(doc)</code> for every language.
+	 *   If <code>setRandomSeed</code> has been called, each document is
+	 *   sampled with its own random stream, seeded from that seed and the
+	 *   index of the document, so the results do not depend on the number
+	 *   of threads.
+	 *
+	 *  @param numThreads    The number of worker threads
+	 *  @return One distribution per document, as returned by <code>getSampledDistribution</code>
+	 */
+	public double[][] getSampledDistributions(InstanceList[] instances,
+											  int numIterations, int thinning, int burnIn,
+											  int numThreads) {
+
+		int numDocs = instances[0].size();
+		Instance[][] documents = new Instance[numDocs][instances.length];
+		for (int language = 0; language < instances.length; language++) {
+			for (int doc = 0; doc < numDocs && doc < instances[language].size(); doc++) {
+				documents[doc][language] = instances[language].get(doc);
+			}
+		}
+
+		double[][] distributions = new double[numDocs][];
+		if (numDocs == 0) { return distributions; }
+
+		// Cumulative token counts over all languages. Every document costs at
+		//  least one unit so that runs of empty documents still get split up.
+		long[] tokenOffsets = new long[numDocs + 1];
+		for (int doc = 0; doc < numDocs; doc++) {
+			long length = 1;
+			for (Instance instance : documents[doc]) {
+				if (instance != null) {
+					length += ((FeatureSequence) instance.getData()).size();
+				}
+			}
+			tokenOffsets[doc + 1] = tokenOffsets[doc] + length;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			// Aim for several tasks per worker to give work stealing some slack
+			long grainSize = Math.max(1, tokenOffsets[numDocs] / (pool.getParallelism() * 8));
+
+			ThreadLocal<SamplingBuffers> workerBuffers = new ThreadLocal<SamplingBuffers>() {
+				protected SamplingBuffers initialValue() {
+					return newSamplingBuffers();
+				}
+			};
+
+			pool.invoke(new BatchTask(documents, distributions, tokenOffsets, grainSize, workerBuffers,
+									  numIterations, thinning, burnIn, 0, numDocs));
+		} finally {
+			pool.shutdown();
+		}
+
+		return distributions;
+	}
+
+	class BatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1;
+
+		Instance[][] documents;
+		double[][] distributions;
+		long[] tokenOffsets;
+		long grainSize;
+		ThreadLocal<SamplingBuffers> workerBuffers;
+		int numIterations, thinning, burnIn;
+		int startDoc, endDoc;
+
+		BatchTask(Instance[][] documents, double[][] distributions, long[] tokenOffsets, long grainSize,
+				  ThreadLocal<SamplingBuffers> workerBuffers,
+				  int numIterations, int thinning, int burnIn, int startDoc, int endDoc) {
+			this.documents = documents;
+			this.distributions = distributions;
+			this.tokenOffsets = tokenOffsets;
+			this.grainSize = grainSize;
+			this.workerBuffers = workerBuffers;
+			this.numIterations = numIterations;
+			this.thinning = thinning;
+			this.burnIn = burnIn;
+			this.startDoc = startDoc;
+			this.endDoc = endDoc;
+		}
+
+		protected void compute() {
+			if (endDoc - startDoc == 1 ||
+				tokenOffsets[endDoc] - tokenOffsets[startDoc] <= grainSize) {
+
+				SamplingBuffers buffers = workerBuffers.get();
+				for (int doc = startDoc; doc < endDoc; doc++) {
+					if (randomSeed != -1) {
+						buffers.random.setSeed(MarginalProbEstimator.particleSeed(randomSeed, doc, 0));
+					}
+					distributions[doc] = getSampledDistribution(documents[doc], numIterations, thinning, burnIn,
+																buffers);
+				}
+				return;
+			}
+
+			// Split at the document closest to the token midpoint
+			long middleToken = (tokenOffsets[startDoc] + tokenOffsets[endDoc]) / 2;
+			int middleDoc = Arrays.binarySearch(tokenOffsets, startDoc, endDoc + 1, middleToken);
+			if (middleDoc < 0) { middleDoc = -middleDoc - 1; }
+			middleDoc = Math.max(startDoc + 1, Math.min(endDoc - 1, middleDoc));
+
+			invokeAll(new BatchTask(documents, distributions, tokenOffsets, grainSize, workerBuffers,
+									numIterations, thinning, burnIn, startDoc, middleDoc),
+					  new BatchTask(documents, distributions, tokenOffsets, grainSize, workerBuffers,
+									numIterations, thinning, burnIn, middleDoc, endDoc));
+		}
+	}
+
+	// Serialization
+
+	private static final long serialVersionUID = 1;
+	private static final int CURRENT_SERIAL_VERSION = 0;
+
+	private void writeObject (ObjectOutputStream out) throws IOException {
+		out.writeInt (CURRENT_SERIAL_VERSION);
+
+		out.writeObject(alphabets);
+
+		out.writeInt(numTopics);
+		out.writeInt(numLanguages);
+
+		out.writeInt(topicMask);
+		out.writeInt(topicBits);
+
+		out.writeObject(alpha);
+		out.writeObject(betas);
+		out.writeObject(betaSums);
+
+		out.writeObject(languageTypeTopicCounts);
+		out.writeObject(languageTokensPerTopic);
+
+		out.writeObject(random);
+
+		out.writeObject(languageSmoothingOnlyMasses);
+	}
+
+	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+
+		int version = in.readInt ();
+
+		alphabets = (Alphabet[]) in.readObject();
+
+		numTopics = in.readInt();
+		numLanguages = in.readInt();
+
+		topicMask = in.readInt();
+		topicBits = in.readInt();
+
+		alpha = (double[]) in.readObject();
+		betas = (double[]) in.readObject();
+		betaSums = (double[]) in.readObject();
+
+		languageTypeTopicCounts = (int[][][]) in.readObject();
+		languageTokensPerTopic = (int[][]) in.readObject();
+
+		random = (Randoms) in.readObject();
+		randomSeed = -1;
+
+		languageSmoothingOnlyMasses = (double[]) in.readObject();
+	}
+
+	public static PolylingualTopicInferencer read (File f) throws Exception {
+
+		PolylingualTopicInferencer inferencer = null;
+
+		ObjectInputStream ois = new ObjectInputStream (new FileInputStream(f));
+		inferencer = (PolylingualTopicInferencer) ois.readObject();
+		ois.close();
+
+		return inferencer;
+	}
+}
@@ -8,6 +8,7 @@
 package cc.mallet.topics;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.*;
 
 import java.io.*;
@@ -96,6 +97,10 @@ public class PolylingualTopicModel implements Serializable {
 		(PolylingualTopicModel.class, "num-iterations", "INTEGER", true, 1000,
 		 "The number of iterations of Gibbs sampling.", null);
 
+	static CommandOption.Integer numThreadsOption = new CommandOption.Integer
+		(PolylingualTopicModel.class, "num-threads", "INTEGER", true, 1,
+		 "The number of threads for parallel training.", null);
+
 	static CommandOption.Integer randomSeedOption = new CommandOption.Integer
 		(PolylingualTopicModel.class, "random-seed", "INTEGER", true, 0,
 		 "The random seed for the Gibbs sampler.  Default is 0, which will use the clock.", null);
@@ -178,8 +183,8 @@ public class PolylingualTopicModel implements Serializable {
 	protected int[][] languageTokensPerTopic; // indexed by <topic index>
 
 	// for dirichlet estimation
-	protected int[] docLengthCounts; // histogram of document sizes, summed over languages
-	protected int[][] topicDocCounts; // histogram of document/topic counts, indexed by <topic index, sequence position index>
+	protected SparseHistogram docLengthCounts; // histogram of document sizes, summed over languages
+	protected SparseHistogram[] topicDocCounts; // histograms of document/topic counts, indexed by <topic index>
 
 	protected int iterationsSoFar = 1;
 	public int numIterations = 1000;
@@ -198,6 +203,11 @@ public class PolylingualTopicModel implements Serializable {
 	protected Randoms random;
 	protected NumberFormat formatter;
 	protected boolean printLogLikelihood = false;
+
+	int numThreads = 1;
+
+	// samples for sampleTopicsForOneDoc, against the model's own counts
+	protected transient PolylingualWorkerRunnable singleThreadWorker = null;
 	
 	public PolylingualTopicModel (int numberOfTopics) {
 		this (numberOfTopics, numberOfTopics);
@@ -280,6 +290,10 @@ public class PolylingualTopicModel implements Serializable {
 		random = new Randoms(seed);
 	}
 
+	public void setNumThreads(int threads) {
+		this.numThreads = threads;
+	}
+
 	public void setOptimizeInterval(int interval) {
 		this.optimizeInterval = interval;
 	}
@@ -512,8 +526,11 @@ public class PolylingualTopicModel implements Serializable {
 		System.err.println("max tokens: " + maxTokens);
 		System.err.println("total tokens: " + totalTokens);
 
-		docLengthCounts = new int[maxTokens + 1];
-		topicDocCounts = new int[numTopics][maxTokens + 1];
+		docLengthCounts = new SparseHistogram();
+		topicDocCounts = new SparseHistogram[numTopics];
+		for (int topic = 0; topic < numTopics; topic++) {
+			topicDocCounts[topic] = new SparseHistogram();
+		}
 		
 	}
 
@@ -535,9 +552,9 @@ public class PolylingualTopicModel implements Serializable {
 	}
 	
 	private void clearHistograms() {
-		Arrays.fill(docLengthCounts, 0);
+		docLengthCounts.clear();
 		for (int topic = 0; topic < topicDocCounts.length; topic++)
-			Arrays.fill(topicDocCounts[topic], 0);
+			topicDocCounts[topic].clear();
 	}
 
 	public void estimate () throws IOException {
@@ -550,59 +567,140 @@ public class PolylingualTopicModel implements Serializable {
 		int maxIteration = iterationsSoFar + iterationsThisRound;
 
 		long totalTime = 0;
-	
-		for ( ; iterationsSoFar <= maxIteration; iterationsSoFar++) {
-			long iterationStart = System.currentTimeMillis();
-			
-			if (showTopicsInterval != 0 && iterationsSoFar != 0 && iterationsSoFar % showTopicsInterval == 0) {
-				System.out.println();
-				printTopWords (System.out, wordsPerTopic, false);
 
-			}
+		final PolylingualWorkerRunnable[] runnables = new PolylingualWorkerRunnable[numThreads];
 
-			if (saveStateInterval != 0 && iterationsSoFar % saveStateInterval == 0) {
-				this.printState(new File(stateFilename + '.' + iterationsSoFar));
-			}
+		int docsPerThread = data.size() / numThreads;
+		int offset = 0;
 
-			/*
-			  if (saveModelInterval != 0 && iterations % saveModelInterval == 0) {
-			  this.write (new File(modelFilename+'.'+iterations));
-			  }
-			*/
+		if (numThreads > 1) {
 
-			// TODO this condition should also check that we have more than one sample to work with here
-			// (The number of samples actually obtained is not yet tracked.)
-			if (iterationsSoFar > burninPeriod && optimizeInterval != 0 &&
-				iterationsSoFar % optimizeInterval == 0) {
+			for (int thread = 0; thread < numThreads; thread++) {
+				int[][] runnableTotals = new int[numLanguages][];
+				int[][][] runnableCounts = new int[numLanguages][][];
 
-				alphaSum = Dirichlet.learnParameters(alpha, topicDocCounts, docLengthCounts);
-				optimizeBetas();
-				clearHistograms();
-				cacheValues();
-			}
+				for (int language = 0; language < numLanguages; language++) {
+					runnableTotals[language] = languageTokensPerTopic[language].clone();
 
-			// Loop over every document in the corpus
-			topicTermCount = betaTopicCount = smoothingOnlyCount = 0;
+					int[][] typeTopicCounts = languageTypeTopicCounts[language];
+					runnableCounts[language] = new int[typeTopicCounts.length][];
+					for (int type = 0; type < typeTopicCounts.length; type++) {
+						runnableCounts[language][type] = typeTopicCounts[type].clone();
+					}
+				}
 
-			for (int doc = 0; doc < data.size(); doc++) {
+				// some docs may be missing at the end due to integer division
+				if (thread == numThreads - 1) {
+					docsPerThread = data.size() - offset;
+				}
 
-				sampleTopicsForOneDoc (data.get(doc),
-									   (iterationsSoFar >= burninPeriod &&
-										iterationsSoFar % saveSampleInterval == 0));
-			}
-		
-            long elapsedMillis = System.currentTimeMillis() - iterationStart;
-            totalTime += elapsedMillis;
+				// Each worker draws from its own generator, seeded from the model's
+				runnables[thread] = new PolylingualWorkerRunnable(numTopics,
+																  alpha, alphaSum, betas, betaSums,
+																  new Randoms(random.nextInt()), data,
+																  runnableCounts, runnableTotals,
+																  offset, docsPerThread);
 
-			if ((iterationsSoFar + 1) % 10 == 0) {
-				
-				double ll = modelLogLikelihood();
-				System.out.println(elapsedMillis + "\t" + totalTime + "\t" +
-								   ll);
+				offset += docsPerThread;
 			}
-			else {
-				System.out.print(elapsedMillis + " ");
+		}
+		else {
+
+			// If there is only one thread, sample against the model's
+			//  counts directly, rather than allocating new memory.
+
+			runnables[0] = getSingleThreadWorker();
+		}
+
+		for (PolylingualWorkerRunnable runnable : runnables) {
+			runnable.initializeAlphaStatistics();
+		}
+
+		IterationEngine engine;
+		Runnable merge = null;
+		if (numThreads > 1) {
+			engine = new IterationEngine(runnables);
+			merge = new Runnable() {
+					public void run() {
+						sumTypeTopicCounts(runnables);
+						distributeTypeTopicCounts(runnables);
+					}
+				};
+		}
+		else {
+			// Sample every document in turn through sampleTopicsForOneDoc,
+			//  so that subclasses can override it.
+			Runnable sweep = new Runnable() {
+					public void run() {
+						boolean shouldSaveState = iterationsSoFar >= burninPeriod &&
+							iterationsSoFar % saveSampleInterval == 0;
+
+						runnables[0].initializeCachedCoefficients();
+						for (int doc = 0; doc < data.size(); doc++) {
+							sampleTopicsForOneDoc (data.get(doc), shouldSaveState);
+						}
+					}
+				};
+			engine = new IterationEngine(new Runnable[] { sweep });
+		}
+
+		try {
+			for ( ; iterationsSoFar <= maxIteration; iterationsSoFar++) {
+				long iterationStart = System.currentTimeMillis();
+
+				if (showTopicsInterval != 0 && iterationsSoFar != 0 && iterationsSoFar % showTopicsInterval == 0) {
+					System.out.println();
+					printTopWords (System.out, wordsPerTopic, false);
+
+				}
+
+				if (saveStateInterval != 0 && iterationsSoFar % saveStateInterval == 0) {
+					this.printState(new File(stateFilename + '.' + iterationsSoFar));
+				}
+
+				/*
+				  if (saveModelInterval != 0 && iterations % saveModelInterval == 0) {
+				  this.write (new File(modelFilename+'.'+iterations));
+				  }
+				*/
+
+				// TODO this condition should also check that we have more than one sample to work with here
+				// (The number of samples actually obtained is not yet tracked.)
+				if (iterationsSoFar > burninPeriod && optimizeInterval != 0 &&
+					iterationsSoFar % optimizeInterval == 0) {
+
+					optimizeAlpha(runnables, engine.getExecutor());
+					optimizeBetas();
+					clearHistograms();
+					cacheValues();
+				}
+
+				boolean shouldSaveState = iterationsSoFar >= burninPeriod &&
+					iterationsSoFar % saveSampleInterval == 0;
+				if (shouldSaveState) {
+					for (PolylingualWorkerRunnable runnable : runnables) {
+						runnable.collectAlphaStatistics();
+					}
+				}
+
+				// Sample every document in the corpus, then merge the workers' counts
+				engine.runIteration(merge);
+
+				long elapsedMillis = System.currentTimeMillis() - iterationStart;
+				totalTime += elapsedMillis;
+
+				if ((iterationsSoFar + 1) % 10 == 0) {
+
+					double ll = modelLogLikelihood();
+					System.out.println(elapsedMillis + "\t" + totalTime + "\t" +
+									   ll);
+				}
+				else {
+					System.out.print(elapsedMillis + " ");
+				}
 			}
+		} finally {
+			engine.shutdown();
 		}
 
 		/*
@@ -617,7 +715,117 @@ public class PolylingualTopicModel implements Serializable {
 		System.out.print(seconds); System.out.println(" seconds");
 		*/
 	}
-	
+
+	/** A worker over every document that samples against the model's own counts and generator */
+	PolylingualWorkerRunnable getSingleThreadWorker() {
+		if (singleThreadWorker == null ||
+			singleThreadWorker.data != data ||
+			singleThreadWorker.languageTypeTopicCounts != languageTypeTopicCounts ||
+			singleThreadWorker.languageTokensPerTopic != languageTokensPerTopic ||
+			singleThreadWorker.alpha != alpha ||
+			singleThreadWorker.betas != betas ||
+			singleThreadWorker.betaSums != betaSums ||
+			singleThreadWorker.random != random) {
+			singleThreadWorker = new PolylingualWorkerRunnable(numTopics,
+															   alpha, alphaSum, betas, betaSums,
+															   random, data,
+															   languageTypeTopicCounts, languageTokensPerTopic,
+															   0, data.size());
+			singleThreadWorker.makeOnlyThread();
+			singleThreadWorker.initializeAlphaStatistics();
+			singleThreadWorker.initializeCachedCoefficients();
+		}
+		singleThreadWorker.resetAlphaSum(alphaSum);
+		return singleThreadWorker;
+	}
+
+	/**
+	 *  Resample the topics of one document in every language, updating the
+	 *   model's counts directly. This is what <code>estimate()</code> does for
+	 *   each document when there is only one thread.
+	 */
+	protected void sampleTopicsForOneDoc (TopicAssignment topicAssignment,
+										  boolean shouldSaveState) {
+		PolylingualWorkerRunnable worker = getSingleThreadWorker();
+		worker.shouldSaveState = shouldSaveState;
+		worker.sampleTopicsForOneDoc(topicAssignment);
+	}
+
+	/**
+	 *  Learn alpha from the document/topic histograms the workers collected.
+	 *   If <code>executor</code> is not null, the topics are updated on its threads.
+	 */
+	public void optimizeAlpha(PolylingualWorkerRunnable[] runnables, ExecutorService executor) {
+
+		for (PolylingualWorkerRunnable runnable : runnables) {
+			docLengthCounts.add(runnable.getDocLengthCounts());
+			runnable.getDocLengthCounts().clear();
+
+			SparseHistogram[] sourceTopicCounts = runnable.getTopicDocCounts();
+			for (int topic = 0; topic < numTopics; topic++) {
+				topicDocCounts[topic].add(sourceTopicCounts[topic]);
+				sourceTopicCounts[topic].clear();
+			}
+		}
+
+		alphaSum = Dirichlet.learnParameters(alpha, topicDocCounts, docLengthCounts,
+											 1.00001, 1.0, 200, executor);
+
+		for (PolylingualWorkerRunnable runnable : runnables) {
+			runnable.resetAlphaSum(alphaSum);
+		}
+	}
+
+	/**
+	 *  Rebuild the counts of every language by adding up the local counts
+	 *   of each worker, after each has sampled its own documents.
+	 */
+	public void sumTypeTopicCounts (PolylingualWorkerRunnable[] runnables) {
+
+		for (int language = 0; language < numLanguages; language++) {
+
+			int[] tokensPerTopic = languageTokensPerTopic[language];
+
+			// Clear the topic totals
+			Arrays.fill(tokensPerTopic, 0);
+
+			ParallelTopicModel.clearTypeTopicCounts(languageTypeTopicCounts[language]);
+
+			for (int thread = 0; thread < runnables.length; thread++) {
+
+				// Handle the total-tokens-per-topic array
+
+				int[] sourceTotals = runnables[thread].getLanguageTokensPerTopic()[language];
+				for (int topic = 0; topic < numTopics; topic++) {
+					tokensPerTopic[topic] += sourceTotals[topic];
+				}
+
+				// Now handle the individual type topic counts
+
+				ParallelTopicModel.addTypeTopicCounts(languageTypeTopicCounts[language],
+													  runnables[thread].getLanguageTypeTopicCounts()[language],
+													  topicMask, topicBits);
+			}
+		}
+	}
+
+	/**
+	 *  Copy the merged topic totals and type/topic counts of every language
+	 *   back to each worker for the next iteration.
+	 */
+	public void distributeTypeTopicCounts (PolylingualWorkerRunnable[] runnables) {
+		for (int thread = 0; thread < runnables.length; thread++) {
+			for (int language = 0; language < numLanguages; language++) {
+
+				int[] runnableTotals = runnables[thread].getLanguageTokensPerTopic()[language];
+				System.arraycopy(languageTokensPerTopic[language], 0, runnableTotals, 0, numTopics);
+
+				ParallelTopicModel.copyTypeTopicCounts(languageTypeTopicCounts[language],
+													   runnables[thread].getLanguageTypeTopicCounts()[language]);
+			}
+		}
+	}
+
 	public void optimizeBetas() {
 		
 		for (int language = 0; language < numLanguages; language++) {
@@ -668,404 +876,6 @@ public class PolylingualTopicModel implements Serializable {
 		}
 	}
 
-	protected void sampleTopicsForOneDoc (TopicAssignment topicAssignment, 
-										  boolean shouldSaveState) {
-
-		int[] currentTypeTopicCounts;
-		int type, oldTopic, newTopic;
-		double topicWeightsSum;
-
-		int[] localTopicCounts = new int[numTopics];
-		int[] localTopicIndex = new int[numTopics];
-
-		for (int language = 0; language < numLanguages; language++) {
-
-			int[] oneDocTopics =
-				topicAssignment.topicSequences[language].getFeatures();
-			int docLength = 
-				topicAssignment.topicSequences[language].getLength();
-			
-			//		populate topic counts
-			for (int position = 0; position < docLength; position++) {
-				localTopicCounts[oneDocTopics[position]]++;
-			}
-		}
-
-		// Build an array that densely lists the topics that
-		//  have non-zero counts.
-		int denseIndex = 0;
-		for (int topic = 0; topic < numTopics; topic++) {
-			if (localTopicCounts[topic] != 0) {
-				localTopicIndex[denseIndex] = topic;
-				denseIndex++;
-			}
-		}
-
-		// Record the total number of non-zero topics
-		int nonZeroTopics = denseIndex;
-
-		for (int language = 0; language < numLanguages; language++) {
-
-            int[] oneDocTopics =
-				topicAssignment.topicSequences[language].getFeatures();
-            int docLength =
-				topicAssignment.topicSequences[language].getLength();
-			FeatureSequence tokenSequence =
-				(FeatureSequence) topicAssignment.instances[language].getData();
-
-			int[][] typeTopicCounts = languageTypeTopicCounts[language];
-			int[] tokensPerTopic = languageTokensPerTopic[language];
-			double beta = betas[language];
-			double betaSum = betaSums[language];
-
-			// Initialize the smoothing-only sampling bucket
-			double smoothingOnlyMass = languageSmoothingOnlyMasses[language];
-			//for (int topic = 0; topic < numTopics; topic++) 
-			//smoothingOnlyMass += alpha[topic] * beta / (tokensPerTopic[topic] + betaSum);
-			
-			// Initialize the cached coefficients, using only smoothing.
-			//cachedCoefficients = new double[ numTopics ];
-			//for (int topic=0; topic < numTopics; topic++)
-			//	cachedCoefficients[topic] =  alpha[topic] / (tokensPerTopic[topic] + betaSum);
-			
-			double[] cachedCoefficients =
-				languageCachedCoefficients[language];
-
-			//		Initialize the topic count/beta sampling bucket
-			double topicBetaMass = 0.0;
-			
-			// Initialize cached coefficients and the topic/beta 
-			//  normalizing constant.
-			
-			for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
-				int topic = localTopicIndex[denseIndex];
-				int n = localTopicCounts[topic];
-				
-				//	initialize the normalization constant for the (B * n_{t|d}) term
-				topicBetaMass += beta * n /	(tokensPerTopic[topic] + betaSum);	
-				
-				//	update the coefficients for the non-zero topics
-				cachedCoefficients[topic] =	(alpha[topic] + n) / (tokensPerTopic[topic] + betaSum);
-			}
-
-			double topicTermMass = 0.0;
-
-			double[] topicTermScores = new double[numTopics];
-			int[] topicTermIndices;
-			int[] topicTermValues;
-			int i;
-			double score;
-
-			//	Iterate over the positions (words) in the document 
-			for (int position = 0; position < docLength; position++) {
-				type = tokenSequence.getIndexAtPosition(position);
-				oldTopic = oneDocTopics[position];
-				if (oldTopic == -1) { continue; }
-
-				currentTypeTopicCounts = typeTopicCounts[type];
-				
-				//	Remove this token from all counts. 
-				
-				// Remove this topic's contribution to the 
-				//  normalizing constants
-				smoothingOnlyMass -= alpha[oldTopic] * beta / 
-					(tokensPerTopic[oldTopic] + betaSum);
-				topicBetaMass -= beta * localTopicCounts[oldTopic] /
-					(tokensPerTopic[oldTopic] + betaSum);
-				
-				// Decrement the local doc/topic counts
-				
-				localTopicCounts[oldTopic]--;
-				
-				// Maintain the dense index, if we are deleting
-				//  the old topic
-				if (localTopicCounts[oldTopic] == 0) {
-					
-					// First get to the dense location associated with
-					//  the old topic.
-					
-					denseIndex = 0;
-					
-					// We know it's in there somewhere, so we don't 
-					//  need bounds checking.
-					while (localTopicIndex[denseIndex] != oldTopic) {
-						denseIndex++;
-					}
-					
-					// shift all remaining dense indices to the left.
-					while (denseIndex < nonZeroTopics) {
-						if (denseIndex < localTopicIndex.length - 1) {
-							localTopicIndex[denseIndex] = 
-								localTopicIndex[denseIndex + 1];
-						}
-						denseIndex++;
-					}
-					
-					nonZeroTopics --;
-				}
-				
-				// Decrement the global topic count totals
-				tokensPerTopic[oldTopic]--;
-				//assert(tokensPerTopic[oldTopic] >= 0) : "old Topic " + oldTopic + " below 0";
-					
-				
-				// Add the old topic's contribution back into the
-				//  normalizing constants.
-				smoothingOnlyMass += alpha[oldTopic] * beta / 
-					(tokensPerTopic[oldTopic] + betaSum);
-				topicBetaMass += beta * localTopicCounts[oldTopic] /
-					(tokensPerTopic[oldTopic] + betaSum);
-				
-				// Reset the cached coefficient for this topic
-				cachedCoefficients[oldTopic] = 
-					(alpha[oldTopic] + localTopicCounts[oldTopic]) /
-					(tokensPerTopic[oldTopic] + betaSum);
-				
-				
-				// Now go over the type/topic counts, decrementing
-				//  where appropriate, and calculating the score
-				//  for each topic at the same time.
-				
-				int index = 0;
-				int currentTopic, currentValue;
-				
-				boolean alreadyDecremented = false;
-				
-				topicTermMass = 0.0;
-				
-				while (index < currentTypeTopicCounts.length && 
-					   currentTypeTopicCounts[index] > 0) {
-					currentTopic = currentTypeTopicCounts[index] & topicMask;
-					currentValue = currentTypeTopicCounts[index] >> topicBits;
-					
-					if (! alreadyDecremented && 
-						currentTopic == oldTopic) {
-						
-						// We're decrementing and adding up the 
-						//  sampling weights at the same time, but
-						//  decrementing may require us to reorder
-						//  the topics, so after we're done here,
-						//  look at this cell in the array again.
-						
-						currentValue --;
-						if (currentValue == 0) {
-							currentTypeTopicCounts[index] = 0;
-						}
-						else {
-							currentTypeTopicCounts[index] =
-								(currentValue << topicBits) + oldTopic;
-						}
-						
-						// Shift the reduced value to the right, if necessary.
-						
-						int subIndex = index;
-						while (subIndex < currentTypeTopicCounts.length - 1 && 
-							   currentTypeTopicCounts[subIndex] < currentTypeTopicCounts[subIndex + 1]) {
-							int temp = currentTypeTopicCounts[subIndex];
-							currentTypeTopicCounts[subIndex] = currentTypeTopicCounts[subIndex + 1];
-							currentTypeTopicCounts[subIndex + 1] = temp;
-							
-							subIndex++;
-						}
-						
-						alreadyDecremented = true;
-					}
-					else {
-						score = 
-							cachedCoefficients[currentTopic] * currentValue;
-						topicTermMass += score;
-						topicTermScores[index] = score;
-						
-						index++;
-					}
-				}
-				
-				double sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
-				double origSample = sample;
-				
-				//	Make sure it actually gets set
-				newTopic = -1;
-				
-				if (sample < topicTermMass) {
-					//topicTermCount++;
-					
-					i = -1;
-					while (sample > 0) {
-						i++;
-						sample -= topicTermScores[i];
-					}
-					
-					newTopic = currentTypeTopicCounts[i] & topicMask;
-					currentValue = currentTypeTopicCounts[i] >> topicBits;
-					
-					currentTypeTopicCounts[i] = ((currentValue + 1) << topicBits) + newTopic;
-					
-					// Bubble the new value up, if necessary
-					
-					while (i > 0 &&
-						   currentTypeTopicCounts[i] > currentTypeTopicCounts[i - 1]) {
-						int temp = currentTypeTopicCounts[i];
-						currentTypeTopicCounts[i] = currentTypeTopicCounts[i - 1];
-						currentTypeTopicCounts[i - 1] = temp;
-						
-						i--;
-					}
-					
-				}
-				else {
-					sample -= topicTermMass;
-					
-					if (sample < topicBetaMass) {
-						//betaTopicCount++;
-						
-						sample /= beta;
-						
-						for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
-							int topic = localTopicIndex[denseIndex];
-							
-							sample -= localTopicCounts[topic] /
-								(tokensPerTopic[topic] + betaSum);
-
-							if (sample <= 0.0) {
-								newTopic = topic;
-								break;
-							}
-						}
-						
-					}
-					else {
-						//smoothingOnlyCount++;
-						
-						sample -= topicBetaMass;
-						
-						sample /= beta;
-						
-						newTopic = 0;
-						sample -= alpha[newTopic] /
-							(tokensPerTopic[newTopic] + betaSum);
-						
-						while (sample > 0.0) {
-							newTopic++;
-							sample -= alpha[newTopic] /
-								(tokensPerTopic[newTopic] + betaSum);
-						}
-					
-					}
-					
-					// Move to the position for the new topic,
-					//  which may be the first empty position if this
-					//  is a new topic for this word.
-					
-					index = 0;
-					while (currentTypeTopicCounts[index] > 0 &&
-						   (currentTypeTopicCounts[index] & topicMask) != newTopic) {
-						index++;
-					}
-					
-					// index should now be set to the position of the new topic,
-					//  which may be an empty cell at the end of the list.
-					
-					if (currentTypeTopicCounts[index] == 0) {
-						// inserting a new topic, guaranteed to be in
-						//  order w.r.t. count, if not topic.
-						currentTypeTopicCounts[index] = (1 << topicBits) + newTopic;
-					}
-					else {
-						currentValue = currentTypeTopicCounts[index] >> topicBits;
-						currentTypeTopicCounts[index] = ((currentValue + 1) << topicBits) + newTopic;
-						
-						// Bubble the increased value left, if necessary
-						while (index > 0 &&
-							   currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
-							int temp = currentTypeTopicCounts[index];
-							currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
-							currentTypeTopicCounts[index - 1] = temp;
-							
-							index--;
-						}
-					}
-					
-				}
-				
-				if (newTopic == -1) {
-					System.err.println("PolylingualTopicModel sampling error: "+ origSample + " " + sample + " " + smoothingOnlyMass + " " + 
-									   topicBetaMass + " " + topicTermMass);
-					newTopic = numTopics-1; // TODO is this appropriate
-					//throw new IllegalStateException ("PolylingualTopicModel: New topic not sampled.");
-				}
-				//assert(newTopic != -1);
-				
-				//			Put that new topic into the counts
-				oneDocTopics[position] = newTopic;
-				
-				smoothingOnlyMass -= alpha[newTopic] * beta / 
-					(tokensPerTopic[newTopic] + betaSum);
-				topicBetaMass -= beta * localTopicCounts[newTopic] /
-					(tokensPerTopic[newTopic] + betaSum);
-				
-				localTopicCounts[newTopic]++;
-				
-				// If this is a new topic for this document,
-				//  add the topic to the dense index.
-				if (localTopicCounts[newTopic] == 1) {
-					
-					// First find the point where we 
-					//  should insert the new topic by going to
-					//  the end (which is the only reason we're keeping
-					//  track of the number of non-zero
-					//  topics) and working backwards
-					
-					denseIndex = nonZeroTopics;
-					
-					while (denseIndex > 0 &&
-						   localTopicIndex[denseIndex - 1] > newTopic) {
-						
-						localTopicIndex[denseIndex] =
-							localTopicIndex[denseIndex - 1];
-						denseIndex--;
-					}
-					
-					localTopicIndex[denseIndex] = newTopic;
-					nonZeroTopics++;
-				}
-				
-				tokensPerTopic[newTopic]++;
-				
-				//	update the coefficients for the non-zero topics
-				cachedCoefficients[newTopic] =
-					(alpha[newTopic] + localTopicCounts[newTopic]) /
-					(tokensPerTopic[newTopic] + betaSum);
-				
-				smoothingOnlyMass += alpha[newTopic] * beta / 
-					(tokensPerTopic[newTopic] + betaSum);
-				topicBetaMass += beta * localTopicCounts[newTopic] /
-					(tokensPerTopic[newTopic] + betaSum);
-				
-				// Save the smoothing-only mass to the global cache
-				languageSmoothingOnlyMasses[language] = smoothingOnlyMass;
-
-			}
-		}
-
-		if (shouldSaveState) {
-			// Update the document-topic count histogram,
-			//  for dirichlet estimation
-
-			int totalLength = 0;
-
-			for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
-				int topic = localTopicIndex[denseIndex];
-				
-				topicDocCounts[topic][ localTopicCounts[topic] ]++;
-				totalLength += localTopicCounts[topic];
-			}
-
-			docLengthCounts[ totalLength ]++;
-
-		}
-
-	}
-
 	public void printTopWords (File file, int numWords, boolean useNewLines) throws IOException {
 		PrintStream out = new PrintStream (file);
 		printTopWords(out, numWords, useNewLines);
@@ -1351,6 +1161,25 @@ public class PolylingualTopicModel implements Serializable {
 								   alpha, betas[language], betaSums[language]);
     }
 
+	/**
+	 *  Return a tool for estimating topic distributions for new documents
+	 *   in all languages at once. The counts are copied, so the inferencer
+	 *   is not affected by further training.
+	 */
+	public PolylingualTopicInferencer getPolylingualInferencer() {
+		int[][][] typeTopicCounts = new int[numLanguages][][];
+		int[][] tokensPerTopic = new int[numLanguages][];
+		for (int language = 0; language < numLanguages; language++) {
+			tokensPerTopic[language] = languageTokensPerTopic[language].clone();
+			typeTopicCounts[language] = new int[ languageTypeTopicCounts[language].length ][];
+			for (int type = 0; type < typeTopicCounts[language].length; type++) {
+				typeTopicCounts[language][type] = languageTypeTopicCounts[language][type].clone();
+			}
+		}
+		return new PolylingualTopicInferencer(typeTopicCounts, tokensPerTopic, alphabets,
+											  alpha.clone(), betas.clone(), betaSums.clone());
+	}
+
 	// Serialization
 
 	private static final long serialVersionUID = 1;
@@ -1387,8 +1216,9 @@ public class PolylingualTopicModel implements Serializable {
 		out.writeObject(languageSmoothingOnlyMasses);
 		out.writeObject(languageCachedCoefficients);
 
-		out.writeObject(docLengthCounts);
-		out.writeObject(topicDocCounts);
+		// the histograms are rebuilt when the model is read
+		out.writeObject(null);
+		out.writeObject(null);
 
 		out.writeInt(numIterations);
 		out.writeInt(burninPeriod);
@@ -1440,8 +1270,8 @@ public class PolylingualTopicModel implements Serializable {
 		languageSmoothingOnlyMasses = (double[]) in.readObject();
 		languageCachedCoefficients = (double[][]) in.readObject();
 
-		docLengthCounts = (int[]) in.readObject();
-		topicDocCounts = (int[][]) in.readObject();
+		in.readObject();
+		in.readObject();
 		
 		numIterations = in.readInt();
 		burninPeriod = in.readInt();
@@ -1460,6 +1290,8 @@ public class PolylingualTopicModel implements Serializable {
 		formatter = (NumberFormat) in.readObject();
 		printLogLikelihood = in.readBoolean();
 
+		numThreads = 1;
+
 	}
 
 	public void write (File serializedModelFile) {
@@ -1541,6 +1373,7 @@ public class PolylingualTopicModel implements Serializable {
 		topicModel.setTopicDisplay(showTopicsIntervalOption.value, topWordsOption.value);
 
 		topicModel.setNumIterations(numIterationsOption.value);
+		topicModel.setNumThreads(numThreadsOption.value);
 		topicModel.setOptimizeInterval(optimizeIntervalOption.value);
 		topicModel.setBurninPeriod(optimizeBurnInOption.value);
 
@@ -0,0 +1,203 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import cc.mallet.types.IDSorter;
+
+/**
+ * A sampled topic distribution that only lists the topics a document was actually
+ *  assigned to, as returned by <code>TopicInferencer.getSparseSampledDistribution</code>.
+ * <p>
+ * The weight of topic <i>k</i> in the dense distribution is
+ *  <code>alpha[k] * smoothingScale + count[k] / normalizer</code>. The topics with
+ *  sampled counts are stored with their full weight, in increasing order of topic.
+ *  Every other topic has only its alpha smoothing, which is not stored: its weight is
+ *  <code>alpha[k] * getSmoothingScale()</code>. If the distribution was truncated to
+ *  its largest topics, the topics left out are also treated as smoothing only, so
+ *  the weights no longer sum to one.
+ * <p>
+ * The alpha of the inferencer is not serialized with each distribution. After
+ *  deserialization, pass it to <code>getTopicWeight</code> and <code>toDenseArray</code>,
+ *  for instance from <code>TopicInferencer.getAlpha()</code>.
+ */
+public class SparseTopicDistribution implements Serializable {
+
+	private static final long serialVersionUID = 1;
+
+	int[] topics;
+	float[] weights;
+	float smoothingScale;
+	float backgroundProportion;
+
+	// shared with the inferencer, not copied or serialized
+	transient double[] alpha;
+
+	public SparseTopicDistribution (int[] topics, float[] weights, double[] alpha,
+									float smoothingScale, float backgroundProportion) {
+		this.topics = topics;
+		this.weights = weights;
+		this.alpha = alpha;
+		this.smoothingScale = smoothingScale;
+		this.backgroundProportion = backgroundProportion;
+	}
+
+	/**
+	 *  Compress a dense distribution returned by <code>TopicInferencer.sample</code>.
+	 *
+	 *  @param distribution The normalized distribution, optionally followed by the background proportion
+	 *  @param counts       The topic counts summed over the saved samples
+	 *  @param numSamples   The number of saved samples
+	 *  @param maxTopics    Keep at most this many topics, the ones with the largest weights, or all if not positive
+	 *  @param threshold    Leave out topics whose weight is less than this
+	 */
+	static SparseTopicDistribution fromSample (double[] distribution, double[] alpha, int numTopics,
+											   int[] counts, int numSamples,
+											   int maxTopics, double threshold) {
+
+		// distribution[k] = (numSamples * alpha[k] + counts[k]) / normalizer, and the
+		//  largest weight gives the normalizer with the least rounding error
+		int maxTopic = 0;
+		int numCounted = 0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			if (distribution[topic] > distribution[maxTopic]) { maxTopic = topic; }
+			if (counts[topic] > 0 && distribution[topic] >= threshold) { numCounted++; }
+		}
+		double normalizer = (numSamples * alpha[maxTopic] + counts[maxTopic]) / distribution[maxTopic];
+		float smoothingScale = (float) (numSamples / normalizer);
+
+		int[] topics = new int[numCounted];
+		numCounted = 0;
+		for (int topic = 0; topic < numTopics; topic++) {
+			if (counts[topic] > 0 && distribution[topic] >= threshold) {
+				topics[numCounted++] = topic;
+			}
+		}
+
+		if (maxTopics > 0 && numCounted > maxTopics) {
+			IDSorter[] sortedTopics = new IDSorter[numCounted];
+			for (int i = 0; i < numCounted; i++) {
+				sortedTopics[i] = new IDSorter(topics[i], distribution[topics[i]]);
+			}
+			Arrays.sort(sortedTopics);
+
+			topics = new int[maxTopics];
+			for (int i = 0; i < maxTopics; i++) {
+				topics[i] = sortedTopics[i].getID();
+			}
+			Arrays.sort(topics);
+		}
+
+		float[] weights = new float[topics.length];
+		for (int i = 0; i < topics.length; i++) {
+			weights[i] = (float) distribution[topics[i]];
+		}
+
+		float backgroundProportion = distribution.length > numTopics ? (float) distribution[numTopics] : 0.0f;
+
+		return new SparseTopicDistribution(topics, weights, alpha, smoothingScale, backgroundProportion);
+	}
+
+	/** The number of stored topics */
+	public int size () { return topics.length; }
+
+	public int getTopic (int index) { return topics[index]; }
+
+	public double getWeight (int index) { return weights[index]; }
+
+	/** The stored topics, in increasing order. Do not modify. */
+	public int[] getTopics () { return topics; }
+
+	/** The weights of the stored topics. Do not modify. */
+	public float[] getWeights () { return weights; }
+
+	/** The factor on alpha that gives the weight of a topic that is not stored */
+	public double getSmoothingScale () { return smoothingScale; }
+
+	/** The proportion of background words, for distributions from a BackgroundTopicInferencer */
+	public double getBackgroundProportion () { return backgroundProportion; }
+
+	/** The weight of any topic, including the smoothing of the ones that are not stored */
+	public double getTopicWeight (int topic) {
+		return getTopicWeight(topic, getAlpha());
+	}
+
+	/** The weight of any topic, with the smoothing of the ones that are not stored taken from this alpha */
+	public double getTopicWeight (int topic, double[] alpha) {
+		int index = Arrays.binarySearch(topics, topic);
+		if (index >= 0) {
+			return weights[index];
+		}
+		return alpha[topic] * smoothingScale;
+	}
+
+	/** The dense distribution, with <code>numTopics</code> elements and no background proportion */
+	public double[] toDenseArray (int numTopics) {
+		return toDenseArray(numTopics, getAlpha());
+	}
+
+	/** The dense distribution, with the smoothing of the topics that are not stored taken from this alpha */
+	public double[] toDenseArray (int numTopics, double[] alpha) {
+		double[] result = new double[numTopics];
+		for (int topic = 0; topic < numTopics; topic++) {
+			result[topic] = alpha[topic] * smoothingScale;
+		}
+		for (int i = 0; i < topics.length; i++) {
+			result[topics[i]] = weights[i];
+		}
+		return result;
+	}
+
+	double[] getAlpha () {
+		if (alpha == null) {
+			throw new IllegalStateException("alpha is not serialized; pass the alpha of the inferencer");
+		}
+		return alpha;
+	}
+
+	/**
+	 *  The cosine similarity of the stored weights of two distributions, leaving out
+	 *   the smoothing, in time linear in the number of stored topics.
+	 */
+	public double cosineSimilarity (SparseTopicDistribution other) {
+		double dot = 0.0;
+		int i = 0;
+		int j = 0;
+		while (i < topics.length && j < other.topics.length) {
+			if (topics[i] < other.topics[j]) { i++; }
+			else if (topics[i] > other.topics[j]) { j++; }
+			else {
+				dot += weights[i] * other.weights[j];
+				i++;
+				j++;
+			}
+		}
+
+		double norm = norm() * other.norm();
+		return norm > 0 ? dot / norm : 0.0;
+	}
+
+	double norm () {
+		double sum = 0.0;
+		for (int i = 0; i < weights.length; i++) {
+			sum += weights[i] * weights[i];
+		}
+		return Math.sqrt(sum);
+	}
+
+	public String toString () {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < topics.length; i++) {
+			if (i > 0) { builder.append(' '); }
+			builder.append(topics[i]).append(':').append(weights[i]);
+		}
+		return builder.toString();
+	}
+}
@@ -3,7 +3,12 @@ package cc.mallet.topics;
 import cc.mallet.types.*;
 import cc.mallet.util.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.io.*;
 
 public class TopicInferencer implements Serializable {
@@ -27,20 +32,36 @@ public class TopicInferencer implements Serializable {
 	public Alphabet alphabet;
 	
 	protected Randoms random = null;
+	// the seed of the last setRandomSeed call, or -1
+	protected int randomSeed = -1;
 	
 	double smoothingOnlyMass = 0.0;
 	double[] cachedCoefficients;
+
+	// keep one set of scratch buffers and reuse it across calls
+	protected boolean reuseBuffers = false;
+	protected transient SamplingBuffers buffers = null;
+
+	// give every calling thread its own sampling state
+	protected boolean threadSafe = false;
+	protected transient ThreadLocal<SamplingBuffers> threadBuffers = newThreadBuffers();
 	
 	public TopicInferencer (int[][] typeTopicCounts, int[] tokensPerTopic, Alphabet alphabet,
 							double[] alpha, double beta, double betaSum) {
+		this (typeTopicCounts.length, tokensPerTopic, alphabet, alpha, beta, betaSum);
+		this.typeTopicCounts = typeTopicCounts;
+	}
+
+	/** For subclasses that keep the type/topic counts somewhere other than an int[][] */
+	protected TopicInferencer (int numTypes, int[] tokensPerTopic, Alphabet alphabet,
+							   double[] alpha, double beta, double betaSum) {
 
 		this.tokensPerTopic = tokensPerTopic;
-		this.typeTopicCounts = typeTopicCounts;
 
 		this.alphabet = alphabet;
 
 		numTopics = tokensPerTopic.length;
-		numTypes = typeTopicCounts.length;
+		this.numTypes = numTypes;
 		
 		if (Integer.bitCount(numTopics) == 1) {
 			// exact power of 2
@@ -72,6 +93,135 @@ public class TopicInferencer implements Serializable {
 	}
 	public void setRandomSeed(int seed) {
 		random = new Randoms(seed);
+		randomSeed = seed;
+	}
+
+	/** The Dirichlet parameters of the topics. Do not modify. */
+	public double[] getAlpha() { return alpha; }
+
+	/**
+	 *  Per-call sampling state: the document-specific topic coefficients,
+	 *   the random number generator and scratch arrays. The type/topic
+	 *   counts are only read during inference, so any number of threads
+	 *   can sample against the same inferencer as long as each one uses
+	 *   its own <code>SamplingBuffers</code>.
+	 */
+	public static class SamplingBuffers {
+		int[] topics = new int[0];
+		int[] localTopicCounts;
+		int[] localTopicIndex;
+		double[] topicTermScores;
+
+		double[] cachedCoefficients;
+		Randoms random;
+
+		// the local topic counts summed over the saved samples, for sparse results
+		int[] savedTopicCounts;
+		int numSavedSamples;
+
+		protected SamplingBuffers(int numTopics, double[] cachedCoefficients, Randoms random) {
+			localTopicCounts = new int[numTopics];
+			savedTopicCounts = new int[numTopics];
+			localTopicIndex = new int[numTopics];
+			topicTermScores = new double[numTopics];
+			this.cachedCoefficients = cachedCoefficients;
+			this.random = random;
+		}
+
+		/** Clear the local counts and make room for a document of this length */
+		protected void prepare(int docLength, int numSamples, boolean recordAssignments) {
+			if (topics.length < docLength) {
+				topics = new int[docLength];
+			}
+			else {
+				Arrays.fill(topics, 0, docLength, 0);
+			}
+			Arrays.fill(localTopicCounts, 0);
+			Arrays.fill(savedTopicCounts, 0);
+			numSavedSamples = 0;
+		}
+
+		/** Add the current local counts, whose non-zero topics are listed in <code>localTopicIndex</code>, to the saved counts */
+		protected void saveSample(int nonZeroTopics) {
+			for (int denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+				int topic = localTopicIndex[denseIndex];
+				savedTopicCounts[topic] += localTopicCounts[topic];
+			}
+			numSavedSamples++;
+		}
+	}
+
+	protected SamplingBuffers createSamplingBuffers(double[] cachedCoefficients, Randoms random) {
+		return new SamplingBuffers(numTopics, cachedCoefficients, random);
+	}
+
+	/**
+	 *  Create sampling state that is independent of this inferencer's own
+	 *   coefficients and random number generator. Pass it to the
+	 *   <code>getSampledDistribution</code> and <code>getTopicAssignments</code>
+	 *   variants that take a <code>SamplingBuffers</code> to sample from
+	 *   several threads at once; keep one instance per thread.
+	 */
+	public SamplingBuffers newSamplingBuffers(Randoms random) {
+		double[] coefficients = new double[numTopics];
+		for (int topic=0; topic < numTopics; topic++) {
+			coefficients[topic] = alpha[topic] / (tokensPerTopic[topic] + betaSum);
+		}
+		return createSamplingBuffers(coefficients, random);
+	}
+
+	public SamplingBuffers newSamplingBuffers() {
+		return newSamplingBuffers(new Randoms());
+	}
+
+	public SamplingBuffers newSamplingBuffers(int seed) {
+		return newSamplingBuffers(new Randoms(seed));
+	}
+
+	private ThreadLocal<SamplingBuffers> newThreadBuffers() {
+		return new ThreadLocal<SamplingBuffers>() {
+			protected SamplingBuffers initialValue() {
+				return newSamplingBuffers();
+			}
+		};
+	}
+
+	/**
+	 *  Reuse scratch arrays across calls instead of allocating them per document.
+	 *   The buffers belong to this inferencer, so without <code>setThreadSafe</code>
+	 *   use one inferencer (see <code>copy()</code>) per thread.
+	 */
+	public void setReuseBuffers(boolean reuseBuffers) {
+		this.reuseBuffers = reuseBuffers;
+		if (! reuseBuffers) { buffers = null; }
+	}
+
+	/**
+	 *  Allow a single inferencer to be shared between threads. Each thread
+	 *   lazily gets its own <code>SamplingBuffers</code>, with a private random
+	 *   number generator, so calls never lock or contend. Note that
+	 *   <code>setRandomSeed</code> does not apply in this mode; use
+	 *   <code>newSamplingBuffers(seed)</code> for reproducible results.
+	 */
+	public void setThreadSafe(boolean threadSafe) {
+		this.threadSafe = threadSafe;
+	}
+
+	/** Return the sampling state to use for a call that did not supply one */
+	protected SamplingBuffers getSamplingBuffers() {
+		if (threadSafe) {
+			return threadBuffers.get();
+		}
+
+		SamplingBuffers current = buffers;
+		if (current == null) {
+			current = createSamplingBuffers(cachedCoefficients, random);
+			if (reuseBuffers) { buffers = current; }
+		}
+
+		// setRandomSeed may have replaced the generator since the buffers were created
+		current.random = random;
+		return current;
 	}
 
 	/**
@@ -109,17 +259,54 @@ public class TopicInferencer implements Serializable {
 			}
 		}
 	}
-	class SampleResult{
-		int[] topics;
-		double[] distributions;
-	}
 	public double[] getSampledDistribution(Instance instance, int numIterations,
 										   int thinning, int burnIn) {
-		return sample(instance, numIterations, thinning, burnIn).distributions;
+		return sample(instance, numIterations, thinning, burnIn, getSamplingBuffers(), null);
+	}
+
+	/** Sample with caller-supplied state, see <code>newSamplingBuffers()</code>. */
+	public double[] getSampledDistribution(Instance instance, int numIterations,
+										   int thinning, int burnIn, SamplingBuffers buffers) {
+		return sample(instance, numIterations, thinning, burnIn, buffers, null);
 	}
+
 	public int[] getTopicAssignments(Instance instance, int numIterations,
 									 int thinning, int burnIn) {
-		return sample(instance, numIterations, thinning, burnIn).topics;
+		return getTopicAssignments(instance, numIterations, thinning, burnIn, getSamplingBuffers());
+	}
+
+	/** Sample with caller-supplied state, see <code>newSamplingBuffers()</code>. */
+	public int[] getTopicAssignments(Instance instance, int numIterations,
+									 int thinning, int burnIn, SamplingBuffers buffers) {
+		int[] assignments = new int[((FeatureSequence) instance.getData()).size()];
+		sample(instance, numIterations, thinning, burnIn, buffers, assignments);
+		return assignments;
+	}
+
+	/**
+	 *  Sample a topic distribution as in <code>getSampledDistribution</code>, but only
+	 *   keep the topics that were sampled for the document. The alpha smoothing of the
+	 *   other topics is implicit; see <code>SparseTopicDistribution</code>.
+	 *
+	 *  @param maxTopics Keep at most this many topics, the ones with the largest weights, or all if not positive
+	 *  @param threshold Leave out topics whose weight is less than this
+	 */
+	public SparseTopicDistribution getSparseSampledDistribution(Instance instance, int numIterations,
+																int thinning, int burnIn,
+																int maxTopics, double threshold) {
+		return getSparseSampledDistribution(instance, numIterations, thinning, burnIn,
+											maxTopics, threshold, getSamplingBuffers());
+	}
+
+	/** Sample with caller-supplied state, see <code>newSamplingBuffers()</code>. */
+	public SparseTopicDistribution getSparseSampledDistribution(Instance instance, int numIterations,
+																int thinning, int burnIn,
+																int maxTopics, double threshold,
+																SamplingBuffers buffers) {
+		double[] distribution = sample(instance, numIterations, thinning, burnIn, buffers, null);
+		return SparseTopicDistribution.fromSample(distribution, alpha, numTopics,
+												  buffers.savedTopicCounts, buffers.numSavedSamples,
+												  maxTopics, threshold);
 	}
 		/**
          *  Use Gibbs sampling to infer a topic distribution.
@@ -127,16 +314,25 @@ public class TopicInferencer implements Serializable {
          *   for each token. Using zero iterations returns exactly this
          *   initial topic distribution.<p/>
          *  This code does not adjust type-topic counts: P(w|t) is clamped.
+         *
+         *  @param buffers     Sampling state, which is only touched by this call
+         *  @param assignments If not null, filled with the final topic of each position
          */
-	private SampleResult sample(Instance instance, int numIterations,
-										   int thinning, int burnIn) {
+	protected double[] sample(Instance instance, int numIterations,
+							  int thinning, int burnIn,
+							  SamplingBuffers buffers, int[] assignments) {
 
 		FeatureSequence tokens = (FeatureSequence) instance.getData();
 		int docLength = tokens.size();
-		int[] topics = new int[docLength];
 
-		int[] localTopicCounts = new int[numTopics];
-		int[] localTopicIndex = new int[numTopics];
+		buffers.prepare(docLength, 0, false);
+		int[] topics = buffers.topics;
+
+		int[] localTopicCounts = buffers.localTopicCounts;
+		int[] localTopicIndex = buffers.localTopicIndex;
+
+		double[] cachedCoefficients = buffers.cachedCoefficients;
+		Randoms random = buffers.random;
 		
 		int type;
 		int[] currentTypeTopicCounts;
@@ -196,7 +392,7 @@ public class TopicInferencer implements Serializable {
 		}
 
 		double topicTermMass = 0.0;
-		double[] topicTermScores = new double[numTopics];
+		double[] topicTermScores = buffers.topicTermScores;
 		int[] topicTermIndices;
 		int[] topicTermValues;
 		int i;
@@ -411,6 +607,7 @@ public class TopicInferencer implements Serializable {
 					result[topic] += alpha[topic] + localTopicCounts[topic];
 					sum += alpha[topic] + localTopicCounts[topic];
 				}
+				buffers.saveSample(nonZeroTopics);
 			}
 		}
 
@@ -429,6 +626,7 @@ public class TopicInferencer implements Serializable {
 				result[topic] = alpha[topic] + localTopicCounts[topic];
 				sum += result[topic];
 			}
+			buffers.saveSample(nonZeroTopics);
 		}
 
 		// Normalize
@@ -437,12 +635,176 @@ public class TopicInferencer implements Serializable {
 		}
 
 
-		SampleResult ret = new SampleResult();
-		ret.distributions = result;
-		ret.topics = topics;
+		if (assignments != null) {
+			System.arraycopy(topics, 0, assignments, 0, docLength);
+		}
 
-        return ret;
+		return result;
 	}
+	/**
+	 *  Receives the results of batch inference, in the order of the input documents.
+	 */
+	public interface DistributionSink {
+		public void distributionInferred(int doc, Instance instance, double[] distribution) throws IOException;
+	}
+
+	/**
+	 *  Infer topic distributions for every instance in the list,
+	 *   spreading the documents over a work-stealing thread pool.
+	 *   If <code>setRandomSeed</code> has been called, each document is
+	 *   sampled with its own random stream, seeded from that seed and the
+	 *   index of the document, so the results do not depend on the number
+	 *   of threads.
+	 *
+	 *  @param numThreads    The number of worker threads
+	 *  @return One distribution per instance, as returned by <code>getSampledDistribution</code>
+	 */
+	public double[][] getSampledDistributions(InstanceList instances,
+											  int numIterations, int thinning, int burnIn,
+											  int numThreads) {
+		double[][] distributions = new double[instances.size()][];
+
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			sampleInParallel(instances, 0, distributions, numIterations, thinning, burnIn, pool);
+		} finally {
+			pool.shutdown();
+		}
+
+		return distributions;
+	}
+
+	/**
+	 *  Infer topic distributions for a stream of instances. Documents are read
+	 *   <code>chunkSize</code> at a time, sampled in parallel and passed to the
+	 *   sink from the calling thread, so memory use is bounded by the chunk size.
+	 *   Seeding works as in <code>getSampledDistributions</code>, with documents
+	 *   numbered from the start of the stream.
+	 *
+	 *  @param numThreads    The number of worker threads
+	 *  @param chunkSize     The number of documents to hold in memory at once
+	 */
+	public void inferDistributions(Iterator<Instance> instances,
+								   int numIterations, int thinning, int burnIn,
+								   int numThreads, int chunkSize,
+								   DistributionSink sink) throws IOException {
+
+		ArrayList<Instance> chunk = new ArrayList<Instance>(chunkSize);
+		double[][] distributions = new double[chunkSize][];
+		int doc = 0;
+
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			while (instances.hasNext()) {
+				chunk.clear();
+				while (instances.hasNext() && chunk.size() < chunkSize) {
+					chunk.add(instances.next());
+				}
+
+				sampleInParallel(chunk, doc, distributions, numIterations, thinning, burnIn, pool);
+
+				for (int i = 0; i < chunk.size(); i++) {
+					sink.distributionInferred(doc, chunk.get(i), distributions[i]);
+					distributions[i] = null;
+					doc++;
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 *  Sample every document in the list on the pool. Work is split on
+	 *   token counts rather than document counts, so a few long documents
+	 *   do not leave the other workers idle.
+	 *
+	 *  @param firstDoc  The index of the first document in the whole batch, used for seeding
+	 */
+	protected void sampleInParallel(List<Instance> documents, int firstDoc, double[][] distributions,
+									int numIterations, int thinning, int burnIn,
+									ForkJoinPool pool) {
+
+		int numDocs = documents.size();
+		if (numDocs == 0) { return; }
+
+		// Cumulative token counts. Every document costs at least one
+		//  unit so that runs of empty documents still get split up.
+		long[] tokenOffsets = new long[numDocs + 1];
+		for (int doc = 0; doc < numDocs; doc++) {
+			FeatureSequence tokens = (FeatureSequence) documents.get(doc).getData();
+			tokenOffsets[doc + 1] = tokenOffsets[doc] + tokens.size() + 1;
+		}
+
+		// Aim for several tasks per worker to give work stealing some slack
+		long grainSize = Math.max(1, tokenOffsets[numDocs] / (pool.getParallelism() * 8));
+
+		ThreadLocal<SamplingBuffers> workerBuffers = new ThreadLocal<SamplingBuffers>() {
+			protected SamplingBuffers initialValue() {
+				return newSamplingBuffers();
+			}
+		};
+
+		pool.invoke(new BatchTask(documents, firstDoc, distributions, tokenOffsets, grainSize, workerBuffers,
+								  numIterations, thinning, burnIn, 0, numDocs));
+	}
+
+	class BatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1;
+
+		List<Instance> documents;
+		int firstDoc;
+		double[][] distributions;
+		long[] tokenOffsets;
+		long grainSize;
+		ThreadLocal<SamplingBuffers> workerBuffers;
+		int numIterations, thinning, burnIn;
+		int startDoc, endDoc;
+
+		BatchTask(List<Instance> documents, int firstDoc, double[][] distributions, long[] tokenOffsets, long grainSize,
+				  ThreadLocal<SamplingBuffers> workerBuffers,
+				  int numIterations, int thinning, int burnIn, int startDoc, int endDoc) {
+			this.documents = documents;
+			this.firstDoc = firstDoc;
+			this.distributions = distributions;
+			this.tokenOffsets = tokenOffsets;
+			this.grainSize = grainSize;
+			this.workerBuffers = workerBuffers;
+			this.numIterations = numIterations;
+			this.thinning = thinning;
+			this.burnIn = burnIn;
+			this.startDoc = startDoc;
+			this.endDoc = endDoc;
+		}
+
+		protected void compute() {
+			if (endDoc - startDoc == 1 ||
+				tokenOffsets[endDoc] - tokenOffsets[startDoc] <= grainSize) {
+
+				SamplingBuffers buffers = workerBuffers.get();
+				for (int doc = startDoc; doc < endDoc; doc++) {
+					if (randomSeed != -1) {
+						buffers.random.setSeed(MarginalProbEstimator.particleSeed(randomSeed, firstDoc + doc, 0));
+					}
+					distributions[doc] = sample(documents.get(doc), numIterations, thinning, burnIn,
+												buffers, null);
+				}
+				return;
+			}
+
+			// Split at the document closest to the token midpoint
+			long middleToken = (tokenOffsets[startDoc] + tokenOffsets[endDoc]) / 2;
+			int middleDoc = Arrays.binarySearch(tokenOffsets, startDoc, endDoc + 1, middleToken);
+			if (middleDoc < 0) { middleDoc = -middleDoc - 1; }
+			middleDoc = Math.max(startDoc + 1, Math.min(endDoc - 1, middleDoc));
+
+			invokeAll(new BatchTask(documents, firstDoc, distributions, tokenOffsets, grainSize, workerBuffers,
+									numIterations, thinning, burnIn, startDoc, middleDoc),
+					  new BatchTask(documents, firstDoc, distributions, tokenOffsets, grainSize, workerBuffers,
+									numIterations, thinning, burnIn, middleDoc, endDoc));
+		}
+	}
+
 	/**
 	 *  Infer topics for the provided instances and
 	 *   write distributions to the provided file.
@@ -658,6 +1020,9 @@ public class TopicInferencer implements Serializable {
 
 		smoothingOnlyMass = in.readDouble();
 		cachedCoefficients = (double[]) in.readObject();
+
+		randomSeed = -1;
+		threadBuffers = newThreadBuffers();
 	}
 
 	public static TopicInferencer read (File f) throws Exception {
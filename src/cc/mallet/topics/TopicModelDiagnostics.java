@@ -3,6 +3,7 @@ package cc.mallet.topics;
 import java.io.*;
 import java.util.*;
 import java.text.*;
+import java.util.concurrent.*;
 
 import cc.mallet.types.*;
 import cc.mallet.util.*;
@@ -18,6 +19,9 @@ public class TopicModelDiagnostics {
 	public static final int FIFTY_PERCENT_INDEX = 6;
 	public static final double[] DEFAULT_DOC_PROPORTIONS = { 0.01, 0.02, 0.05, 0.1, 0.2, 0.3, 0.5 };
 
+	/** The number of documents each worker takes from the document stream at a time */
+	public static final int DOCUMENTS_PER_BLOCK = 1000;
+
 	/**  All words in sorted order, with counts */
 	ArrayList<TreeSet<IDSorter>> topicSortedWords;
 	
@@ -41,7 +45,31 @@ public class TopicModelDiagnostics {
 	int[] wordTypeCounts;
 	int numTokens = 0;
 
+	// Statistics of the background words and sources (contexts) of a
+	//  MultiBackgroundTopicModel. For other models there are no sources.
+	Map<Object, Integer> sourceToSourceId;
+	Object[] sources;
+	int numSources = 0;
+	int numBackgroundTokens = 0;
+	int[] sourceDocuments;
+	int[] sourceTokens;
+	int[] sourceBackgroundTokens;
+	double[] sourceSumBackgroundProportions;
+	int[][] sourceTopicTokens;
+
 	public TopicModelDiagnostics (ParallelTopicModel model, int numTopWords) {
+		this(model, numTopWords, model.getData().iterator(), model.numThreads);
+	}
+
+	/**
+	 *  Compute the diagnostics from a stream of documents with their topic assignments,
+	 *   for example read back from disk, rather than from the documents held by the model.
+	 *   The documents are split between <code>numThreads</code> workers, which collect
+	 *   their statistics separately and merge them at the end. The results do not depend
+	 *   on the number of threads.
+	 */
+	public TopicModelDiagnostics (ParallelTopicModel model, int numTopWords,
+								  Iterator<TopicAssignment> documents, int numThreads) {
 		numTopics = model.getNumTopics();
 		this.numTopWords = numTopWords;
 
@@ -52,13 +80,17 @@ public class TopicModelDiagnostics {
 
 		topicTopWords = new String[numTopics][numTopWords];
 
-		numRank1Documents = new int[numTopics];
-		numNonZeroDocuments = new int[numTopics];
-		numDocumentsAtProportions = new int[numTopics][ DEFAULT_DOC_PROPORTIONS.length ];
-		sumCountTimesLogCount = new double[numTopics];
-
 		diagnostics = new ArrayList<TopicScores>();
 
+		if (model instanceof MultiBackgroundTopicModel) {
+			sourceToSourceId = ((MultiBackgroundTopicModel) model).sourceToSourceId;
+			numSources = sourceToSourceId.size();
+			sources = new Object[numSources];
+			for (Map.Entry<Object, Integer> entry: sourceToSourceId.entrySet()) {
+				sources[entry.getValue()] = entry.getKey();
+			}
+		}
+
 		for (int topic = 0; topic < numTopics; topic++) {
 
 			int position = 0;
@@ -77,7 +109,17 @@ public class TopicModelDiagnostics {
 
 		}
 
-		collectDocumentStatistics();
+		if (numThreads > 1) {
+			ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+			try {
+				collectDocumentStatistics(documents, executor, numThreads);
+			} finally {
+				executor.shutdown();
+			}
+		}
+		else {
+			collectDocumentStatistics(documents, null, 1);
+		}
 		
 		diagnostics.add(getTokensPerTopic(model.tokensPerTopic));
 		diagnostics.add(getDocumentEntropy(model.tokensPerTopic));
@@ -91,34 +133,38 @@ public class TopicModelDiagnostics {
 		diagnostics.add(getDocumentPercentRatio(FIFTY_PERCENT_INDEX, TWO_PERCENT_INDEX));
 		diagnostics.add(getDocumentPercent(5));
 		diagnostics.add(getExclusivity());
+		if (numSources > 0) {
+			diagnostics.add(getEffectiveNumberOfSources());
+		}
 	}
 
 	public void collectDocumentStatistics () {
+		collectDocumentStatistics(model.getData().iterator(), null, 1);
+	}
+
+	/**
+	 *  Collect the document statistics from a stream of documents. Blocks of documents are
+	 *   read from the stream and split between <code>numWorkers</code> workers on the executor,
+	 *   each of which adds its documents to its own statistics. If the executor is null, one
+	 *   worker reads all documents on this thread.
+	 */
+	public void collectDocumentStatistics (Iterator<TopicAssignment> documents, ExecutorService executor, int numWorkers) {
 
-		topicCodocumentMatrices = new int[numTopics][numTopWords][numTopWords];
-		wordTypeCounts = new int[alphabet.size()];
-		numTokens = 0;
+		if (executor == null) { numWorkers = 1; }
 
 		// This is an array of hash sets containing the words-of-interest for each topic,
 		//  used for checking if the word at some position is one of those words.
-		TIntHashSet[] topicTopWordIndices = new TIntHashSet[numTopics];
+		//  Workers only read them.
+		final TIntHashSet[] topicTopWordIndices = new TIntHashSet[numTopics];
 		
 		// The same as the topic top words, but with int indices instead of strings,
-		//  used for iterating over positions.
-		int[][] topicWordIndicesInOrder = new int[numTopics][numTopWords];
-
-		// This is an array of hash sets that will hold the words-of-interest present in a document,
-		//  which will be cleared after every document.
-		TIntHashSet[] docTopicWordIndices = new TIntHashSet[numTopics];
-		
-		int numDocs = model.getData().size();
-
-		// The count of each topic, again cleared after every document.
-		int[] topicCounts = new int[numTopics];
+		//  used for iterating over positions. Positions without a word are -1.
+		final int[][] topicWordIndicesInOrder = new int[numTopics][numTopWords];
 
 		for (int topic = 0; topic < numTopics; topic++) {
 			TIntHashSet wordIndices = new TIntHashSet();
 
+			Arrays.fill(topicWordIndicesInOrder[topic], -1);
 			for (int i = 0; i < numTopWords; i++) {
 				if (topicTopWords[topic][i] != null) {
 					int type = alphabet.lookupIndex(topicTopWords[topic][i]);
@@ -128,15 +174,140 @@ public class TopicModelDiagnostics {
 			}
 			
 			topicTopWordIndices[topic] = wordIndices;
-			docTopicWordIndices[topic] = new TIntHashSet();
 		}
 
-		int doc = 0;
+		final DocumentStatistics[] workerStatistics = new DocumentStatistics[numWorkers];
+		for (int worker = 0; worker < numWorkers; worker++) {
+			workerStatistics[worker] = new DocumentStatistics(topicTopWordIndices, topicWordIndicesInOrder);
+		}
+
+		List<TopicAssignment> block = new ArrayList<TopicAssignment>(numWorkers * DOCUMENTS_PER_BLOCK);
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(numWorkers);
+
+		while (documents.hasNext()) {
+			block.clear();
+			while (block.size() < numWorkers * DOCUMENTS_PER_BLOCK && documents.hasNext()) {
+				block.add(documents.next());
+			}
+
+			if (executor == null) {
+				for (TopicAssignment document: block) {
+					workerStatistics[0].addDocument(document);
+				}
+				continue;
+			}
+
+			tasks.clear();
+			int docsPerWorker = (block.size() + numWorkers - 1) / numWorkers;
+			for (int worker = 0; worker < numWorkers; worker++) {
+				int startDoc = Math.min(worker * docsPerWorker, block.size());
+				int endDoc = Math.min(startDoc + docsPerWorker, block.size());
+				if (startDoc == endDoc) { break; }
+
+				final List<TopicAssignment> workerDocuments = block.subList(startDoc, endDoc);
+				final DocumentStatistics statistics = workerStatistics[worker];
+				tasks.add(new Callable<Object>() {
+					public Object call() {
+						for (TopicAssignment document: workerDocuments) {
+							statistics.addDocument(document);
+						}
+						return null;
+					}
+				});
+			}
+
+			try {
+				for (Future<Object> future: executor.invokeAll(tasks)) {
+					future.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while collecting document statistics", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Collecting document statistics failed", e.getCause());
+			}
+		}
+
+		DocumentStatistics statistics = workerStatistics[0];
+		for (int worker = 1; worker < numWorkers; worker++) {
+			statistics.merge(workerStatistics[worker]);
+		}
+
+		topicCodocumentMatrices = statistics.topicCodocumentMatrices;
+		numRank1Documents = statistics.numRank1Documents;
+		numNonZeroDocuments = statistics.numNonZeroDocuments;
+		numDocumentsAtProportions = statistics.numDocumentsAtProportions;
+		sumCountTimesLogCount = statistics.getSumCountTimesLogCount();
+		wordTypeCounts = statistics.wordTypeCounts;
+		numTokens = statistics.numTokens;
+
+		numBackgroundTokens = statistics.numBackgroundTokens;
+		sourceDocuments = statistics.sourceDocuments;
+		sourceTokens = statistics.sourceTokens;
+		sourceBackgroundTokens = statistics.sourceBackgroundTokens;
+		sourceSumBackgroundProportions = statistics.getSumBackgroundProportions();
+		sourceTopicTokens = statistics.sourceTopicTokens;
+	}
 
-		for (TopicAssignment document: model.getData()) {
+	/**
+	 *  The document statistics of one worker's share of the documents. All counts are
+	 *   sums over documents, so the statistics of two workers can be merged by adding them.
+	 *   Rather than summing doubles, whose last digits would depend on how the documents
+	 *   were split between workers, the statistics keep integer histograms from which the
+	 *   sums are computed in a fixed order once all documents are in.
+	 */
+	class DocumentStatistics {
+
+		int[][][] topicCodocumentMatrices = new int[numTopics][numTopWords][numTopWords];
+
+		int[] numRank1Documents = new int[numTopics];
+		int[] numNonZeroDocuments = new int[numTopics];
+		int[][] numDocumentsAtProportions = new int[numTopics][ DEFAULT_DOC_PROPORTIONS.length ];
+		// the number of documents in which each topic has each count
+		SparseHistogram[] topicCountHistograms = new SparseHistogram[numTopics];
+
+		int[] wordTypeCounts = new int[alphabet.size()];
+		int numTokens = 0;
+
+		// Tokens assigned to the background rather than a topic, and the
+		//  statistics of each source, indexed by source id
+		int numBackgroundTokens = 0;
+		int[] sourceDocuments = new int[numSources];
+		int[] sourceTokens = new int[numSources];
+		int[] sourceBackgroundTokens = new int[numSources];
+		// the number of documents of each source with each length and number of background
+		//  words, keyed by length << 32 | background words
+		TLongIntHashMap[] sourceBackgroundHistograms = new TLongIntHashMap[numSources];
+		int[][] sourceTopicTokens = new int[numSources][numTopics];
+
+		TIntHashSet[] topicTopWordIndices;
+		int[][] topicWordIndicesInOrder;
+
+		// This is an array of hash sets that will hold the words-of-interest present in a document,
+		//  which will be cleared after every document.
+		TIntHashSet[] docTopicWordIndices = new TIntHashSet[numTopics];
+
+		// The count of each topic, again cleared after every document.
+		int[] topicCounts = new int[numTopics];
+
+		DocumentStatistics (TIntHashSet[] topicTopWordIndices, int[][] topicWordIndicesInOrder) {
+			this.topicTopWordIndices = topicTopWordIndices;
+			this.topicWordIndicesInOrder = topicWordIndicesInOrder;
+			for (int topic = 0; topic < numTopics; topic++) {
+				docTopicWordIndices[topic] = new TIntHashSet();
+				topicCountHistograms[topic] = new SparseHistogram();
+			}
+			for (int sourceId = 0; sourceId < numSources; sourceId++) {
+				sourceBackgroundHistograms[sourceId] = new TLongIntHashMap();
+			}
+		}
+
+		void addDocument (TopicAssignment document) {
 
 			FeatureSequence tokens = (FeatureSequence) document.instance.getData();
 			FeatureSequence topics =  (FeatureSequence) document.topicSequence;
+
+			int backgroundCount = 0;
 			
 			for (int position = 0; position < tokens.size(); position++) {
 				int type = tokens.getIndexAtPosition(position);
@@ -145,6 +316,12 @@ public class TopicModelDiagnostics {
 				numTokens++;
 				wordTypeCounts[type]++;
 
+				// Background words are not in any topic
+				if (topic < 0) {
+					backgroundCount++;
+					continue;
+				}
+
 				topicCounts[topic]++;
 				
 				if (topicTopWordIndices[topic].contains(type)) {
@@ -152,7 +329,26 @@ public class TopicModelDiagnostics {
 				}
 			}
 
-			int docLength = tokens.size();
+			numBackgroundTokens += backgroundCount;
+
+			int sourceId = -1;
+			if (numSources > 0) {
+				Integer id = sourceToSourceId.get(document.instance.getSource());
+				if (id != null && id < numSources) { sourceId = id; }
+			}
+
+			if (sourceId != -1) {
+				sourceDocuments[sourceId]++;
+				sourceTokens[sourceId] += tokens.size();
+				sourceBackgroundTokens[sourceId] += backgroundCount;
+				if (tokens.size() > 0) {
+					long key = ((long) tokens.size() << 32) | backgroundCount;
+					sourceBackgroundHistograms[sourceId].adjustOrPutValue(key, 1, 1);
+				}
+			}
+
+			// Proportions are of the topical words only
+			int docLength = tokens.size() - backgroundCount;
 
 			if (docLength > 0) {
 				int maxTopic = -1;
@@ -168,7 +364,11 @@ public class TopicModelDiagnostics {
 							maxCount = topicCounts[topic];
 						}
 
-						sumCountTimesLogCount[topic] += topicCounts[topic] * Math.log(topicCounts[topic]);
+						topicCountHistograms[topic].increment(topicCounts[topic]);
+
+						if (sourceId != -1) {
+							sourceTopicTokens[sourceId][topic] += topicCounts[topic];
+						}
 						
 						double proportion = (model.alpha[topic] + topicCounts[topic]) / (model.alphaSum + docLength);
 						for (int i = 0; i < DEFAULT_DOC_PROPORTIONS.length; i++) {
@@ -178,17 +378,18 @@ public class TopicModelDiagnostics {
 
 						TIntHashSet supportedWords = docTopicWordIndices[topic];
 						int[] indices = topicWordIndicesInOrder[topic];
+						int[][] matrix = topicCodocumentMatrices[topic];
 
 						for (int i = 0; i < numTopWords; i++) {
 							if (supportedWords.contains(indices[i])) {
 								for (int j = i; j < numTopWords; j++) {
 									if (i == j) {
 										// Diagonals are total number of documents with word W in topic T
-										topicCodocumentMatrices[topic][i][i]++;
+										matrix[i][i]++;
 									}
 									else if (supportedWords.contains(indices[j])) {
-										topicCodocumentMatrices[topic][i][j]++;
-										topicCodocumentMatrices[topic][j][i]++;
+										matrix[i][j]++;
+										matrix[j][i]++;
 									}
 								}
 							}
@@ -203,8 +404,76 @@ public class TopicModelDiagnostics {
 					numRank1Documents[maxTopic]++;
 				}
 			}
+		}
 
-			doc++;
+		/** Add the statistics of another worker to these */
+		void merge (DocumentStatistics other) {
+			for (int topic = 0; topic < numTopics; topic++) {
+				for (int i = 0; i < numTopWords; i++) {
+					int[] row = topicCodocumentMatrices[topic][i];
+					int[] otherRow = other.topicCodocumentMatrices[topic][i];
+					for (int j = 0; j < numTopWords; j++) {
+						row[j] += otherRow[j];
+					}
+				}
+
+				numRank1Documents[topic] += other.numRank1Documents[topic];
+				numNonZeroDocuments[topic] += other.numNonZeroDocuments[topic];
+				for (int i = 0; i < DEFAULT_DOC_PROPORTIONS.length; i++) {
+					numDocumentsAtProportions[topic][i] += other.numDocumentsAtProportions[topic][i];
+				}
+				topicCountHistograms[topic].add(other.topicCountHistograms[topic]);
+			}
+
+			for (int type = 0; type < wordTypeCounts.length; type++) {
+				wordTypeCounts[type] += other.wordTypeCounts[type];
+			}
+			numTokens += other.numTokens;
+
+			numBackgroundTokens += other.numBackgroundTokens;
+			for (int sourceId = 0; sourceId < numSources; sourceId++) {
+				sourceDocuments[sourceId] += other.sourceDocuments[sourceId];
+				sourceTokens[sourceId] += other.sourceTokens[sourceId];
+				sourceBackgroundTokens[sourceId] += other.sourceBackgroundTokens[sourceId];
+				final TLongIntHashMap histogram = sourceBackgroundHistograms[sourceId];
+				other.sourceBackgroundHistograms[sourceId].forEachEntry(new TLongIntProcedure() {
+						public boolean execute(long key, int frequency) {
+							histogram.adjustOrPutValue(key, frequency, frequency);
+							return true;
+						}
+					});
+				for (int topic = 0; topic < numTopics; topic++) {
+					sourceTopicTokens[sourceId][topic] += other.sourceTopicTokens[sourceId][topic];
+				}
+			}
+		}
+
+		/** The sum over documents of n log n, where n is the count of the topic in the document */
+		double[] getSumCountTimesLogCount () {
+			double[] sums = new double[numTopics];
+			for (int topic = 0; topic < numTopics; topic++) {
+				SparseHistogram histogram = topicCountHistograms[topic];
+				for (int count : histogram.getValues()) {
+					sums[topic] += histogram.getFrequency(count) * count * Math.log(count);
+				}
+			}
+			return sums;
+		}
+
+		/** The sum over each source's documents of the proportion of background words */
+		double[] getSumBackgroundProportions () {
+			double[] sums = new double[numSources];
+			for (int sourceId = 0; sourceId < numSources; sourceId++) {
+				TLongIntHashMap histogram = sourceBackgroundHistograms[sourceId];
+				long[] keys = histogram.keys();
+				Arrays.sort(keys);
+				for (long key : keys) {
+					int length = (int) (key >>> 32);
+					int backgroundCount = (int) key;
+					sums[sourceId] += histogram.get(key) * ((double) backgroundCount / length);
+				}
+			}
+			return sums;
 		}
 	}
 
@@ -588,6 +857,50 @@ public class TopicModelDiagnostics {
 	}
 	
 
+	/**
+	 *  For models with sources, the exponential of the entropy of the distribution of each
+	 *   topic's tokens over the sources: 1 for a topic used by one source only, up to the
+	 *   number of sources for a topic spread evenly over all of them.
+	 */
+	public TopicScores getEffectiveNumberOfSources() {
+		TopicScores scores = new TopicScores("effective_sources", numTopics, numTopWords);
+
+		for (int topic = 0; topic < numTopics; topic++) {
+			int total = 0;
+			for (int sourceId = 0; sourceId < numSources; sourceId++) {
+				total += sourceTopicTokens[sourceId][topic];
+			}
+
+			double entropy = 0.0;
+			for (int sourceId = 0; sourceId < numSources; sourceId++) {
+				int count = sourceTopicTokens[sourceId][topic];
+				if (count > 0) {
+					double p = (double) count / total;
+					entropy -= p * Math.log(p);
+				}
+			}
+
+			scores.setTopicScore(topic, Math.exp(entropy));
+		}
+
+		return scores;
+	}
+
+	/** The number of sources of a MultiBackgroundTopicModel, or 0 for other models */
+	public int getNumSources() {
+		return numSources;
+	}
+
+	/** The proportion of all tokens of this source that are background words */
+	public double getBackgroundProportion(int sourceId) {
+		return sourceTokens[sourceId] == 0 ? 0.0 : (double) sourceBackgroundTokens[sourceId] / sourceTokens[sourceId];
+	}
+
+	/** The number of tokens of each topic in the documents of this source. Do not modify. */
+	public int[] getSourceTopicTokens(int sourceId) {
+		return sourceTopicTokens[sourceId];
+	}
+
 	public String toString() {
 
 		StringBuilder out = new StringBuilder();
@@ -614,6 +927,13 @@ public class TopicModelDiagnostics {
 				out.append("\n");
 			}
 		}
+
+		for (int sourceId = 0; sourceId < numSources; sourceId++) {
+			formatter.format("Source %s\tdocs=%d\ttokens=%d\tbackground=%.4f\tdocument_background=%.4f\n",
+							 sources[sourceId], sourceDocuments[sourceId], sourceTokens[sourceId],
+							 getBackgroundProportion(sourceId),
+							 sourceDocuments[sourceId] == 0 ? 0.0 : sourceSumBackgroundProportions[sourceId] / sourceDocuments[sourceId]);
+		}
 	
 		return out.toString();
 	}
@@ -667,11 +987,49 @@ public class TopicModelDiagnostics {
 
 			out.append("</topic>\n");
 		}
+
+		if (numSources > 0) {
+			MultiBackgroundTopicModel backgroundModel = (MultiBackgroundTopicModel) model;
+
+			for (int sourceId = 0; sourceId < numSources; sourceId++) {
+				formatter.format("<source name='%s' docs='%d' tokens='%d' background_tokens='%d' background='%.4f' document_background='%.4f' lambda='%.4f' beta_background='%.4f'>\n",
+								 escapeXML(String.valueOf(sources[sourceId])),
+								 sourceDocuments[sourceId], sourceTokens[sourceId], sourceBackgroundTokens[sourceId],
+								 getBackgroundProportion(sourceId),
+								 sourceDocuments[sourceId] == 0 ? 0.0 : sourceSumBackgroundProportions[sourceId] / sourceDocuments[sourceId],
+								 backgroundModel.getLambda(sourceId), backgroundModel.getBetaBackground(sourceId));
+
+				// The top background words of the source, from the model's counts
+				int[] typeBackgroundCounts = backgroundModel.typeBackgroundCounts[sourceId];
+				int backgroundTokens = backgroundModel.backgroundAndTopicalCounts[sourceId][MultiBackgroundTopicModel.BACKGROUND_WORD_INDEX];
+				TreeSet<IDSorter> sortedWords = new TreeSet<IDSorter>();
+				for (int type = 0; type < typeBackgroundCounts.length; type++) {
+					if (typeBackgroundCounts[type] > 0) {
+						sortedWords.add(new IDSorter(type, typeBackgroundCounts[type]));
+					}
+				}
+
+				int position = 0;
+				for (IDSorter info: sortedWords) {
+					if (position == numTopWords) { break; }
+					formatter.format("<word rank='%d' count='%.0f' prob='%.5f'>%s</word>\n", position+1, info.getWeight(),
+									 info.getWeight() / backgroundTokens,
+									 escapeXML((String) alphabet.lookupObject(info.getID())));
+					position++;
+				}
+
+				out.append("</source>\n");
+			}
+		}
 		out.append("</model>\n");
 	
 		return out.toString();
 	}
 
+	static String escapeXML(String text) {
+		return text.replaceAll("&", "&amp;").replaceAll("<", "&lt;").replaceAll("'", "&apos;");
+	}
+
 	public class TopicScores {
 		public String name;
 		public double[] scores;
@@ -0,0 +1,644 @@
+package cc.mallet.topics;
+
+import cc.mallet.types.IDSorter;
+import cc.mallet.types.Instance;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An approximate nearest-neighbour index over inferred topic distributions, ranked by cosine
+ * similarity, as recommended for comparing CA-LDA documents across contexts.
+ *
+ * The index is a hierarchical navigable small world graph (HNSW, Malkov and Yashunin 2016).
+ * Every vector is a node on level 0 and on a random number of the levels above, each of which
+ * is a sparser graph. A query walks greedily down from the top level and then does a best-first
+ * search of <code>efSearch</code> nodes on level 0, so it visits a number of nodes that grows
+ * with the logarithm of the size of the index rather than linearly.
+ *
+ * Each vector belongs to a context, such as the source its distribution was inferred for, and
+ * queries can be restricted to one context. The search still walks through nodes of every
+ * context, so a context that holds a small share of the index makes its queries slower.
+ *
+ * Vectors are added one at a time, for instance from the sink returned by <code>getSink()</code>
+ * while inferring a batch of documents. Any number of threads may query the index while it is
+ * not being written; additions wait for queries in progress and block new ones.
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   int magic ("CAVI"), int version
+ *   numTopics, M, efConstruction, efSearch, size, entry point, the names of the contexts,
+ *   then for each vector: its key, its context (-1 for none), its top level,
+ *     the floats of the unit vector, and the neighbours on each of its levels
+ * </pre>
+ * Keys and contexts are written as strings, so they come back as strings.
+ */
+public class TopicVectorIndex {
+
+    // "CAVI", followed by the format version
+    static final int MAGIC = 0x43415649;
+    static final int VERSION = 1;
+
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 200;
+    public static final int DEFAULT_EF_SEARCH = 64;
+
+    // the context of vectors added without one
+    static final int NO_CONTEXT = -1;
+
+    int numTopics;
+    // the most neighbours of a node on the upper levels; level 0 allows twice as many
+    int maxNeighbors;
+    int efConstruction;
+    int efSearch = DEFAULT_EF_SEARCH;
+    double levelMultiplier;
+    Random random;
+
+    int size = 0;
+    // unit vectors
+    float[][] vectors = new float[16][];
+    // neighbors[node][level]: the number of neighbours, followed by their ids
+    int[][][] neighbors = new int[16][][];
+    int[] nodeContexts = new int[16];
+    ArrayList<Object> keys = new ArrayList<Object>();
+
+    Map<Object, Integer> contextIds = new HashMap<Object, Integer>();
+    ArrayList<Object> contexts = new ArrayList<Object>();
+
+    int entryPoint = -1;
+    int maxLevel = -1;
+
+    ReadWriteLock lock = new ReentrantReadWriteLock();
+    ThreadLocal<SearchBuffers> searchBuffers = new ThreadLocal<SearchBuffers>() {
+        protected SearchBuffers initialValue() {
+            return new SearchBuffers();
+        }
+    };
+
+    public TopicVectorIndex(int numTopics) {
+        this(numTopics, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, 0);
+    }
+
+    /**
+     * @param numTopics      The length of the distributions, not counting the background proportion
+     * @param m              The number of neighbours of each node above level 0. Larger values give
+     *                       better recall at the cost of memory and insertion time.
+     * @param efConstruction The number of nodes to consider when choosing the neighbours of a new node
+     * @param seed           The seed for the levels of new nodes
+     */
+    public TopicVectorIndex(int numTopics, int m, int efConstruction, long seed) {
+        if (m < 2) {
+            throw new IllegalArgumentException("M must be at least 2, not " + m);
+        }
+        this.numTopics = numTopics;
+        this.maxNeighbors = m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.levelMultiplier = 1.0 / Math.log(m);
+        this.random = new Random(seed);
+    }
+
+    /** The number of nodes to consider at query time. Larger values give better recall and slower queries. */
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getNumTopics() { return numTopics; }
+
+    public Object getKey(int id) {
+        lock.readLock().lock();
+        try {
+            return keys.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Object getContext(int id) {
+        lock.readLock().lock();
+        try {
+            int contextId = nodeContexts[id];
+            return contextId == NO_CONTEXT ? null : contexts.get(contextId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Receives inferred distributions, for <code>inferDistributions()</code>, and adds them under the
+     * name of their instance. If <code>context</code> is null, the source of the instance is used.
+     */
+    public TopicInferencer.DistributionSink getSink(final Object context) {
+        return new TopicInferencer.DistributionSink() {
+            public void distributionInferred(int doc, Instance instance, double[] distribution) {
+                Object key = instance.getName() != null ? instance.getName() : doc;
+                add(key, context != null ? context : instance.getSource(), distribution);
+            }
+        };
+    }
+
+    /**
+     * Add a distribution and return its id. The distribution may have one extra element, the
+     * background proportion returned by BackgroundTopicInferencer, which is left out.
+     *
+     * @param context The context to file the vector under, or null for none
+     */
+    public int add(Object key, Object context, double[] distribution) {
+        float[] vector = toUnitVector(distribution);
+
+        lock.writeLock().lock();
+        try {
+            int node = size;
+            if (node == vectors.length) {
+                int capacity = 2 * vectors.length;
+                vectors = Arrays.copyOf(vectors, capacity);
+                neighbors = Arrays.copyOf(neighbors, capacity);
+                nodeContexts = Arrays.copyOf(nodeContexts, capacity);
+            }
+
+            int level = (int) (-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+            vectors[node] = vector;
+            neighbors[node] = new int[level + 1][];
+            for (int l = 0; l <= level; l++) {
+                neighbors[node][l] = new int[getMaxNeighbors(l) + 1];
+            }
+            nodeContexts[node] = getOrAddContextId(context);
+            keys.add(key);
+            size++;
+
+            if (entryPoint == -1) {
+                entryPoint = node;
+                maxLevel = level;
+                return node;
+            }
+
+            int current = entryPoint;
+            for (int l = maxLevel; l > level; l--) {
+                current = searchGreedy(vector, current, l);
+            }
+
+            SearchBuffers buffers = searchBuffers.get();
+            for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+                int numCandidates = searchLayer(vector, current, efConstruction, l, NO_CONTEXT, buffers);
+                current = buffers.sortedIds[0];
+
+                int numSelected = selectNeighbors(buffers.sortedIds, buffers.sortedDistances, numCandidates,
+                        maxNeighbors, buffers.selected);
+                int[] links = neighbors[node][l];
+                for (int i = 0; i < numSelected; i++) {
+                    links[i + 1] = buffers.selected[i];
+                }
+                links[0] = numSelected;
+
+                for (int i = 0; i < numSelected; i++) {
+                    connect(buffers.selected[i], node, l, buffers);
+                }
+            }
+
+            if (level > maxLevel) {
+                entryPoint = node;
+                maxLevel = level;
+            }
+
+            return node;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The ids of the vectors most similar to this distribution, with their cosine similarity as
+     * the weight, most similar first.
+     *
+     * @param context Only return vectors of this context, or any if null
+     */
+    public IDSorter[] search(double[] distribution, int numResults, Object context) {
+        return search(toUnitVector(distribution), numResults, context, -1);
+    }
+
+    /** The vectors most similar to the one with this id, leaving it out */
+    public IDSorter[] searchSimilar(int id, int numResults, Object context) {
+        float[] vector;
+        lock.readLock().lock();
+        try {
+            vector = vectors[id];
+        } finally {
+            lock.readLock().unlock();
+        }
+        return search(vector, numResults, context, id);
+    }
+
+    IDSorter[] search(float[] query, int numResults, Object context, int excludedId) {
+        lock.readLock().lock();
+        try {
+            int contextId = NO_CONTEXT;
+            if (context != null) {
+                Integer id = contextIds.get(context);
+                if (id == null) {
+                    return new IDSorter[0];
+                }
+                contextId = id;
+            }
+            if (size == 0 || numResults <= 0) {
+                return new IDSorter[0];
+            }
+
+            int current = entryPoint;
+            for (int l = maxLevel; l > 0; l--) {
+                current = searchGreedy(query, current, l);
+            }
+
+            int wanted = excludedId == -1 ? numResults : numResults + 1;
+            SearchBuffers buffers = searchBuffers.get();
+            int numFound = searchLayer(query, current, Math.max(efSearch, wanted), 0, contextId, buffers);
+
+            ArrayList<IDSorter> results = new ArrayList<IDSorter>(numResults);
+            for (int i = 0; i < numFound && results.size() < numResults; i++) {
+                if (buffers.sortedIds[i] != excludedId) {
+                    results.add(new IDSorter(buffers.sortedIds[i], 1.0 - buffers.sortedDistances[i]));
+                }
+            }
+            return results.toArray(new IDSorter[results.size()]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    float[] toUnitVector(double[] distribution) {
+        if (distribution.length != numTopics && distribution.length != numTopics + 1) {
+            throw new IllegalArgumentException("Expected " + numTopics + " topics, not " + distribution.length);
+        }
+
+        double norm = 0.0;
+        for (int topic = 0; topic < numTopics; topic++) {
+            norm += distribution[topic] * distribution[topic];
+        }
+        norm = Math.sqrt(norm);
+
+        float[] vector = new float[numTopics];
+        for (int topic = 0; topic < numTopics; topic++) {
+            vector[topic] = norm > 0 ? (float) (distribution[topic] / norm) : 0;
+        }
+        return vector;
+    }
+
+    int getMaxNeighbors(int level) {
+        return level == 0 ? 2 * maxNeighbors : maxNeighbors;
+    }
+
+    int getOrAddContextId(Object context) {
+        if (context == null) {
+            return NO_CONTEXT;
+        }
+        Integer contextId = contextIds.get(context);
+        if (contextId == null) {
+            contextId = contexts.size();
+            contextIds.put(context, contextId);
+            contexts.add(context);
+        }
+        return contextId;
+    }
+
+    /** One minus the cosine similarity of two unit vectors */
+    double distance(float[] a, float[] b) {
+        double dot = 0.0;
+        for (int topic = 0; topic < numTopics; topic++) {
+            dot += a[topic] * b[topic];
+        }
+        return 1.0 - dot;
+    }
+
+    /** Move to closer neighbours on this level until there are none */
+    int searchGreedy(float[] query, int current, int level) {
+        double currentDistance = distance(query, vectors[current]);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] links = neighbors[current][level];
+            for (int i = 1; i <= links[0]; i++) {
+                double distance = distance(query, vectors[links[i]]);
+                if (distance < currentDistance) {
+                    currentDistance = distance;
+                    current = links[i];
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first search of one level from <code>entry</code>, keeping the <code>ef</code> closest
+     * nodes of this context. Leaves them in <code>buffers.sortedIds</code> and
+     * <code>buffers.sortedDistances</code>, closest first, and returns how many there are.
+     */
+    int searchLayer(float[] query, int entry, int ef, int level, int contextId, SearchBuffers buffers) {
+        int[] visited = buffers.startSearch(size);
+        int stamp = buffers.stamp;
+        NodeHeap candidates = buffers.candidates;
+        // a max-heap, by negated distance
+        NodeHeap results = buffers.results;
+        candidates.clear();
+        results.clear();
+
+        double entryDistance = distance(query, vectors[entry]);
+        visited[entry] = stamp;
+        candidates.push(entryDistance, entry);
+        if (contextId == NO_CONTEXT || nodeContexts[entry] == contextId) {
+            results.push(-entryDistance, entry);
+        }
+
+        while (candidates.size() > 0) {
+            if (results.size() >= ef && candidates.peekKey() > -results.peekKey()) {
+                break;
+            }
+            int node = candidates.pop();
+
+            int[] links = neighbors[node][level];
+            for (int i = 1; i <= links[0]; i++) {
+                int neighbor = links[i];
+                if (visited[neighbor] == stamp) { continue; }
+                visited[neighbor] = stamp;
+
+                double distance = distance(query, vectors[neighbor]);
+                if (results.size() < ef || distance < -results.peekKey()) {
+                    candidates.push(distance, neighbor);
+                    if (contextId == NO_CONTEXT || nodeContexts[neighbor] == contextId) {
+                        results.push(-distance, neighbor);
+                        if (results.size() > ef) {
+                            results.pop();
+                        }
+                    }
+                }
+            }
+        }
+
+        int numResults = results.size();
+        buffers.ensureSortedCapacity(numResults);
+        for (int i = numResults - 1; i >= 0; i--) {
+            buffers.sortedDistances[i] = -results.peekKey();
+            buffers.sortedIds[i] = results.pop();
+        }
+        return numResults;
+    }
+
+    /**
+     * Choose up to <code>m</code> of the candidates, which are sorted closest first. A candidate is
+     * skipped if it is closer to one already chosen than to the new node, which keeps links
+     * pointing in different directions (the heuristic of the HNSW paper).
+     */
+    int selectNeighbors(int[] ids, double[] distances, int numCandidates, int m, int[] selected) {
+        int numSelected = 0;
+        for (int i = 0; i < numCandidates && numSelected < m; i++) {
+            boolean keep = true;
+            for (int j = 0; j < numSelected; j++) {
+                if (distance(vectors[ids[i]], vectors[selected[j]]) < distances[i]) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected[numSelected++] = ids[i];
+            }
+        }
+        return numSelected;
+    }
+
+    /** Link <code>node</code> from <code>neighbor</code>, pruning the neighbour's links if they are full */
+    void connect(int neighbor, int node, int level, SearchBuffers buffers) {
+        int[] links = neighbors[neighbor][level];
+        int count = links[0];
+        if (count < links.length - 1) {
+            links[count + 1] = node;
+            links[0] = count + 1;
+            return;
+        }
+
+        // Sort the current links and the new one by distance from the neighbour
+        int[] ids = buffers.pruneIds;
+        double[] distances = buffers.pruneDistances;
+        float[] vector = vectors[neighbor];
+        for (int i = 0; i <= count; i++) {
+            int id = i < count ? links[i + 1] : node;
+            double distance = distance(vector, vectors[id]);
+            int position = i;
+            while (position > 0 && distances[position - 1] > distance) {
+                ids[position] = ids[position - 1];
+                distances[position] = distances[position - 1];
+                position--;
+            }
+            ids[position] = id;
+            distances[position] = distance;
+        }
+
+        int[] selected = buffers.pruneSelected;
+        int numSelected = selectNeighbors(ids, distances, count + 1, count, selected);
+        for (int i = 0; i < numSelected; i++) {
+            links[i + 1] = selected[i];
+        }
+        links[0] = numSelected;
+    }
+
+    public void write(File file) throws IOException {
+        lock.readLock().lock();
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numTopics);
+            out.writeInt(maxNeighbors);
+            out.writeInt(efConstruction);
+            out.writeInt(efSearch);
+            out.writeInt(size);
+            out.writeInt(entryPoint);
+
+            out.writeInt(contexts.size());
+            for (Object context : contexts) {
+                out.writeUTF(context.toString());
+            }
+
+            for (int node = 0; node < size; node++) {
+                out.writeUTF(String.valueOf(keys.get(node)));
+                out.writeInt(nodeContexts[node]);
+                out.writeInt(neighbors[node].length - 1);
+                for (int topic = 0; topic < numTopics; topic++) {
+                    out.writeFloat(vectors[node][topic]);
+                }
+                for (int[] links : neighbors[node]) {
+                    out.writeInt(links[0]);
+                    for (int i = 1; i <= links[0]; i++) {
+                        out.writeInt(links[i]);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Read an index written by <code>write()</code>. New vectors can be added to it. */
+    public static TopicVectorIndex read(File file) throws IOException {
+        DataInputStream in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a topic vector index: " + file);
+            }
+            int version = in.readInt();
+            if (version > VERSION) {
+                throw new IOException("Unsupported topic vector index version " + version);
+            }
+
+            int numTopics = in.readInt();
+            int m = in.readInt();
+            int efConstruction = in.readInt();
+            TopicVectorIndex index = new TopicVectorIndex(numTopics, m, efConstruction, System.nanoTime());
+            index.efSearch = in.readInt();
+            int size = in.readInt();
+            index.entryPoint = in.readInt();
+
+            int numContexts = in.readInt();
+            for (int contextId = 0; contextId < numContexts; contextId++) {
+                index.getOrAddContextId(in.readUTF());
+            }
+
+            int capacity = Math.max(16, size);
+            index.vectors = new float[capacity][];
+            index.neighbors = new int[capacity][][];
+            index.nodeContexts = new int[capacity];
+            index.keys.ensureCapacity(size);
+
+            for (int node = 0; node < size; node++) {
+                index.keys.add(in.readUTF());
+                index.nodeContexts[node] = in.readInt();
+                int level = in.readInt();
+
+                float[] vector = new float[numTopics];
+                for (int topic = 0; topic < numTopics; topic++) {
+                    vector[topic] = in.readFloat();
+                }
+                index.vectors[node] = vector;
+
+                index.neighbors[node] = new int[level + 1][];
+                for (int l = 0; l <= level; l++) {
+                    int[] links = new int[index.getMaxNeighbors(l) + 1];
+                    links[0] = in.readInt();
+                    for (int i = 1; i <= links[0]; i++) {
+                        links[i] = in.readInt();
+                    }
+                    index.neighbors[node][l] = links;
+                }
+            }
+            index.size = size;
+            if (size > 0) {
+                index.maxLevel = index.neighbors[index.entryPoint].length - 1;
+            }
+
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** The work space of one thread's searches */
+    class SearchBuffers {
+        // visited[node] == stamp if the node has been seen in the current search
+        int[] visited = new int[0];
+        int stamp = 0;
+
+        NodeHeap candidates = new NodeHeap();
+        NodeHeap results = new NodeHeap();
+        int[] sortedIds = new int[0];
+        double[] sortedDistances = new double[0];
+
+        int[] selected = new int[2 * maxNeighbors];
+        int[] pruneIds = new int[2 * maxNeighbors + 1];
+        double[] pruneDistances = new double[2 * maxNeighbors + 1];
+        int[] pruneSelected = new int[2 * maxNeighbors + 1];
+
+        int[] startSearch(int numNodes) {
+            if (visited.length < numNodes) {
+                visited = new int[Math.max(numNodes, 2 * visited.length)];
+                stamp = 0;
+            }
+            stamp++;
+            if (stamp == Integer.MAX_VALUE) {
+                Arrays.fill(visited, 0);
+                stamp = 1;
+            }
+            return visited;
+        }
+
+        void ensureSortedCapacity(int length) {
+            if (sortedIds.length < length) {
+                sortedIds = new int[length];
+                sortedDistances = new double[length];
+            }
+        }
+    }
+
+    /** A binary min-heap of node ids by key */
+    static class NodeHeap {
+        double[] keys = new double[64];
+        int[] ids = new int[64];
+        int size = 0;
+
+        int size() { return size; }
+        void clear() { size = 0; }
+        double peekKey() { return keys[0]; }
+
+        void push(double key, int id) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * size);
+                ids = Arrays.copyOf(ids, 2 * size);
+            }
+            int position = size++;
+            while (position > 0) {
+                int parent = (position - 1) / 2;
+                if (keys[parent] <= key) { break; }
+                keys[position] = keys[parent];
+                ids[position] = ids[parent];
+                position = parent;
+            }
+            keys[position] = key;
+            ids[position] = id;
+        }
+
+        /** Remove the entry with the smallest key and return its id */
+        int pop() {
+            int top = ids[0];
+            size--;
+            double key = keys[size];
+            int id = ids[size];
+            int position = 0;
+            while (true) {
+                int child = 2 * position + 1;
+                if (child >= size) { break; }
+                if (child + 1 < size && keys[child + 1] < keys[child]) { child++; }
+                if (keys[child] >= key) { break; }
+                keys[position] = keys[child];
+                ids[position] = ids[child];
+                position = child;
+            }
+            keys[position] = key;
+            ids[position] = id;
+            return top;
+        }
+    }
+}
@@ -53,10 +53,17 @@ public class WorkerRunnable implements Runnable {
 	protected int[] tokensPerTopic; // indexed by <topic index>
 
 	// for dirichlet estimation
-	protected int[] docLengthCounts; // histogram of document sizes
-	protected int[][] topicDocCounts; // histogram of document/topic counts, indexed by <topic index, sequence position index>
+	protected SparseHistogram docLengthCounts; // histogram of document sizes
+	protected SparseHistogram[] topicDocCounts; // histograms of document/topic counts, indexed by <topic index>
 
 	boolean shouldSaveState = false;
+
+	// the per-document terms of the model log likelihood, summed over this worker's documents
+	boolean shouldSumLikelihood = false;
+	protected double documentLogLikelihood;
+	protected double[] alphaLogGammas;
+	protected double likelihoodAlphaSum;
+	protected double likelihoodAlphaSumLogGamma;
 	boolean shouldBuildLocalCounts = true;
 	
 	protected Randoms random;
@@ -117,18 +124,48 @@ public class WorkerRunnable implements Runnable {
 	public int[] getTokensPerTopic() { return tokensPerTopic; }
 	public int[][] getTypeTopicCounts() { return typeTopicCounts; }
 
-	public int[] getDocLengthCounts() { return docLengthCounts; }
-	public int[][] getTopicDocCounts() { return topicDocCounts; }
+	public SparseHistogram getDocLengthCounts() { return docLengthCounts; }
+	public SparseHistogram[] getTopicDocCounts() { return topicDocCounts; }
 
-	public void initializeAlphaStatistics(int size) {
-		docLengthCounts = new int[size];
-		topicDocCounts = new int[numTopics][size];
+	public void initializeAlphaStatistics() {
+		docLengthCounts = new SparseHistogram();
+		topicDocCounts = new SparseHistogram[numTopics];
+		for (int topic = 0; topic < numTopics; topic++) {
+			topicDocCounts[topic] = new SparseHistogram();
+		}
 	}
 	
 	public void collectAlphaStatistics() {
 		shouldSaveState = true;
 	}
 
+	/**
+	 *  Sum the per-document terms of the model log likelihood while sampling in
+	 *   the next iteration, so that the model does not have to go over the documents again.
+	 */
+	public void collectDocumentLikelihood() {
+		shouldSumLikelihood = true;
+	}
+
+	/** The document terms of the model log likelihood summed in the last iteration */
+	public double getDocumentLogLikelihood() { return documentLogLikelihood; }
+
+	/**
+	 *  The log likelihood terms of one document with these topic counts. This is the same
+	 *   as <code>ParallelTopicModel.documentLogLikelihood()</code> computes.
+	 */
+	protected double documentLogLikelihood(int[] localTopicCounts, int[] localTopicIndex,
+										   int nonZeroTopics, int docLength) {
+		double logLikelihood = likelihoodAlphaSumLogGamma -
+			Dirichlet.logGammaStirling(likelihoodAlphaSum + docLength);
+		for (int denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+			int topic = localTopicIndex[denseIndex];
+			logLikelihood += Dirichlet.logGammaStirling(alpha[topic] + localTopicCounts[topic]) -
+				alphaLogGammas[topic];
+		}
+		return logLikelihood;
+	}
+
 	public void resetBeta(double beta, double betaSum) {
 		this.beta = beta;
 		this.betaSum = betaSum;
@@ -256,6 +293,18 @@ public class WorkerRunnable implements Runnable {
 				smoothingOnlyMass += alpha[topic] * beta / (tokensPerTopic[topic] + betaSum);
 				cachedCoefficients[topic] =  alpha[topic] / (tokensPerTopic[topic] + betaSum);
 			}
+
+			if (shouldSumLikelihood) {
+				// alpha may have been optimized since this worker was created
+				documentLogLikelihood = 0.0;
+				likelihoodAlphaSum = 0.0;
+				if (alphaLogGammas == null) { alphaLogGammas = new double[numTopics]; }
+				for (int topic=0; topic < numTopics; topic++) {
+					alphaLogGammas[topic] = Dirichlet.logGammaStirling(alpha[topic]);
+					likelihoodAlphaSum += alpha[topic];
+				}
+				likelihoodAlphaSumLogGamma = Dirichlet.logGammaStirling(likelihoodAlphaSum);
+			}
 			
 			for (int doc = startDoc;
 				 doc < data.size() && doc < startDoc + numDocs;
@@ -267,13 +316,7 @@ public class WorkerRunnable implements Runnable {
 				  }
 				*/
 				
-				FeatureSequence tokenSequence =
-					(FeatureSequence) data.get(doc).instance.getData();
-				LabelSequence topicSequence =
-					(LabelSequence) data.get(doc).topicSequence;
-				
-				sampleTopicsForOneDoc (tokenSequence, topicSequence,
-									   true);
+				sampleTopicsForOneDoc (data.get(doc));
 			}
 			
 			if (shouldBuildLocalCounts) {
@@ -281,6 +324,7 @@ public class WorkerRunnable implements Runnable {
 			}
 
 			shouldSaveState = false;
+			shouldSumLikelihood = false;
 			isFinished = true;
 
 		} catch (Exception e) {
@@ -289,6 +333,17 @@ public class WorkerRunnable implements Runnable {
 		}
 	}
 	
+	/** Resample the topics of one document. Subclasses may override this to set up per-document state. */
+	protected void sampleTopicsForOneDoc (TopicAssignment document) {
+		FeatureSequence tokenSequence =
+			(FeatureSequence) document.instance.getData();
+		LabelSequence topicSequence =
+			(LabelSequence) document.topicSequence;
+
+		sampleTopicsForOneDoc (tokenSequence, topicSequence,
+							   true);
+	}
+
 	protected void sampleTopicsForOneDoc (FeatureSequence tokenSequence,
 										  FeatureSequence topicSequence,
 										  boolean readjustTopicsAndStats /* currently ignored */) {
@@ -648,15 +703,19 @@ public class WorkerRunnable implements Runnable {
 		if (shouldSaveState) {
 			// Update the document-topic count histogram,
 			//  for dirichlet estimation
-			docLengthCounts[ docLength ]++;
+			docLengthCounts.increment(docLength);
 
 			for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
 				int topic = localTopicIndex[denseIndex];
 				
-				topicDocCounts[topic][ localTopicCounts[topic] ]++;
+				topicDocCounts[topic].increment(localTopicCounts[topic]);
 			}
 		}
 
+		if (shouldSumLikelihood) {
+			documentLogLikelihood += documentLogLikelihood(localTopicCounts, localTopicIndex, nonZeroTopics, docLength);
+		}
+
 		//	Clean up our mess: reset the coefficients to values with only
 		//	smoothing. The next doc will update its own non-zero topics...
 
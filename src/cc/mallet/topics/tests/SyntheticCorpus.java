@@ -0,0 +1,57 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.util.Random;
+
+import cc.mallet.types.*;
+
+/**
+ * Small generated corpora for the topic model tests. Each document is drawn
+ *  mostly from one of ten blocks of 25 words, with some words from a block of
+ *  15 that belongs to the document's source. Sources cycle through "Mail",
+ *  "News" and "Twitter".
+ */
+public class SyntheticCorpus {
+
+  public static final int NUM_TYPES = 300;
+  public static final String[] SOURCES = { "Mail", "News", "Twitter" };
+
+  public static Alphabet newAlphabet ()
+  {
+    Alphabet alphabet = new Alphabet ();
+    for (int i = 0; i < NUM_TYPES; i++)
+      alphabet.lookupIndex ("w" + i);
+    return alphabet;
+  }
+
+  public static InstanceList generate (int numDocs, long seed)
+  {
+    return generate (newAlphabet (), numDocs, seed);
+  }
+
+  public static InstanceList generate (Alphabet alphabet, int numDocs, long seed)
+  {
+    InstanceList instances = new InstanceList (alphabet, null);
+    Random random = new Random (seed);
+    for (int doc = 0; doc < numDocs; doc++) {
+      int source = doc % SOURCES.length;
+      int block = random.nextInt (10);
+      int[] features = new int[5 + random.nextInt (40)];
+      for (int i = 0; i < features.length; i++) {
+        if (random.nextDouble () < 0.3)
+          features[i] = 250 + source * 15 + random.nextInt (15);
+        else
+          features[i] = block * 25 + random.nextInt (25);
+      }
+      instances.add (new Instance (new FeatureSequence (alphabet, features), null,
+                                   "doc" + doc, SOURCES[source]));
+    }
+    return instances;
+  }
+
+}
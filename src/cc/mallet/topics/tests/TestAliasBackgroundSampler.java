@@ -0,0 +1,137 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Level;
+
+import cc.mallet.topics.MultiBackgroundTopicModel;
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.TopicAssignment;
+import cc.mallet.types.*;
+import junit.framework.*;
+
+/**
+ * Checks that the Metropolis-Hastings sampler of AliasBackgroundWorkerRunnable
+ *  has the same stationary distribution as the exact sampler of
+ *  MultiBackgroundWorkerRunnable. The corpus is two short documents, so that
+ *  both chains mix quickly, and the fraction of samples in which each token is
+ *  in the background is compared between the two chains.
+ */
+public class TestAliasBackgroundSampler extends TestCase {
+
+  private static final int[][] DOCUMENTS = { { 0, 0, 1, 2 }, { 0, 2, 2, 1 } };
+  private static final String[] SOURCES = { "Mail", "News" };
+
+  static final int NUM_SAMPLES = 10000;
+
+  public TestAliasBackgroundSampler (String name)
+  {
+    super (name);
+  }
+
+  /**
+   * Run one iteration at a time, each with its own seed, and return for every
+   *  token the fraction of samples in which it is in the background, followed
+   *  by the fraction in which the first two tokens share a topic.
+   */
+  static double[] sample (boolean useAliasSampler, long seed) throws Exception
+  {
+    Alphabet alphabet = new Alphabet ();
+    for (int type = 0; type < 3; type++) {
+      alphabet.lookupIndex ("w" + type);
+    }
+
+    InstanceList instances = new InstanceList (alphabet, null);
+    for (int doc = 0; doc < DOCUMENTS.length; doc++) {
+      instances.add (new Instance (new FeatureSequence (alphabet, DOCUMENTS[doc].clone ()),
+                                   null, "doc" + doc, SOURCES[doc]));
+    }
+
+    MultiBackgroundTopicModel model = new MultiBackgroundTopicModel (2, 1.0, 0.1, 0.1, 0.5);
+    model.setTopicDisplay (0, 5);
+    model.setUseAliasSampler (useAliasSampler);
+    model.setNumIterations (1);
+
+    Random seeds = new Random (seed);
+    model.setRandomSeed (seeds.nextInt (Integer.MAX_VALUE));
+    model.addInstances (instances);
+
+    double[] frequencies = new double[9];
+    for (int i = 0; i < NUM_SAMPLES; i++) {
+      model.setRandomSeed (seeds.nextInt (Integer.MAX_VALUE));
+      model.estimate ();
+
+      int token = 0;
+      for (TopicAssignment document : model.getData ()) {
+        int[] topics = document.topicSequence.getFeatures ();
+        for (int position = 0; position < topics.length; position++) {
+          if (topics[position] < 0) {
+            frequencies[token]++;
+          }
+          token++;
+        }
+      }
+
+      int[] first = model.getData ().get (0).topicSequence.getFeatures ();
+      if (first[0] >= 0 && first[0] == first[1]) {
+        frequencies[8]++;
+      }
+    }
+
+    for (int i = 0; i < frequencies.length; i++) {
+      frequencies[i] /= NUM_SAMPLES;
+    }
+    return frequencies;
+  }
+
+  public void testSameStationaryDistribution () throws Exception
+  {
+    Level level = ParallelTopicModel.logger.getLevel ();
+    ParallelTopicModel.logger.setLevel (Level.WARNING);
+
+    try {
+      double[] exact = sample (false, 1);
+      double[] alias = sample (true, 2);
+      String message = Arrays.toString (exact) + " " + Arrays.toString (alias);
+
+      double exactBackground = 0;
+      double aliasBackground = 0;
+      for (int token = 0; token < 8; token++) {
+        assertEquals (message, exact[token], alias[token], 0.04);
+        exactBackground += exact[token] / 8;
+        aliasBackground += alias[token] / 8;
+      }
+      assertEquals (message, exactBackground, aliasBackground, 0.015);
+      assertEquals (message, exact[8], alias[8], 0.04);
+    } finally {
+      ParallelTopicModel.logger.setLevel (level);
+    }
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestAliasBackgroundSampler.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestAliasBackgroundSampler (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
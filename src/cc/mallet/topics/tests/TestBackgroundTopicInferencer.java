@@ -0,0 +1,136 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import cc.mallet.topics.BackgroundTopicInferencer;
+import cc.mallet.types.*;
+import junit.framework.*;
+
+/**
+ * Pins the output of a seeded BackgroundTopicInferencer run, so that changes
+ *  to the sampler that alter seeded results do not go unnoticed. The expected
+ *  values were produced before the sampler precomputed its per-topic tables.
+ */
+public class TestBackgroundTopicInferencer extends TestCase {
+
+  static final int NUM_TOPICS = 5;
+  static final int NUM_TYPES = 40;
+
+  private static final int[] EXPECTED_ASSIGNMENTS = {
+    -1, 0, -1, 0, -1, 1, 1, 1, 1, 1, 0, -1, -1, -1, -1,
+    -1, 0, -1, -1, -1, -1, 0, 0, 1, -1, 0, -1, 0, -1, -1 };
+
+  private static final double[] EXPECTED_DISTRIBUTION = {
+    0.04580921218222998, 0.04467656682607594, 0.004278882456581923,
+    0.004153032972564805, 0.011452303045557482, 0.04316637301787054 };
+
+  public TestBackgroundTopicInferencer (String name)
+  {
+    super (name);
+  }
+
+  /** Each block of eight types mostly belongs to one topic */
+  static BackgroundTopicInferencer newInferencer ()
+  {
+    Alphabet alphabet = new Alphabet ();
+    for (int i = 0; i < NUM_TYPES; i++)
+      alphabet.lookupIndex ("w" + i);
+
+    Random random = new Random (6);
+    int topicBits = 3;
+
+    int[][] typeTopicCounts = new int[NUM_TYPES][];
+    int[] tokensPerTopic = new int[NUM_TOPICS];
+    int[] typeBackgroundCounts = new int[NUM_TYPES];
+    int[] backgroundAndTopicalCounts = new int[2];
+
+    for (int type = 0; type < NUM_TYPES; type++) {
+      // packed count/topic pairs, in descending order
+      int[] row = new int[NUM_TOPICS];
+      int used = 0;
+      for (int topic = 0; topic < NUM_TOPICS; topic++) {
+        int count = (type / 8 == topic) ? 20 + random.nextInt (30) : random.nextInt (4);
+        if (count > 0) {
+          row[used++] = (count << topicBits) + topic;
+          tokensPerTopic[topic] += count;
+          backgroundAndTopicalCounts[BackgroundTopicInferencer.TOPICAL_WORD_INDEX] += count;
+        }
+      }
+      Arrays.sort (row, 0, used);
+      typeTopicCounts[type] = new int[used];
+      for (int i = 0; i < used; i++)
+        typeTopicCounts[type][i] = row[used - 1 - i];
+
+      typeBackgroundCounts[type] = random.nextInt (10);
+      backgroundAndTopicalCounts[BackgroundTopicInferencer.BACKGROUND_WORD_INDEX] += typeBackgroundCounts[type];
+    }
+
+    double[] alpha = new double[NUM_TOPICS];
+    Arrays.fill (alpha, 0.1);
+
+    return new BackgroundTopicInferencer (typeTopicCounts, tokensPerTopic, typeBackgroundCounts,
+                                          backgroundAndTopicalCounts, alphabet, alpha,
+                                          0.01, 0.01, 0.01 * NUM_TYPES, 0.5);
+  }
+
+  static Instance newDocument (Alphabet alphabet, long seed, int length)
+  {
+    Random random = new Random (seed);
+    int[] features = new int[length];
+    for (int i = 0; i < length; i++)
+      features[i] = random.nextInt (NUM_TYPES);
+    return new Instance (new FeatureSequence (alphabet, features), null, "doc" + seed, null);
+  }
+
+  private void assertPinned (BackgroundTopicInferencer inferencer)
+  {
+    Instance document = newDocument (inferencer.alphabet, 7, 30);
+
+    // A single saved sample, so that the assignments are the final state of the chain
+    inferencer.setRandomSeed (1);
+    int[] assignments = inferencer.getTopicAssignments (document, 21, 1, 20);
+    assertTrue (Arrays.toString (assignments), Arrays.equals (EXPECTED_ASSIGNMENTS, assignments));
+
+    double[] distribution = inferencer.getSampledDistribution (document, 50, 1, 10);
+    assertTrue (Arrays.toString (distribution), Arrays.equals (EXPECTED_DISTRIBUTION, distribution));
+  }
+
+  public void testSeededAssignments ()
+  {
+    assertPinned (newInferencer ());
+  }
+
+  public void testFrozenSeededAssignments ()
+  {
+    assertPinned (newInferencer ().freeze ());
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestBackgroundTopicInferencer.class);
+  }
+
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestBackgroundTopicInferencer (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
@@ -0,0 +1,211 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import cc.mallet.pipe.Noop;
+import cc.mallet.topics.HierarchicalLDA;
+import cc.mallet.topics.NCRPTree;
+import cc.mallet.types.*;
+import cc.mallet.util.Randoms;
+import gnu.trove.TIntDoubleHashMap;
+import junit.framework.*;
+
+/**
+ * Checks that the counts of every node of the tree match the paths and
+ *  word levels of the documents after seeded sampling, with one thread,
+ *  with several, and through samplePath and sampleTopics.
+ */
+public class TestHierarchicalLDA extends TestCase {
+
+  static final int NUM_LEVELS = 3;
+
+  public TestHierarchicalLDA (String name)
+  {
+    super (name);
+  }
+
+  /** Words are shared by every document, by a branch, or by a leaf of a small tree */
+  static InstanceList generate (int numDocs, long seed)
+  {
+    Alphabet alphabet = new Alphabet ();
+    Random random = new Random (seed);
+    InstanceList instances = new InstanceList (new Noop (alphabet, null));
+    for (int doc = 0; doc < numDocs; doc++) {
+      int branch = random.nextInt (3);
+      int leaf = random.nextInt (2);
+      int[] features = new int[20 + random.nextInt (30)];
+      for (int position = 0; position < features.length; position++) {
+        double u = random.nextDouble ();
+        String word;
+        if (u < 0.4) { word = "root" + random.nextInt (20); }
+        else if (u < 0.7) { word = "b" + branch + "_" + random.nextInt (20); }
+        else { word = "b" + branch + "_" + leaf + "_" + random.nextInt (20); }
+        features[position] = alphabet.lookupIndex (word);
+      }
+      instances.add (new Instance (new FeatureSequence (alphabet, features), null, "doc" + doc, null));
+    }
+    return instances;
+  }
+
+  static HierarchicalLDA initialize (InstanceList instances, int numThreads)
+  {
+    HierarchicalLDA model = new HierarchicalLDA ();
+    model.setProgressDisplay (false);
+    model.setTopicDisplay (Integer.MAX_VALUE, 5);
+    model.setNumThreads (numThreads);
+    model.initialize (instances, null, NUM_LEVELS, new Randoms (7));
+    return model;
+  }
+
+  /** Count the documents and words of every node from the sampling state, and compare them with the tree */
+  static void assertConsistent (HierarchicalLDA model, InstanceList instances) throws IOException
+  {
+    NCRPTree tree = model.getTree ();
+    int numTypes = instances.getDataAlphabet ().size ();
+    int capacity = tree.getCapacity ();
+    int[] customers = new int[capacity];
+    int[] totalTokens = new int[capacity];
+    int[][] typeCounts = new int[capacity][numTypes];
+
+    StringWriter state = new StringWriter ();
+    PrintWriter out = new PrintWriter (state);
+    model.printState (out);
+    out.close ();
+
+    // Each line is the path from the leaf up, then the type, the word and the level
+    String[] lines = state.toString ().split ("\n");
+    int line = 0;
+    for (Instance instance : instances) {
+      FeatureSequence tokens = (FeatureSequence) instance.getData ();
+      for (int position = 0; position < tokens.getLength (); position++) {
+        String[] fields = lines[line++].trim ().split (" ");
+        int[] path = new int[NUM_LEVELS];
+        for (int level = 0; level < NUM_LEVELS; level++) {
+          path[level] = Integer.parseInt (fields[NUM_LEVELS - 1 - level]);
+        }
+        assertTrue (tree.isLeaf (path[NUM_LEVELS - 1]));
+        for (int level = 1; level < NUM_LEVELS; level++) {
+          assertEquals (path[level - 1], tree.getParent (path[level]));
+        }
+        if (position == 0) {
+          for (int level = 0; level < NUM_LEVELS; level++) {
+            customers[ path[level] ]++;
+          }
+        }
+
+        int type = Integer.parseInt (fields[NUM_LEVELS]);
+        assertEquals (tokens.getIndexAtPosition (position), type);
+        int node = path[ Integer.parseInt (fields[NUM_LEVELS + 2]) ];
+        totalTokens[node]++;
+        typeCounts[node][type]++;
+      }
+    }
+
+    assertEquals (tree.getNumNodes (), assertConsistent (tree, tree.getRoot (), customers, totalTokens, typeCounts));
+  }
+
+  /** Check the node and every node below it, and return how many there are */
+  static int assertConsistent (NCRPTree tree, int node, int[] customers, int[] totalTokens, int[][] typeCounts)
+  {
+    assertTrue ("node " + node + " has no documents", customers[node] > 0);
+    assertEquals ("node " + node, customers[node], tree.getCustomers (node));
+    assertEquals ("node " + node, totalTokens[node], tree.getTotalTokens (node));
+    for (int type = 0; type < typeCounts[node].length; type++) {
+      assertEquals ("node " + node + " type " + type, typeCounts[node][type], tree.getTypeCount (node, type));
+    }
+
+    int numNodes = 1;
+    int childCustomers = 0;
+    for (int child = tree.getFirstChild (node); child != NCRPTree.NO_NODE; child = tree.getNextSibling (child)) {
+      assertEquals (node, tree.getParent (child));
+      assertEquals (tree.getLevel (node) + 1, tree.getLevel (child));
+      childCustomers += tree.getCustomers (child);
+      numNodes += assertConsistent (tree, child, customers, totalTokens, typeCounts);
+    }
+    if (! tree.isLeaf (node)) {
+      assertEquals ("node " + node, tree.getCustomers (node), childCustomers);
+    }
+    return numNodes;
+  }
+
+  public void testOneThread () throws IOException
+  {
+    InstanceList instances = generate (60, 1);
+    HierarchicalLDA model = initialize (instances, 1);
+    model.estimate (20);
+    assertConsistent (model, instances);
+    assertTrue (model.getTree ().getNumNodes () > NUM_LEVELS);
+  }
+
+  public void testThreeThreads () throws IOException
+  {
+    InstanceList instances = generate (60, 1);
+    HierarchicalLDA model = initialize (instances, 3);
+    model.estimate (20);
+    assertConsistent (model, instances);
+    assertTrue (model.getTree ().getNumNodes () > NUM_LEVELS);
+  }
+
+  public void testSampleDocuments () throws IOException
+  {
+    InstanceList instances = generate (60, 1);
+    HierarchicalLDA model = initialize (instances, 3);
+    model.estimate (5);
+
+    for (int iteration = 1; iteration <= 10; iteration++) {
+      for (int doc = 0; doc < instances.size (); doc++) {
+        model.samplePath (doc, iteration);
+      }
+      assertConsistent (model, instances);
+      for (int doc = 0; doc < instances.size (); doc++) {
+        model.sampleTopics (doc);
+      }
+      assertConsistent (model, instances);
+    }
+
+    // The root is on every path, so a new branch from it has weight gamma / (documents + gamma)
+    NCRPTree tree = model.getTree ();
+    int root = tree.getRoot ();
+    TIntDoubleHashMap nodeWeights = new TIntDoubleHashMap ();
+    model.calculateNCRP (nodeWeights, root, 0.0);
+    assertEquals (tree.getNumNodes (), nodeWeights.size ());
+    assertEquals (Math.log (1.0 / (instances.size () + 1.0)), nodeWeights.get (root), 1e-12);
+
+    // Choosing a child of the root, then a new branch below it
+    int child = tree.getFirstChild (root);
+    assertEquals (Math.log ((double) tree.getCustomers (child) / (instances.size () + 1.0)) +
+                  Math.log (1.0 / (tree.getCustomers (child) + 1.0)),
+                  nodeWeights.get (child), 1e-12);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestHierarchicalLDA.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestHierarchicalLDA (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
@@ -0,0 +1,175 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import cc.mallet.pipe.Noop;
+import cc.mallet.topics.LabeledLDA;
+import cc.mallet.topics.TopicAssignment;
+import cc.mallet.types.*;
+import junit.framework.*;
+
+/**
+ * Pins the output of seeded single-threaded LabeledLDA training, which was
+ *  produced before training was split into workers, checks that a single
+ *  thread still samples through sampleTopicsForOneDoc, and checks that the
+ *  counts stay consistent with the topic assignments when several workers
+ *  merge their changes.
+ */
+public class TestLabeledLDA extends TestCase {
+
+  static final int NUM_LABELS = 10;
+  static final int NUM_TYPES = 60;
+
+  private static final int[] EXPECTED_TOPIC_TOTALS = {
+    88, 179, 212, 82, 84, 193, 110, 89, 61, 117 };
+
+  // the third document, which has two labels
+  private static final int[] EXPECTED_TOPICS = {
+    0, 3, 3, 3, 0, 0, 3, 0, 0, 0, 3, 0, 0, 0, 0, 0, 3, 0, 0,
+    0, 0, 3, 0, 3, 3, 0, 0, 3, 0, 0, 3, 3, 0, 0, 0, 3, 0 };
+
+  public TestLabeledLDA (String name)
+  {
+    super (name);
+  }
+
+  /** Each document has one to three labels, and draws its words from their blocks of types */
+  static InstanceList generate (int numDocs, long seed)
+  {
+    Alphabet dataAlphabet = new Alphabet ();
+    for (int type = 0; type < NUM_TYPES; type++) {
+      dataAlphabet.lookupIndex ("w" + type);
+    }
+    Alphabet labelAlphabet = new Alphabet ();
+    for (int label = 0; label < NUM_LABELS; label++) {
+      labelAlphabet.lookupIndex ("L" + label);
+    }
+
+    Random random = new Random (seed);
+    InstanceList instances = new InstanceList (new Noop (dataAlphabet, labelAlphabet));
+    for (int doc = 0; doc < numDocs; doc++) {
+      int numLabels = 1 + random.nextInt (3);
+      int[] labels = new int[numLabels];
+      int first = random.nextInt (NUM_LABELS);
+      for (int i = 0; i < numLabels; i++) {
+        labels[i] = (first + 3 * i) % NUM_LABELS;
+      }
+      Arrays.sort (labels);
+      double[] values = new double[numLabels];
+      Arrays.fill (values, 1.0);
+
+      int[] features = new int[10 + random.nextInt (30)];
+      for (int position = 0; position < features.length; position++) {
+        int label = labels[random.nextInt (numLabels)];
+        features[position] = (label * 6 + random.nextInt (9)) % NUM_TYPES;
+      }
+
+      instances.add (new Instance (new FeatureSequence (dataAlphabet, features),
+                                   new FeatureVector (labelAlphabet, labels, values),
+                                   "doc" + doc, null));
+    }
+    return instances;
+  }
+
+  static LabeledLDA train (InstanceList instances, int numThreads) throws IOException
+  {
+    LabeledLDA model = new LabeledLDA (0.1, 0.01);
+    model.setRandomSeed (5);
+    model.setTopicDisplay (0, 5);
+    model.setNumIterations (20);
+    model.setNumThreads (numThreads);
+    model.addInstances (instances);
+    model.estimate ();
+    return model;
+  }
+
+  public void testSingleThread () throws IOException
+  {
+    LabeledLDA model = train (generate (50, 1), 1);
+
+    int[] totals = model.getTopicTotals ();
+    assertTrue (Arrays.toString (totals), Arrays.equals (EXPECTED_TOPIC_TOTALS, totals));
+    int[] topics = model.getData ().get (2).topicSequence.getFeatures ();
+    assertTrue (Arrays.toString (topics), Arrays.equals (EXPECTED_TOPICS, topics));
+  }
+
+  /** Counts the documents it samples */
+  static class CountingLabeledLDA extends LabeledLDA {
+    private static final long serialVersionUID = 1L;
+
+    int numSampled = 0;
+
+    CountingLabeledLDA ()
+    {
+      super (0.1, 0.01);
+    }
+
+    protected void sampleTopicsForOneDoc (FeatureSequence tokenSequence, FeatureVector labels,
+                                          FeatureSequence topicSequence)
+    {
+      numSampled++;
+      super.sampleTopicsForOneDoc (tokenSequence, labels, topicSequence);
+    }
+  }
+
+  public void testOverride () throws IOException
+  {
+    CountingLabeledLDA model = new CountingLabeledLDA ();
+    model.setTopicDisplay (0, 5);
+    model.setNumIterations (3);
+    model.addInstances (generate (20, 2));
+    model.estimate ();
+
+    assertEquals (60, model.numSampled);
+  }
+
+  public void testCountsAfterMerges () throws IOException
+  {
+    LabeledLDA model = train (generate (50, 1), 3);
+
+    int[][] typeTopicCounts = new int[NUM_TYPES][NUM_LABELS];
+    int[] tokensPerTopic = new int[NUM_LABELS];
+    for (TopicAssignment document : model.getData ()) {
+      FeatureSequence tokens = (FeatureSequence) document.instance.getData ();
+      FeatureVector labels = (FeatureVector) document.instance.getTarget ();
+      int[] topics = document.topicSequence.getFeatures ();
+      for (int position = 0; position < tokens.getLength (); position++) {
+        assertTrue ("topic " + topics[position] + " is not a label", labels.location (topics[position]) >= 0);
+        typeTopicCounts[ tokens.getIndexAtPosition (position) ][ topics[position] ]++;
+        tokensPerTopic[ topics[position] ]++;
+      }
+    }
+
+    assertTrue (Arrays.deepEquals (typeTopicCounts, model.getTypeTopicCounts ()));
+    assertTrue (Arrays.equals (tokensPerTopic, model.getTopicTotals ()));
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestLabeledLDA.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestLabeledLDA (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
@@ -0,0 +1,139 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.io.File;
+import java.io.IOException;
+
+import cc.mallet.topics.MappedDocumentTopics;
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.types.*;
+import junit.framework.*;
+
+/**
+ * Writes the document topics of a small model, reads them back, and checks
+ *  that the header and the matrix match the model.
+ */
+public class TestMappedDocumentTopics extends TestCase {
+
+  public TestMappedDocumentTopics (String name)
+  {
+    super (name);
+  }
+
+  private static ParallelTopicModel train (InstanceList instances) throws IOException
+  {
+    ParallelTopicModel model = new ParallelTopicModel (10, 1.0, 0.01);
+    model.setRandomSeed (1);
+    model.setNumIterations (20);
+    model.setTopicDisplay (0, 5);
+    model.addInstances (instances);
+    model.estimate ();
+    return model;
+  }
+
+  private static void assertSameTopics (ParallelTopicModel model, MappedDocumentTopics matrix)
+  {
+    double[] expected = new double[model.getNumTopics ()];
+    double[] actual = new double[model.getNumTopics ()];
+    for (int doc = 0; doc < model.getData ().size (); doc++) {
+      model.getDocumentTopics (doc, expected, true, true);
+      matrix.getDocumentTopics (doc, actual);
+      for (int topic = 0; topic < expected.length; topic++) {
+        assertEquals ("doc " + doc, (float) expected[topic], (float) actual[topic], 0.0f);
+      }
+    }
+  }
+
+  public void testRoundTrip () throws IOException
+  {
+    ParallelTopicModel model = train (SyntheticCorpus.generate (40, 1));
+    File file = File.createTempFile ("document-topics", ".bin");
+    try {
+      MappedDocumentTopics.write (model, file, true, true, null);
+      MappedDocumentTopics matrix = MappedDocumentTopics.open (file);
+
+      assertFalse (matrix.isSparse ());
+      assertEquals (40, matrix.getNumDocuments ());
+      assertEquals (model.getNumTopics (), matrix.getNumTopics ());
+
+      Alphabet alphabet = matrix.getAlphabet ();
+      assertEquals (model.getAlphabet ().size (), alphabet.size ());
+      for (int type = 0; type < alphabet.size (); type++) {
+        assertEquals (model.getAlphabet ().lookupObject (type), alphabet.lookupObject (type));
+      }
+      for (int topic = 0; topic < model.getNumTopics (); topic++) {
+        assertEquals (model.getTopicAlphabet ().lookupObject (topic).toString (),
+                      matrix.getTopicAlphabet ().lookupObject (topic));
+      }
+      for (int doc = 0; doc < 40; doc++) {
+        assertEquals (model.getData ().get (doc).instance.getName ().toString (),
+                      matrix.getDocumentName (doc));
+      }
+
+      assertSameTopics (model, matrix);
+
+      // Every topic passes a zero threshold, so the sparse rows hold the same weights
+      MappedDocumentTopics.writeSparse (model, file, 0.0, true, true, null);
+      matrix = MappedDocumentTopics.open (file);
+      assertTrue (matrix.isSparse ());
+      assertSameTopics (model, matrix);
+    } finally {
+      file.delete ();
+    }
+  }
+
+  public void testDuplicateEntries () throws IOException
+  {
+    // Distinct entries whose strings are the same
+    Alphabet alphabet = new Alphabet ();
+    for (int type = 0; type < 6; type++) {
+      alphabet.lookupIndex (new StringBuffer ("w" + (type % 5)));
+    }
+
+    InstanceList instances = new InstanceList (alphabet, null);
+    for (int doc = 0; doc < 4; doc++) {
+      int[] features = { doc, doc + 1, doc + 2, 5 };
+      instances.add (new Instance (new FeatureSequence (alphabet, features), null, "doc" + doc, null));
+    }
+
+    ParallelTopicModel model = train (instances);
+    File file = File.createTempFile ("document-topics", ".bin");
+    try {
+      MappedDocumentTopics.write (model, file, true, true, null);
+      try {
+        MappedDocumentTopics.open (file);
+        fail ("The alphabet has two entries \"w0\"");
+      } catch (IOException e) {
+        assertTrue (e.getMessage (), e.getMessage ().indexOf ("\"w0\"") >= 0);
+      }
+    } finally {
+      file.delete ();
+    }
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestMappedDocumentTopics.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestMappedDocumentTopics (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
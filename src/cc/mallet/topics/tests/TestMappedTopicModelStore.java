@@ -0,0 +1,107 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import cc.mallet.topics.MappedTopicModelStore;
+import cc.mallet.topics.MultiBackgroundTopicModel;
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.*;
+import junit.framework.*;
+
+/**
+ * Checks that inferencers that read a mapped model give the same results as
+ *  those of the model it was written from, and that they cannot be serialized.
+ */
+public class TestMappedTopicModelStore extends TestCase {
+
+  public TestMappedTopicModelStore (String name)
+  {
+    super (name);
+  }
+
+  private static String topicWordWeights (TopicInferencer inferencer) throws IOException
+  {
+    StringWriter weights = new StringWriter ();
+    PrintWriter out = new PrintWriter (weights);
+    inferencer.printTopicWordWeights (out);
+    out.close ();
+    return weights.toString ();
+  }
+
+  public void testSameAsModel () throws IOException
+  {
+    InstanceList instances = SyntheticCorpus.generate (60, 1);
+    MultiBackgroundTopicModel model = new MultiBackgroundTopicModel (10, 1.0, 0.01, 0.01, 0.5);
+    model.setRandomSeed (1);
+    model.setTopicDisplay (0, 5);
+    model.setNumIterations (20);
+    model.addInstances (instances);
+    model.estimate ();
+
+    InstanceList testing = SyntheticCorpus.generate (instances.getDataAlphabet (), 12, 2);
+
+    File file = File.createTempFile ("model", ".calm");
+    try {
+      MappedTopicModelStore.write (model, file);
+      MappedTopicModelStore store = MappedTopicModelStore.open (file);
+
+      for (String source : SyntheticCorpus.SOURCES) {
+        TopicInferencer expected = model.getInferencer (source);
+        TopicInferencer mapped = store.getInferencer (source);
+
+        assertEquals (topicWordWeights (expected), topicWordWeights (mapped));
+
+        expected.setRandomSeed (3);
+        mapped.setRandomSeed (3);
+        for (Instance instance : testing) {
+          double[] expectedDistribution = expected.getSampledDistribution (instance, 30, 1, 10);
+          double[] mappedDistribution = mapped.getSampledDistribution (instance, 30, 1, 10);
+          assertTrue (source + " " + instance.getName (), Arrays.equals (expectedDistribution, mappedDistribution));
+        }
+      }
+
+      try {
+        new ObjectOutputStream (new ByteArrayOutputStream ()).writeObject (store.getInferencer ("Mail"));
+        fail ("A mapped inferencer was serialized");
+      } catch (NotSerializableException e) {
+        assertTrue (e.getMessage (), e.getMessage ().indexOf ("MappedTopicModelStore") >= 0);
+      }
+    } finally {
+      file.delete ();
+    }
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestMappedTopicModelStore.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestMappedTopicModelStore (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
@@ -0,0 +1,98 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import cc.mallet.topics.MarginalProbEstimator;
+import cc.mallet.topics.MultiBackgroundTopicModel;
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.types.*;
+import junit.framework.*;
+
+/**
+ * Checks that the parallel left-to-right evaluation gives the same
+ *  estimate for a given seed whatever the number of threads.
+ */
+public class TestMarginalProbEstimator extends TestCase {
+
+  public TestMarginalProbEstimator (String name)
+  {
+    super (name);
+  }
+
+  private static void assertSameOnAnyThreads (MarginalProbEstimator estimator, InstanceList testing,
+                                              boolean usingResampling)
+  {
+    ByteArrayOutputStream expectedDocs = new ByteArrayOutputStream ();
+    double expected = estimator.evaluateLeftToRight (testing, 40, usingResampling,
+                                                     new PrintStream (expectedDocs, true), 1, 7);
+    assertFalse (Double.isNaN (expected));
+    assertTrue (expected < 0);
+
+    for (int numThreads = 2; numThreads <= 4; numThreads++) {
+      ByteArrayOutputStream docs = new ByteArrayOutputStream ();
+      double logLikelihood = estimator.evaluateLeftToRight (testing, 40, usingResampling,
+                                                            new PrintStream (docs, true), numThreads, 7);
+      assertEquals (numThreads + " threads", expected, logLikelihood, 0.0);
+      assertEquals (numThreads + " threads", expectedDocs.toString (), docs.toString ());
+    }
+  }
+
+  public void testThreadsParallelTopicModel () throws IOException
+  {
+    InstanceList instances = SyntheticCorpus.generate (60, 1);
+    ParallelTopicModel model = new ParallelTopicModel (10, 1.0, 0.01);
+    model.setRandomSeed (1);
+    model.setTopicDisplay (0, 5);
+    model.setNumIterations (20);
+    model.addInstances (instances);
+    model.estimate ();
+
+    InstanceList testing = SyntheticCorpus.generate (instances.getDataAlphabet (), 12, 2);
+    assertSameOnAnyThreads (model.getProbEstimator (), testing, false);
+    assertSameOnAnyThreads (model.getProbEstimator (), testing, true);
+  }
+
+  public void testThreadsMultiBackgroundTopicModel () throws IOException
+  {
+    InstanceList instances = SyntheticCorpus.generate (60, 1);
+    MultiBackgroundTopicModel model = new MultiBackgroundTopicModel (10, 1.0, 0.01, 0.01, 0.5);
+    model.setRandomSeed (1);
+    model.setTopicDisplay (0, 5);
+    model.setNumIterations (20);
+    model.addInstances (instances);
+    model.estimate ();
+
+    InstanceList testing = SyntheticCorpus.generate (instances.getDataAlphabet (), 12, 2);
+    assertSameOnAnyThreads (model.getProbEstimator ("Mail"), testing, false);
+    assertSameOnAnyThreads (model.getProbEstimator ("Mail"), testing, true);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestMarginalProbEstimator.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestMarginalProbEstimator (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
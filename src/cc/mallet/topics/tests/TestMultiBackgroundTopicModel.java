@@ -0,0 +1,153 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import cc.mallet.topics.MultiBackgroundTopicModel;
+import cc.mallet.types.*;
+import junit.framework.*;
+
+/**
+ * Checks the ways of training a MultiBackgroundTopicModel other than estimate().
+ */
+public class TestMultiBackgroundTopicModel extends TestCase {
+
+  public TestMultiBackgroundTopicModel (String name)
+  {
+    super (name);
+  }
+
+  /** The synthetic corpus, with the documents of each source together, in the order estimate() samples them */
+  private static InstanceList bySource (InstanceList instances)
+  {
+    InstanceList sorted = new InstanceList (instances.getDataAlphabet (), null);
+    for (String source : SyntheticCorpus.SOURCES) {
+      for (Instance instance : instances) {
+        if (source.equals (instance.getSource ())) {
+          sorted.add (instance);
+        }
+      }
+    }
+    return sorted;
+  }
+
+  private static MultiBackgroundTopicModel newModel ()
+  {
+    MultiBackgroundTopicModel model = new MultiBackgroundTopicModel (10, 1.0, 0.01, 0.01, 0.5);
+    model.setRandomSeed (1);
+    model.setTopicDisplay (0, 5);
+    return model;
+  }
+
+  private static void assertSameCounts (MultiBackgroundTopicModel expected, MultiBackgroundTopicModel actual)
+  {
+    assertTrue (Arrays.equals (expected.getTokensPerTopic (), actual.getTokensPerTopic ()));
+    int[][] expectedCounts = expected.getTypeTopicCounts ();
+    int[][] actualCounts = actual.getTypeTopicCounts ();
+    assertEquals (expectedCounts.length, actualCounts.length);
+    for (int type = 0; type < expectedCounts.length; type++) {
+      assertTrue ("type " + type, Arrays.equals (expectedCounts[type], actualCounts[type]));
+    }
+  }
+
+  private static String backgroundWords (MultiBackgroundTopicModel model, String source)
+  {
+    StringBuilder words = new StringBuilder ();
+    for (IDSorter sorter : model.getSortedBackgroundWordsForSource (source)) {
+      words.append (sorter.getID ()).append (':').append (sorter.getWeight ()).append (' ');
+    }
+    return words.toString ();
+  }
+
+  public void testStreamingInOneChunk () throws IOException
+  {
+    InstanceList instances = bySource (SyntheticCorpus.generate (60, 1));
+
+    MultiBackgroundTopicModel inMemory = newModel ();
+    inMemory.setNumThreads (1);
+    inMemory.setNumIterations (20);
+    inMemory.addInstances (instances);
+    inMemory.estimate ();
+
+    // One chunk holding the whole corpus, swept as many times as estimate() iterates
+    MultiBackgroundTopicModel streamed = newModel ();
+    Iterator<Instance> iterator = instances.iterator ();
+    streamed.estimateStreaming (iterator, instances.size (), 20);
+
+    assertSameCounts (inMemory, streamed);
+    for (String source : SyntheticCorpus.SOURCES) {
+      assertEquals (source, backgroundWords (inMemory, source), backgroundWords (streamed, source));
+    }
+  }
+
+  public void testAddSources () throws IOException
+  {
+    InstanceList instances = SyntheticCorpus.generate (90, 1);
+    InstanceList known = new InstanceList (instances.getDataAlphabet (), null);
+    InstanceList added = new InstanceList (instances.getDataAlphabet (), null);
+    for (Instance instance : instances) {
+      if ("Twitter".equals (instance.getSource ()))
+        added.add (instance);
+      else
+        known.add (instance);
+    }
+
+    MultiBackgroundTopicModel model = newModel ();
+    model.setNumIterations (20);
+    model.addInstances (known);
+    model.estimate ();
+
+    int[] tokensPerTopic = model.getTokensPerTopic ().clone ();
+    int[][] typeTopicCounts = new int[model.getTypeTopicCounts ().length][];
+    for (int type = 0; type < typeTopicCounts.length; type++) {
+      typeTopicCounts[type] = model.getTypeTopicCounts ()[type].clone ();
+    }
+    String mailWords = backgroundWords (model, "Mail");
+
+    model.setNumThreads (2);
+    model.addSources (added, 20);
+
+    assertTrue (Arrays.equals (tokensPerTopic, model.getTokensPerTopic ()));
+    for (int type = 0; type < typeTopicCounts.length; type++) {
+      assertTrue ("type " + type, Arrays.equals (typeTopicCounts[type], model.getTypeTopicCounts ()[type]));
+    }
+    assertEquals (mailWords, backgroundWords (model, "Mail"));
+
+    // The words of the new source's own block should be in its background
+    double twitterWeight = 0;
+    for (IDSorter sorter : model.getSortedBackgroundWordsForSource ("Twitter")) {
+      if (sorter.getID () >= 280) {
+        twitterWeight += sorter.getWeight ();
+      }
+    }
+    assertTrue (twitterWeight > 0);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestMultiBackgroundTopicModel.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestMultiBackgroundTopicModel (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
@@ -0,0 +1,89 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.WorkerRunnable;
+import cc.mallet.types.*;
+import cc.mallet.util.Randoms;
+import junit.framework.*;
+
+/**
+ * Checks the log likelihood that the workers sum while sampling against
+ *  the one computed from the model.
+ */
+public class TestParallelTopicModel extends TestCase {
+
+  public TestParallelTopicModel (String name)
+  {
+    super (name);
+  }
+
+  public void testIncrementalLikelihood () throws IOException
+  {
+    ParallelTopicModel model = new ParallelTopicModel (10, 1.0, 0.01);
+    model.setRandomSeed (1);
+    model.setTopicDisplay (0, 5);
+    model.setNumIterations (10);
+    model.addInstances (SyntheticCorpus.generate (60, 1));
+    model.estimate ();
+
+    // Two workers that share the model's counts, each sampling half of the documents
+    int numDocs = model.getData ().size ();
+    Randoms random = new Randoms (2);
+    WorkerRunnable[] runnables = new WorkerRunnable[2];
+    for (int thread = 0; thread < runnables.length; thread++) {
+      int startDoc = thread * numDocs / 2;
+      int endDoc = (thread + 1) * numDocs / 2;
+      runnables[thread] = new WorkerRunnable (model.numTopics, model.alpha, model.alphaSum, model.beta,
+                                              random, model.getData (),
+                                              model.getTypeTopicCounts (), model.getTokensPerTopic (),
+                                              startDoc, endDoc - startDoc);
+      runnables[thread].makeOnlyThread ();
+      runnables[thread].collectDocumentLikelihood ();
+    }
+    for (int thread = 0; thread < runnables.length; thread++) {
+      runnables[thread].run ();
+    }
+
+    double expected = model.modelLogLikelihood ();
+    assertEquals (expected, model.modelLogLikelihood (runnables, null), 1e-9 * Math.abs (expected));
+
+    ExecutorService executor = Executors.newFixedThreadPool (2);
+    try {
+      assertEquals (expected, model.modelLogLikelihood (executor), 0.0);
+      assertEquals (expected, model.modelLogLikelihood (runnables, executor), 1e-9 * Math.abs (expected));
+    } finally {
+      executor.shutdown ();
+    }
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestParallelTopicModel.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestParallelTopicModel (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
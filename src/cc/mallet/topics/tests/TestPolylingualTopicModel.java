@@ -0,0 +1,183 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.PolylingualTopicInferencer;
+import cc.mallet.topics.PolylingualTopicModel;
+import cc.mallet.types.*;
+import junit.framework.*;
+
+/**
+ * Checks the merge of packed type/topic counts shared by ParallelTopicModel
+ *  and PolylingualTopicModel, that a single thread samples through
+ *  sampleTopicsForOneDoc, that multi-threaded polylingual training keeps the
+ *  counts of every language consistent with the topic assignments, and that
+ *  seeded polylingual inference does not depend on the number of threads.
+ */
+public class TestPolylingualTopicModel extends TestCase {
+
+  // 3 topics fit in 2 bits
+  static final int TOPIC_BITS = 2;
+  static final int TOPIC_MASK = 3;
+
+  public TestPolylingualTopicModel (String name)
+  {
+    super (name);
+  }
+
+  static int pack (int count, int topic)
+  {
+    return (count << TOPIC_BITS) + topic;
+  }
+
+  public void testMergeTypeTopicCounts ()
+  {
+    int[][] global = { { pack (9, 1), pack (2, 0), 0 }, { pack (1, 2), 0, 0 } };
+    int[][] first = { { pack (3, 2), pack (2, 0), 0 }, { pack (1, 2), 0, 0 } };
+    int[][] second = { { pack (2, 1), pack (1, 2), 0 }, { pack (4, 0), pack (1, 2), 0 } };
+
+    ParallelTopicModel.clearTypeTopicCounts (global);
+    ParallelTopicModel.addTypeTopicCounts (global, first, TOPIC_MASK, TOPIC_BITS);
+    ParallelTopicModel.addTypeTopicCounts (global, second, TOPIC_MASK, TOPIC_BITS);
+
+    // Each row is sorted by its packed values, so by count and then by topic
+    assertTrue (Arrays.toString (global[0]),
+                Arrays.equals (new int[] { pack (4, 2), pack (2, 1), pack (2, 0) }, global[0]));
+    assertTrue (Arrays.toString (global[1]),
+                Arrays.equals (new int[] { pack (4, 0), pack (2, 2), 0 }, global[1]));
+
+    // A worker with more entries than the merged counts has the rest cleared
+    int[][] worker = { { pack (5, 0), pack (1, 1), pack (1, 2) }, { pack (3, 1), pack (2, 0), pack (1, 2) } };
+    ParallelTopicModel.copyTypeTopicCounts (global, worker);
+    assertTrue (Arrays.equals (global[0], worker[0]));
+    assertTrue (Arrays.equals (global[1], worker[1]));
+  }
+
+  private static InstanceList[] generate (int numDocs)
+  {
+    return new InstanceList[] { SyntheticCorpus.generate (numDocs, 1), SyntheticCorpus.generate (numDocs, 2) };
+  }
+
+  private static PolylingualTopicModel train (InstanceList[] instances, int numThreads) throws IOException
+  {
+    PolylingualTopicModel model = new PolylingualTopicModel (10, 1.0);
+    model.setRandomSeed (1);
+    model.setNumThreads (numThreads);
+    model.setTopicDisplay (0, 5);
+    model.setOptimizeInterval (0);
+    model.addInstances (instances);
+    model.estimate (20);
+    return model;
+  }
+
+  /** Counts the documents it samples */
+  static class CountingPolylingualTopicModel extends PolylingualTopicModel {
+    private static final long serialVersionUID = 1L;
+
+    int numSampled = 0;
+
+    CountingPolylingualTopicModel ()
+    {
+      super (10, 1.0);
+    }
+
+    protected void sampleTopicsForOneDoc (TopicAssignment topicAssignment, boolean shouldSaveState)
+    {
+      numSampled++;
+      super.sampleTopicsForOneDoc (topicAssignment, shouldSaveState);
+    }
+  }
+
+  public void testOverride () throws IOException
+  {
+    CountingPolylingualTopicModel model = new CountingPolylingualTopicModel ();
+    model.setRandomSeed (1);
+    model.setTopicDisplay (0, 5);
+    model.addInstances (generate (20));
+    model.estimate (3);
+
+    // estimate(n) runs iterations 1 to n + 1
+    assertEquals (80, model.numSampled);
+  }
+
+  public void testCountsAfterMerges () throws IOException
+  {
+    InstanceList[] instances = generate (40);
+    PolylingualTopicModel model = train (instances, 3);
+
+    for (int language = 0; language < instances.length; language++) {
+      int numTypes = instances[language].getDataAlphabet ().size ();
+
+      // The counts of the assignments
+      int[][] expected = new int[10][numTypes];
+      for (PolylingualTopicModel.TopicAssignment document : model.getData ()) {
+        FeatureSequence tokens = (FeatureSequence) document.instances[language].getData ();
+        int[] topics = document.topicSequences[language].getFeatures ();
+        for (int position = 0; position < tokens.getLength (); position++) {
+          expected[ topics[position] ][ tokens.getIndexAtPosition (position) ]++;
+        }
+      }
+
+      // The merged counts, as "topic type count" lines
+      int[][] merged = new int[10][numTypes];
+      StringWriter weights = new StringWriter ();
+      PrintWriter out = new PrintWriter (weights);
+      model.getInferencer (language).printTopicWordWeights (out);
+      out.close ();
+      for (String line : weights.toString ().split ("\n")) {
+        String[] fields = line.trim ().split ("\t");
+        merged[ Integer.parseInt (fields[0]) ][ Integer.parseInt (fields[1]) ] = Integer.parseInt (fields[2]);
+      }
+
+      for (int topic = 0; topic < 10; topic++) {
+        assertTrue ("language " + language + " topic " + topic,
+                    Arrays.equals (expected[topic], merged[topic]));
+      }
+    }
+  }
+
+  public void testSeededBatchInference () throws IOException
+  {
+    InstanceList[] instances = generate (30);
+    PolylingualTopicInferencer inferencer = train (instances, 2).getPolylingualInferencer ();
+
+    inferencer.setRandomSeed (5);
+    double[][] oneThread = inferencer.getSampledDistributions (instances, 20, 1, 5, 1);
+    double[][] threeThreads = inferencer.getSampledDistributions (instances, 20, 1, 5, 3);
+
+    for (int doc = 0; doc < oneThread.length; doc++) {
+      assertTrue ("doc " + doc, Arrays.equals (oneThread[doc], threeThreads[doc]));
+    }
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestPolylingualTopicModel.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestPolylingualTopicModel (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
@@ -0,0 +1,134 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.SparseTopicDistribution;
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import junit.framework.*;
+
+/**
+ * Checks that seeded batch inference gives the same distributions whatever
+ *  the number of threads, and the same distributions when streamed, and that
+ *  sparse distributions expand to the dense ones.
+ */
+public class TestTopicInferencer extends TestCase {
+
+  public TestTopicInferencer (String name)
+  {
+    super (name);
+  }
+
+  private TopicInferencer trainInferencer (InstanceList instances) throws IOException
+  {
+    ParallelTopicModel model = new ParallelTopicModel (10, 1.0, 0.01);
+    model.setRandomSeed (1);
+    model.setNumIterations (20);
+    model.setTopicDisplay (0, 5);
+    model.addInstances (instances);
+    model.estimate ();
+    return model.getInferencer ();
+  }
+
+  public void testSeededBatchInference () throws IOException
+  {
+    InstanceList instances = SyntheticCorpus.generate (60, 1);
+    TopicInferencer inferencer = trainInferencer (instances);
+
+    inferencer.setRandomSeed (5);
+    double[][] oneThread = inferencer.getSampledDistributions (instances, 20, 1, 5, 1);
+    double[][] threeThreads = inferencer.getSampledDistributions (instances, 20, 1, 5, 3);
+    inferencer.setRandomSeed (5);
+    double[][] again = inferencer.getSampledDistributions (instances, 20, 1, 5, 2);
+
+    for (int doc = 0; doc < instances.size (); doc++) {
+      assertTrue ("doc " + doc, Arrays.equals (oneThread[doc], threeThreads[doc]));
+      assertTrue ("doc " + doc, Arrays.equals (oneThread[doc], again[doc]));
+    }
+
+    // Streaming in chunks numbers documents from the start of the stream
+    final List<double[]> streamed = new ArrayList<double[]> ();
+    inferencer.inferDistributions (instances.iterator (), 20, 1, 5, 2, 7,
+                                   new TopicInferencer.DistributionSink () {
+        public void distributionInferred (int doc, Instance instance, double[] distribution) {
+          streamed.add (distribution);
+        }
+      });
+    assertEquals (instances.size (), streamed.size ());
+    for (int doc = 0; doc < instances.size (); doc++)
+      assertTrue ("doc " + doc, Arrays.equals (oneThread[doc], streamed.get (doc)));
+  }
+
+  public void testSparseDistribution () throws Exception
+  {
+    InstanceList instances = SyntheticCorpus.generate (30, 2);
+    TopicInferencer inferencer = trainInferencer (instances);
+    int numTopics = inferencer.getAlpha ().length;
+
+    for (int doc = 0; doc < instances.size (); doc++) {
+      Instance instance = instances.get (doc);
+      double[] dense = inferencer.getSampledDistribution (instance, 20, 2, 5,
+                                                          inferencer.newSamplingBuffers (doc));
+      SparseTopicDistribution sparse =
+        inferencer.getSparseSampledDistribution (instance, 20, 2, 5, 0, 0.0,
+                                                 inferencer.newSamplingBuffers (doc));
+
+      double[] expanded = sparse.toDenseArray (numTopics);
+      for (int topic = 0; topic < numTopics; topic++) {
+        assertEquals ("doc " + doc + " topic " + topic, dense[topic], expanded[topic], 1e-6);
+      }
+
+      // alpha is left out of the serialized form, and supplied by the caller
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+      ObjectOutputStream out = new ObjectOutputStream (bytes);
+      out.writeObject (sparse);
+      out.close ();
+      SparseTopicDistribution read = (SparseTopicDistribution)
+        new ObjectInputStream (new ByteArrayInputStream (bytes.toByteArray ())).readObject ();
+
+      assertTrue ("doc " + doc, Arrays.equals (expanded, read.toDenseArray (numTopics, inferencer.getAlpha ())));
+      try {
+        read.toDenseArray (numTopics);
+        fail ("alpha should not have been serialized");
+      } catch (IllegalStateException e) {
+      }
+    }
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestTopicInferencer.class);
+  }
+
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestTopicInferencer (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
@@ -0,0 +1,76 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import cc.mallet.topics.MultiBackgroundTopicModel;
+import cc.mallet.topics.TopicModelDiagnostics;
+import junit.framework.*;
+
+/**
+ * Checks that the diagnostics of a model, including its per-source
+ *  statistics, do not depend on how many threads collect them.
+ */
+public class TestTopicModelDiagnostics extends TestCase {
+
+  public TestTopicModelDiagnostics (String name)
+  {
+    super (name);
+  }
+
+  public void testThreadsGiveSameOutput () throws IOException
+  {
+    MultiBackgroundTopicModel model = new MultiBackgroundTopicModel (10, 1.0, 0.01, 0.01, 0.5);
+    model.setRandomSeed (1);
+    model.setTopicDisplay (0, 5);
+    model.setNumIterations (20);
+    model.addInstances (SyntheticCorpus.generate (300, 1));
+    model.estimate ();
+
+    TopicModelDiagnostics oneThread =
+      new TopicModelDiagnostics (model, 10, model.getData ().iterator (), 1);
+    String expected = oneThread.toXML ();
+    assertTrue (expected.indexOf ("<source") >= 0);
+
+    for (int numThreads = 2; numThreads <= 7; numThreads += 5) {
+      TopicModelDiagnostics diagnostics =
+        new TopicModelDiagnostics (model, 10, model.getData ().iterator (), numThreads);
+      assertEquals (numThreads + " threads", expected, diagnostics.toXML ());
+      assertEquals (numThreads + " threads", oneThread.toString (), diagnostics.toString ());
+
+      // The printed scores are rounded, so also compare those summed from doubles exactly
+      assertTrue (Arrays.equals (oneThread.getDocumentEntropy (model.getTokensPerTopic ()).scores,
+                                 diagnostics.getDocumentEntropy (model.getTokensPerTopic ()).scores));
+      for (int sourceId = 0; sourceId < oneThread.getNumSources (); sourceId++) {
+        assertEquals (oneThread.getBackgroundProportion (sourceId), diagnostics.getBackgroundProportion (sourceId), 0.0);
+      }
+    }
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestTopicModelDiagnostics.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestTopicModelDiagnostics (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
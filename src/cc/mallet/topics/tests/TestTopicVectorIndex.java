@@ -0,0 +1,128 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.topics.tests;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import cc.mallet.topics.TopicVectorIndex;
+import cc.mallet.types.IDSorter;
+import junit.framework.*;
+
+/**
+ * Compares the neighbours found by TopicVectorIndex with those of a search
+ *  of every vector.
+ */
+public class TestTopicVectorIndex extends TestCase {
+
+  static final int NUM_TOPICS = 20;
+  static final int NUM_VECTORS = 1000;
+  static final int NUM_RESULTS = 10;
+
+  public TestTopicVectorIndex (String name)
+  {
+    super (name);
+  }
+
+  /** A sparse distribution, as inferred for a short document */
+  static double[] randomDistribution (Random random)
+  {
+    double[] distribution = new double[NUM_TOPICS];
+    for (int i = 0; i < 3; i++) {
+      distribution[random.nextInt (NUM_TOPICS)] += random.nextDouble ();
+    }
+    for (int topic = 0; topic < NUM_TOPICS; topic++) {
+      distribution[topic] += 0.01;
+    }
+    return distribution;
+  }
+
+  static double cosine (double[] a, double[] b)
+  {
+    double dot = 0, normA = 0, normB = 0;
+    for (int topic = 0; topic < NUM_TOPICS; topic++) {
+      dot += a[topic] * b[topic];
+      normA += a[topic] * a[topic];
+      normB += b[topic] * b[topic];
+    }
+    return dot / Math.sqrt (normA * normB);
+  }
+
+  /** The ids of the most similar vectors of a context, or of any if it is null */
+  static Set<Integer> bruteForce (double[][] vectors, String[] contexts, double[] query, String context)
+  {
+    IDSorter[] sorted = new IDSorter[vectors.length];
+    for (int id = 0; id < vectors.length; id++) {
+      boolean inContext = context == null || context.equals (contexts[id]);
+      sorted[id] = new IDSorter (id, inContext ? cosine (query, vectors[id]) : Double.NEGATIVE_INFINITY);
+    }
+    Arrays.sort (sorted);
+
+    Set<Integer> ids = new HashSet<Integer> ();
+    for (int i = 0; i < NUM_RESULTS; i++) {
+      ids.add (sorted[i].getID ());
+    }
+    return ids;
+  }
+
+  public void testRecall ()
+  {
+    Random random = new Random (1);
+    TopicVectorIndex index = new TopicVectorIndex (NUM_TOPICS, 8, 100, 2);
+
+    double[][] vectors = new double[NUM_VECTORS][];
+    String[] contexts = new String[NUM_VECTORS];
+    for (int id = 0; id < NUM_VECTORS; id++) {
+      vectors[id] = randomDistribution (random);
+      contexts[id] = id % 4 == 0 ? "Mail" : "News";
+      assertEquals (id, index.add ("doc" + id, contexts[id], vectors[id]));
+    }
+
+    assertEquals (NUM_VECTORS, index.size ());
+    assertEquals ("doc12", index.getKey (12));
+    assertEquals ("Mail", index.getContext (12));
+    assertEquals ("News", index.getContext (13));
+
+    index.setEfSearch (200);
+    for (int q = 0; q < 50; q++) {
+      double[] query = randomDistribution (random);
+      for (String context : new String[] { null, "Mail" }) {
+        Set<Integer> expected = bruteForce (vectors, contexts, query, context);
+
+        IDSorter[] results = index.search (query, NUM_RESULTS, context);
+        assertEquals (NUM_RESULTS, results.length);
+        for (IDSorter result : results) {
+          assertTrue ("query " + q + " in " + context + ": " + result.getID (),
+                      expected.contains (result.getID ()));
+        }
+      }
+    }
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestTopicVectorIndex.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestTopicVectorIndex (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
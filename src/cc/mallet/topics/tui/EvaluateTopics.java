@@ -54,6 +54,11 @@ public class EvaluateTopics {
         (EvaluateTopics.class, "burn-in", "INTEGER", true, 10,
          "The number of iterations before the first sample is saved.", null);
 
+	static CommandOption.Integer numThreads = new CommandOption.Integer
+        (EvaluateTopics.class, "num-threads", "INTEGER", true, 1,
+         "The number of threads for left-to-right evaluation. With more than one, each particle " +
+         "of each document gets its own random stream, so results do not depend on the number of threads.", null);
+
     static CommandOption.Integer randomSeed = new CommandOption.Integer
         (EvaluateTopics.class, "random-seed", "INTEGER", true, -1,
          "The random seed for the Gibbs sampler.  Default is -1, which will use the clock.", null);
@@ -97,9 +102,18 @@ public class EvaluateTopics {
 
 			InstanceList instances = InstanceList.load (new File(inputFile.value));
 
-			outputStream.println(evaluator.evaluateLeftToRight(instances, numParticles.value, 
-															   usingResampling.value,
-															   docProbabilityStream));
+			if (numThreads.value > 1) {
+				int seed = randomSeed.value == -1 ? (int) System.currentTimeMillis() : randomSeed.value;
+				outputStream.println(evaluator.evaluateLeftToRight(instances, numParticles.value,
+																   usingResampling.value,
+																   docProbabilityStream,
+																   numThreads.value, seed));
+			}
+			else {
+				outputStream.println(evaluator.evaluateLeftToRight(instances, numParticles.value, 
+																   usingResampling.value,
+																   docProbabilityStream));
+			}
 			
 
 		} catch (Exception e) {
@@ -32,6 +32,11 @@ public class HierarchicalLDATUI {
 	  	(Vectors2Topics.class, "num-iterations", "INTEGER", true, 1000,
 		 "The number of iterations of Gibbs sampling.", null);
 
+	static CommandOption.Integer numThreads = new CommandOption.Integer
+		(HierarchicalLDATUI.class, "num-threads", "INTEGER", true, 1,
+		 "The number of threads for parallel training. With more than one, the threads sample " +
+		 "against the tree as of the start of each iteration and their changes are merged after it.", null);
+
 	static CommandOption.Boolean showProgress = new CommandOption.Boolean
 		(HierarchicalLDATUI.class, "show-progress", "BOOLEAN", false, true,
 		 "If true, print a character to standard output after every sampling iteration.", null);
@@ -87,6 +92,7 @@ public class HierarchicalLDATUI {
 		hlda.setAlpha(alpha.value());
 		hlda.setGamma(gamma.value());
 		hlda.setEta(eta.value());
+		hlda.setNumThreads(numThreads.value());
 		
 		// Display preferences
 
@@ -19,6 +19,7 @@ import cc.mallet.pipe.iterator.DBInstanceIterator;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.*;
 import java.util.logging.*;
 import java.io.*;
 
@@ -131,6 +132,11 @@ public class TopicTrainer {
 		 "do not print more than INTEGER number of topics.  "+
 		 "A negative value indicates that all topics should be printed.", null);
 
+	static CommandOption.String docTopicsMappedFile = new CommandOption.String(TopicTrainer.class, "output-doc-topics-mapped", "FILENAME", true, null,
+		 "The filename in which to write the topic proportions per document as a binary matrix that can be memory-mapped " +
+		 "(see cc.mallet.topics.MappedDocumentTopics).  With --doc-topics-threshold greater than zero the matrix is sparse.  " +
+		 "By default this is null, indicating that no file will be written.", null);
+
 	// Model parameters
 
 	static CommandOption.Integer numTopics = new CommandOption.Integer(TopicTrainer.class, "num-topics", "INTEGER", true, 10,
@@ -344,6 +350,21 @@ public class TopicTrainer {
 			out.close();
 		}
 
+		if (docTopicsMappedFile.value != null) {
+			ExecutorService executor = Executors.newFixedThreadPool(numThreads.value);
+			try {
+				if (docTopicsThreshold.value == 0.0) {
+					MappedDocumentTopics.write(topicModel, new File(docTopicsMappedFile.value), true, true, executor);
+				}
+				else {
+					MappedDocumentTopics.writeSparse(topicModel, new File(docTopicsMappedFile.value),
+													 docTopicsThreshold.value, true, true, executor);
+				}
+			} finally {
+				executor.shutdown();
+			}
+		}
+
 		if (topicWordWeightsFile.value != null) {
 			topicModel.printTopicWordWeights(new File (topicWordWeightsFile.value));
 		}
@@ -50,24 +50,24 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class Alphabet implements Serializable
 {
-	gnu.trove.TObjectIntHashMap map;
-	ArrayList entries;
+	gnu.trove.TObjectIntHashMap<Object> map;
+	ArrayList<Object> entries;
 	volatile boolean growthStopped = false;
-	Class entryClass = null;
+	Class<?> entryClass = null;
 	VMID instanceId = new VMID();  //used in readResolve to identify persitent instances
 
     private transient ReadWriteLock lock = new ReentrantReadWriteLock();
 
-	public Alphabet (int capacity, Class entryClass)
+	public Alphabet (int capacity, Class<?> entryClass)
 	{
-		this.map = new gnu.trove.TObjectIntHashMap (capacity);
-		this.entries = new ArrayList (capacity);
+		this.map = new gnu.trove.TObjectIntHashMap<Object> (capacity);
+		this.entries = new ArrayList<Object> (capacity);
 		this.entryClass = entryClass;
 		// someone could try to deserialize us into this image (e.g., by RMI).  Handle this.
 		deserializedEntries.putIfAbsent(instanceId, this);
 	}
 
-	public Alphabet (Class entryClass)
+	public Alphabet (Class<?> entryClass)
 	{
 		this (8, entryClass);
 	}
@@ -93,8 +93,8 @@ public class Alphabet implements Serializable
         lock.readLock().lock();
         try {
             Alphabet ret = new Alphabet();
-            ret.map = (gnu.trove.TObjectIntHashMap) map.clone();
-            ret.entries = (ArrayList) entries.clone();
+            ret.map = map.clone();
+            ret.entries = new ArrayList<Object> (entries);
             ret.growthStopped = growthStopped;
             ret.entryClass = entryClass;
             return ret;
@@ -130,6 +130,10 @@ public class Alphabet implements Serializable
 		if (!growthStopped && addIfNotPresent) {
             lock.writeLock().lock();
             try {
+                // Another thread may have added it since we released the read lock
+                if (map.containsKey(entry)) {
+                    return map.get(entry);
+                }
                 int retIndex = entries.size();
                 map.put(entry, retIndex);
                 entries.add(entry);
@@ -184,10 +188,10 @@ public class Alphabet implements Serializable
 
 	// xxx This should disable the iterator's remove method...
     // for thread safety returns a _copy_ of the array; should probably use size() and lookupObject() instead
-	public Iterator iterator () {
+	public Iterator<Object> iterator () {
         lock.readLock().lock();
         try {
-            ArrayList copy = new ArrayList();
+            ArrayList<Object> copy = new ArrayList<Object>();
             copy.addAll(entries);
             return copy.iterator();
         } finally {
@@ -269,7 +273,7 @@ public class Alphabet implements Serializable
 		return growthStopped;
 	}
 
-	public Class entryClass ()
+	public Class<?> entryClass ()
 	{
 		return entryClass;
 	}
@@ -351,15 +355,15 @@ public class Alphabet implements Serializable
         try {
             int version = in.readInt();
             int size = in.readInt();
-            entries = new ArrayList(size);
-            map = new gnu.trove.TObjectIntHashMap(size);
+            entries = new ArrayList<Object>(size);
+            map = new gnu.trove.TObjectIntHashMap<Object>(size);
             for (int i = 0; i < size; i++) {
                 Object o = in.readObject();
                 map.put(o, i);
                 entries.add(o);
             }
             growthStopped = in.readBoolean();
-            entryClass = (Class) in.readObject();
+            entryClass = (Class<?>) in.readObject();
             if (version > 0) { // instanced id added in version 1S
                 instanceId = (VMID) in.readObject();
             }
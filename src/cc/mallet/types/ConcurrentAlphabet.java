@@ -0,0 +1,226 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.types;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An {@link Alphabet} for pipes that run on several threads at once.
+ * <p>
+ * Lookups take no lock. Entries are found through a ConcurrentHashMap, and the entries are
+ * stored in fixed-size pages that are never copied or moved. Adding a new entry takes a
+ * short lock, which only threads adding entries contend for. Those threads check the map
+ * again inside the lock, so every entry gets exactly one index and indices stay dense.
+ * Once most words of a corpus have been seen, nearly every call is a lock-free hit.
+ * <p>
+ * ConcurrentAlphabet can be used wherever an Alphabet is expected. That includes
+ * <code>stopGrowth</code>, serialization, and readResolve, which maps a deserialized
+ * copy back to the instance already in this VM.
+ */
+public class ConcurrentAlphabet extends Alphabet
+{
+	static final int PAGE_BITS = 10;
+	static final int PAGE_SIZE = 1 << PAGE_BITS;
+	static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	transient ConcurrentHashMap<Object,Integer> indices;
+	// written only under appendLock; pages are published before size
+	transient volatile Object[][] pages;
+	transient volatile int size;
+	transient Object appendLock;
+
+	public ConcurrentAlphabet (int capacity, Class<?> entryClass)
+	{
+		// The superclass' map and entry list stay empty
+		super (1, entryClass);
+		initialize (capacity);
+	}
+
+	public ConcurrentAlphabet (Class<?> entryClass)
+	{
+		this (8, entryClass);
+	}
+
+	public ConcurrentAlphabet (int capacity)
+	{
+		this (capacity, null);
+	}
+
+	public ConcurrentAlphabet ()
+	{
+		this (8, null);
+	}
+
+	public ConcurrentAlphabet (Object[] entries) {
+		this (entries.length);
+		for (Object entry : entries)
+			this.lookupIndex(entry);
+	}
+
+	private void initialize (int capacity)
+	{
+		indices = new ConcurrentHashMap<Object,Integer> (Math.max (16, capacity));
+		pages = new Object[Math.max (1, (capacity + PAGE_SIZE - 1) >>> PAGE_BITS)][];
+		size = 0;
+		appendLock = new Object();
+	}
+
+	public Object clone ()
+	{
+		int n = size;
+		ConcurrentAlphabet ret = new ConcurrentAlphabet (n, entryClass);
+		for (int i = 0; i < n; i++)
+			ret.append (lookupObject (i));
+		ret.growthStopped = growthStopped;
+		return ret;
+	}
+
+	/** Return -1 if entry isn't present. */
+	public int lookupIndex (Object entry, boolean addIfNotPresent)
+	{
+		if (entry == null)
+			throw new IllegalArgumentException ("Can't lookup \"null\" in an Alphabet.");
+		if (entryClass == null)
+			entryClass = entry.getClass();
+		else if (entry.getClass() != entryClass)
+			throw new IllegalArgumentException ("Non-matching entry class, " + entry.getClass() + ", was " + entryClass);
+
+		Integer index = indices.get (entry);
+		if (index != null)
+			return index;
+		if (growthStopped || !addIfNotPresent)
+			return -1;
+
+		synchronized (appendLock) {
+			// Another thread may have added it while we waited
+			index = indices.get (entry);
+			if (index != null)
+				return index;
+			return append (entry);
+		}
+	}
+
+	/** Add an entry known to be absent; the caller holds appendLock or owns this alphabet */
+	private int append (Object entry)
+	{
+		int index = size;
+		int page = index >>> PAGE_BITS;
+		Object[][] p = pages;
+		if (page >= p.length)
+			p = Arrays.copyOf (p, p.length * 2);
+		if (p[page] == null)
+			p[page] = new Object[PAGE_SIZE];
+		p[page][index & PAGE_MASK] = entry;
+
+		// Publish the entry before its index becomes visible
+		pages = p;
+		size = index + 1;
+		indices.put (entry, index);
+		return index;
+	}
+
+	public Object lookupObject (int index)
+	{
+		// Read size before pages, see append()
+		int n = size;
+		if (index < 0 || index >= n)
+			throw new IndexOutOfBoundsException ("Index: " + index + ", Size: " + n);
+		return pages[index >>> PAGE_BITS][index & PAGE_MASK];
+	}
+
+	public Object[] toArray () {
+		return toArray (new Object[0]);
+	}
+
+	public Object[] toArray (Object[] in) {
+		int n = size;
+		if (in.length < n)
+			in = (Object[]) Array.newInstance (in.getClass().getComponentType(), n);
+		for (int i = 0; i < n; i++)
+			in[i] = lookupObject (i);
+		if (in.length > n)
+			in[n] = null;
+		return in;
+	}
+
+	// Like Alphabet, iterates over a copy of the entries
+	public Iterator<Object> iterator () {
+		return Arrays.asList (toArray()).iterator();
+	}
+
+	public Object[] lookupObjects (int[] indices)
+	{
+		return lookupObjects (indices, new Object[indices.length]);
+	}
+
+	public Object[] lookupObjects (int[] indices, Object[] buf)
+	{
+		for (int i = 0; i < indices.length; i++)
+			buf[i] = lookupObject (indices[i]);
+		return buf;
+	}
+
+	public boolean contains (Object entry)
+	{
+		return indices.containsKey (entry);
+	}
+
+	public int size ()
+	{
+		return size;
+	}
+
+	public String toString()
+	{
+		int n = size;
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < n; i++) {
+			sb.append (lookupObject(i).toString());
+			sb.append ('\n');
+		}
+		return sb.toString();
+	}
+
+	public void dump (PrintWriter out)
+	{
+		int n = size;
+		for (int i = 0; i < n; i++)
+			out.println (i + " => " + lookupObject (i));
+	}
+
+	// Serialization
+
+	// Alphabet writes its own fields (growthStopped, entryClass and instanceId) and an empty
+	//  entry list; the entries are written here.
+
+	private static final long serialVersionUID = 1;
+	private static final int CURRENT_SERIAL_VERSION = 0;
+
+	private void writeObject (ObjectOutputStream out) throws IOException {
+		int n = size;
+		out.writeInt (CURRENT_SERIAL_VERSION);
+		out.writeInt (n);
+		for (int i = 0; i < n; i++)
+			out.writeObject (lookupObject (i));
+	}
+
+	private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+		int version = in.readInt ();
+		int n = in.readInt ();
+		initialize (n);
+		for (int i = 0; i < n; i++)
+			append (in.readObject ());
+	}
+}
@@ -19,6 +19,11 @@ import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import cc.mallet.types.Multinomial;
 import cc.mallet.util.Maths;
@@ -483,6 +488,7 @@ Bernoulli numbers. */
 				}
 				
 				denominator += currentDigamma * observationLengths[length];
+				previousLength = length;
 			}
 			
 			currentValue = currentParameter * numerator / denominator;
@@ -658,6 +664,204 @@ Bernoulli numbers. */
 
 
 
+	/**
+	 * Learn the concentration parameter of a symmetric Dirichlet from sparse frequency histograms.
+	 *  Gives the same result as the version that takes dense arrays.
+	 *
+	 * @param countHistogram <code>countHistogram.getFrequency(3)</code> is the total number of cells that equal 3
+	 * @param observationLengths <code>observationLengths.getFrequency(20)</code> is the number of samples that are exactly 20 long
+	 * @param numDimensions The total number of dimensions.
+	 * @param currentValue An initial starting value.
+	 */
+	public static double learnSymmetricConcentration(SparseHistogram countHistogram,
+													 SparseHistogram observationLengths,
+													 int numDimensions,
+													 double currentValue) {
+		int[] counts = countHistogram.getValues();
+		int[] countFrequencies = countHistogram.getFrequencies(counts);
+		int[] lengths = observationLengths.getValues();
+		int[] lengthFrequencies = observationLengths.getFrequencies(lengths);
+
+		for (int iteration = 1; iteration <= 200; iteration++) {
+
+			double currentParameter = currentValue / numDimensions;
+
+			// Calculate the numerator, walking the digamma sum up to each non-zero count.
+			//  Counts of 0 don't matter, so start with 1
+
+			double currentDigamma = 0;
+			double numerator = 0;
+			int index = 1;
+
+			for (int i = 0; i < counts.length; i++) {
+				for (; index <= counts[i]; index++) {
+					currentDigamma += 1.0 / (currentParameter + index - 1);
+				}
+				if (counts[i] > 0) {
+					numerator += countFrequencies[i] * currentDigamma;
+				}
+			}
+
+			// Now calculate the denominator, a sum over all observation lengths
+
+			currentDigamma = 0;
+			double denominator = 0;
+			int previousLength = 0;
+
+			double cachedDigamma = digamma(currentValue);
+
+			for (int i = 0; i < lengths.length; i++) {
+				int length = lengths[i];
+
+				if (length - previousLength > 20) {
+					// If the next length is sufficiently far from the previous,
+					//  it's faster to recalculate from scratch.
+					currentDigamma = digamma(currentValue + length) - cachedDigamma;
+				}
+				else {
+					for (index = previousLength; index < length; index++) {
+						currentDigamma += 1.0 / (currentValue + index);
+					}
+				}
+
+				denominator += currentDigamma * lengthFrequencies[i];
+				previousLength = length;
+			}
+
+			currentValue = currentParameter * numerator / denominator;
+		}
+
+		return currentValue;
+	}
+
+	// the number of parameters each task of the parallel fixed point iteration updates
+	static final int PARAMETERS_PER_TASK = 32;
+
+	/**
+	 * Learn Dirichlet parameters from sparse frequency histograms. This is the same fixed point
+	 *  iteration, with the same result, as the version that takes dense arrays. Within an
+	 *  iteration the parameters do not depend on each other, so if <code>executor</code> is
+	 *  not null they are updated in parallel, in blocks of {@value #PARAMETERS_PER_TASK}.
+	 *
+	 * @param parameters A reference to the current values of the parameters, which will be updated in place
+	 * @param observations One histogram per parameter. <code>observations[10].getFrequency(3)</code> could be the number of documents that contain exactly 3 tokens of word type 10.
+	 * @param observationLengths A histogram of sample lengths.
+	 * @param shape Gamma prior E(X) = shape * scale, var(X) = shape * scale<sup>2</sup>
+	 * @param scale
+	 * @param numIterations 200 to 1000 generally insures convergence, but 1-5 is often enough to step in the right direction
+	 * @param executor Threads for the parameter updates, or null to update them on the calling thread
+	 * @returns The sum of the learned parameters.
+	 */
+	public static double learnParameters(final double[] parameters,
+										 SparseHistogram[] observations,
+										 SparseHistogram observationLengths,
+										 final double shape, double scale,
+										 int numIterations,
+										 ExecutorService executor) {
+
+		final int[][] values = new int[parameters.length][];
+		final int[][] frequencies = new int[parameters.length][];
+		for (int k = 0; k < parameters.length; k++) {
+			values[k] = observations[k].getValues();
+			frequencies[k] = observations[k].getFrequencies(values[k]);
+		}
+
+		int[] lengths = observationLengths.getValues();
+		int[] lengthFrequencies = observationLengths.getFrequencies(lengths);
+
+		double parametersSum = 0;
+		for (int k = 0; k < parameters.length; k++) {
+			parametersSum += parameters[k];
+		}
+
+		for (int iteration = 0; iteration < numIterations; iteration++) {
+
+			// Calculate the denominator
+			double denominator = 0;
+			double currentDigamma = 0;
+			int index = 1;
+
+			for (int i = 0; i < lengths.length; i++) {
+				for (; index <= lengths[i]; index++) {
+					currentDigamma += 1 / (parametersSum + index - 1);
+				}
+				if (lengths[i] > 0) {
+					denominator += lengthFrequencies[i] * currentDigamma;
+				}
+			}
+
+			// Bayesian estimation Part I
+			denominator -= 1/scale;
+
+			// Calculate the individual parameters
+			final double finalDenominator = denominator;
+
+			if (executor == null || parameters.length <= PARAMETERS_PER_TASK) {
+				updateParameters(parameters, values, frequencies, shape, finalDenominator, 0, parameters.length);
+			}
+			else {
+				List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+				for (int start = 0; start < parameters.length; start += PARAMETERS_PER_TASK) {
+					final int blockStart = start;
+					final int blockEnd = Math.min(parameters.length, start + PARAMETERS_PER_TASK);
+					tasks.add(new Callable<Object>() {
+							public Object call() {
+								updateParameters(parameters, values, frequencies, shape, finalDenominator,
+												 blockStart, blockEnd);
+								return null;
+							}
+						});
+				}
+
+				try {
+					for (Future<Object> future : executor.invokeAll(tasks)) {
+						future.get();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while learning Dirichlet parameters", e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException("Dirichlet parameter update failed", e.getCause());
+				}
+			}
+
+			// Sum in order, so the result does not depend on the number of threads
+			parametersSum = 0;
+			for (int k = 0; k < parameters.length; k++) {
+				parametersSum += parameters[k];
+			}
+		}
+
+		if (parametersSum < 0.0) { throw new RuntimeException("sum: " + parametersSum); }
+
+		return parametersSum;
+	}
+
+	/** One step of the fixed point iteration for the parameters in [start, end) */
+	static void updateParameters(double[] parameters, int[][] values, int[][] frequencies,
+								 double shape, double denominator, int start, int end) {
+		for (int k = start; k < end; k++) {
+
+			double oldParametersK = parameters[k];
+			double currentDigamma = 0;
+			double sum = 0;
+			int index = 1;
+
+			int[] histogramValues = values[k];
+			for (int i = 0; i < histogramValues.length; i++) {
+				for (; index <= histogramValues[i]; index++) {
+					currentDigamma += 1 / (oldParametersK + index - 1);
+				}
+				if (histogramValues[i] > 0) {
+					sum += frequencies[k][i] * currentDigamma;
+				}
+			}
+
+			// Bayesian estimation part II
+			parameters[k] = oldParametersK * (sum + shape) / denominator;
+		}
+	}
+
 	/** Use the fixed point iteration described by Tom Minka. */
 	public long learnParametersWithHistogram(Object[] observations) {
 
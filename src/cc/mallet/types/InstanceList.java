@@ -24,7 +24,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import cc.mallet.pipe.FeatureSequence2FeatureVector;
@@ -281,6 +287,115 @@ public class InstanceList extends ArrayList<Instance> implements Serializable, I
 	  addThruPipe(new SingleInstanceIterator(inst));
 	}
 
+	public static final int DEFAULT_PARALLEL_CHUNK_SIZE = 1000;
+
+	/** Like <tt>addThruPipe(Iterator<Instance>)</tt>, but runs the pipe on <code>numThreads</code> threads,
+	 *  in chunks of {@link #DEFAULT_PARALLEL_CHUNK_SIZE} instances. */
+	public void addThruPipe (Iterator<Instance> ii, int numThreads)
+	{
+		addThruPipe (ii, numThreads, DEFAULT_PARALLEL_CHUNK_SIZE);
+	}
+
+	/** Adds to this list every instance generated by the iterator, passing each one
+	 * through this InstanceList's pipe on a pool of <code>numThreads</code> threads.
+	 * <p>
+	 * The source iterator is read on the calling thread in chunks of <code>chunkSize</code> instances.
+	 * Adding to an Alphabet in parallel would number the features in whatever order the threads
+	 * happen to reach them, so the pipe runs in two phases. The leading pipes that carry no Alphabet,
+	 * or only Alphabets whose growth has stopped, run on the pool. Typical examples are tokenizing,
+	 * lowercasing and stemming. The remaining pipes start at the first one that may add to an Alphabet.
+	 * They run on the calling thread, one chunk at a time, in the order the chunks were read.
+	 * The instances, their order and all feature and label indices are therefore the same as
+	 * with <tt>addThruPipe(Iterator<Instance>)</tt>.
+	 * <p>
+	 * The pipes of the first phase must be safe to call from several threads at once.
+	 */
+	public void addThruPipe (Iterator<Instance> ii, int numThreads, int chunkSize)
+	{
+		List<Pipe> stages;
+		if (pipe instanceof SerialPipes)
+			stages = ((SerialPipes) pipe).pipes();
+		else
+			stages = Collections.singletonList(pipe);
+
+		int split = 0;
+		while (split < stages.size() && ! mayGrowAlphabet(stages.get(split)))
+			split++;
+		final List<Pipe> parallelStages = stages.subList(0, split);
+		List<Pipe> orderedStages = stages.subList(split, stages.size());
+
+		if (numThreads <= 1 || parallelStages.isEmpty()) {
+			addThruPipe (ii);
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		// Read a few chunks ahead, so the pool keeps working while the calling thread
+		//  runs the ordered phase.
+		LinkedList<Future<List<Instance>>> pending = new LinkedList<Future<List<Instance>>>();
+		try {
+			while (true) {
+				while (pending.size() < 2 * numThreads && ii.hasNext()) {
+					final List<Instance> chunk = new ArrayList<Instance>(chunkSize);
+					while (chunk.size() < chunkSize && ii.hasNext())
+						chunk.add (ii.next());
+
+					pending.add (executor.submit (new Callable<List<Instance>>() {
+							public List<Instance> call () {
+								List<Instance> piped = new ArrayList<Instance>(chunk.size());
+								Iterator<Instance> out = pipeThrough (parallelStages, chunk.iterator());
+								while (out.hasNext())
+									piped.add (out.next());
+								return piped;
+							}
+						}));
+				}
+				if (pending.isEmpty())
+					break;
+
+				List<Instance> piped;
+				try {
+					piped = pending.removeFirst().get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException ("Interrupted while waiting for pipe threads", e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException)
+						throw (RuntimeException) e.getCause();
+					throw new RuntimeException ("Pipe thread failed", e.getCause());
+				}
+
+				Iterator<Instance> out = pipeThrough (orderedStages, piped.iterator());
+				while (out.hasNext())
+					add (out.next());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static Iterator<Instance> pipeThrough (List<Pipe> stages, Iterator<Instance> source)
+	{
+		Iterator<Instance> ret = source;
+		for (Pipe stage : stages)
+			ret = stage.newIteratorFrom(ret);
+		return ret;
+	}
+
+	/** Whether this pipe carries an Alphabet that has not stopped growing */
+	private static boolean mayGrowAlphabet (Pipe p)
+	{
+		if (p instanceof SerialPipes) {
+			for (Pipe inner : ((SerialPipes) p).pipes())
+				if (mayGrowAlphabet(inner))
+					return true;
+		}
+		Alphabet data = p.getDataAlphabet();
+		Alphabet target = p.getTargetAlphabet();
+		return (data != null && ! data.growthStopped())
+			|| (target != null && ! target.growthStopped());
+	}
+
 	/** Constructs and appends an instance to this list, passing it through this
 	 * list's pipe and assigning it the specified weight.
 	 * @return <code>true</code>
@@ -0,0 +1,107 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.types;
+
+import java.util.Arrays;
+
+import gnu.trove.TIntIntHashMap;
+import gnu.trove.TIntIntProcedure;
+
+/**
+ * A histogram of non-negative integer values that only stores the values that occur.
+ * <p>
+ * The Dirichlet estimators take histograms such as "the number of documents in which topic t
+ *  occurs exactly n times". As dense arrays these need one cell for every possible n, up to the
+ *  length of the longest document, although few of the cells are ever non-zero.
+ *
+ * @see Dirichlet#learnParameters(double[], SparseHistogram[], SparseHistogram, double, double, int, java.util.concurrent.ExecutorService)
+ * @see Dirichlet#learnSymmetricConcentration(SparseHistogram, SparseHistogram, int, double)
+ */
+public class SparseHistogram {
+
+	TIntIntHashMap frequencies = new TIntIntHashMap();
+
+	public SparseHistogram () { }
+
+	/** Build a histogram from a dense one, in which <code>histogram[n]</code> is the frequency of n */
+	public SparseHistogram (int[] histogram) {
+		for (int value = 0; value < histogram.length; value++) {
+			if (histogram[value] != 0) {
+				frequencies.put(value, histogram[value]);
+			}
+		}
+	}
+
+	public void increment (int value) {
+		frequencies.adjustOrPutValue(value, 1, 1);
+	}
+
+	public void increment (int value, int frequency) {
+		frequencies.adjustOrPutValue(value, frequency, frequency);
+	}
+
+	/** Add the frequencies of another histogram to this one */
+	public void add (SparseHistogram other) {
+		other.frequencies.forEachEntry(new TIntIntProcedure() {
+				public boolean execute (int value, int frequency) {
+					increment(value, frequency);
+					return true;
+				}
+			});
+	}
+
+	public void clear () {
+		frequencies.clear();
+	}
+
+	public boolean isEmpty () {
+		return frequencies.isEmpty();
+	}
+
+	/** The number of distinct values */
+	public int size () {
+		return frequencies.size();
+	}
+
+	public int getFrequency (int value) {
+		return frequencies.get(value);
+	}
+
+	/** The distinct values, in increasing order */
+	public int[] getValues () {
+		int[] values = frequencies.keys();
+		Arrays.sort(values);
+		return values;
+	}
+
+	/** The frequencies of these values */
+	public int[] getFrequencies (int[] values) {
+		int[] result = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = frequencies.get(values[i]);
+		}
+		return result;
+	}
+
+	/** The largest value with a non-zero frequency, or -1 if the histogram is empty */
+	public int getMaxValue () {
+		int max = -1;
+		for (int value : frequencies.keys()) {
+			if (value > max && frequencies.get(value) != 0) { max = value; }
+		}
+		return max;
+	}
+
+	public String toString () {
+		StringBuilder out = new StringBuilder();
+		for (int value : getValues()) {
+			out.append(value).append(':').append(frequencies.get(value)).append(' ');
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,146 @@
+package cc.mallet.types.tests;
+
+import junit.framework.*;
+
+import java.io.IOException;
+import java.rmi.dgc.VMID;
+import java.util.ArrayList;
+import java.util.List;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.ConcurrentAlphabet;
+
+/**
+ * Checks that ConcurrentAlphabet behaves like Alphabet, also when several threads add to it.
+ */
+public class TestConcurrentAlphabet extends TestCase {
+
+  public TestConcurrentAlphabet (String name)
+  {
+    super (name);
+  }
+
+  public void testNotFound ()
+  {
+    Alphabet dict = new ConcurrentAlphabet ();
+    dict.lookupIndex ("TEST1");
+    dict.lookupIndex ("TEST2");
+    dict.lookupIndex ("TEST3");
+    assertEquals (-1, dict.lookupIndex ("TEST4", false));
+    assertEquals (3, dict.size());
+    assertEquals (3, dict.lookupIndex ("TEST4", true));
+    assertEquals ("TEST4", dict.lookupObject (3));
+    assertTrue (dict.contains ("TEST2"));
+  }
+
+  public void testStopGrowth ()
+  {
+    Alphabet dict = new ConcurrentAlphabet ();
+    dict.lookupIndex ("TEST1");
+    dict.stopGrowth ();
+    assertEquals (-1, dict.lookupIndex ("TEST2"));
+    assertEquals (0, dict.lookupIndex ("TEST1"));
+    assertEquals (1, dict.size());
+    dict.startGrowth ();
+    assertEquals (1, dict.lookupIndex ("TEST2"));
+  }
+
+  public void testManyPages ()
+  {
+    Alphabet dict = new ConcurrentAlphabet ();
+    for (int i = 0; i < 5000; i++)
+      assertEquals (i, dict.lookupIndex ("word" + i));
+    Object[] entries = dict.toArray (new String[0]);
+    assertEquals (5000, entries.length);
+    for (int i = 0; i < 5000; i++)
+      assertEquals ("word" + i, entries[i]);
+
+    Alphabet copy = (Alphabet) dict.clone ();
+    assertTrue (copy instanceof ConcurrentAlphabet);
+    assertEquals (4999, copy.lookupIndex ("word4999"));
+  }
+
+  public void testConcurrentGrowth () throws InterruptedException
+  {
+    final Alphabet dict = new ConcurrentAlphabet ();
+    final int numWords = 3000;
+    final List<String> failures = new ArrayList<String> ();
+
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final int offset = t * 101;
+      threads[t] = new Thread () {
+          public void run () {
+            for (int i = 0; i < numWords; i++) {
+              String word = "word" + ((i + offset) % numWords);
+              int index = dict.lookupIndex (word);
+              if (! word.equals (dict.lookupObject (index))) {
+                synchronized (failures) {
+                  failures.add (word + " -> " + index);
+                }
+              }
+            }
+          }
+        };
+      threads[t].start ();
+    }
+    for (Thread thread : threads)
+      thread.join ();
+
+    assertTrue (failures.toString (), failures.isEmpty ());
+    // every word was added exactly once, with dense indices
+    assertEquals (numWords, dict.size ());
+    for (int i = 0; i < numWords; i++)
+      assertEquals (i, dict.lookupIndex (dict.lookupObject (i), false));
+  }
+
+  public void testReadResolve () throws IOException, ClassNotFoundException
+  {
+    Alphabet dict = new ConcurrentAlphabet ();
+    dict.lookupIndex ("TEST1");
+    dict.lookupIndex ("TEST2");
+    dict.lookupIndex ("TEST3");
+    Alphabet dict2 = (Alphabet) TestSerializable.cloneViaSerialization (dict);
+    assertTrue (dict == dict2);
+  }
+
+  public void testSerialization () throws IOException, ClassNotFoundException
+  {
+    Alphabet dict = new ConcurrentAlphabet ();
+    dict.lookupIndex ("TEST1");
+    dict.lookupIndex ("TEST2");
+    dict.stopGrowth ();
+    // pretend the alphabet comes from another VM, so readResolve keeps the copy
+    dict.setInstanceId (new VMID ());
+
+    Alphabet dict2 = (Alphabet) TestSerializable.cloneViaSerialization (dict);
+    assertTrue (dict != dict2);
+    assertTrue (dict2 instanceof ConcurrentAlphabet);
+    assertEquals (2, dict2.size ());
+    assertEquals (1, dict2.lookupIndex ("TEST2"));
+    assertEquals ("TEST1", dict2.lookupObject (0));
+    assertTrue (dict2.growthStopped ());
+    assertEquals (String.class, dict2.entryClass ());
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestConcurrentAlphabet.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestConcurrentAlphabet (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
@@ -0,0 +1,186 @@
+package cc.mallet.types.tests;
+
+import junit.framework.*;
+
+import java.util.Random;
+
+import cc.mallet.pipe.*;
+import cc.mallet.pipe.iterator.ArrayDataAndTargetIterator;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.TokenSequence;
+import cc.mallet.util.CharSequenceLexer;
+
+/**
+ * Checks that piping instances on several threads gives the same list, and the same
+ * feature and label indices, as piping them on one.
+ */
+public class TestInstanceListParallelPipe extends TestCase {
+
+  public TestInstanceListParallelPipe (String name)
+  {
+    super (name);
+  }
+
+  private static String[] vocabulary = {
+    "meeting", "meetings", "running", "agenda", "attached", "video", "watching", "amazing",
+    "stores", "opening", "tuesday", "weekly", "report", "budget", "review", "lunch",
+  };
+
+  private static Object[][] corpus (int numDocs)
+  {
+    Random random = new Random(1);
+    Object[] data = new Object[numDocs];
+    Object[] targets = new Object[numDocs];
+    for (int doc = 0; doc < numDocs; doc++) {
+      StringBuilder text = new StringBuilder();
+      int length = 1 + random.nextInt(20);
+      for (int i = 0; i < length; i++) {
+        // make later documents introduce new words, so the order of growth matters
+        String word = vocabulary[random.nextInt(vocabulary.length)];
+        text.append(random.nextBoolean() ? word.toUpperCase() : word).append(random.nextInt(1 + doc / 10)).append(' ');
+      }
+      data[doc] = text.toString();
+      targets[doc] = "label" + random.nextInt(1 + doc / 50);
+    }
+    return new Object[][] { data, targets };
+  }
+
+  private static SerialPipes pipe (Alphabet dataAlphabet)
+  {
+    return new SerialPipes (new Pipe[] {
+        new CharSequence2TokenSequence("\\p{Alnum}+"),
+        new TokenSequenceLowercase(),
+        new TokenSequence2SnowballStemming(),
+        dataAlphabet == null ? new TokenSequence2FeatureSequence() : new TokenSequence2FeatureSequence(dataAlphabet),
+        new Target2Label(),
+      });
+  }
+
+  private static void assertSameInstances (InstanceList expected, InstanceList actual)
+  {
+    assertEquals(expected.size(), actual.size());
+    assertEquals(expected.getDataAlphabet().size(), actual.getDataAlphabet().size());
+    for (int i = 0; i < expected.getDataAlphabet().size(); i++) {
+      assertEquals(expected.getDataAlphabet().lookupObject(i), actual.getDataAlphabet().lookupObject(i));
+    }
+    for (int i = 0; i < expected.getTargetAlphabet().size(); i++) {
+      assertEquals(expected.getTargetAlphabet().lookupObject(i), actual.getTargetAlphabet().lookupObject(i));
+    }
+
+    for (int doc = 0; doc < expected.size(); doc++) {
+      Instance e = expected.get(doc);
+      Instance a = actual.get(doc);
+      assertEquals(e.getTarget().toString(), a.getTarget().toString());
+      FeatureSequence ef = (FeatureSequence) e.getData();
+      FeatureSequence af = (FeatureSequence) a.getData();
+      assertEquals(ef.getLength(), af.getLength());
+      for (int i = 0; i < ef.getLength(); i++) {
+        assertEquals(ef.getIndexAtPosition(i), af.getIndexAtPosition(i));
+      }
+    }
+  }
+
+  public void testGrowingAlphabets ()
+  {
+    Object[][] corpus = corpus(2000);
+
+    InstanceList sequential = new InstanceList(pipe(null));
+    sequential.addThruPipe(new ArrayDataAndTargetIterator(corpus[0], corpus[1]));
+
+    InstanceList parallel = new InstanceList(pipe(null));
+    parallel.addThruPipe(new ArrayDataAndTargetIterator(corpus[0], corpus[1]), 4, 37);
+
+    assertSameInstances(sequential, parallel);
+  }
+
+  public void testStoppedAlphabet ()
+  {
+    Object[][] corpus = corpus(2000);
+
+    InstanceList sequential = new InstanceList(pipe(null));
+    sequential.addThruPipe(new ArrayDataAndTargetIterator(corpus[0], corpus[1]));
+    Alphabet alphabet = sequential.getDataAlphabet();
+    alphabet.stopGrowth();
+
+    // Only the labels go through the ordered phase here
+    InstanceList parallel = new InstanceList(pipe(alphabet));
+    parallel.addThruPipe(new ArrayDataAndTargetIterator(corpus[0], corpus[1]), 3, 100);
+
+    assertSameInstances(sequential, parallel);
+  }
+
+  /** A lexer that only returns words of more than six characters */
+  static class LongWordLexer extends CharSequenceLexer {
+    private static final long serialVersionUID = 1;
+
+    LongWordLexer ()
+    {
+      super ("\\p{Alnum}+");
+    }
+
+    public boolean hasNext ()
+    {
+      while (super.hasNext ()) {
+        if (getTokenString ().length () > 6)
+          return true;
+        super.next ();
+      }
+      return false;
+    }
+  }
+
+  private static SerialPipes longWordPipe ()
+  {
+    return new SerialPipes (new Pipe[] {
+        new CharSequence2TokenSequence(new LongWordLexer()),
+        new TokenSequence2FeatureSequence(),
+        new Target2Label(),
+      });
+  }
+
+  public void testCustomLexer ()
+  {
+    Object[][] corpus = corpus(500);
+
+    // The pipe must lex with the subclass, not a stock lexer with the same pattern
+    Instance carrier = new CharSequence2TokenSequence(new LongWordLexer())
+      .instanceFrom(new Instance(corpus[0][0], null, null, null));
+    TokenSequence tokens = (TokenSequence) carrier.getData();
+    assertTrue(tokens.size() > 0);
+    for (int i = 0; i < tokens.size(); i++) {
+      assertTrue(tokens.get(i).getText(), tokens.get(i).getText().length() > 6);
+    }
+
+    InstanceList sequential = new InstanceList(longWordPipe());
+    sequential.addThruPipe(new ArrayDataAndTargetIterator(corpus[0], corpus[1]));
+
+    InstanceList parallel = new InstanceList(longWordPipe());
+    parallel.addThruPipe(new ArrayDataAndTargetIterator(corpus[0], corpus[1]), 4, 20);
+
+    assertSameInstances(sequential, parallel);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestInstanceListParallelPipe.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestInstanceListParallelPipe (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
@@ -0,0 +1,171 @@
+package cc.mallet.types.tests;
+
+import junit.framework.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import cc.mallet.types.Dirichlet;
+import cc.mallet.types.SparseHistogram;
+
+/**
+ * Checks SparseHistogram, and that the Dirichlet estimators give the same results
+ *  for sparse histograms as for dense ones.
+ */
+public class TestSparseHistogram extends TestCase {
+
+  public TestSparseHistogram (String name)
+  {
+    super (name);
+  }
+
+  public void testCounts ()
+  {
+    SparseHistogram histogram = new SparseHistogram ();
+    assertTrue (histogram.isEmpty ());
+    assertEquals (-1, histogram.getMaxValue ());
+
+    histogram.increment (7);
+    histogram.increment (2);
+    histogram.increment (7);
+    histogram.increment (40, 3);
+    assertEquals (3, histogram.size ());
+    assertEquals (2, histogram.getFrequency (7));
+    assertEquals (0, histogram.getFrequency (8));
+    assertEquals (40, histogram.getMaxValue ());
+    assertTrue (Arrays.equals (new int[] { 2, 7, 40 }, histogram.getValues ()));
+    assertTrue (Arrays.equals (new int[] { 1, 2, 3 }, histogram.getFrequencies (histogram.getValues ())));
+
+    SparseHistogram other = new SparseHistogram (new int[] { 0, 0, 5, 0, 1 });
+    histogram.add (other);
+    assertEquals (6, histogram.getFrequency (2));
+    assertEquals (1, histogram.getFrequency (4));
+
+    histogram.clear ();
+    assertTrue (histogram.isEmpty ());
+  }
+
+  // Random document/topic histograms, as collected for alpha
+  private int[][] denseObservations (Random random, int numTopics, int[] lengths)
+  {
+    int maxLength = 0;
+    for (int length : lengths)
+      maxLength = Math.max (maxLength, length);
+
+    int[][] observations = new int[numTopics][maxLength + 1];
+    for (int length : lengths) {
+      int[] counts = new int[numTopics];
+      // Most of the tokens in a few topics
+      for (int token = 0; token < length; token++) {
+        int topic = random.nextDouble () < 0.8 ? random.nextInt (3) : random.nextInt (numTopics);
+        counts[topic]++;
+      }
+      for (int topic = 0; topic < numTopics; topic++)
+        observations[topic][counts[topic]]++;
+    }
+    return observations;
+  }
+
+  private int[] randomLengths (Random random, int numDocs)
+  {
+    int[] lengths = new int[numDocs];
+    for (int doc = 0; doc < numDocs; doc++)
+      lengths[doc] = 1 + random.nextInt (random.nextDouble () < 0.1 ? 2000 : 50);
+    return lengths;
+  }
+
+  private SparseHistogram[] sparse (int[][] dense)
+  {
+    SparseHistogram[] result = new SparseHistogram[dense.length];
+    for (int i = 0; i < dense.length; i++)
+      result[i] = new SparseHistogram (dense[i]);
+    return result;
+  }
+
+  private int[] lengthHistogram (int[] lengths)
+  {
+    int maxLength = 0;
+    for (int length : lengths)
+      maxLength = Math.max (maxLength, length);
+    int[] histogram = new int[maxLength + 1];
+    for (int length : lengths)
+      histogram[length]++;
+    return histogram;
+  }
+
+  public void testLearnParameters () throws Exception
+  {
+    Random random = new Random (1);
+    int numTopics = 100;
+    int[] lengths = randomLengths (random, 500);
+    int[][] observations = denseObservations (random, numTopics, lengths);
+    int[] lengthHistogram = lengthHistogram (lengths);
+
+    double[] dense = new double[numTopics];
+    Arrays.fill (dense, 0.1);
+    double[] sequential = dense.clone ();
+    double[] parallel = dense.clone ();
+
+    double denseSum = Dirichlet.learnParameters (dense, observations, lengthHistogram, 1.001, 1.0, 5);
+    double sequentialSum = Dirichlet.learnParameters (sequential, sparse (observations),
+                                                      new SparseHistogram (lengthHistogram), 1.001, 1.0, 5, null);
+
+    ExecutorService executor = Executors.newFixedThreadPool (4);
+    try {
+      double parallelSum = Dirichlet.learnParameters (parallel, sparse (observations),
+                                                      new SparseHistogram (lengthHistogram), 1.001, 1.0, 5, executor);
+      assertEquals (sequentialSum, parallelSum, 0.0);
+    } finally {
+      executor.shutdown ();
+    }
+
+    assertEquals (denseSum, sequentialSum, 1e-9 * denseSum);
+    for (int topic = 0; topic < numTopics; topic++) {
+      assertEquals (dense[topic], sequential[topic], 1e-9 * dense[topic]);
+      assertEquals (sequential[topic], parallel[topic], 0.0);
+    }
+  }
+
+  public void testLearnSymmetricConcentration ()
+  {
+    Random random = new Random (2);
+    int numTopics = 50;
+    int[] lengths = randomLengths (random, 300);
+    int[][] observations = denseObservations (random, numTopics, lengths);
+
+    // The symmetric estimator pools the counts of all topics
+    int[] countHistogram = new int[observations[0].length];
+    for (int topic = 0; topic < numTopics; topic++)
+      for (int count = 0; count < countHistogram.length; count++)
+        countHistogram[count] += observations[topic][count];
+    int[] lengthHistogram = lengthHistogram (lengths);
+
+    double dense = Dirichlet.learnSymmetricConcentration (countHistogram, lengthHistogram, numTopics, 1.0);
+    double sparse = Dirichlet.learnSymmetricConcentration (new SparseHistogram (countHistogram),
+                                                           new SparseHistogram (lengthHistogram), numTopics, 1.0);
+    assertEquals (dense, sparse, 1e-9 * dense);
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestSparseHistogram.class);
+  }
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestSparseHistogram (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}
@@ -0,0 +1,139 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.util;
+
+import java.util.Random;
+
+/**
+ * Draws from a discrete distribution in constant time, using Walker's alias method
+ *  (in Vose's formulation). Building the table takes time linear in the number of outcomes.
+ * <p>
+ * A table can be rebuilt with new weights, which reuses its arrays if they are large enough.
+ *  It is not safe to build and sample a table from several threads at once.
+ */
+public class AliasTable {
+
+	int size = 0;
+	double totalWeight = 0.0;
+
+	// the outcome of each slot, or null if slot i is outcome i
+	int[] outcomes;
+	// the chance of keeping the slot's own outcome, and the outcome to use otherwise
+	double[] probabilities = new double[0];
+	int[] aliases = new int[0];
+
+	// work space for building
+	int[] small = new int[0];
+	int[] large = new int[0];
+
+	public AliasTable () { }
+
+	public AliasTable (double[] weights) {
+		build (weights, null, weights.length);
+	}
+
+	/**
+	 * Replace the distribution.
+	 *
+	 * @param weights Non-negative, unnormalized weights. Only the first <code>size</code> are used.
+	 * @param outcomes The outcome that goes with each weight, or null to return the index of the weight.
+	 *  The values are copied, so the array can be reused.
+	 * @param size The number of outcomes
+	 */
+	public void build (double[] weights, int[] outcomes, int size) {
+		if (probabilities.length < size) {
+			int capacity = Math.max (size, 2 * probabilities.length);
+			probabilities = new double[capacity];
+			aliases = new int[capacity];
+			small = new int[capacity];
+			large = new int[capacity];
+		}
+		if (outcomes == null) {
+			this.outcomes = null;
+		}
+		else {
+			if (this.outcomes == null || this.outcomes.length < size) {
+				this.outcomes = new int[probabilities.length];
+			}
+			System.arraycopy (outcomes, 0, this.outcomes, 0, size);
+		}
+		this.size = size;
+
+		totalWeight = 0.0;
+		for (int i = 0; i < size; i++) {
+			if (weights[i] < 0) {
+				throw new IllegalArgumentException ("Negative weight " + weights[i] + " for outcome " + i);
+			}
+			totalWeight += weights[i];
+		}
+		if (size == 0 || totalWeight == 0) {
+			return;
+		}
+
+		// Scale the weights so that they average 1, and
+		//  sort the slots into under-full and over-full ones
+		int numSmall = 0;
+		int numLarge = 0;
+		for (int i = 0; i < size; i++) {
+			probabilities[i] = weights[i] * size / totalWeight;
+			if (probabilities[i] < 1.0) {
+				small[numSmall++] = i;
+			}
+			else {
+				large[numLarge++] = i;
+			}
+		}
+
+		// Fill each under-full slot from an over-full one
+		while (numSmall > 0 && numLarge > 0) {
+			int less = small[--numSmall];
+			int more = large[--numLarge];
+
+			aliases[less] = more;
+			probabilities[more] = (probabilities[more] + probabilities[less]) - 1.0;
+			if (probabilities[more] < 1.0) {
+				small[numSmall++] = more;
+			}
+			else {
+				large[numLarge++] = more;
+			}
+		}
+
+		// What is left is full, up to rounding error
+		while (numLarge > 0) {
+			int slot = large[--numLarge];
+			probabilities[slot] = 1.0;
+			aliases[slot] = slot;
+		}
+		while (numSmall > 0) {
+			int slot = small[--numSmall];
+			probabilities[slot] = 1.0;
+			aliases[slot] = slot;
+		}
+	}
+
+	/** The number of outcomes */
+	public int size () { return size; }
+
+	/** The sum of the weights the table was built from */
+	public double getTotalWeight () { return totalWeight; }
+
+	/** Draw an outcome, with probability proportional to its weight */
+	public int sample (Random random) {
+		if (size == 0 || totalWeight == 0) {
+			throw new IllegalStateException ("Can't sample from an empty distribution");
+		}
+		double draw = random.nextDouble() * size;
+		int slot = (int) draw;
+		if (slot == size) { slot--; }
+		if (draw - slot >= probabilities[slot]) {
+			slot = aliases[slot];
+		}
+		return outcomes == null ? slot : outcomes[slot];
+	}
+}
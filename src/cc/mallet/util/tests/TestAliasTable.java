@@ -0,0 +1,102 @@
+/* Copyright (C) Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+package cc.mallet.util.tests;
+
+import cc.mallet.util.AliasTable;
+import cc.mallet.util.Randoms;
+import junit.framework.*;
+
+/**
+ * Checks that AliasTable draws outcomes in proportion to their weights.
+ */
+public class TestAliasTable extends TestCase {
+
+  public TestAliasTable (String name)
+  {
+    super (name);
+  }
+
+  private void assertFrequencies (AliasTable table, double[] weights, int[] outcomes, int size)
+  {
+    Randoms random = new Randoms (1);
+    int numDraws = 200000;
+    int maxOutcome = 0;
+    for (int i = 0; i < size; i++)
+      maxOutcome = Math.max (maxOutcome, outcomes == null ? i : outcomes[i]);
+    int[] counts = new int[maxOutcome + 1];
+    for (int draw = 0; draw < numDraws; draw++)
+      counts[table.sample (random)]++;
+
+    double total = 0;
+    for (int i = 0; i < size; i++)
+      total += weights[i];
+    assertEquals (total, table.getTotalWeight (), 1e-12);
+
+    for (int i = 0; i < size; i++) {
+      int outcome = outcomes == null ? i : outcomes[i];
+      double expected = weights[i] / total;
+      assertEquals ("outcome " + outcome, expected, (double) counts[outcome] / numDraws, 0.005);
+    }
+  }
+
+  public void testWeights ()
+  {
+    double[] weights = { 0.5, 3.0, 0.0, 1.5, 10.0, 0.01 };
+    assertFrequencies (new AliasTable (weights), weights, null, weights.length);
+  }
+
+  public void testRebuildWithOutcomes ()
+  {
+    AliasTable table = new AliasTable (new double[] { 1.0, 1.0 });
+
+    // A larger table, over outcomes that are not the weight indices
+    double[] weights = { 2.0, 0.25, 4.0, 1.0, 0.75, 999.0 };
+    int[] outcomes = { 7, 3, 12, 0, 5, -1 };
+    table.build (weights, outcomes, 5);
+    assertEquals (5, table.size ());
+    // The table keeps its own copy of the outcomes
+    outcomes[0] = 100;
+    assertFrequencies (table, weights, new int[] { 7, 3, 12, 0, 5 }, 5);
+
+    // Smaller again, reusing the arrays
+    table.build (new double[] { 3.0, 1.0 }, null, 2);
+    assertFrequencies (table, new double[] { 3.0, 1.0 }, null, 2);
+  }
+
+  public void testEmpty ()
+  {
+    AliasTable table = new AliasTable ();
+    assertEquals (0, table.size ());
+    try {
+      table.sample (new Randoms (1));
+      fail ("sampled from an empty table");
+    } catch (IllegalStateException e) {
+    }
+  }
+
+  public static Test suite ()
+  {
+    return new TestSuite (TestAliasTable.class);
+  }
+
+
+  public static void main (String[] args) throws Throwable
+  {
+    TestSuite theSuite;
+    if (args.length > 0) {
+      theSuite = new TestSuite ();
+      for (int i = 0; i < args.length; i++) {
+        theSuite.addTest (new TestAliasTable (args[i]));
+      }
+    } else {
+      theSuite = (TestSuite) suite ();
+    }
+
+    junit.textui.TestRunner.run (theSuite);
+  }
+
+}